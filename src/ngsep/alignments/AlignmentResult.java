@@ -1,22 +1,38 @@
 package ngsep.alignments;
 
-import java.util.LinkedList;
-
-class AlignmentResult {
+/**
+ * Result of a pairwise alignment of a query sequence to a subject sequence.
+ * The path of the alignment is stored as operations in the SAM format
+ */
+public class AlignmentResult {
 	private int subjectStartIdx;
 	private int subjectLastIdx;
 	private int distance;
-	private LinkedList<Character> path = new LinkedList<>();
+	private int score;
+	// Operations of the alignment path in reverse order
+	private StringBuilder path = new StringBuilder();
 
+	/**
+	 * Adds an operation at the start of the alignment path. Operations are added while tracing back the alignment
+	 * @param decision Operation of the path
+	 */
 	public void addBacktrack(char decision) {
-		path.add(0, decision);
+		path.append(decision);
+	}
+
+	/**
+	 * @return String Operations of the alignment path from the start to the end of the alignment
+	 */
+	public String getPath() {
+		return new StringBuilder(path).reverse().toString();
 	}
 
 	public String getCigarString () {
 		StringBuilder cigar = new StringBuilder();
 		int nextCount = 0;
 		char next = 0;
-		for(char c:path) {
+		for(int i=path.length()-1;i>=0;i--) {
+			char c = path.charAt(i);
 			if(c!=next) {
 				if(nextCount>0) {
 					cigar.append(nextCount);
@@ -76,4 +92,18 @@ class AlignmentResult {
 	public void setDistance(int distance) {
 		this.distance = distance;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the score
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * @param score the score to set
+	 */
+	public void setScore(int score) {
+		this.score = score;
+	}
+}
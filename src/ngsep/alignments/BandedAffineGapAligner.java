@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+import ngsep.sequences.LimitedSequence;
+
+/**
+ * Banded pairwise aligner with affine gap penalties (Gotoh algorithm). Sequences are encoded
+ * with two bits per base (see encode). Only the cells within a band of diagonals are calculated.
+ * Scores are stored in arrays having the width of the band and the traceback uses one byte per
+ * cell within the band. Each row is calculated in two passes: a first pass without dependencies
+ * between cells that calculates diagonal and vertical moves and a second pass calculating the
+ * horizontal moves. If an alignment outside the band could have a better score, the alignment is calculated
+ * again with a wider band. Buffers are reused across alignments and kept per thread, so a single instance can be shared by several threads
+ * @author Jorge Duitama
+ */
+public class BandedAffineGapAligner {
+	/**
+	 * Code used for characters other than A, C, G or T
+	 */
+	public static final byte CODE_UNKNOWN = 4;
+	/**
+	 * Penalty for aligning a base with unknown code. It is lower than the mismatch penalty
+	 * to avoid opening gaps around unknown regions such as runs of N
+	 */
+	public static final int UNKNOWN_PENALTY = 1;
+	private static final byte [] CODES = new byte[256];
+	static {
+		for(int i=0;i<CODES.length;i++) CODES[i] = CODE_UNKNOWN;
+		String bases = "ACGT";
+		for(int i=0;i<bases.length();i++) {
+			CODES[bases.charAt(i)] = (byte)i;
+			CODES[Character.toLowerCase(bases.charAt(i))] = (byte)i;
+		}
+	}
+	private static final int NEG_INF = Integer.MIN_VALUE/4;
+	//Traceback bits. The two lowest bits store the source of the best score
+	private static final byte TB_DIAGONAL = 0;
+	private static final byte TB_HORIZONTAL = 1;
+	private static final byte TB_VERTICAL = 2;
+	private static final byte TB_SOURCE_MASK = 3;
+	private static final byte TB_HORIZONTAL_EXTENDED = 4;
+	private static final byte TB_VERTICAL_EXTENDED = 8;
+
+	private static final char OP_MATCH = ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_MATCH);
+	private static final char OP_INSERTION = ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_INSERTION);
+	private static final char OP_DELETION = ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_DELETION);
+
+	private int match;
+	private int openGap;
+	private int extGap;
+	private int mismatch;
+	private int bandWidth;
+
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Creates a new aligner. Penalties are given as positive numbers
+	 * @param match Score of a match
+	 * @param openGap Penalty of the first position of a gap
+	 * @param extGap Penalty of each additional position of a gap
+	 * @param mismatch Penalty of a mismatch
+	 * @param bandWidth Number of diagonals calculated at each side of the diagonals connecting the ends of the alignment
+	 */
+	public BandedAffineGapAligner(int match, int openGap, int extGap, int mismatch, int bandWidth) {
+		this.match = match;
+		this.openGap = openGap;
+		this.extGap = extGap;
+		this.mismatch = mismatch;
+		this.bandWidth = bandWidth;
+	}
+
+	/**
+	 * @return int Number of diagonals calculated at each side of the diagonals connecting the ends of the alignment
+	 */
+	public int getBandWidth() {
+		return bandWidth;
+	}
+
+	/**
+	 * Encodes the given sequence with one code per base. Codes of A, C, G and T are 0, 1, 2 and 3 respectively.
+	 * Other characters are encoded as CODE_UNKNOWN
+	 * @param sequence to encode
+	 * @return byte[] Codes of the bases of the sequence
+	 */
+	public static byte [] encode(CharSequence sequence) {
+		int n = sequence.length();
+		byte [] answer = new byte[n];
+		for(int i=0;i<n;i++) {
+			char c = sequence.charAt(i);
+			answer[i] = c<CODES.length?CODES[c]:CODE_UNKNOWN;
+		}
+		return answer;
+	}
+
+	/**
+	 * Aligns the two given sequences end to end and returns the aligned sequences with gap characters
+	 * @param s1 First sequence
+	 * @param s2 Second sequence
+	 * @return String[] Aligned sequences having the same length
+	 */
+	public String [] getAlignment (String s1, String s2) {
+		AlignmentResult result = alignGlobal(encode(s1), encode(s2));
+		String path = result.getPath();
+		StringBuilder aligned1 = new StringBuilder(path.length());
+		StringBuilder aligned2 = new StringBuilder(path.length());
+		int i = 0;
+		int j = 0;
+		for(int k=0;k<path.length();k++) {
+			char op = path.charAt(k);
+			if(op==OP_MATCH) {
+				aligned1.append(s1.charAt(i++));
+				aligned2.append(s2.charAt(j++));
+			} else if (op==OP_INSERTION) {
+				aligned1.append(s1.charAt(i++));
+				aligned2.append(LimitedSequence.GAP_CHARACTER);
+			} else {
+				aligned1.append(LimitedSequence.GAP_CHARACTER);
+				aligned2.append(s2.charAt(j++));
+			}
+		}
+		return new String[] {aligned1.toString(), aligned2.toString()};
+	}
+
+	/**
+	 * Aligns the two sequences end to end. The band is widened if the optimal alignment can be outside the band
+	 * @param query Codes of the query sequence
+	 * @param subject Codes of the subject sequence
+	 * @return AlignmentResult Alignment with the path of the query against the subject
+	 */
+	public AlignmentResult alignGlobal (byte [] query, byte [] subject) {
+		return alignWideningBand(query, subject, false);
+	}
+
+	/**
+	 * Aligns the complete query to a segment of the subject. Gaps at the ends of the subject are not penalized.
+	 * The band is widened if the optimal alignment can be outside the band
+	 * @param query Codes of the query sequence
+	 * @param subject Codes of the subject sequence
+	 * @return AlignmentResult Alignment with the path of the query and the coordinates of the aligned segment of the subject
+	 */
+	public AlignmentResult alignQueryToSubject (byte [] query, byte [] subject) {
+		return alignWideningBand(query, subject, true);
+	}
+	
+	/**
+	 * Aligns the query against the subject starting with a band of bandWidth diagonals at each side of the
+	 * diagonals connecting the ends of the alignment. Leaving the band requires at least bandWidth+1 insertions,
+	 * which limits the score of any path outside the band. If the score of the banded alignment is smaller than
+	 * this limit, the width of the band is doubled and the alignment is calculated again.
+	 * Hence, the score of the returned alignment is always the score of the alignment using the complete matrix
+	 * @param query Codes of the query sequence
+	 * @param subject Codes of the subject sequence
+	 * @param localSubject Tells if gaps at the ends of the subject should be free
+	 * @return AlignmentResult Alignment of the query against the subject
+	 */
+	private AlignmentResult alignWideningBand (byte [] query, byte [] subject, boolean localSubject) {
+		int n = query.length;
+		int m = subject.length;
+		int diff = m-n;
+		int width = Math.max(1, bandWidth);
+		while(true) {
+			int minDiagonal = Math.min(0, diff)-width;
+			int maxDiagonal = Math.max(0, diff)+width;
+			AlignmentResult result = align(query, subject, minDiagonal, maxDiagonal, localSubject);
+			if(minDiagonal<=-n && maxDiagonal>=m) return result;
+			//Maximum score of a path including at least width+1 insertions
+			long maxScoreOutside = (long)match*(n-width-1)-openGap-(long)extGap*width;
+			if(result!=null && result.getScore()>=maxScoreOutside) return result;
+			width*=2;
+		}
+	}
+	
+	/**
+	 * Aligns the query against the subject calculating only the cells in the given range of diagonals.
+	 * Cell (i,j) is in diagonal j-i
+	 * @param query Codes of the query sequence
+	 * @param subject Codes of the subject sequence
+	 * @param minDiagonal First diagonal of the band
+	 * @param maxDiagonal Last diagonal of the band
+	 * @param localSubject Tells if gaps at the ends of the subject should be free
+	 * @return AlignmentResult Alignment of the query against the subject. null if the band does not include the end of the alignment
+	 */
+	public AlignmentResult align(byte [] query, byte [] subject, int minDiagonal, int maxDiagonal, boolean localSubject) {
+		int n = query.length;
+		int m = subject.length;
+		if(maxDiagonal<-n) maxDiagonal = -n;
+		if(minDiagonal>m) minDiagonal = m;
+		if(minDiagonal>maxDiagonal) return null;
+		if(!localSubject && (m-n<minDiagonal || m-n>maxDiagonal)) return null;
+		int w = maxDiagonal-minDiagonal+1;
+		Buffers b = buffers.get();
+		b.ensureCapacity(n, m, w);
+		int [] hPrev = b.hPrev;
+		int [] fPrev = b.fPrev;
+		int [] hCurr = b.hCurr;
+		int [] fCurr = b.fCurr;
+		int [] hDiag = b.hDiag;
+		byte [] traceback = b.traceback;
+		int [] profile = b.profile;
+		//Score of each query code against each subject position
+		int profileRow = m+1;
+		for(int c=0;c<=CODE_UNKNOWN;c++) {
+			int offset = c*profileRow;
+			for(int j=1;j<=m;j++) {
+				byte s = subject[j-1];
+				if(c==CODE_UNKNOWN || s==CODE_UNKNOWN) profile[offset+j] = -UNKNOWN_PENALTY;
+				else profile[offset+j] = (c==s)?match:-mismatch;
+			}
+		}
+		//First row
+		for(int k=0;k<=w;k++) {
+			hPrev[k] = NEG_INF;
+			fPrev[k] = NEG_INF;
+			int j = minDiagonal+k;
+			if(k==w || j<0 || j>m) continue;
+			if(j==0 || localSubject) hPrev[k] = 0;
+			else hPrev[k] = -openGap-extGap*(j-1);
+		}
+		hCurr[w] = NEG_INF;
+		fCurr[w] = NEG_INF;
+		for(int i=1;i<=n;i++) {
+			int kStart = Math.max(0, -i-minDiagonal);
+			int kEnd = Math.min(w-1, m-i-minDiagonal);
+			for(int k=0;k<kStart;k++) {
+				hCurr[k] = NEG_INF;
+				fCurr[k] = NEG_INF;
+			}
+			for(int k=Math.max(kEnd+1, 0);k<w;k++) {
+				hCurr[k] = NEG_INF;
+				fCurr[k] = NEG_INF;
+			}
+			if(kStart>kEnd) {
+				int [] tmp = hPrev; hPrev = hCurr; hCurr = tmp;
+				tmp = fPrev; fPrev = fCurr; fCurr = tmp;
+				continue;
+			}
+			int tbRow = i*w;
+			int k0 = kStart;
+			if(i+minDiagonal+kStart==0) {
+				//Cell in the first column
+				hCurr[kStart] = -openGap-extGap*(i-1);
+				fCurr[kStart] = hCurr[kStart];
+				traceback[tbRow+kStart] = (byte)(TB_VERTICAL | (i>1?TB_VERTICAL_EXTENDED:0));
+				k0++;
+			}
+			//First pass. Diagonal and vertical moves only depend on the previous row
+			int profileOffset = query[i-1]*profileRow+i+minDiagonal;
+			for(int k=k0;k<=kEnd;k++) {
+				hDiag[k] = hPrev[k]+profile[profileOffset+k];
+				fCurr[k] = Math.max(hPrev[k+1]-openGap, fPrev[k+1]-extGap);
+			}
+			//Second pass. Horizontal moves and traceback
+			int e = NEG_INF;
+			for(int k=k0;k<=kEnd;k++) {
+				int hLeft = k>0?hCurr[k-1]:NEG_INF;
+				int eOpen = hLeft-openGap;
+				int eExt = e-extGap;
+				byte tb = 0;
+				if(eExt>eOpen) {
+					e = eExt;
+					tb |= TB_HORIZONTAL_EXTENDED;
+				} else {
+					e = eOpen;
+				}
+				int f = fCurr[k];
+				if(fPrev[k+1]-extGap>hPrev[k+1]-openGap) tb |= TB_VERTICAL_EXTENDED;
+				int h = hDiag[k];
+				byte source = TB_DIAGONAL;
+				if(f>h) {
+					h = f;
+					source = TB_VERTICAL;
+				}
+				if(e>h) {
+					h = e;
+					source = TB_HORIZONTAL;
+				}
+				hCurr[k] = h;
+				traceback[tbRow+k] = (byte)(tb | source);
+			}
+			int [] tmp = hPrev; hPrev = hCurr; hCurr = tmp;
+			tmp = fPrev; fPrev = fCurr; fCurr = tmp;
+		}
+		//Find the end of the alignment in the last row
+		int endK = m-n-minDiagonal;
+		if(localSubject) {
+			int kStart = Math.max(0, -n-minDiagonal);
+			int kEnd = Math.min(w-1, m-n-minDiagonal);
+			if(kStart>kEnd) return null;
+			endK = kStart;
+			for(int k=kStart+1;k<=kEnd;k++) {
+				if(hPrev[k]>hPrev[endK]) endK = k;
+			}
+		}
+		int score = hPrev[endK];
+		if(score<=NEG_INF/2) return null;
+		AlignmentResult result = traceback(query, subject, minDiagonal, w, n, endK, localSubject, traceback);
+		result.setScore(score);
+		return result;
+	}
+
+	private AlignmentResult traceback(byte [] query, byte [] subject, int minDiagonal, int w, int n, int endK, boolean localSubject, byte [] traceback) {
+		AlignmentResult result = new AlignmentResult();
+		int i = n;
+		int j = n+minDiagonal+endK;
+		result.setSubjectLastIdx(j-1);
+		int distance = 0;
+		byte state = TB_DIAGONAL;
+		while(i>0 && j>0) {
+			byte tb = traceback[i*w+j-i-minDiagonal];
+			if(state==TB_DIAGONAL) state = (byte)(tb & TB_SOURCE_MASK);
+			if(state==TB_DIAGONAL) {
+				if(query[i-1]!=subject[j-1]) distance++;
+				result.addBacktrack(OP_MATCH);
+				i--;
+				j--;
+			} else if (state == TB_VERTICAL) {
+				distance++;
+				result.addBacktrack(OP_INSERTION);
+				if((tb & TB_VERTICAL_EXTENDED)==0) state = TB_DIAGONAL;
+				i--;
+			} else {
+				distance++;
+				result.addBacktrack(OP_DELETION);
+				if((tb & TB_HORIZONTAL_EXTENDED)==0) state = TB_DIAGONAL;
+				j--;
+			}
+		}
+		for(;i>0;i--) {
+			distance++;
+			result.addBacktrack(OP_INSERTION);
+		}
+		if(!localSubject) {
+			for(;j>0;j--) {
+				distance++;
+				result.addBacktrack(OP_DELETION);
+			}
+		}
+		result.setSubjectStartIdx(j);
+		result.setDistance(distance);
+		return result;
+	}
+
+	/**
+	 * Buffers reused by the alignments performed by the same thread
+	 */
+	private static class Buffers {
+		private int [] hPrev = new int[0];
+		private int [] fPrev = new int[0];
+		private int [] hCurr = new int[0];
+		private int [] fCurr = new int[0];
+		private int [] hDiag = new int[0];
+		private int [] profile = new int[0];
+		private byte [] traceback = new byte[0];
+
+		private void ensureCapacity(int n, int m, int w) {
+			if(hPrev.length<w+1) {
+				hPrev = new int[w+1];
+				fPrev = new int[w+1];
+				hCurr = new int[w+1];
+				fCurr = new int[w+1];
+				hDiag = new int[w+1];
+			}
+			if(profile.length<(CODE_UNKNOWN+1)*(m+1)) profile = new int[(CODE_UNKNOWN+1)*(m+1)];
+			long tbSize = (long)(n+1)*w;
+			if(tbSize>Integer.MAX_VALUE) throw new IllegalArgumentException("Band of "+w+" diagonals is too large to align a query of length "+n);
+			if(traceback.length<tbSize) traceback = new byte[(int)tbSize];
+		}
+	}
+}
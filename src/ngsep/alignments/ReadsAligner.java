@@ -21,15 +21,22 @@ package ngsep.alignments;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.io.ReadAlignmentFileWriter;
@@ -37,8 +44,10 @@ import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.ReferenceGenomeFMIndex;
+import ngsep.genome.ReferenceGenomeSMEM;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -56,6 +65,11 @@ public class ReadsAligner {
 	private Logger log = Logger.getLogger(ReadsAligner.class.getName());
 	public static final double DEF_MIN_PROPORTION_KMERS = 0.7;
 	static final int SEARCH_KMER_LENGTH = 15;
+	/**
+	 * Maximum number of occurrences located in each reference sequence for each exact match seed.
+	 * Seeds with more occurrences come from repetitive regions and are only partially located
+	 */
+	static final int MAX_SEED_HITS = 100;
 	private double minProportionKmers = DEF_MIN_PROPORTION_KMERS;
 	private String tandemRepeatsFile = null;
 	private Map<String, List<GenomicRegion>> tandemRepeats;
@@ -65,9 +79,24 @@ public class ReadsAligner {
 	private ReferenceGenomeFMIndex fMIndex;
 	public static final int DEFAULT_PAIREND_LENGTH_MAX=500;
 	public static final int DEFAULT_MAX_ALIGNMENTS=100;
+	public static final int DEF_NUM_THREADS = 1;
+	/**
+	 * Number of reads (or read pairs) aligned by a single task of the alignment pipeline
+	 */
+	public static final int READS_BATCH_SIZE = 1000;
+	private int numThreads = DEF_NUM_THREADS;
 
 
 	public static final int MAX_SPACE_BETWEEN_KMERS = 200;
+	/**
+	 * Scores used to perform gapped alignments of reads that are not fully explained by exact k-mer hits
+	 */
+	static final int GAPPED_MATCH_SCORE = 1;
+	static final int GAPPED_MISMATCH_PENALTY = 4;
+	static final int GAPPED_OPEN_PENALTY = 7;
+	static final int GAPPED_EXTENSION_PENALTY = 1;
+	static final int GAPPED_BAND_WIDTH = 16;
+	private BandedAffineGapAligner gappedAligner = new BandedAffineGapAligner(GAPPED_MATCH_SCORE, GAPPED_OPEN_PENALTY, GAPPED_EXTENSION_PENALTY, GAPPED_MISMATCH_PENALTY, GAPPED_BAND_WIDTH);
 
 	public ReadsAligner(String fMIndexFile) throws IOException {
 		fMIndex = ReferenceGenomeFMIndex.loadFromBinaries(fMIndexFile);
@@ -87,13 +116,13 @@ public class ReadsAligner {
 		String fMIndexFile = args[i++];
 		String outFile = args[i++];
 		String readsFile1 = args[i++];
-		String readsFile2="";
-		if(isPairendParameters(args)) readsFile2 = args[i++];
+		String readsFile2 = null;
+		if(i<args.length) readsFile2 = args[i++];
 		instance.fMIndex = ReferenceGenomeFMIndex.loadFromBinaries(fMIndexFile);
 		QualifiedSequenceList sequences = instance.fMIndex.getSequencesMetadata();
 		try (PrintStream out = new PrintStream(outFile);
 				ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out)){
-			if(isPairendParameters(args))
+			if(readsFile2!=null)
 			{
 				instance.alignReads(readsFile1,readsFile2, writer);
 			}
@@ -103,10 +132,6 @@ public class ReadsAligner {
 		}
 	}
 
-	private static boolean isPairendParameters(String[] args) {
-		return (args.length>5 &&(args[0].equals("-t")||args[2].equals("-t")) )||(args.length>3 && (!args[0].equals("-t")&&!args[0].equals("-p")));
-	}
-
 	public Map<String, List<GenomicRegion>> loadTRF(String tandemRepeatsFile) {
 		SimpleGenomicRegionFileHandler handler = new SimpleGenomicRegionFileHandler();
 		try {
@@ -202,68 +227,100 @@ public class ReadsAligner {
 	}
 
 	/**
-	 * Aligns readsFile with the fMIndexFile
-	 * @param fMIndexFile Binary file with the serialization of an FMIndex
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the numThreads to set
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	/**
+	 * Aligns the reads in the given file. The calling thread loads batches of reads, numThreads workers
+	 * align the batches sharing the read-only FM-index, and the alignments are written in the order of the input file
 	 * @param readsFile Fastq file with the reads to align
-	 * @param out
-	 * @throws IOException
+	 * @param writer Writer of the alignments
+	 * @throws IOException If the reads can not be loaded or the alignments can not be written
 	 */
 	public void alignReads( String readsFile, ReadAlignmentFileWriter writer) throws IOException {
 		if(tandemRepeatsFile!=null && !tandemRepeatsFile.isEmpty())loadTRF(tandemRepeatsFile);
-		int totalReads = 0;
-		int readsAligned = 0;
-		int uniqueAlignments=0;
+		AlignedReadsBatch totals = new AlignedReadsBatch();
 		long time = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<AlignedReadsBatch>> pendingBatches = new ArrayDeque<>();
 		try (FastqFileReader reader = new FastqFileReader(readsFile)) {
 			//Load as DNAMaskedSequence to allow reverse complement
 			reader.setSequenceType(DNAMaskedSequence.class);
 			Iterator<RawRead> it = reader.iterator();
 			while(it.hasNext()) {
-				RawRead read = it.next();
-				List<ReadAlignment> alns = alignRead(read);
-				//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
-				for(ReadAlignment aln:alns) writer.write(aln);
-				if(alns.size()==0) {
-					ReadAlignment alnNoMap = new ReadAlignment(null, 0, 0, read.getLength(), ReadAlignment.FLAG_READ_UNMAPPED);
-					alnNoMap.setReadName(read.getName());
-					alnNoMap.setReadCharacters(read.getCharacters());
-					alnNoMap.setQualityScores(read.getQualityScores());
-					writer.write(alnNoMap);
-				}
-				int numAlns = alns.size();
-				totalReads++;
-				if(numAlns>0) readsAligned++;
-				if(numAlns==1) uniqueAlignments++;
-				if(totalReads%100000==0) log.info("Processed "+totalReads+" reads. Aligned: "+readsAligned);
+				final List<RawRead> reads = new ArrayList<>(READS_BATCH_SIZE);
+				while(it.hasNext() && reads.size()<READS_BATCH_SIZE) reads.add(it.next());
+				pendingBatches.add(pool.submit(new Callable<AlignedReadsBatch>() {
+					@Override
+					public AlignedReadsBatch call() {
+						return alignReadsBatch(reads);
+					}
+				}));
+				if(pendingBatches.size()>=2*numThreads) writeBatch(pendingBatches.poll(), writer, totals, false);
 			}
+			while(!pendingBatches.isEmpty()) writeBatch(pendingBatches.poll(), writer, totals, false);
+		} finally {
+			pool.shutdownNow();
 		}
-		log.info("Total reads: "+totalReads);
-		log.info("Reads aligned: "+readsAligned);
-		log.info("Unique alignments: "+uniqueAlignments);
-		log.info("Overall alignment rate: "+(100.0*readsAligned/(double)totalReads)+"%");
+		log.info("Total reads: "+totals.totalReads);
+		log.info("Reads aligned: "+totals.readsAligned);
+		log.info("Unique alignments: "+totals.uniqueAlignments);
+		log.info("Overall alignment rate: "+(100.0*totals.readsAligned/(double)totals.totalReads)+"%");
 
 		double seconds = (System.currentTimeMillis()-time);
 		seconds /=1000;
 		log.info("Time: "+seconds+" seconds");
 	}
 
+	private AlignedReadsBatch alignReadsBatch(List<RawRead> reads) {
+		AlignedReadsBatch batch = new AlignedReadsBatch();
+		for(RawRead read:reads) {
+			List<ReadAlignment> alns = alignRead(read);
+			//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
+			batch.alignments.addAll(alns);
+			if(alns.size()==0) {
+				ReadAlignment alnNoMap = new ReadAlignment(null, 0, 0, read.getLength(), ReadAlignment.FLAG_READ_UNMAPPED);
+				alnNoMap.setReadName(read.getName());
+				alnNoMap.setReadCharacters(read.getCharacters());
+				alnNoMap.setQualityScores(read.getQualityScores());
+				batch.alignments.add(alnNoMap);
+			}
+			int numAlns = alns.size();
+			batch.totalReads++;
+			if(numAlns>0) batch.readsAligned++;
+			if(numAlns==1) batch.uniqueAlignments++;
+		}
+		return batch;
+	}
+
 	/**
-	 * Aligns readsFile with the fMIndexFile for pairend
-	 * @param fMIndexFile Binary file with the serialization of an FMIndex
-	 * @param readsFile1 Fastq file with the reads to align
-	 * @param readsFile2 Fastq file with the reads to align
-	 * @param out
-	 * @throws IOException
+	 * Aligns paired-end reads. The calling thread loads batches of read pairs, numThreads workers
+	 * align the batches sharing the read-only FM-index, and the alignments are written in the order of the input files
+	 * @param readsFile1 Fastq file with the first reads of each pair
+	 * @param readsFile2 Fastq file with the second reads of each pair
+	 * @param writer Writer of the alignments
+	 * @throws IOException If the reads can not be loaded or the alignments can not be written
 	 */
 	public void alignReads( String readsFile1, String readsFile2, ReadAlignmentFileWriter writer) throws IOException {
 		if(tandemRepeatsFile!=null && !tandemRepeatsFile.isEmpty())loadTRF(tandemRepeatsFile);
-		int totalReads = 0;
-		int readsAligned = 0;
-		int proper = 0;
-		int notProper = 0;
-		int single = 0;
-		int uniqueAlignments=0;
+		AlignedReadsBatch totals = new AlignedReadsBatch();
 		long time = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<AlignedReadsBatch>> pendingBatches = new ArrayDeque<>();
 		try (FastqFileReader reader1 = new FastqFileReader(readsFile1); FastqFileReader reader2 = new FastqFileReader(readsFile2)) {
 			reader1.setSequenceType(DNAMaskedSequence.class);
 			reader2.setSequenceType(DNAMaskedSequence.class);
@@ -271,62 +328,109 @@ public class ReadsAligner {
 			Iterator<RawRead> it1 = reader1.iterator();
 			Iterator<RawRead> it2 = reader2.iterator();
 			while(it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				List<ReadAlignment> alns1 = alignRead(read1);
-				List<ReadAlignment> alns2 = alignRead(read2);
-				if(alns1.size()==0||alns2.size()==0) {
-					ArrayList<ReadAlignment> unMapped = processUnMapped(read1, alns1,read2,alns2);
-					for (int i = 0; i < Math.min(unMapped.size(),DEFAULT_MAX_ALIGNMENTS); i++) {
-						writer.write(unMapped.get(i));
+				final List<RawRead> reads1 = new ArrayList<>(READS_BATCH_SIZE);
+				final List<RawRead> reads2 = new ArrayList<>(READS_BATCH_SIZE);
+				while(it1.hasNext() && it2.hasNext() && reads1.size()<READS_BATCH_SIZE) {
+					reads1.add(it1.next());
+					reads2.add(it2.next());
+				}
+				pendingBatches.add(pool.submit(new Callable<AlignedReadsBatch>() {
+					@Override
+					public AlignedReadsBatch call() {
+						return alignPairsBatch(reads1, reads2);
 					}
-				}else {
-					boolean onlyProper=true;
-					List<ReadAlignment> alns = new ArrayList<ReadAlignment>();
-					List<ReadAlignmentPair> pairAlns = findPairs(alns1, alns2,onlyProper);
+				}));
+				if(pendingBatches.size()>=2*numThreads) writeBatch(pendingBatches.poll(), writer, totals, true);
+			}
+			while(!pendingBatches.isEmpty()) writeBatch(pendingBatches.poll(), writer, totals, true);
+		} finally {
+			pool.shutdownNow();
+		}
+		log.info("Total reads: "+totals.totalReads);
+		log.info("Reads aligned proper: "+totals.proper);
+		log.info("Reads aligned notProper: "+totals.notProper);
+		log.info("Reads aligned single: "+totals.single);
+		log.info("Reads aligned: "+totals.readsAligned);
+		log.info("Unique alignments: "+totals.uniqueAlignments);
+		log.info("Overall pairend alignment rate: "+(100.0*(totals.proper+totals.notProper)/(double)totals.totalReads)+"%");
+		log.info("Overall alignment rate: "+(100.0*totals.readsAligned/(double)totals.totalReads)+"%");
+		double seconds = (System.currentTimeMillis()-time);
+		seconds /=1000;
+		log.info("Time: "+seconds+" seconds");
+
+	}
+
+	private AlignedReadsBatch alignPairsBatch(List<RawRead> reads1, List<RawRead> reads2) {
+		AlignedReadsBatch batch = new AlignedReadsBatch();
+		for(int j=0;j<reads1.size();j++) {
+			RawRead read1 = reads1.get(j);
+			RawRead read2 = reads2.get(j);
+			List<ReadAlignment> alns1 = alignRead(read1);
+			List<ReadAlignment> alns2 = alignRead(read2);
+			if(alns1.size()==0||alns2.size()==0) {
+				ArrayList<ReadAlignment> unMapped = processUnMapped(read1, alns1,read2,alns2);
+				for (int i = 0; i < Math.min(unMapped.size(),DEFAULT_MAX_ALIGNMENTS); i++) {
+					batch.alignments.add(unMapped.get(i));
+				}
+			}else {
+				boolean onlyProper=true;
+				List<ReadAlignment> alns = new ArrayList<ReadAlignment>();
+				List<ReadAlignmentPair> pairAlns = findPairs(alns1, alns2,onlyProper);
+				if(pairAlns.isEmpty()) {
+					pairAlns = findPairs(alns1, alns2,false);
 					if(pairAlns.isEmpty()) {
-						pairAlns = findPairs(alns1, alns2,false);
-						if(pairAlns.isEmpty()) {
-							single++;
-							alns.addAll(alns1);
-							alns.addAll(alns2);
-						}
-						else {
-							notProper++;
-							addPairAlignments(alns, pairAlns);
-						}
-
-					}else {
-						proper++;
+						batch.single++;
+						alns.addAll(alns1);
+						alns.addAll(alns2);
+					}
+					else {
+						batch.notProper++;
 						addPairAlignments(alns, pairAlns);
 					}
-					for(ReadAlignment aln:alns) writer.write(aln);	
-					int numAlns = alns.size();
-					totalReads++;
-					if(numAlns>0) readsAligned++;
-					if(numAlns==1) uniqueAlignments++;
-					if(totalReads%100000==0) {
-						log.info("Processed "+totalReads+" reads. Aligned: "+readsAligned);
-						log.info("Reads aligned proper: "+proper);
-						log.info("Reads aligned notProper: "+notProper);
-						log.info("Reads aligned single: "+single);	
-					} 
+
+				}else {
+					batch.proper++;
+					addPairAlignments(alns, pairAlns);
 				}
+				batch.alignments.addAll(alns);
+				int numAlns = alns.size();
+				batch.totalReads++;
+				if(numAlns>0) batch.readsAligned++;
+				if(numAlns==1) batch.uniqueAlignments++;
 			}
-
 		}
-		log.info("Total reads: "+totalReads);
-		log.info("Reads aligned proper: "+proper);
-		log.info("Reads aligned notProper: "+notProper);
-		log.info("Reads aligned single: "+single);
-		log.info("Reads aligned: "+readsAligned);
-		log.info("Unique alignments: "+uniqueAlignments);
-		log.info("Overall pairend alignment rate: "+(100.0*(proper+notProper)/(double)totalReads)+"%");
-		log.info("Overall alignment rate: "+(100.0*readsAligned/(double)totalReads)+"%");
-		double seconds = (System.currentTimeMillis()-time);
-		seconds /=1000;
-		log.info("Time: "+seconds+" seconds");
+		return batch;
+	}
 
+	/**
+	 * Waits for the alignment of the given batch and writes its alignments
+	 * @param batchFuture Batch to write
+	 * @param writer Writer of the alignments
+	 * @param totals Counts of the batches processed so far. Updated with the counts of the given batch
+	 * @param pairedEnd Tells if the batch has alignments of paired-end reads
+	 */
+	private void writeBatch(Future<AlignedReadsBatch> batchFuture, ReadAlignmentFileWriter writer, AlignedReadsBatch totals, boolean pairedEnd) throws IOException {
+		AlignedReadsBatch batch;
+		try {
+			batch = batchFuture.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for aligned reads",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error aligning reads",cause);
+		}
+		for(ReadAlignment aln:batch.alignments) writer.write(aln);
+		int previousTotal = totals.totalReads;
+		totals.addCounts(batch);
+		if(totals.totalReads/100000 > previousTotal/100000) {
+			log.info("Processed "+totals.totalReads+" reads. Aligned: "+totals.readsAligned);
+			if(pairedEnd) {
+				log.info("Reads aligned proper: "+totals.proper);
+				log.info("Reads aligned notProper: "+totals.notProper);
+				log.info("Reads aligned single: "+totals.single);
+			}
+		}
 	}
 
 	private void addPairAlignments(List<ReadAlignment> alns, List<ReadAlignmentPair> pairAlns) {
@@ -498,7 +602,9 @@ public class ReadsAligner {
 	}
 
 	private static ReadAlignment getRandomReadAlignment(List<ReadAlignment> alns) {
-		Random r = new Random();
+		//The seed depends on the read to make the output independent of the number of threads
+		String readName = alns.get(0).getReadName();
+		Random r = new Random(readName!=null?readName.hashCode():0);
 		return alns.get(r.nextInt(alns.size())) ;
 	}
 
@@ -584,7 +690,8 @@ public class ReadsAligner {
 		if(overlapLength>1 && overlapLength<90 && refSeq != null)
 		{
 			String readNoSTR=read.subSequence(0, read.length()-overlapLength).toString();
-			AlignmentResult result = smithWatermanLocalAlignment(readNoSTR,refSeq);
+			AlignmentResult result = gappedAlignment(readNoSTR,refSeq);
+			if(result==null) return null;
 			last = first+result.getSubjectLastIdx();
 			first = first + result.getSubjectStartIdx();
 			String cigar = result.getCigarString()+overlapLength+"S";
@@ -601,7 +708,8 @@ public class ReadsAligner {
 			String readNoSTR=read.subSequence(0,pLast-pFirst+1).toString();
 			if(rigth)readNoSTR=read.subSequence(overlapLength,read.length()).toString();
 			CharSequence refSeq = fMIndex.getSequence(sequenceName, pFirst, pLast);
-			AlignmentResult result = smithWatermanLocalAlignment(readNoSTR,refSeq);
+			AlignmentResult result = gappedAlignment(readNoSTR,refSeq);
+			if(result==null) return null;
 			int last = pFirst+result.getSubjectLastIdx();
 			int first = pFirst + result.getSubjectStartIdx();
 			String cigar = result.getCigarString();
@@ -627,7 +735,8 @@ public class ReadsAligner {
 		if(overlapLength>0 && overlapLength<90 && refSeq != null)
 		{
 			String readNoSTR=read.subSequence(overlapLength, read.length()).toString();
-			AlignmentResult result = smithWatermanLocalAlignment(readNoSTR,refSeq);
+			AlignmentResult result = gappedAlignment(readNoSTR,refSeq);
+			if(result==null) return null;
 			last = first+result.getSubjectLastIdx();
 			first = first + result.getSubjectStartIdx();
 			String cigar = overlapLength+"S"+result.getCigarString();
@@ -690,7 +799,7 @@ public class ReadsAligner {
 		if(kmers==null) return finalAlignments;
 		//System.out.println("Query: "+query.toString()+" kmers: "+kmers.size());
 		int kmersCount=kmers.size();
-		List<ReadAlignment> initialKmerAlns = searchKmers (kmers);
+		List<ReadAlignment> initialKmerAlns = searchKmers (query, kmers);
 		List<KmerAlignmentCluster> clusteredKmerAlns = clusterKmerAlignments(query, initialKmerAlns); 
 		//System.out.println("Clusters: "+clusteredKmerAlns.size());
 		Collections.sort(clusteredKmerAlns, new Comparator<KmerAlignmentCluster>() {
@@ -734,16 +843,29 @@ public class ReadsAligner {
 		return kmers;
 	}
 	/**
-	 * Searches the given kmers in the fmIndex 
-	 * @param kmers to search
-	 * @return List of alignments of each kmer. The read number of each alignment contains the kmer number.
+	 * Finds the alignments of the given kmers. Instead of searching each kmer, calculates the
+	 * super maximal exact matches (SMEMs) of the query using the bidirectional index and builds
+	 * the alignments of the kmers contained in each SMEM. Each SMEM is located only once and
+	 * SMEMs from repetitive regions are located up to MAX_SEED_HITS times
+	 * @param query sequence 
+	 * @param kmers selected from the query
+	 * @return List of alignments of each kmer. The read number of each alignment contains the kmer start.
 	 */
-	private List<ReadAlignment> searchKmers(List<KmerWithStart> kmers) {
+	private List<ReadAlignment> searchKmers(CharSequence query, List<KmerWithStart> kmers) {
 		List<ReadAlignment> answer = new ArrayList<>();
-		for (KmerWithStart kmer:kmers) {
-			List<ReadAlignment> kmerAlns=fMIndex.search(kmer.getKmer().toString());
-			for(ReadAlignment aln:kmerAlns) {
-				aln.setReadNumber(kmer.getStart());
+		if(kmers.isEmpty()) return answer;
+		List<ReferenceGenomeSMEM> seeds = fMIndex.findSMEMs(query.toString().toUpperCase(), SEARCH_KMER_LENGTH, MAX_SEED_HITS);
+		for(ReferenceGenomeSMEM seedAln:seeds) {
+			int seedStart = seedAln.getQueryStart();
+			int seedEnd = seedStart+seedAln.length();
+			for (KmerWithStart kmer:kmers) {
+				int kmerStart = kmer.getStart();
+				if(kmerStart<seedStart) continue;
+				if(kmerStart+SEARCH_KMER_LENGTH>seedEnd) break;
+				int first = seedAln.getFirst()+kmerStart-seedStart;
+				ReadAlignment aln = new ReadAlignment(seedAln.getSequenceName(), first, first+SEARCH_KMER_LENGTH-1, SEARCH_KMER_LENGTH, 0);
+				aln.setAlignmentQuality((short) 100);
+				aln.setReadNumber(kmerStart);
 				answer.add(aln);
 			}
 		}
@@ -798,16 +920,16 @@ public class ReadsAligner {
 			}
 		}
 		if (!cluster.isAllConsistent() || !cluster.isFirstAlnPresent() || !cluster.isLastAlnPresent()) {
-			//Perform smith waterman
+			//Perform banded gapped alignment
 			if(!cluster.isFirstAlnPresent()) first -=10;
 			first = Math.max(1, first);
 			if(!cluster.isLastAlnPresent()) last+=10;
-			last = Math.min(fMIndex.getReferenceLength(sequenceName), cluster.getLast());
+			last = Math.min(fMIndex.getReferenceLength(sequenceName), last);
 			CharSequence refSeq = fMIndex.getSequence(sequenceName, first, last);
 			if(refSeq == null) return null;
-			AlignmentResult result = smithWatermanLocalAlignment(query.toString(),refSeq);
+			AlignmentResult result = gappedAlignment(query,refSeq);
 			//TODO: Make better score
-			if(result.getDistance()>0.5*query.length()) return null;
+			if(result==null || result.getDistance()>0.5*query.length()) return null;
 			//Last must be updated before first
 			last = first+result.getSubjectLastIdx();
 			first = first + result.getSubjectStartIdx();
@@ -818,71 +940,14 @@ public class ReadsAligner {
 		return aln;
 	}
 
-	private AlignmentResult smithWatermanLocalAlignment(CharSequence query, CharSequence subject) {
-		//Matrix for dynamic programming saves the lowest weight from 0,0 to i,j
-		int[][] scores = new int[query.length()+1][subject.length()+1]; 
-		int minLastRow = scores.length*scores[0].length;
-		int minJLastRow = -1;
-		for (int i = 0; i < scores.length; i++) {	
-			scores[i][0] = i==0?0:scores[i-1][0]+1;
-			for (int j = 1; j < scores[0].length; j++) 
-			{
-				if(i==0)
-				{
-					scores[i][j]=0;
-				}
-				//This case can be reached from upper (i-1,j)
-				//From left (i,j-1)
-				//or from upper left diagonal (i-1,j-1)
-				else
-				{
-					int d = query.charAt(i-1)!=subject.charAt(j-1)?1:0;
-					int min = scores[i-1][j-1]+d;
-					int a = 1 + scores[i-1][j];
-					if(min>a) min= a;
-					int b = 1 + scores[i][j-1];
-					if(min>b) min=b;
-					scores[i][j]=min;
-				}
-				if(i==scores.length-1 && (j==1 || minLastRow>=scores[i][j])) {
-					minLastRow = scores[i][j];
-					minJLastRow = j; 
-				}
-			}
-		}
-		//At this point we have the minimum cost to reach the corner (A.length-1,A[0].length-1)
-		//Now we have to go back and remember the decisions from the minimum of the last row
-		int i = scores.length-1;
-		int j= minJLastRow;
-		//System.out.println("Subject length: "+subject.length()+" minJ last row: "+j+" minscore: "+minLastRow);
-		AlignmentResult result = new AlignmentResult();
-		result.setSubjectLastIdx(minJLastRow-1);
-		result.setDistance(minLastRow);
-		//The algorithm keeps going back until reach origin
-		while(i>0 && j>0) {
-			//We want the path with lowest cost
-			int d = query.charAt(i-1)!=subject.charAt(j-1)?1:0;
-			int sD = scores[i-1][j-1]+d;
-			int sA = 1 + scores[i-1][j];
-			if( sD == scores[i][j]) {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_MATCH));
-				i--;
-				j--;
-			} else if( sA == scores[i][j]) {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_INSERTION));
-				i--;
-			} else {
-				result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_DELETION));
-				j--;
-			}
-		}
-		result.setSubjectStartIdx(j);
-		//System.out.println("Subject start: "+result.getSubjectStartIdx());
-		while(i>0) {
-			result.addBacktrack(ReadAlignment.ALIGNMENT_CHAR_CODES.charAt(ReadAlignment.ALIGNMENT_INSERTION));
-			i--;
-		}
-		return result;
+	/**
+	 * Aligns the complete query to a segment of the given reference sequence
+	 * @param query sequence to align
+	 * @param subject Segment of the reference
+	 * @return AlignmentResult Banded affine gap alignment of the query. null if the alignment could not be calculated
+	 */
+	private AlignmentResult gappedAlignment(CharSequence query, CharSequence subject) {
+		return gappedAligner.alignQueryToSubject(BandedAffineGapAligner.encode(query), BandedAffineGapAligner.encode(subject));
 	}
 
 	private List<ReadAlignment> filterAlignments(List<ReadAlignment> alignments) {
@@ -911,7 +976,24 @@ public class ReadsAligner {
 	}
 }
 
-
-
-
-
+/**
+ * Alignments calculated for a batch of reads, in the order of the input reads, and counts for summary statistics
+ */
+class AlignedReadsBatch {
+	List<ReadAlignment> alignments = new ArrayList<>();
+	int totalReads = 0;
+	int readsAligned = 0;
+	int uniqueAlignments = 0;
+	int proper = 0;
+	int notProper = 0;
+	int single = 0;
+
+	void addCounts(AlignedReadsBatch batch) {
+		totalReads+=batch.totalReads;
+		readsAligned+=batch.readsAligned;
+		uniqueAlignments+=batch.uniqueAlignments;
+		proper+=batch.proper;
+		notProper+=batch.notProper;
+		single+=batch.single;
+	}
+}
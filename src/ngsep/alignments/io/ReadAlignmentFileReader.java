@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -32,6 +33,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
@@ -41,6 +43,8 @@ import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import ngsep.alignments.ReadAlignment;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -57,9 +61,10 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	
 	private Logger log = Logger.getLogger(ReadAlignmentFileReader.class.getName());
 	
+	private SamReader reader;
+	private SAMFileHeader header;
 	private SAMRecordIterator it; 
 	
-	private ReadAlignmentFileIterator currentIterator = null;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	//Memory saver to avoid loading the read group for each alignment
 	private QualifiedSequenceList readGroupIds = new QualifiedSequenceList();
@@ -131,21 +136,74 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	public void setMinMQ(int minMQ) {
 		this.minMQ = minMQ;
 	}
+	/**
+	 * @return boolean true if the file has an index that allows to query regions without reading the whole file
+	 */
+	public boolean isIndexed() {
+		return reader.hasIndex();
+	}
 	@Override
 	public void close() throws IOException {
-		it.close();
+		if(it!=null) it.close();
+		it = null;
+		if(reader!=null) reader.close();
+		reader = null;
 	}
 
+	/**
+	 * Iterates over all the alignments of the file. A new iteration or query invalidates the iterator returned by a previous call
+	 * @return Iterator<ReadAlignment> Alignments in the order of the file
+	 */
 	@Override
 	public Iterator<ReadAlignment> iterator() {
-		if (it == null) {
+		if (reader == null) {
             throw new IllegalStateException("File reader is closed");
         }
-        if (currentIterator != null) {
-            throw new IllegalStateException("Iteration in progress");
+		if(it!=null) it.close();
+        it = reader.iterator();
+		return new ReadAlignmentFileIterator(it, null);
+	}
+	
+	/**
+	 * Iterates over the alignments overlapping the given region
+	 * @param sequenceName Name of the sequence
+	 * @param first First position of the region (1-based)
+	 * @param last Last position of the region (1-based)
+	 * @return Iterator<ReadAlignment> Alignments overlapping the region sorted by position
+	 * @see #query(List)
+	 */
+	public Iterator<ReadAlignment> query(String sequenceName, int first, int last) {
+		List<GenomicRegion> regions = new ArrayList<>(1);
+		regions.add(new GenomicRegionImpl(sequenceName, first, last));
+		return query(regions);
+	}
+	/**
+	 * Iterates over the alignments overlapping at least one of the given regions. If the file is indexed,
+	 * only the blocks of the file including alignments within the regions are read. Otherwise the file
+	 * is scanned skipping alignments outside the regions. Each alignment is returned only once, even if it
+	 * overlaps more than one region. A new query or iteration invalidates the iterator returned by a previous query
+	 * @param regions to query. Regions on sequences not included in the file header are ignored
+	 * @return Iterator<ReadAlignment> Alignments overlapping the regions sorted by position
+	 */
+	public Iterator<ReadAlignment> query(List<? extends GenomicRegion> regions) {
+		if (reader == null) {
+            throw new IllegalStateException("File reader is closed");
         }
-        currentIterator = new ReadAlignmentFileIterator(); 
-		return currentIterator;
+		List<QueryInterval> intervals = new ArrayList<>(regions.size());
+		for(GenomicRegion region:regions) {
+			int sequenceIndex = header.getSequenceIndex(region.getSequenceName());
+			if(sequenceIndex<0) continue;
+			intervals.add(new QueryInterval(sequenceIndex, region.getFirst(), region.getLast()));
+		}
+		QueryInterval [] optimized = QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+		if(it!=null) it.close();
+		if(reader.hasIndex()) {
+			it = reader.queryOverlapping(optimized);
+			return new ReadAlignmentFileIterator(it, null);
+		}
+		log.warning("Alignments file is not indexed. Scanning the file to find alignments within "+optimized.length+" regions");
+		it = reader.iterator();
+		return new ReadAlignmentFileIterator(it, optimized);
 	}
 	
 	private void init (InputStream stream, File file) throws IOException {
@@ -154,10 +212,9 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 			stream = new FileInputStream(file);
 		}
 		//TODO: Use stream
-		SamReader reader = SamReaderFactory.makeDefault().open(file);
-		SAMFileHeader header = reader.getFileHeader();
+		reader = SamReaderFactory.makeDefault().open(file);
+		header = reader.getFileHeader();
 		if(header != null) loadHeader(header);
-		it = reader.iterator();
 	}
 	private void loadHeader(SAMFileHeader header) throws IOException {
 		for(SAMReadGroupRecord rgRecord:header.getReadGroups()) {
@@ -270,9 +327,41 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		return true;
 	}
 	
+	/**
+	 * Finds the interval that could include the given record
+	 * @param intervals Sorted non overlapping intervals
+	 * @param record to search
+	 * @return int Index of the last interval starting before the end of the record. -1 if all intervals start after the record 
+	 */
+	private static int findInterval(QueryInterval [] intervals, SAMRecord record) {
+		int sequenceIndex = record.getReferenceIndex();
+		int end = record.getAlignmentEnd();
+		int left = 0;
+		int right = intervals.length-1;
+		int answer = -1;
+		while(left<=right) {
+			int middle = (left+right)/2;
+			QueryInterval interval = intervals[middle];
+			if(interval.referenceIndex<sequenceIndex || (interval.referenceIndex==sequenceIndex && interval.start<=end)) {
+				answer = middle;
+				left = middle+1;
+			} else {
+				right = middle-1;
+			}
+		}
+		return answer;
+	}
+	
 	private class ReadAlignmentFileIterator implements Iterator<ReadAlignment> {
+		private SAMRecordIterator records;
 		private ReadAlignment nextAln;
-		public ReadAlignmentFileIterator() {
+		//Intervals to filter alignments when the file is scanned. Null if all records of the iterator should be returned
+		private QueryInterval [] intervals;
+		private boolean sortedRecords;
+		public ReadAlignmentFileIterator(SAMRecordIterator records, QueryInterval [] intervals) {
+			this.records = records;
+			this.intervals = intervals;
+			sortedRecords = header!=null && header.getSortOrder()==SAMFileHeader.SortOrder.coordinate;
 			nextAln = loadAln();
 		}
 		@Override
@@ -291,9 +380,9 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		private ReadAlignment loadAln() {
 			SAMRecord alnRecord;
 			while(true) {
-				if(!it.hasNext()) return null;
+				if(!records.hasNext()) return null;
 				try {
-					alnRecord = it.next();
+					alnRecord = records.next();
 				} catch (Exception e) {
 					//e.printStackTrace();
 					log.warning(e.getMessage());
@@ -301,6 +390,17 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 				}
 				if(isSameAlignment(lastRecord, alnRecord)) continue;
 				lastRecord = alnRecord;
+				if(intervals!=null) {
+					if(alnRecord.getReadUnmappedFlag()) continue;
+					if(intervals.length==0) return null;
+					int idx = findInterval(intervals, alnRecord);
+					QueryInterval interval = idx>=0?intervals[idx]:null;
+					if(interval==null || interval.referenceIndex!=alnRecord.getReferenceIndex() || (interval.end>0 && interval.end<alnRecord.getAlignmentStart())) {
+						//Finish the scan if the file is sorted and the record is located after the last interval
+						if(sortedRecords && idx==intervals.length-1 && isAfter(alnRecord,interval)) return null;
+						continue;
+					}
+				}
 				
 				ReadAlignment answer;
 				try {
@@ -317,6 +417,11 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 				return answer;
 			} 
 		}
+		private boolean isAfter(SAMRecord alnRecord, QueryInterval interval) {
+			if(interval==null) return false;
+			if(alnRecord.getReferenceIndex()!=interval.referenceIndex) return alnRecord.getReferenceIndex()>interval.referenceIndex;
+			return interval.end>0 && alnRecord.getAlignmentStart()>interval.end;
+		}
 		@Override
 		public void remove() {
 			throw new UnsupportedOperationException("Remove not supported by ReadAlignmentFileIterator");
@@ -3,11 +3,15 @@ package ngsep.assembly;
 import java.util.ArrayList;
 import java.util.List;
 
+import ngsep.alignments.BandedAffineGapAligner;
+
 public class ConsensusBuilderBidirectionalAffineGap implements ConsensusBuilder {
 	int match = 2;
 	int openGap = 20;
 	int extGap = 1;
 	int mismatch = 8;
+	int bandWidth = 100;
+	BandedAffineGapAligner aligner = new BandedAffineGapAligner(match, openGap, extGap, mismatch, bandWidth);
 	boolean startConsensus = true;
 	
 	@Override
@@ -46,8 +50,7 @@ public class ConsensusBuilderBidirectionalAffineGap implements ConsensusBuilder
 				}
 				String s1 = a.isStart() ? a.getRead().toString() : complementaryStrand(a.getRead().toString());
 				String s2 = b.isStart() ? b.getRead().toString() : complementaryStrand(b.getRead().toString());
-				AlignmentAffineGap alignment = new AlignmentAffineGap(match, openGap, extGap, mismatch);
-				String[] alignments = alignment.getAlignment(s1, s2);	
+				String[] alignments = aligner.getAlignment(s1, s2);
 				System.out.println(alignments[0]);
 				System.out.println(alignments[1]);
 				//consensus = consensus.concat(joinedString(graph.getEmbedded(a.getIndex()), graph.getEmbedded(j+1), alignmentOrig));
@@ -21,10 +21,9 @@ package ngsep.discovery;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -58,10 +57,18 @@ public class AlignmentsPileupGenerator {
 	private QualifiedSequence currentReferenceSequence = null;
 	private int currentReferencePos = 0;
 	private int currentReferenceLast = 0;
+	//Alignments spanning the current position sorted by start
 	private List<ReadAlignment> pendingAlignments = new ArrayList<ReadAlignment>();
+	//Ring buffer with the number of pending alignments ending at each position. The length is a power of two
+	//larger than the distance from the current position to the end of any pending alignment
+	private int [] pendingEnds = new int [1024];
+	//Record reused to build the pileup of each position
+	private PileupRecord pileup = new PileupRecord(null, 0);
 	
 	private List<ReadAlignment> sameStartPrimaryAlignments = new ArrayList<ReadAlignment>();
 	private List<ReadAlignment> sameStartSecondaryAlignments = new ArrayList<ReadAlignment>();
+	//Number of alignments starting at the same position indexed by read group id
+	private int [] alnsPerReadGroup = new int [16];
 	private int lastReadAlignmentStart = 0;
 	
 
@@ -212,7 +219,7 @@ public class AlignmentsPileupGenerator {
 		try {
 			for(int i=0;i<n;i++) {
 				readers[i] = createReader(alignmentFiles.get(i));
-				Iterator<ReadAlignment> it = readers[i].iterator();
+				Iterator<ReadAlignment> it = openIterator(readers[i]);
 				iterators.add(it);
 				if(it.hasNext()) {
 					currentAlignments[i] = it.next();
@@ -290,7 +297,7 @@ public class AlignmentsPileupGenerator {
 		try (ReadAlignmentFileReader reader = createReader(filename)) {
 			sequencesMetadata = reader.getSequences();
 			boolean querySeqFound = false;
-			Iterator<ReadAlignment> it = reader.iterator();
+			Iterator<ReadAlignment> it = openIterator(reader);
 			//Sequence under processing
 			while(it.hasNext() && keepRunning) {
 				ReadAlignment aln = it.next();
@@ -333,6 +340,17 @@ public class AlignmentsPileupGenerator {
 		return reader;
 	}
 	
+	/**
+	 * Starts the iteration over the given reader. If a query region is defined and the file is indexed,
+	 * only the alignments overlapping the query region are loaded
+	 * @param reader Alignments reader
+	 * @return Iterator<ReadAlignment> Iterator over the alignments to process
+	 */
+	private Iterator<ReadAlignment> openIterator(ReadAlignmentFileReader reader) {
+		if(querySeq!=null && reader.isIndexed()) return reader.query(querySeq, Math.max(1, queryFirst), queryLast);
+		return reader.iterator();
+	}
+	
 	public void processAlignment(ReadAlignment aln) {
 		if(currentReferenceSequence!=null) {
 			boolean sameSequence = currentReferenceSequence.getName().equals(aln.getSequenceName());
@@ -364,31 +382,42 @@ public class AlignmentsPileupGenerator {
 	 * Selects the alignments starting at the same position that will be processed
 	 */
 	private void processSameStartAlns() {
-		int posStart = 0;
-		if(sameStartPrimaryAlignments.size()>0) {
-			posStart = sameStartPrimaryAlignments.get(0).getFirst();
-		} else if(sameStartSecondaryAlignments.size()>0) {
-			posStart = sameStartSecondaryAlignments.get(0).getFirst();
-		}
-		if(posStart == 0 ) return;
-		Map<String,Integer> alnsPerReadGroup = new HashMap<>();
-		List<ReadAlignment> allAlnsPos = new ArrayList<>();
-		allAlnsPos.addAll(sameStartPrimaryAlignments);
-		allAlnsPos.addAll(sameStartSecondaryAlignments);
+		selectSameStartAlns(sameStartPrimaryAlignments);
+		selectSameStartAlns(sameStartSecondaryAlignments);
+		//Restore counts for the next start position
+		for(ReadAlignment aln:sameStartPrimaryAlignments) alnsPerReadGroup[pileup.getReadGroupId(aln.getReadGroup())] = 0;
+		for(ReadAlignment aln:sameStartSecondaryAlignments) alnsPerReadGroup[pileup.getReadGroupId(aln.getReadGroup())] = 0;
 		sameStartPrimaryAlignments.clear();
 		sameStartSecondaryAlignments.clear();
-		for(ReadAlignment aln:allAlnsPos) {
-			Integer count = alnsPerReadGroup.get(aln.getReadGroup());
-			if(count == null) {
-				alnsPerReadGroup.put(aln.getReadGroup(), 1);
-			} else if (maxAlnsPerStartPos<=0 || count<maxAlnsPerStartPos) {
-				alnsPerReadGroup.put(aln.getReadGroup(), count+1);
-			} else continue;
+	}
+	
+	private void selectSameStartAlns(List<ReadAlignment> alns) {
+		for(ReadAlignment aln:alns) {
+			int readGroupId = pileup.getReadGroupId(aln.getReadGroup());
+			if(readGroupId>=alnsPerReadGroup.length) alnsPerReadGroup = Arrays.copyOf(alnsPerReadGroup, Math.max(readGroupId+1, 2*alnsPerReadGroup.length));
+			int count = alnsPerReadGroup[readGroupId];
+			if(count>0 && maxAlnsPerStartPos>0 && count>=maxAlnsPerStartPos) continue;
+			alnsPerReadGroup[readGroupId] = count+1;
 			aln.setBasesToIgnore5P(basesToIgnore5P);
 			aln.setBasesToIgnore3P(basesToIgnore3P);
-			pendingAlignments.add(aln);
+			addPendingAlignment(aln);
 		}
-		allAlnsPos.clear();
+	}
+	
+	private void addPendingAlignment(ReadAlignment aln) {
+		int last = aln.getLast();
+		//The alignment can not be included in pileups of the following positions
+		if(last<currentReferencePos) return;
+		if(last-currentReferencePos>=pendingEnds.length) resizePendingEnds(last-currentReferencePos+1);
+		pendingEnds[last & (pendingEnds.length-1)]++;
+		pendingAlignments.add(aln);
+	}
+	
+	private void resizePendingEnds(int minLength) {
+		int length = pendingEnds.length;
+		while(length<minLength) length*=2;
+		pendingEnds = new int [length];
+		for(ReadAlignment aln:pendingAlignments) pendingEnds[aln.getLast() & (length-1)]++;
 	}
 
 	private void startSequence(ReadAlignment aln) {
@@ -413,24 +442,28 @@ public class AlignmentsPileupGenerator {
 		if(alignmentStart==currentReferencePos) return;
 		while(currentReferencePos<alignmentStart) {
 			if(!processCurrentPosition()) {
-				updatePendingAlns();
 				if(pendingAlignments.size()==0) currentReferencePos = alignmentStart;
 			}
 		}
-		updatePendingAlns();
 	}
 
-	private void updatePendingAlns() {
-		List<ReadAlignment> alnsToKeep = new ArrayList<ReadAlignment>();
-		for(ReadAlignment aln:pendingAlignments) {
-			if(aln.getLast()>=currentReferencePos) alnsToKeep.add(aln);
+	/**
+	 * Removes from the pending alignments the alignments ending at the given position
+	 * @param position Reference position already processed
+	 */
+	private void removeFinishedAlignments(int position) {
+		int idx = position & (pendingEnds.length-1);
+		if(pendingEnds[idx]==0) return;
+		pendingEnds[idx] = 0;
+		int n = pendingAlignments.size();
+		int j = 0;
+		for(int i=0;i<n;i++) {
+			ReadAlignment aln = pendingAlignments.get(i);
+			if(aln.getLast()>position) pendingAlignments.set(j++, aln);
 		}
-		pendingAlignments.clear();
-		if(alnsToKeep.size()>0) pendingAlignments.addAll(alnsToKeep);
+		for(int i=n-1;i>=j;i--) pendingAlignments.remove(i);
 	}
 
-	
-
 	private boolean processCurrentPosition() {
 		int posPrint = -1;
 		if(pendingAlignments.size()==0) {
@@ -439,16 +472,18 @@ public class AlignmentsPileupGenerator {
 		}
 		if(currentReferencePos==posPrint) System.out.println("Number of pending alignments: "+pendingAlignments.size());
 		
-		PileupRecord pileup = new PileupRecord(currentReferenceSequence.getName(), currentReferencePos);
+		pileup.reset(currentReferenceSequence.getName(), currentReferencePos);
 		for(ReadAlignment aln:pendingAlignments) {
 			if(currentReferencePos==posPrint)System.out.println("Next pending: "+aln.getReadName()+" located at "+aln.getSequenceName()+":"+aln.getFirst()+"-"+aln.getLast()+". group: "+aln.getReadGroup()+" cigar: "+aln.getCigarString());
 			pileup.addAlignment(aln);
 		}
 		if(currentReferencePos==posPrint)System.out.println("Number of alignments in pileup: "+pileup.getNumAlignments()+". time: "+System.currentTimeMillis());
+		boolean answer = pileup.getNumAlignments()>0;
 		processPileup(pileup);
 		if(currentReferencePos==posPrint)System.out.println("Processed pileup. time: "+System.currentTimeMillis());
+		removeFinishedAlignments(currentReferencePos);
 		currentReferencePos++;
-		return pileup.getNumAlignments()>0;
+		return answer;
 	}
 
 	private void processPileup(PileupRecord pileup) {
@@ -184,12 +184,10 @@ public class BAMRelativeAlleleCountsCalculator implements PileupListener {
 	@Override
 	public void onPileup(PileupRecord pileup) {
 		if(repeats!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningRepeats = repeats.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
-			if(spanningRepeats.size()>0) return;
+			if(repeats.hasSpanningRegions(pileup.getSequenceName(), pileup.getPosition(), pileup.getPosition())) return;
 		}
 		if(selectedRegions!=null) {
-			GenomicRegionSortedCollection<GenomicRegion> spanningRegions = selectedRegions.findSpanningRegions(pileup.getSequenceName(), pileup.getPosition());
-			if(spanningRegions.size()==0) return;
+			if(!selectedRegions.hasSpanningRegions(pileup.getSequenceName(), pileup.getPosition(), pileup.getPosition())) return;
 		}
 		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1);
 		if(calls.size()<minRD) return;
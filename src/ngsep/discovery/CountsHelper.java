@@ -51,7 +51,7 @@ public class CountsHelper {
 	private byte maxBaseQS=VariantPileupListener.DEF_MAX_BASE_QS;
 	
 	private List<String> alleles;
-	private static double [][][] logProbCache;
+	private static volatile double [][][] logProbCache;
 	
 	private boolean verbose = false;
 	
@@ -87,24 +87,27 @@ public class CountsHelper {
 		updateProbabilitiesCache(nAlleles);
 		startCounts();
 	}
-	private void updateProbabilitiesCache(int n) {
+	private static synchronized void updateProbabilitiesCache(int n) {
 		int m = VariantPileupListener.DEF_MAX_BASE_QS+1;
 		if(n<=GenomicVariant.MAX_NUM_ALLELES)n=GenomicVariant.MAX_NUM_ALLELES+1;
-		if(logProbCache!=null && logProbCache[0].length>=n) return;
-		logProbCache = new double [m][n][3];
+		double [][][] cache = logProbCache;
+		if(cache!=null && cache[0].length>=n) return;
+		//The cache is filled before it is published because helpers in other threads read it without locking
+		cache = new double [m][n][3];
 		for(byte i=DEF_MIN_BASE_QS;i<m;i++) {
 			double errorProb = PhredScoreHelper.calculateProbability(i);
 			double successProb = (1 - errorProb);
-			logProbCache[i][0][0] = Math.log10(successProb);
-			logProbCache[i][0][2] = Math.log10(errorProb);
+			cache[i][0][0] = Math.log10(successProb);
+			cache[i][0][2] = Math.log10(errorProb);
 			for(int j=2;j<n;j++) {
 				double epa = errorProb/(j-1);
-				logProbCache[i][j][2] = Math.log10(epa);
+				cache[i][j][2] = Math.log10(epa);
 				double term = 0.5*(1-j*epa);
-				logProbCache[i][j][0] = Math.log10(successProb-term);
-				logProbCache[i][j][1] = Math.log10(epa+term);
+				cache[i][j][0] = Math.log10(successProb-term);
+				cache[i][j][1] = Math.log10(epa+term);
 			}
 		}
+		logProbCache = cache;
 	}
 	/**
 	 * Starts all counts to zero
@@ -41,6 +41,9 @@ public class CoverageStatisticsCalculator implements PileupListener {
 	private long genomeSizeBAMFile = 0;
 	private String outFilename = null;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private String querySeq=null;
+	private int queryFirst = 0;
+	private int queryLast = 1000000000;
 	
 	/**
 	 * @param args
@@ -74,6 +77,62 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		this.setMinMQ(minMQ.intValue());
 	}
 	
+	/**
+	 * @return the querySeq
+	 */
+	public String getQuerySeq() {
+		return querySeq;
+	}
+
+	/**
+	 * @param querySeq the querySeq to set
+	 */
+	public void setQuerySeq(String querySeq) {
+		this.querySeq = querySeq;
+	}
+
+	/**
+	 * @return the queryFirst
+	 */
+	public int getQueryFirst() {
+		return queryFirst;
+	}
+
+	/**
+	 * @param queryFirst the queryFirst to set
+	 */
+	public void setQueryFirst(int queryFirst) {
+		this.queryFirst = queryFirst;
+	}
+	
+	/**
+	 * @param queryFirst the queryFirst to set
+	 */
+	public void setQueryFirst(Integer queryFirst) {
+		this.setQueryFirst(queryFirst.intValue());
+	}
+
+	/**
+	 * @return the queryLast
+	 */
+	public int getQueryLast() {
+		return queryLast;
+	}
+
+	/**
+	 * @param queryLast the queryLast to set
+	 */
+	public void setQueryLast(int queryLast) {
+		this.queryLast = queryLast;
+	}
+	
+	/**
+	 * @param queryLast the queryLast to set
+	 */
+	public void setQueryLast(Integer queryLast) {
+		this.setQueryLast(queryLast.intValue());
+	}
+
 	public void processFile(String filename) throws IOException {
 		CoverageStatsPileupListener listener = new CoverageStatsPileupListener();
 		coveredGenomeSize = 0;
@@ -84,6 +143,9 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		generator.setProcessSecondaryAlignments(true);
 		generator.setMaxAlnsPerStartPos(100);
 		generator.setMinMQ(minMQ);
+		generator.setQuerySeq(querySeq);
+		generator.setQueryFirst(queryFirst);
+		generator.setQueryLast(queryLast);
 		generator.addListener(listener);
 		generator.addListener(this);
 		generator.processFile(filename);
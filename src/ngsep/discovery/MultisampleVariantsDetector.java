@@ -19,8 +19,10 @@
  *******************************************************************************/
 package ngsep.discovery;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -28,11 +30,17 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
 import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
@@ -56,7 +64,7 @@ import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFFileWriter;
 import ngsep.vcf.VCFRecord;
 
-public class MultisampleVariantsDetector implements PileupListener {
+public class MultisampleVariantsDetector {
 
 	private Logger log = Logger.getLogger(MultisampleVariantsDetector.class.getName());
 	private ProgressNotifier progressNotifier=null;
@@ -69,15 +77,21 @@ public class MultisampleVariantsDetector implements PileupListener {
 	public static final byte DEF_MAX_BASE_QS = VariantPileupListener.DEF_MAX_BASE_QS;
 	public static final byte DEF_PLOIDY = GenomicVariant.DEFAULT_PLOIDY;
 	public static final String DEF_OUTPUT_FILE = "variants.vcf";
+	public static final int DEF_NUM_THREADS = 1;
+	//Maximum length of the regions processed in parallel
+	private static final int SHARD_LENGTH = 5000000;
+	//Base pairs added at each side of a region to rebuild the pileup state. Should be larger than reads and indels
+	private static final int SHARD_OVERLAP = 10000;
 	
 	
 	
 	private double coveredGenomeSize = 0;
 	private long referenceGenomeSize = 0;
 	
+	//Holds the pileup parameters. Each region is processed with its own generator copying these parameters
 	private AlignmentsPileupGenerator generator = new AlignmentsPileupGenerator();
-	//Listeners
-	private IndelRealignerPileupListener indelRealigner = new IndelRealignerPileupListener();
+	private GenomicRegionSortedCollection<? extends GenomicVariant> realignerInputVariants = null;
+	private volatile boolean keepRunning = true;
 
 	
 	private ReferenceGenome genome;
@@ -86,7 +100,6 @@ public class MultisampleVariantsDetector implements PileupListener {
 	
 	//Output file variables
 	private String outFilename = DEF_OUTPUT_FILE;
-	private PrintStream outFile;
 	private VCFFileHeader vcfFileHeader;
 	private VCFFileWriter writer = new VCFFileWriter();
 	
@@ -100,13 +113,10 @@ public class MultisampleVariantsDetector implements PileupListener {
 	private byte normalPloidy = DEF_PLOIDY;
 	private boolean printSamplePloidy = false;
 	private String knownVariantsFile=null;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	private GenomicRegionSortedCollection<GenomicVariant> inputVariants = new GenomicRegionSortedCollection<>();
 	
-	
-	//Control attribute to avoid calling overlapping indels and to give an embedded status to SNVs within indels or STRs
-	private int lastIndelEnd = 0;
-	
 	//DEBUG
 	private int posPrint = -1;
 	
@@ -534,6 +544,24 @@ public class MultisampleVariantsDetector implements PileupListener {
 		this.knownVariantsFile = knownVariantsFile;
 	}
 	
+	/**
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the numThreads to set
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public void printParameters() {
 		log.info("Output file: "+outFilename);
 		log.info("Heterozygosity rate: "+getHeterozygosityRate());
@@ -555,6 +583,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 		log.info("Minimum mapping quality to consider an alignment unique: "+getMinMQ());
 		log.info("Normal ploidy: "+normalPloidy);
 		log.info("Print header with sample ploidy in the vcf file: "+printSamplePloidy);
+		log.info("Number of threads: "+numThreads);
 	}
 
 	public void findVariants() throws IOException {
@@ -562,7 +591,6 @@ public class MultisampleVariantsDetector implements PileupListener {
 		if(genome==null) throw new IOException("The reference genome is mandatory");
 		referenceGenomeSize = genome.getTotalLength();
 		QualifiedSequenceList sequences = genome.getSequencesMetadata();
-		indelRealigner.setGenome(genome);
 		generator.setSequencesMetadata(sequences);
 		//TODO: assign sample ids if not in aln files
 		if(samples == null) loadSamplesFromAlignmentHeaders();
@@ -573,31 +601,166 @@ public class MultisampleVariantsDetector implements PileupListener {
 			log.info("Loaded "+knownVariants.size()+" input variants");
 			inputVariants = new GenomicRegionSortedCollection<GenomicVariant>(sequences);
 			inputVariants.addAll(knownVariants);
-			indelRealigner.setInputVariants(inputVariants);
+			//Sort before the collection is shared between threads
+			inputVariants.forceSort();
+			realignerInputVariants = inputVariants;
 		} else if(knownSTRsFile!=null) {
 			log.info("Loading input short tandem repeats from: "+knownSTRsFile);
 			//TODO: STRs loader
 			SimpleGenomicRegionFileHandler rfh = new SimpleGenomicRegionFileHandler();
 			List<GenomicRegion> strs = rfh.loadRegions(knownSTRsFile);
-			indelRealigner.setInputVariants(VariantsDetector.makeNonRedundantSTRs(genome,strs));
+			GenomicRegionSortedCollection<GenomicVariant> nonRedundantSTRs = VariantsDetector.makeNonRedundantSTRs(genome,strs);
+			nonRedundantSTRs.forceSort();
+			realignerInputVariants = nonRedundantSTRs;
 			log.info("Loaded "+strs.size()+" input short tandem repeats");
 		}
 		log.info("Finding variants");
-		
-		generator.addListener(indelRealigner);
-		generator.addListener(this);
-		try {
-			outFile = new PrintStream(outFilename);
+		keepRunning = true;
+		try (PrintStream outFile = new PrintStream(outFilename)) {
 			vcfFileHeader = VCFFileHeader.makeDefaultEmptyHeader();
 			for(Sample s:samples) vcfFileHeader.addSample(s, printSamplePloidy);
 			writer.printHeader(vcfFileHeader, outFile);
-			generator.processFiles(alignmentFiles);
+			if(numThreads<=1 || !allAlignmentFilesIndexed()) {
+				//Single pass over the alignment files
+				new VariantsShard(null).process(outFile);
+			} else {
+				processShards(makeShards(sequences), outFile);
+			}
 		} finally {
-			if(outFile!=null) outFile.close();
 			dispose();
 		}
 		log.info("Multisample Variants Detector Completed");
 	}
+	
+	/**
+	 * Regions can only be processed in parallel if they can be queried without reading the whole alignment files
+	 * @return boolean true if all alignment files are indexed, false otherwise
+	 * @throws IOException If the alignment files can not be opened
+	 */
+	private boolean allAlignmentFilesIndexed() throws IOException {
+		for(String filename:alignmentFiles) {
+			try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename)) {
+				if(!reader.isIndexed()) {
+					log.warning("Alignments file "+filename+" is not indexed. Variants will be called in a single pass over the alignment files");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Splits the sequences of the genome (or the query region if it is defined) in regions of at most SHARD_LENGTH base pairs
+	 * @param sequences Sequences of the genome
+	 * @return List<GenomicRegion> Regions sorted by genomic position 
+	 */
+	private List<GenomicRegion> makeShards(QualifiedSequenceList sequences) {
+		List<GenomicRegion> shards = new ArrayList<>();
+		String querySeq = generator.getQuerySeq();
+		for(QualifiedSequence seq:sequences) {
+			int first = 1;
+			int last = seq.getLength();
+			if(querySeq!=null) {
+				if(!querySeq.equals(seq.getName())) continue;
+				first = Math.max(first, generator.getQueryFirst());
+				last = Math.min(last, generator.getQueryLast());
+			}
+			for(int start=first;start<=last;start+=SHARD_LENGTH) {
+				shards.add(new GenomicRegionImpl(seq.getName(), start, Math.min(last, start+SHARD_LENGTH-1)));
+			}
+		}
+		return shards;
+	}
+	
+	/**
+	 * Calls variants on the given regions using numThreads threads. Each region is written to a temporary file
+	 * and the temporary files are appended to the output in the order of the regions
+	 * @param shards Regions to process
+	 * @param outFile Output stream. The header is already printed
+	 * @throws IOException If the alignment files can not be read or the output can not be written
+	 */
+	private void processShards(List<GenomicRegion> shards, PrintStream outFile) throws IOException {
+		File outDir = new File(outFilename).getAbsoluteFile().getParentFile();
+		List<File> shardFiles = new ArrayList<>();
+		List<Future<File>> results = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(GenomicRegion shard:shards) {
+				final File shardFile = File.createTempFile("ngsepShard", ".vcf", outDir);
+				shardFiles.add(shardFile);
+				final VariantsShard task = new VariantsShard(shard);
+				results.add(pool.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						if(!keepRunning) return shardFile;
+						try (PrintStream shardOut = new PrintStream(shardFile)) {
+							task.process(shardOut);
+						}
+						return shardFile;
+					}
+				}));
+			}
+			for(Future<File> result:results) {
+				File shardFile;
+				try {
+					shardFile = result.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while waiting for variants",e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException) throw (IOException)cause;
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error calling variants",cause);
+				}
+				Files.copy(shardFile.toPath(), outFile);
+				shardFile.delete();
+			}
+			outFile.flush();
+		} finally {
+			pool.shutdownNow();
+			for(File shardFile:shardFiles) shardFile.delete();
+		}
+	}
+
+	/**
+	 * Creates a pileup generator with the parameters of this detector restricted to the given region 
+	 * @param region Region to process. If null, the query region of this detector is used
+	 * @return AlignmentsPileupGenerator New generator
+	 */
+	private AlignmentsPileupGenerator createGenerator(GenomicRegion region) {
+		AlignmentsPileupGenerator answer = new AlignmentsPileupGenerator();
+		answer.setLog(generator.getLog());
+		answer.setSequencesMetadata(generator.getSequencesMetadata());
+		if(region!=null) {
+			answer.setQuerySeq(region.getSequenceName());
+			answer.setQueryFirst(region.getFirst());
+			answer.setQueryLast(region.getLast());
+		} else {
+			answer.setQuerySeq(generator.getQuerySeq());
+			answer.setQueryFirst(generator.getQueryFirst());
+			answer.setQueryLast(generator.getQueryLast());
+		}
+		answer.setMaxAlnsPerStartPos(generator.getMaxAlnsPerStartPos());
+		answer.setProcessNonUniquePrimaryAlignments(generator.isProcessNonUniquePrimaryAlignments());
+		answer.setProcessSecondaryAlignments(generator.isProcessSecondaryAlignments());
+		answer.setBasesToIgnore5P(generator.getBasesToIgnore5P());
+		answer.setBasesToIgnore3P(generator.getBasesToIgnore3P());
+		answer.setMinMQ(generator.getMinMQ());
+		return answer;
+	}
+	
+	/**
+	 * Updates the progress after printing a variant
+	 * @return boolean false if the process should be cancelled
+	 */
+	private synchronized boolean updateProgress() {
+		coveredGenomeSize++;
+		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
+			int progress = (int)Math.round(100.0*coveredGenomeSize/referenceGenomeSize);
+			if(!progressNotifier.keepRunning(progress)) keepRunning = false;
+		}
+		return keepRunning;
+	}
 
 	
 	private void loadSamplesFromAlignmentHeaders() throws IOException {
@@ -623,62 +786,145 @@ public class MultisampleVariantsDetector implements PileupListener {
 		samples = new ArrayList<>(samplesMap.values()); 
 	}
 
-	private int nextSIVIndex = 0;
-	private List<GenomicVariant> seqInputVariants;
-	@Override
-	public void onPileup(PileupRecord pileup) {
-		GenomicVariant variant = null;
-		GenomicVariant inputVariant = null;
-		if(inputVariants.size()==0) {
-			variant = findMultiallelicVariant(pileup);
-		} else if(nextSIVIndex<seqInputVariants.size()) {
-			inputVariant = seqInputVariants.get(nextSIVIndex);
-			while(inputVariant.getFirst() <= pileup.getPosition() ) {
-				if(inputVariant.getFirst()==pileup.getPosition()) {
-					variant = inputVariant;
-				}
-				nextSIVIndex++;
-				if(nextSIVIndex>=seqInputVariants.size()) break;
-				inputVariant = seqInputVariants.get(nextSIVIndex);
-			}
+	/**
+	 * Calls variants within a genomic region. Keeps the state of the pileup process for the region.
+	 * Alignments are queried SHARD_OVERLAP base pairs around the region, so calls match a single pass
+	 * unless reads or chains of overlapping indels are longer than the overlap
+	 */
+	private class VariantsShard implements PileupListener {
+		private GenomicRegion region;
+		private AlignmentsPileupGenerator shardGenerator;
+		private PrintStream out;
+		private int nextSIVIndex = 0;
+		private List<GenomicVariant> seqInputVariants;
+		//Control attribute to avoid calling overlapping indels and to give an embedded status to SNVs within indels or STRs
+		private int lastIndelEnd = 0;
+		
+		/**
+		 * @param region Region to process. If null, the alignment files are processed in a single pass
+		 */
+		public VariantsShard(GenomicRegion region) {
+			this.region = region;
 		}
-		if(pileup.getPosition()==posPrint) System.out.println("Variant: "+variant);
-		if(variant == null) return;
 		
-		List<CalledGenomicVariant> calls = genotypeVariant(variant, pileup, heterozygosityRate);
-		if(inputVariant==null && (variant.getVariantQS()==0 || variant.getVariantQS() < minQuality)) return;
-		//TODO: The variant could be genotyped again with a different heterozygosity rate
+		public void process(PrintStream out) throws IOException {
+			this.out = out;
+			GenomicRegion queryRegion = region;
+			if(region!=null) {
+				//Pileups of the overlap rebuild the state of indels, STRs and realignment. Calls outside the region are dropped
+				queryRegion = new GenomicRegionImpl(region.getSequenceName(), Math.max(1, region.getFirst()-SHARD_OVERLAP), region.getLast()+SHARD_OVERLAP);
+			}
+			shardGenerator = createGenerator(queryRegion);
+			IndelRealignerPileupListener indelRealigner = new IndelRealignerPileupListener();
+			indelRealigner.setGenome(genome);
+			indelRealigner.setInputVariants(realignerInputVariants);
+			shardGenerator.addListener(indelRealigner);
+			shardGenerator.addListener(this);
+			shardGenerator.processFiles(alignmentFiles);
+		}
 		
-		DiversityStatistics divStats = DiversityStatistics.calculateDiversityStatistics(calls, false);
-		int [] format = variant.isSNV()?VCFRecord.DEF_FORMAT_ARRAY_NGSEP_SNV:VCFRecord.DEF_FORMAT_ARRAY_NGSEP_NOSNV;
-		VCFRecord record = new VCFRecord(variant, format, calls, vcfFileHeader);
-		record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_SAMPLES_GENOTYPED, divStats.getNumSamplesGenotyped()));
-		record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_NUMBER_ALLELES, divStats.getNumCalledAlleles()));
-		record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_ALLELE_FREQUENCY_SPECTRUM, format(divStats.getAlleleCounts())));
-		if(variant.isBiallelic()) record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_MAF, divStats.getMaf()));
+		@Override
+		public void onPileup(PileupRecord pileup) {
+			int position = pileup.getPosition();
+			if(region!=null && position>region.getLast()) return;
+			GenomicVariant variant = null;
+			GenomicVariant inputVariant = null;
+			if(inputVariants.size()==0) {
+				variant = findMultiallelicVariant(pileup);
+			} else if(nextSIVIndex<seqInputVariants.size()) {
+				inputVariant = seqInputVariants.get(nextSIVIndex);
+				while(inputVariant.getFirst() <= position ) {
+					if(inputVariant.getFirst()==position) {
+						variant = inputVariant;
+					}
+					nextSIVIndex++;
+					if(nextSIVIndex>=seqInputVariants.size()) break;
+					inputVariant = seqInputVariants.get(nextSIVIndex);
+				}
+			}
+			if(position==posPrint) System.out.println("Variant: "+variant);
+			//Sites before the region are only visited to keep track of indels spanning the start of the region
+			if(variant == null || (region!=null && position<region.getFirst())) return;
+			
+			List<CalledGenomicVariant> calls = genotypeVariant(variant, pileup, heterozygosityRate);
+			if(inputVariant==null && (variant.getVariantQS()==0 || variant.getVariantQS() < minQuality)) return;
+			//TODO: The variant could be genotyped again with a different heterozygosity rate
+			
+			DiversityStatistics divStats = DiversityStatistics.calculateDiversityStatistics(calls, false);
+			int [] format = variant.isSNV()?VCFRecord.DEF_FORMAT_ARRAY_NGSEP_SNV:VCFRecord.DEF_FORMAT_ARRAY_NGSEP_NOSNV;
+			VCFRecord record = new VCFRecord(variant, format, calls, vcfFileHeader);
+			record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_SAMPLES_GENOTYPED, divStats.getNumSamplesGenotyped()));
+			record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_NUMBER_ALLELES, divStats.getNumCalledAlleles()));
+			record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_ALLELE_FREQUENCY_SPECTRUM, format(divStats.getAlleleCounts())));
+			if(variant.isBiallelic()) record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_MAF, divStats.getMaf()));
+			
+			writer.printVCFRecord(record, out);
+			shardGenerator.setKeepRunning(updateProgress());
+		}
 		
-		writer.printVCFRecord(record, outFile);
-		coveredGenomeSize++;
-		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
-			int progress = (int)Math.round(100.0*coveredGenomeSize/referenceGenomeSize);
-			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+		@Override
+		public void onSequenceStart(QualifiedSequence sequence) {
+			if(inputVariants.size()>0) seqInputVariants = inputVariants.getSequenceRegions(sequence.getName()).asList();
+			nextSIVIndex = 0;
+			lastIndelEnd = 0;
 		}
-	}
-	
-	
-	@Override
-	public void onSequenceStart(QualifiedSequence sequence) {
-		if(inputVariants.size()>0) seqInputVariants = inputVariants.getSequenceRegions(sequence.getName()).asList();
-		nextSIVIndex = 0;
-		lastIndelEnd = 0;
-	}
 
-	@Override
-	public void onSequenceEnd(QualifiedSequence sequence) {
+		@Override
+		public void onSequenceEnd(QualifiedSequence sequence) {
+			
+		}
 		
+		private GenomicVariant findMultiallelicVariant(PileupRecord pileup) {
+			
+			if(!callEmbeddedSNVs && pileup.isEmbedded()) return null;
+			
+			//Infer reference allele
+			int last = pileup.getPosition()+pileup.getReferenceSpan()-1;
+			CharSequence seq = genome.getReference(pileup.getSequenceName(), pileup.getPosition(), last);
+			if(pileup.getPosition()==posPrint) System.out.println("Position: "+pileup.getPosition()+" Last: "+last);
+			if(seq == null) return null;
+			String referenceAllele = seq.toString();
+			if(pileup.getPosition()==posPrint) System.out.println("Reference: "+referenceAllele);
+			if(ignoreLowerCaseRef && Character.isLowerCase(referenceAllele.charAt(0))) return null;
+			referenceAllele = referenceAllele.toUpperCase();
+			//Avoid trying to call nested indels or SNVs within indels unless explicitly requested
+			if(lastIndelEnd>=pileup.getPosition()) {
+				if(!callEmbeddedSNVs) return null;
+				referenceAllele = referenceAllele.substring(0,1);
+				if (pileup.isSTR()) {
+					pileup.setSTR(false);
+				}
+			}
+			CountsHelper helperSNV = VariantDiscoverySNVQAlgorithm.calculateCountsSNV(pileup,maxBaseQS, null);
+			if(pileup.getPosition()==posPrint) System.out.println("A count: "+helperSNV.getCount("A")+" total: "+helperSNV.getTotalCount() );
+			if(pileup.getPosition()==posPrint) System.out.println("C count: "+helperSNV.getCount("C")+" total: "+helperSNV.getTotalCount() );
+			if(pileup.getPosition()==posPrint) System.out.println("G count: "+helperSNV.getCount("G")+" total: "+helperSNV.getTotalCount() );
+			if(pileup.getPosition()==posPrint) System.out.println("T count: "+helperSNV.getCount("T")+" total: "+helperSNV.getTotalCount() );
+			GenomicVariant variant;
+			if(referenceAllele.length()>1) {
+				CountsHelper helperIndel = VariantDiscoverySNVQAlgorithm.calculateCountsIndel(pileup,null,referenceAllele, maxBaseQS, null); 
+				variant = findMultiallelicIndel(pileup, helperIndel);
+				if(variant!=null) {
+					//System.out.println("Called indel at "+calledVar.getSequenceName()+":"+calledVar.getFirst()+" variant type: "+calledVar.getType());
+					lastIndelEnd = variant.getLast();
+				} else {
+					if (pileup.isNewSTR()) {
+						pileup.setSTR(false);
+						pileup.setNewSTR(false);
+					}
+					//Try SNV if the indel alleles were not good to make a call
+					variant = findMultiallelicSNV(pileup, helperSNV, referenceAllele.charAt(0));
+				}
+			} else {
+				variant = findMultiallelicSNV(pileup, helperSNV, referenceAllele.charAt(0));
+			}
+			if(variant != null) {
+				if(variant.isSNV() && (pileup.isEmbedded() || variant.getFirst()<=lastIndelEnd)) variant.setType(GenomicVariant.TYPE_EMBEDDED_SNV);
+			}
+			return variant;
+		}
 	}
 	
-
 	private String format(int[] alleleCounts) {
 		StringBuilder answer = new StringBuilder(""+alleleCounts[0]);
 		for(int i=1;i<alleleCounts.length;i++) answer.append(","+alleleCounts[i]);
@@ -721,57 +967,6 @@ public class MultisampleVariantsDetector implements PileupListener {
 		return new GenomicVariantImpl(variant.getSequenceName(), variant.getFirst(), alleles);
 	}
 
-	private GenomicVariant findMultiallelicVariant(PileupRecord pileup) {
-		
-		if(!callEmbeddedSNVs && pileup.isEmbedded()) return null;
-		
-		//Infer reference allele
-		int last = pileup.getPosition()+pileup.getReferenceSpan()-1;
-		CharSequence seq = genome.getReference(pileup.getSequenceName(), pileup.getPosition(), last);
-		if(pileup.getPosition()==posPrint) System.out.println("Position: "+pileup.getPosition()+" Last: "+last);
-		if(seq == null) return null;
-		String referenceAllele = seq.toString();
-		if(pileup.getPosition()==posPrint) System.out.println("Reference: "+referenceAllele);
-		if(ignoreLowerCaseRef && Character.isLowerCase(referenceAllele.charAt(0))) return null;
-		referenceAllele = referenceAllele.toUpperCase();
-		//Avoid trying to call nested indels or SNVs within indels unless explicitly requested
-		if(lastIndelEnd>=pileup.getPosition()) {
-			if(!callEmbeddedSNVs) return null;
-			referenceAllele = referenceAllele.substring(0,1);
-			if (pileup.isSTR()) {
-				pileup.setSTR(false);
-			}
-		}
-		CountsHelper helperSNV = VariantDiscoverySNVQAlgorithm.calculateCountsSNV(pileup,maxBaseQS, null);
-		if(pileup.getPosition()==posPrint) System.out.println("A count: "+helperSNV.getCount("A")+" total: "+helperSNV.getTotalCount() );
-		if(pileup.getPosition()==posPrint) System.out.println("C count: "+helperSNV.getCount("C")+" total: "+helperSNV.getTotalCount() );
-		if(pileup.getPosition()==posPrint) System.out.println("G count: "+helperSNV.getCount("G")+" total: "+helperSNV.getTotalCount() );
-		if(pileup.getPosition()==posPrint) System.out.println("T count: "+helperSNV.getCount("T")+" total: "+helperSNV.getTotalCount() );
-		GenomicVariant variant;
-		if(referenceAllele.length()>1) {
-			CountsHelper helperIndel = VariantDiscoverySNVQAlgorithm.calculateCountsIndel(pileup,null,referenceAllele, maxBaseQS, null); 
-			variant = findMultiallelicIndel(pileup, helperIndel);
-			if(variant!=null) {
-				//System.out.println("Called indel at "+calledVar.getSequenceName()+":"+calledVar.getFirst()+" variant type: "+calledVar.getType());
-				lastIndelEnd = variant.getLast();
-			} else {
-				if (pileup.isNewSTR()) {
-					pileup.setSTR(false);
-					pileup.setNewSTR(false);
-				}
-				//Try SNV if the indel alleles were not good to make a call
-				variant = findMultiallelicSNV(pileup, helperSNV, referenceAllele.charAt(0));
-			}
-		} else {
-			variant = findMultiallelicSNV(pileup, helperSNV, referenceAllele.charAt(0));
-		}
-		if(variant != null) {
-			if(variant.isSNV() && (pileup.isEmbedded() || variant.getFirst()<=lastIndelEnd)) variant.setType(GenomicVariant.TYPE_EMBEDDED_SNV);
-		}
-		return variant;
-	}
-	
-	
 	private GenomicVariant findMultiallelicSNV(PileupRecord pileup, CountsHelper helper, char reference) {
 		if(helper.getTotalCount()==0) {
 			return null;
@@ -889,8 +1084,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 
 	private void dispose() {
 		inputVariants =null;
-		seqInputVariants = null;
-		indelRealigner.setInputVariants(null);
+		realignerInputVariants = null;
 	}
 
 
@@ -20,6 +20,7 @@
 package ngsep.discovery;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,14 +31,20 @@ import ngsep.math.FisherExactTest;
 
 /**
  * Class to store a pileup from many alignments spanning the same 
- * genomic location
+ * genomic location. The AlignmentsPileupGenerator reuses the same record for every position.
+ * Hence, listeners should not keep references to the record or to its lists of alignments
  * @author Jorge Duitama
  */
 public class PileupRecord {
 	private String sequenceName;
 	private int position;
 	private List<ReadAlignment> alignmentsList = new ArrayList<>();
-	private Map<String,List<ReadAlignment>> alignmentsMap = new HashMap<>();
+	//Ids of the read groups. The lists of alignments for each read group are indexed by id
+	private Map<String,Integer> readGroupIds = new HashMap<>();
+	private List<List<ReadAlignment>> alignmentsByReadGroup = new ArrayList<>();
+	//Ids of the read groups having alignments in this record
+	private int [] usedReadGroups = new int[16];
+	private int numUsedReadGroups = 0;
 	private int referenceSpan=1;
 	private int numAlignments = 0;
 	private int numUniqueAlns = 0;
@@ -63,6 +70,41 @@ public class PileupRecord {
 		this.position = position;
 	}
 	
+	/**
+	 * Removes the alignments and restores the default attributes to reuse this record for a new position
+	 * @param sequenceName Name of the reference sequence
+	 * @param position Position in the reference sequence
+	 */
+	public void reset(String sequenceName, int position) {
+		this.sequenceName = sequenceName;
+		this.position = position;
+		alignmentsList.clear();
+		for(int i=0;i<numUsedReadGroups;i++) alignmentsByReadGroup.get(usedReadGroups[i]).clear();
+		numUsedReadGroups = 0;
+		referenceSpan = 1;
+		numAlignments = 0;
+		numUniqueAlns = 0;
+		numNegativeStrandAlns = 0;
+		str = false;
+		newSTR = false;
+		embedded = false;
+	}
+	
+	/**
+	 * Returns the internal id of the given read group, assigning a new id if needed
+	 * @param readGroup Read group name
+	 * @return int Id of the read group
+	 */
+	int getReadGroupId(String readGroup) {
+		Integer id = readGroupIds.get(readGroup);
+		if(id==null) {
+			id = readGroupIds.size();
+			readGroupIds.put(readGroup, id);
+			alignmentsByReadGroup.add(new ArrayList<ReadAlignment>());
+		}
+		return id;
+	}
+	
 	public String getSequenceName() {
 		return sequenceName;
 	}
@@ -127,8 +169,11 @@ public class PileupRecord {
 		List<PileupAlleleCall> alleleCalls = new ArrayList<>();
 		List<ReadAlignment> alignments;
 		if(readGroup == null) alignments = getAlignments();
-		else alignments = alignmentsMap.get(readGroup);
-		if(alignments==null) return alleleCalls;
+		else {
+			Integer id = readGroupIds.get(readGroup);
+			if(id==null) return alleleCalls;
+			alignments = alignmentsByReadGroup.get(id);
+		}
 		for(ReadAlignment aln:alignments) { 
 			CharSequence alleleCall = aln.getAlleleCall(position);
 			if(position==posPrint) System.out.println("getAlleleCalls. Allele call: "+alleleCall+". Aln limits: "+aln.getFirst()+"-"+aln.getLast()+". Read name: "+aln.getReadName()+". CIGAR: "+aln.getCigarString()+" refSpan: "+referenceSpan+" negativeStrand: "+aln.isNegativeStrand()+". Ignore start: "+aln.getBasesToIgnoreStart()+" Ignore end: "+aln.getBasesToIgnoreEnd());
@@ -155,10 +200,11 @@ public class PileupRecord {
 		if(aln.getFirst()>position) return;
 		if(aln.getLast()<position) return;
 		alignmentsList.add(aln);
-		List<ReadAlignment> alnsRG = alignmentsMap.get(aln.getReadGroup());
-		if(alnsRG==null) {
-			alnsRG = new ArrayList<>();
-			alignmentsMap.put(aln.getReadGroup(), alnsRG);
+		int readGroupId = getReadGroupId(aln.getReadGroup());
+		List<ReadAlignment> alnsRG = alignmentsByReadGroup.get(readGroupId);
+		if(alnsRG.size()==0) {
+			if(numUsedReadGroups==usedReadGroups.length) usedReadGroups = Arrays.copyOf(usedReadGroups, 2*usedReadGroups.length);
+			usedReadGroups[numUsedReadGroups++] = readGroupId;
 		}
 		alnsRG.add(aln);
 		numAlignments++;
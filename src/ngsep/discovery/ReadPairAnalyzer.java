@@ -431,8 +431,7 @@ public class ReadPairAnalyzer {
 	private boolean intersectWithDuplication(ReadAlignment aln, int avgInsertLength) {
 		GenomicRegionSortedCollection<CalledCNV> cnvsAln = duplications.findSpanningRegions(aln);
 		if(cnvsAln.size()==0) {
-			cnvsAln = duplications.findSpanningRegions(aln.getMateSequenceName(), aln.getMateFirst(), aln.getMateFirst()+aln.getReadLength());
-			return cnvsAln.size()>0;
+			return duplications.hasSpanningRegions(aln.getMateSequenceName(), aln.getMateFirst(), aln.getMateFirst()+aln.getReadLength());
 		}
 		//else System.out.println("Found "+cnvsAln.size()+" duplications for read "+aln.getReadName()+" ");
 		for(CalledCNV cnv:cnvsAln) {
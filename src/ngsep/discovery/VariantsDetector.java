@@ -23,14 +23,20 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
-import ngsep.discovery.rd.ReadDepthBin;
 import ngsep.discovery.rd.ReadDepthDistribution;
+import ngsep.discovery.rd.SequenceReadDepthBins;
 import ngsep.discovery.rd.SingleSampleReadDepthAlgorithm;
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.GenomicRegionSpanComparator;
+import ngsep.genome.GenomicRegionVisitor;
 import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
@@ -56,6 +62,7 @@ import ngsep.vcf.VCFRecord;
 public class VariantsDetector implements PileupListener {
 	
 	public static final short DEF_MINSVQUALITY = 20;
+	public static final int DEF_NUM_THREADS = 1;
 	private Logger log;
 	private AlignmentsPileupGenerator generator = new AlignmentsPileupGenerator();
 	
@@ -80,6 +87,7 @@ public class VariantsDetector implements PileupListener {
 	private long inputGenomeSize = 0;
 	private short minSVQuality = DEF_MINSVQUALITY;
 	private int maxPCTOverlapCNVs = 100;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	//Parameter objects
 	private ReferenceGenome genome;
@@ -194,6 +202,9 @@ public class VariantsDetector implements PileupListener {
 			} else if("-binSize".equals(args[i])) {
 				i++;
 				detector.setBinSize(args[i]);
+			} else if("-t".equals(args[i])) {
+				i++;
+				detector.setNumThreads(args[i]);
 			} else if("-algCNV".equals(args[i])) {
 				i++;
 				detector.setAlgCNV(args[i]);
@@ -428,6 +439,22 @@ public class VariantsDetector implements PileupListener {
 		setBinSize((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void setNumThreads(Integer numThreads) {
+		setNumThreads(numThreads.intValue());
+	}
+
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public long getInputGenomeSize() {
 		return inputGenomeSize;
 	}
@@ -778,6 +805,7 @@ public class VariantsDetector implements PileupListener {
 		log.info("Min quality for structural variants (PHRED) : "+getMinSVQuality());
 		log.info("Input genome size: "+getInputGenomeSize());
 		log.info("Bin size: "+getBinSize());
+		log.info("Number of threads for read depth analysis: "+getNumThreads());
 		log.info("Algorithms for RD analysis: "+getAlgCNV());
 		log.info("Max percentage of overlap between input CNVs and new CNVs: "+getMaxPCTOverlapCNVs());
 		log.info("Max length of deletions found with RP analysis : "+getMaxLengthDeletion());
@@ -809,6 +837,7 @@ public class VariantsDetector implements PileupListener {
 		//Pass parameters
 		rdDistribution.setLog(this.getLog());
 		rdDistribution.setMinMQ(generator.getMinMQ());
+		rdDistribution.setNumThreads(numThreads);
 		
 		
 		log.info("Processing alignments file: "+alignmentsFile);
@@ -865,7 +894,46 @@ public class VariantsDetector implements PileupListener {
 		else rdAlgorithm.setGenomeSize(rdDistribution.getGenomeSize());
 		rdAlgorithm.setNormalPloidy(normalPloidy);
 		rdAlgorithm.setReadDepthDistribution(rdDistribution);
-		return rdAlgorithm.callCNVs();
+		if(numThreads<=1) return rdAlgorithm.callCNVs();
+		return executeCNValgorithmParallel(rdAlgorithm, rdDistribution);
+	}
+	
+	/**
+	 * Runs the given algorithm distributing the sequences across a pool of threads.
+	 * CNVs are returned in the order of the sequences in the genome
+	 * @param rdAlgorithm Algorithm to execute. Parameters should be already set
+	 * @param rdDistribution Read depth distribution with the bins of each sequence
+	 * @return List<CalledCNV> CNVs called by the algorithm
+	 */
+	private List<CalledCNV> executeCNValgorithmParallel(final SingleSampleReadDepthAlgorithm rdAlgorithm, ReadDepthDistribution rdDistribution) {
+		rdAlgorithm.initialize();
+		List<CalledCNV> answer = new ArrayList<CalledCNV>();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<List<CalledCNV>>> tasks = new ArrayList<>();
+		try {
+			for(final String seqName:rdDistribution.getSequences().getNamesStringList()) {
+				tasks.add(pool.submit(new Callable<List<CalledCNV>>() {
+					@Override
+					public List<CalledCNV> call() {
+						return rdAlgorithm.callCNVs(seqName);
+					}
+				}));
+			}
+			for(Future<List<CalledCNV>> task:tasks) {
+				try {
+					answer.addAll(task.get());
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while calling CNVs",e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error calling CNVs",cause);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return answer;
 	}
 	
 	private List<CalledCNV> filterCNVs(List<CalledCNV> cnvs,GenomicRegionSortedCollection<CalledCNV> inputCNVs) {
@@ -874,14 +942,18 @@ public class VariantsDetector implements PileupListener {
 		for(CalledCNV cnv:cnvs) {
 			if(cnv.getGenotypeQuality()<minSVQuality) continue;
 			if(maxPCTOverlapCNVs<100) {
-				GenomicRegionSortedCollection<CalledCNV> spanningCNVs = inputCNVs.findSpanningRegions(cnv);
-				double maxSpan = 0;
-				for(CalledCNV c2:spanningCNVs) {
-					int nextSpan = GenomicRegionSpanComparator.getInstance().getSpanLength(cnv.getFirst(), cnv.getLast(), c2.getFirst(), c2.getLast());
-					if(maxSpan<nextSpan) maxSpan= nextSpan;
-				}
+				final CalledCNV query = cnv;
+				final int [] maxSpan = {0};
+				inputCNVs.visitSpanningRegions(cnv.getSequenceName(), cnv.getFirst(), cnv.getLast(), new GenomicRegionVisitor<CalledCNV>() {
+					@Override
+					public boolean visit(CalledCNV c2) {
+						int nextSpan = GenomicRegionSpanComparator.getInstance().getSpanLength(query.getFirst(), query.getLast(), c2.getFirst(), c2.getLast());
+						if(maxSpan[0]<nextSpan) maxSpan[0]= nextSpan;
+						return true;
+					}
+				});
 				double l = cnv.length();
-				if(100.0*maxSpan/l > maxPCTOverlapCNVs) continue;
+				if(100.0*maxSpan[0]/l > maxPCTOverlapCNVs) continue;
 			}
 			answer.add(cnv);
 		}
@@ -905,7 +977,7 @@ public class VariantsDetector implements PileupListener {
 		for(String seqName:calledCNVs.getSequenceNames().getNamesStringList()) {
 			List<CalledCNV> seqCNVs = calledCNVs.getSequenceRegions(seqName).asList();
 			
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+			SequenceReadDepthBins seqBins = rdDistribution.getBins(seqName);
 			if(seqBins!=null) {
 				for(CalledCNV cnv:seqCNVs) {
 					int binStart = (cnv.getFirst()-1)/binSize;
@@ -914,9 +986,8 @@ public class VariantsDetector implements PileupListener {
 					int sumUncorrected = 0;
 					int nBins = 0;
 					for(int i=binStart;i<seqBins.size()&& i<=binEnd;i++) {
-						ReadDepthBin bin = seqBins.get(i);
-						sumUncorrected += bin.getRawReadDepth();
-						avg+=bin.getCorrectedReadDepth();
+						sumUncorrected += seqBins.getRawReadDepth(i);
+						avg+=seqBins.getCorrectedReadDepth(i);
 						nBins++;
 					}
 					//TODO: Update genotype quality
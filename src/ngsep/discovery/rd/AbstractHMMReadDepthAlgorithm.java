@@ -26,7 +26,6 @@ import java.util.logging.Logger;
 import ngsep.hmm.ConstantTransitionHMM;
 import ngsep.hmm.HMM;
 import ngsep.hmm.HMMState;
-import ngsep.math.LogMath;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
 import ngsep.variants.GenomicVariant;
@@ -40,6 +39,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	private byte normalPloidy = 2;
 	private double changeProbability = 0.01;
+	private HMM hmm;
 	
 	
 	@Override
@@ -68,18 +68,28 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	public List<CalledCNV> callCNVs() {
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
-		log.info("Building HMM");
-		HMM hmm = buildHMM ();
+		initialize();
 		for(String seqName:seqNames) {
-			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
-			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
+			answer.addAll(callCNVs(seqName));
 		}
 		return answer;
 	}
 	
+	@Override
+	public void initialize() {
+		log.info("Building HMM");
+		hmm = buildHMM ();
+	}
+	
+	@Override
+	public List<CalledCNV> callCNVs(String seqName) {
+		log.info("Calling CNVs for sequence "+seqName);
+		SequenceReadDepthBins seqBins = readDepthDistribution.getBins(seqName);
+		List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
+		log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
+		return cnvsSeq;
+	}
+	
 	
 	public ReadDepthDistribution getReadDepthDistribution() {
 		return readDepthDistribution;
@@ -101,7 +111,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 
 	protected abstract String getSource();
 	//TODO: Design better
-	protected abstract HMMState createHMMState(int copies, Double logStart);
+	protected abstract HMMState createHMMState(int copies, double logStart);
 
 	public Logger getLog() {
 		return log;
@@ -111,7 +121,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		int nStates = 4*normalPloidy+1;
 		
 		List<HMMState> states = new ArrayList<HMMState>(nStates);
-		double randomLogStart = LogMath.log10(1.0/nStates);
+		double randomLogStart = Math.log10(1.0/nStates);
 		for(int i=0;i<nStates;i++) {
 			HMMState state = createHMMState(i, randomLogStart);
 			states.add(state);
@@ -125,22 +135,22 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins, HMM hmm) {
+	private List<CalledCNV> callCNVsSequence(String seqName, SequenceReadDepthBins seqBins, HMM hmm) {
 		int m = seqBins.size();
 		int n = hmm.getNumStates();
-		Double [] [] posteriorLogs = new Double [m][n];
+		double [] posteriorLogs = new double [m*n];
 		List<Double> observations = buildObservations(seqBins);
 		hmm.calculatePosteriorLogs(observations, posteriorLogs);
 		//hmm.calculateBackward(observations, posteriorLogs);
-		if("chrI".equals(seqName)) printLogProbs(posteriorLogs);
+		if("chrI".equals(seqName)) printLogProbs(posteriorLogs, n);
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		int nextStartBin = -1;
 		int copies = normalPloidy;
 		for(int i=0;i<m;i++) {
-			int state = chooseState(posteriorLogs[i]);
+			int state = chooseState(posteriorLogs, i*n, n);
 			if(state!=copies) {
 				if(copies!=normalPloidy) {
-					answer.add(createCNV(seqName,seqBins,posteriorLogs,nextStartBin,i-1,copies));
+					answer.add(createCNV(seqName,seqBins,posteriorLogs,n,nextStartBin,i-1,copies));
 				}
 				copies = state;
 				nextStartBin=i;
@@ -149,49 +159,47 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return answer;
 	}
 
-	private void printLogProbs(Double[][] logProbs) {
-		for(int i=0;i<logProbs.length;i++) {
-			for(int j=0;j<logProbs[i].length;j++) {
-				System.out.print(" "+logProbs[i][j]);
+	private void printLogProbs(double[] logProbs, int n) {
+		for(int i=0;i<logProbs.length;i+=n) {
+			for(int j=0;j<n;j++) {
+				System.out.print(" "+logProbs[i+j]);
 			}
 			System.out.println();
 		}
 	}
 
-	private List<Double> buildObservations(List<ReadDepthBin> seqBins) {
+	private List<Double> buildObservations(SequenceReadDepthBins seqBins) {
 		List<Double> observations = new ArrayList<Double>();
-		for(ReadDepthBin bin:seqBins) {
-			observations.add(bin.getCorrectedReadDepth());
+		for(int i=0;i<seqBins.size();i++) {
+			observations.add(seqBins.getCorrectedReadDepth(i));
 		}
 		return observations;
 	}
 	
-	private int chooseState(Double[] logProbs) {
+	private int chooseState(double[] logProbs, int rowStart, int n) {
 		int maxI = normalPloidy;
 		double maxVal = Double.MIN_VALUE;
-		if(logProbs[normalPloidy]!=null) maxVal = logProbs[normalPloidy];
-		for(int i=0;i<logProbs.length;i++) {
-			if(logProbs[i]!=null && maxVal<logProbs[i]) {
+		if(logProbs[rowStart+normalPloidy]!=Double.NEGATIVE_INFINITY) maxVal = logProbs[rowStart+normalPloidy];
+		for(int i=0;i<n;i++) {
+			if(maxVal<logProbs[rowStart+i]) {
 					maxI = i;
-					maxVal = logProbs[i];
+					maxVal = logProbs[rowStart+i];
 			}
 		}
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] posteriorLogs, int firstI, int lastI, int copies) {
-		ReadDepthBin firstBin = seqBins.get(firstI);
-		ReadDepthBin lastBin = seqBins.get(lastI);
+	private CalledCNV createCNV(String seqName, SequenceReadDepthBins seqBins, double [] posteriorLogs, int n, int firstI, int lastI, int copies) {
 		int bins = 0;
 		int fragments = 0;
 		double avgProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
-			fragments+=seqBins.get(i).getRawReadDepth();
-			avgProb += LogMath.power10(posteriorLogs[i][copies]); 
+			fragments+=seqBins.getRawReadDepth(i);
+			avgProb += Math.pow(10.0, posteriorLogs[i*n+copies]); 
 			bins++;
 		}
 		avgProb/=bins;
-		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, firstBin.getFirst(), lastBin.getLast(),GenomicVariant.TYPE_CNV);
+		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(firstI), seqBins.getLast(lastI),GenomicVariant.TYPE_CNV);
 		CalledCNV call = new CalledCNV(cnv,copies);
 		call.setTotalReadDepth(fragments);
 		call.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(1-avgProb));
@@ -150,40 +150,57 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		return makeCNVCallsPartition();
 	}
 	
+	@Override
+	public void initialize() {
+		//Partitions are calculated independently for each sequence
+	}
+	
+	@Override
+	public List<CalledCNV> callCNVs(String sequenceName) {
+		SequenceReadDepthBins seqBins = rdDistribution.getBins(sequenceName);
+		calculatePartition(seqBins, 128, false);
+		log.info("Calling CNVs for sequence "+sequenceName);
+		List<CalledCNV> cnvs = makeCNVCallsPartition(seqBins);
+		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
+		return cnvs;
+	}
+	
 	
 
 	
 	private void calculatePartition (int range, boolean skipMasked) {
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
 		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+seqBins.size());
-			boolean [] mask = new boolean[seqBins.size()];
-			Arrays.fill(mask, false);
-			
-			for(int binBand=2;binBand<=range;binBand++) {
-				//Restore original RD values
-				for(int i=0;i<seqBins.size();i++) {
-					if(!mask[i]) {
-						ReadDepthBin bin = seqBins.get(i);
-						bin.setReadDepthLevel(bin.getCorrectedReadDepth());
-					}
+			SequenceReadDepthBins seqBins = rdDistribution.getBins(seqName);
+			calculatePartition(seqBins, range, skipMasked);
+		}
+	}
+	private void calculatePartition (SequenceReadDepthBins seqBins, int range, boolean skipMasked) {
+		log.info("Calculating partition for sequence: "+seqBins.getSequenceName()+". Sequence bins: "+seqBins.size());
+		boolean [] mask = new boolean[seqBins.size()];
+		Arrays.fill(mask, false);
+		
+		for(int binBand=2;binBand<=range;binBand++) {
+			//Restore original RD values
+			for(int i=0;i<seqBins.size();i++) {
+				if(!mask[i]) {
+					seqBins.setReadDepthLevel(i, seqBins.getCorrectedReadDepth(i));
 				}
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				updateMask(seqBins, mask);
-				if(binBand>=8) binBand++;
-				if(binBand>=16) binBand+=2;
-				if(binBand>=32) binBand+=4;
-				if(binBand>=64) binBand+=8;
-				if(binBand>=128) binBand+=16;
-				if(binBand>=256) binBand+=32;
-				if(binBand>=512) binBand+=64;
 			}
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			updateMask(seqBins, mask);
+			if(binBand>=8) binBand++;
+			if(binBand>=16) binBand+=2;
+			if(binBand>=32) binBand+=4;
+			if(binBand>=64) binBand+=8;
+			if(binBand>=128) binBand+=16;
+			if(binBand>=256) binBand+=32;
+			if(binBand>=512) binBand+=64;
 		}
 	}
-	private void calcLevels(List<ReadDepthBin> seqBins, int binBand, boolean [] mask, boolean skipMasked) {
+	private void calcLevels(SequenceReadDepthBins seqBins, int binBand, boolean [] mask, boolean skipMasked) {
 		double [] gradients = new double[seqBins.size()];
 		Arrays.fill(gradients, 0);
 		double inv2BinBand = 1.0/(binBand*binBand);
@@ -197,22 +214,21 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		double [] hrs = new double[seqBins.size()];
 		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
+			double levelB = seqBins.getReadDepthLevel(b);
 			hrs[b] = sigma2;
-			if(binB.getReadDepthLevel() >= mean4) hrs[b] = ms2/binB.getReadDepthLevel();
+			if(levelB >= mean4) hrs[b] = ms2/levelB;
 		}
 		//Calculate gradients
 		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
 			if(mask[b]) continue;
+			double levelB = seqBins.getReadDepthLevel(b);
 			int distance = 0;
 			for(int i=b+1;i<seqBins.size();i++) {
-				ReadDepthBin binI = seqBins.get(i);
 				if(mask[i]) continue;
 				distance++;
-				double difLevel = binI.getReadDepthLevel()-binB.getReadDepthLevel();
+				double difLevel = seqBins.getReadDepthLevel(i)-levelB;
 				double val = -0.5*difLevel*difLevel;
-				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+binB.getFirst()+" BinI: "+binI.getFirst()+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+binB.getReadDepthLevel()+" invB: "+hrs[b]+" ms2: "+ms2);
+				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+seqBins.getFirst(b)+" BinI: "+seqBins.getFirst(i)+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+seqBins.getReadDepthLevel(b)+" invB: "+hrs[b]+" ms2: "+ms2);
 				gradients[b] += expsWindow[distance]*Math.exp(val*hrs[b]);
 				gradients[i] -= expsWindow[distance]*Math.exp(val*hrs[i]);
 				if(distance == window) break;
@@ -237,22 +253,20 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 			double nl = 0;
 			int n = 0;
 		    for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
 		    	if (mask[i]) continue;
-		    	nl += bin.getReadDepthLevel();
+		    	nl += seqBins.getReadDepthLevel(i);
 		    	n++;
 		    }
 		    //Update with the average signal
 		    nl/=n;
 			for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (!mask[i]) bin.setReadDepthLevel(nl);
-		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+bin.getFirst()+" Level: "+bin.getReadDepthLevel()+" mask: "+mask[i]+" gradient: "+gradients[i]);
+		    	if (!mask[i]) seqBins.setReadDepthLevel(i, nl);
+		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+seqBins.getFirst(i)+" Level: "+seqBins.getReadDepthLevel(i)+" mask: "+mask[i]+" gradient: "+gradients[i]);
 		    }
 		}
 	}
 	
-	private void updateMask(List<ReadDepthBin> seqBins, boolean[] mask) {
+	private void updateMask(SequenceReadDepthBins seqBins, boolean[] mask) {
 		Arrays.fill(mask, false);
 		List<LevelRegion> regions = calculateRegions(seqBins);
 		for(int i=1;i<regions.size()-1;i++) {
@@ -274,7 +288,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		
 		
 	}
-	private List<LevelRegion> calculateRegions(List<ReadDepthBin> seqBins) {
+	private List<LevelRegion> calculateRegions(SequenceReadDepthBins seqBins) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		double lastLevel = -1;
 		int first = 0;
@@ -283,19 +297,18 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		double sum = 0;
 		double sum2 = 0;
 		for(int i=0;i<seqBins.size();i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(lastLevel != -1 && Math.abs(bin.getReadDepthLevel()-lastLevel)>=0.01) {
+			if(lastLevel != -1 && Math.abs(seqBins.getReadDepthLevel(i)-lastLevel)>=0.01) {
 				regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 				first = i;
 				
 				sum = sum2 = nBins = 0;
 			}
-			double signal = bin.getCorrectedReadDepth(); 
+			double signal = seqBins.getCorrectedReadDepth(i); 
 			sum+=signal;
 			sum2+=(signal*signal);
 			nBins++;
 			last = i;
-			lastLevel = bin.getReadDepthLevel();
+			lastLevel = seqBins.getReadDepthLevel(i);
 		}
 		regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 		return regions;
@@ -312,13 +325,13 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		if(correctMT) p *= (0.99*genomeSize/(rdDistribution.getBinSize()*region.nBins));
 		return p;
 	}
-	private double calculateModifiedPValue(List<ReadDepthBin> seqBins, LevelRegion region, boolean deletion) {
+	private double calculateModifiedPValue(SequenceReadDepthBins seqBins, LevelRegion region, boolean deletion) {
 		double max = -1;
 		double min = -1;
 		for(int i=region.first;i<=region.last;i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(bin.getCorrectedReadDepth()>max) max = bin.getCorrectedReadDepth();
-			if(min==-1 || bin.getCorrectedReadDepth()<min) min = bin.getCorrectedReadDepth();
+			double signal = seqBins.getCorrectedReadDepth(i);
+			if(signal>max) max = signal;
+			if(min==-1 || signal<min) min = signal;
 		}
 		double p;
 		if(deletion) {
@@ -360,13 +373,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
 		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+			SequenceReadDepthBins seqBins = rdDistribution.getBins(seqName);
 			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,true,false);
 			for(LevelRegion region:regions) {
 				for(int i=region.first;i<=region.last;i++) {
-					ReadDepthBin bin = seqBins.get(i);
-					out.print(""+seqName+"\t"+bin.getFirst()+"\t"+bin.getLast()+"\t"+fmt.format(100*bin.getGcContent()));
-					out.print("\t"+fmt.format(bin.getRawReadDepth())+"\t"+fmt.format(bin.getCorrectedReadDepth())+"\t"+fmt.format(bin.getReadDepthLevel()));
+					out.print(""+seqName+"\t"+seqBins.getFirst(i)+"\t"+seqBins.getLast(i)+"\t"+fmt.format(100*seqBins.getGcContent(i)));
+					out.print("\t"+fmt.format(seqBins.getRawReadDepth(i))+"\t"+fmt.format(seqBins.getCorrectedReadDepth(i))+"\t"+fmt.format(seqBins.getReadDepthLevel(i)));
 					out.print("\t"+fmt.format(region.getAverageRD())+"\t"+fmt.format(Math.sqrt(region.getVarianceRD()))+"\t"+fmt.format(region.level));
 					out.print("\t"+region.pValueMethod);
 					out.print("\t"+region.pValueGaussian);
@@ -380,32 +392,39 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private List<CalledCNV> makeCNVCallsPartition() {
 		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
-		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
 		for(String seqName:sequenceNames) {
 			if(sequenceNames.size()<100) log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
+			SequenceReadDepthBins seqBins = rdDistribution.getBins(seqName);
+			cnvs.addAll(makeCNVCallsPartition(seqBins));
+		}
+		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
+		return cnvs;
+	}
+	
+	private List<CalledCNV> makeCNVCallsPartition(SequenceReadDepthBins seqBins) {
+		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
+		double cut = meanReadDepth / (2*normalPloidy);
+		String seqName = seqBins.getSequenceName();
+		List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
+		
+		for(LevelRegion region:regions) {
+			double pValue = region.getPValue();
 			
-			for(LevelRegion region:regions) {
-				double pValue = region.getPValue();
-				
-				if(pValue <= MAX_PVALUE_REGION) {
-					float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
-					GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
-					CalledCNV calledCNV = new CalledCNV(cnv,copies);
-					calledCNV.setSource(SOURCE_CNVNATOR);
-					calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
-					calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
-					cnvs.add(calledCNV);
-				}
+			if(pValue <= MAX_PVALUE_REGION) {
+				float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
+				GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(region.first), seqBins.getLast(region.last),GenomicVariant.TYPE_CNV);
+				CalledCNV calledCNV = new CalledCNV(cnv,copies);
+				calledCNV.setSource(SOURCE_CNVNATOR);
+				calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
+				calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
+				cnvs.add(calledCNV);
 			}
 		}
-		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
 		return cnvs;
 	}
 	
-	private List<LevelRegion> calculateFinalRegions(List<ReadDepthBin> seqBins, double cut, boolean includeNeutral, boolean mergeLevels) {
+	private List<LevelRegion> calculateFinalRegions(SequenceReadDepthBins seqBins, double cut, boolean includeNeutral, boolean mergeLevels) {
 		if(mergeLevels)mergeLevels(seqBins,cut);
 		List <LevelRegion> regions = calculateAdjustedRegions(seqBins,cut);
 		mergeSmallMiddleRegions(regions,seqBins);
@@ -431,7 +450,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		return allRegions;
 	}
-	private void mergeLevels(List<ReadDepthBin> seqBins, double cut) {
+	private void mergeLevels(SequenceReadDepthBins seqBins, double cut) {
 		while (true) {
 			boolean change = false;
 			List<LevelRegion> regions = calculateRegions(seqBins);
@@ -457,7 +476,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 						newLevel /= (r1.nBins + r2.nBins);
 						//System.out.println("Merging levels starting at "+r1.first+" and "+r2.first+". Level1: "+r1.level+". Level2: "+r2.level+" diff: "+v1+" diff2: "+v2+" diff3: "+v3+" new level: "+newLevel);
 						for(int j=r1.first;j<=r2.last;j++) {
-							seqBins.get(j).setReadDepthLevel(newLevel);
+							seqBins.setReadDepthLevel(j, newLevel);
 						}
 						r1.last = r2.last;
 						r1.nBins +=r2.nBins;
@@ -480,13 +499,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		
 	}
-	private List<LevelRegion> calculateAdjustedRegions(List<ReadDepthBin> seqBins,double cut) {
+	private List<LevelRegion> calculateAdjustedRegions(SequenceReadDepthBins seqBins,double cut) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		int first=0;
 		int limitFirst = 0;
 		while(first<seqBins.size()) {
-			ReadDepthBin bin = seqBins.get(first);
-			double level = bin.getReadDepthLevel();
+			double level = seqBins.getReadDepthLevel(first);
 			double diffLevel = level-meanReadDepth; 
 			if(Math.abs(diffLevel)<cut) {
 				first++;
@@ -494,8 +512,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 			}
 			int last = first+1;
 			for(;last < seqBins.size();last++) {
-				ReadDepthBin bin2 = seqBins.get(last);
-				double diffLevel2 = bin2.getReadDepthLevel()-meanReadDepth;
+				double diffLevel2 = seqBins.getReadDepthLevel(last)-meanReadDepth;
 				if(Math.abs(diffLevel2)<cut || (diffLevel>0 != diffLevel2>0)) {
 					break;
 				}
@@ -519,7 +536,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		return regions;
 	}
-	private void mergeSmallMiddleRegions(List<LevelRegion> regions, List<ReadDepthBin> seqBins) {
+	private void mergeSmallMiddleRegions(List<LevelRegion> regions, SequenceReadDepthBins seqBins) {
 		List<LevelRegion> newRegionsList = new ArrayList<LevelRegion>();
 		while(true) {
 			boolean change = false;
@@ -571,7 +588,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 	}
 
-	private LevelRegion localAdjust(List<ReadDepthBin> seqBins, int first, int last, int limitFirst) { 
+	private LevelRegion localAdjust(SequenceReadDepthBins seqBins, int first, int last, int limitFirst) { 
 		double pValue = calculatePValue(new LevelRegion(seqBins, first, last),true);
 		for (int i=0;i<1000 && pValue > MAX_PVALUE_REGION && last > first +1;i++) {
 			int bestIndex = 0;
@@ -621,7 +638,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		return region;
 	}
 	
-	private void addGaussianCNVs(List<LevelRegion> regions,List<ReadDepthBin> seqBins,double cut) {
+	private void addGaussianCNVs(List<LevelRegion> regions,SequenceReadDepthBins seqBins,double cut) {
 		List<LevelRegion> finalRegions = new ArrayList<LevelRegion>();
 		int lastEnd = -1;
 		for(int i=0;i<regions.size();i++) {
@@ -636,14 +653,13 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		regions.addAll(finalRegions);
 	}
 	
-	private List<LevelRegion> lookForGaussian(List<ReadDepthBin> seqBins, int first, int last,double cut) {
+	private List<LevelRegion> lookForGaussian(SequenceReadDepthBins seqBins, int first, int last,double cut) {
 		List<LevelRegion> gaussianDeletions = new ArrayList<LevelRegion>();
 		double min = meanReadDepth-cut;
 		for(int i=first;i<=last;i++) {
-			ReadDepthBin bS = seqBins.get(i);
-			if(bS.getReadDepthLevel()<min) {
+			if(seqBins.getReadDepthLevel(i)<min) {
 				int j = i+1;
-				while (j<=last && seqBins.get(j).getReadDepthLevel()<min) j++;
+				while (j<=last && seqBins.getReadDepthLevel(j)<min) j++;
 				j--;
 				if(i<j) {
 					LevelRegion r = new LevelRegion(seqBins, i, j);
@@ -705,7 +721,7 @@ class LevelRegion {
 		this.sum = sum;
 		this.sumSquares = sumSquares;
 	}
-	public LevelRegion(List<ReadDepthBin> seqBins, int first, int last) {
+	public LevelRegion(SequenceReadDepthBins seqBins, int first, int last) {
 		this.first = first;
 		this.last = last;
 		this.sum = 0;
@@ -713,12 +729,11 @@ class LevelRegion {
 		this.level = 0;
 		nBins = 0;
 		for(int i=first;i<=last;i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			double signal = bin.getCorrectedReadDepth(); 
+			double signal = seqBins.getCorrectedReadDepth(i); 
 			sum+=signal;
 			sumSquares+=signal*signal;
 			nBins++;
-			level += bin.getReadDepthLevel(); 
+			level += seqBins.getReadDepthLevel(i); 
 		}
 		level/=nBins;
 	}
@@ -141,11 +141,7 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	@Override
 	public List<CalledCNV> callCNVs() {
 		log.info( "Calling CNVs using EWT algorithm" );
-		// set variables
-		sequences = readDepthDistribution.getSequences();
-		comparator = new GenomicRegionComparator(sequences);
-		readDepthMean = readDepthDistribution.getMeanReadDepth();
-		readDepthSDeviation = readDepthDistribution.getSigmaReadDepth();
+		initialize();
 		List<Interval> detectedCNVs = new ArrayList<Interval>();
 		
 		// obtain z-score, upperLimit probability and lowerLimit probability for each bin, from the read depth
@@ -154,27 +150,60 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 		
 		// iterate over each chromosome
 		for ( String seqName : sequences.getNamesStringList() ) {
-			log.info( "Calling CNVs for sequence " + seqName );
-			
-			// get all bins in chromosome
-			List<RDbinProbabilities> seqProbs = probabilities.get(seqName);
-			int numProbs = seqProbs.size();
-			
-			// calculate N, and make intervals of all suggested lengths (2 <= l <= N)
-			double significance;																											
-			for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {				
-				//log.info( "Searching CNVs in " + l + "00bp-sized intervals" );
-				List<Interval> intervals = getIntervals(seqName, seqProbs, l);
-				for ( int i = 0 ; i < intervals.size() ; i++ ) {
-					
-					// test for duplications and deletions
-					Interval event = intervals.get(i);
-					if ( event.getMaxUpperProb() < significance ) detectedCNVs.add(event);
-					else if ( event.getMaxLowerProb() < significance ) detectedCNVs.add(event);
-				}
-			}
+			detectedCNVs.addAll(detectEvents(seqName, probabilities.get(seqName)));
 		}
 		
+		return processEvents(detectedCNVs);
+	}
+	
+	@Override
+	public void initialize() {
+		// set variables
+		sequences = readDepthDistribution.getSequences();
+		comparator = new GenomicRegionComparator(sequences);
+		readDepthMean = readDepthDistribution.getMeanReadDepth();
+		readDepthSDeviation = readDepthDistribution.getSigmaReadDepth();
+	}
+	
+	@Override
+	public List<CalledCNV> callCNVs(String sequenceName) {
+		List<RDbinProbabilities> seqProbs = calculateRDProb(sequenceName);
+		return processEvents(detectEvents(sequenceName, seqProbs));
+	}
+
+	/**
+	 * Tests intervals of all suggested lengths within a single chromosome
+	 * @param seqName String, the name of the chromosome or scaffold
+	 * @param seqProbs List, the bins of the sequence with their associated probabilities
+	 * @return List intervals detected as events
+	 */
+	private List<Interval> detectEvents(String seqName, List<RDbinProbabilities> seqProbs) {
+		log.info( "Calling CNVs for sequence " + seqName );
+		List<Interval> detectedCNVs = new ArrayList<Interval>();
+		int numProbs = seqProbs.size();
+		
+		// calculate N, and make intervals of all suggested lengths (2 <= l <= N)
+		double significance;																											
+		for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {				
+			//log.info( "Searching CNVs in " + l + "00bp-sized intervals" );
+			List<Interval> intervals = getIntervals(seqName, seqProbs, l);
+			for ( int i = 0 ; i < intervals.size() ; i++ ) {
+				
+				// test for duplications and deletions
+				Interval event = intervals.get(i);
+				if ( event.getMaxUpperProb() < significance ) detectedCNVs.add(event);
+				else if ( event.getMaxLowerProb() < significance ) detectedCNVs.add(event);
+			}
+		}
+		return detectedCNVs;
+	}
+	
+	/**
+	 * Sorts, filters and merges the detected events
+	 * @param detectedCNVs List
+	 * @return List CNVs called from the events
+	 */
+	private List<CalledCNV> processEvents(List<Interval> detectedCNVs) {
 		// sort, filter, merge and output
 		log.info( detectedCNVs.size() + " total events detected by EWT algorithm" );
 		Collections.sort(detectedCNVs, comparator);
@@ -199,23 +228,29 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 
 		// iterate over all the bins in the genome
 		for ( String seqName : sequences.getNamesStringList() ) {
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
-			
-			log.info( "normalizing read depth for bins in " + seqName );
-			for ( int i = 0 ; i < seqBins.size() ; i++ ) {
-				ReadDepthBin bin = seqBins.get(i);
-
-				// change the nature of each bin to its probability
-				RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
+			probabilities.put(seqName, calculateRDProb(seqName));
+		}
+	}
+	
+	/**
+	 * Calculates the probabilities associated to the bins of a single chromosome
+	 * @param seqName String, the name of the chromosome or scaffold
+	 * @return List the bins of the sequence with their associated probabilities
+	 */
+	private List<RDbinProbabilities> calculateRDProb (String seqName) {
+		SequenceReadDepthBins seqBins = readDepthDistribution.getBins(seqName);
+		List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
+		
+		log.info( "normalizing read depth for bins in " + seqName );
+		for ( int i = 0 ; i < seqBins.size() ; i++ ) {
+			// change the nature of each bin to its probability
+			RDbinProbabilities binP = new RDbinProbabilities(seqBins.getSequenceName(), seqBins.getFirst(i), seqBins.getLast(i), seqBins.getGcContent(i), seqBins.getCorrectedReadDepth(i));
 
-				// calculate Z-score and add to the new list
-				binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
-				seqProbs.add(binP);
-			}
-			
-			probabilities.put(seqName, seqProbs);
+			// calculate Z-score and add to the new list
+			binP.setzScore( (seqBins.getCorrectedReadDepth(i) - readDepthMean) / readDepthSDeviation );
+			seqProbs.add(binP);
 		}
+		return seqProbs;
 	}
 	
 	/**
@@ -90,23 +90,31 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 	public List<CalledCNV> callCNVs() {
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
-		log.info("Building HMM");
-		buildHMM();
+		initialize();
 		for(String seqName:seqNames) {
-			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
-			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
+			answer.addAll(callCNVs(seqName));
 		}
 		return answer;
 	}
 
+	public void initialize() {
+		log.info("Building HMM");
+		buildHMM();
+	}
+
+	public List<CalledCNV> callCNVs(String seqName) {
+		log.info("Calling CNVs for sequence "+seqName);
+		SequenceReadDepthBins seqBins = readDepthDistribution.getBins(seqName);
+		List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
+		log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
+		return cnvsSeq;
+	}
+
 	private void buildHMM() {
 		int nStates = 4*normalPloidy+1;
 
 		List<HMMState> states = new ArrayList<HMMState>(nStates);
-		double randomLogStart = LogMath.log10(1.0/nStates);
+		double randomLogStart = Math.log10(1.0/nStates);
 		for(int i=0;i<nStates;i++) {
 			HMMState state = createHMMState(i, randomLogStart);
 			states.add(state);
@@ -116,42 +124,40 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		((ConstantTransitionHMM) hmm).calculateUniformChangeTransitions(changeProbability);
 	}
 
-	private List<Double> buildObservations(List<ReadDepthBin> seqBins) {
+	private List<Double> buildObservations(SequenceReadDepthBins seqBins) {
 		List<Double> observations = new ArrayList<Double>();
-		for(ReadDepthBin bin:seqBins) {
-			observations.add(bin.getCorrectedReadDepth());
+		for(int i=0;i<seqBins.size();i++) {
+			observations.add(seqBins.getCorrectedReadDepth(i));
 		}
 		return observations;
 	}
 
-	private int chooseState(Double[] logProbs) {
+	private int chooseState(double[] logProbs, int rowStart, int n) {
 		int maxI = normalPloidy;
 		double maxVal = Double.MIN_VALUE;
-		if(logProbs[normalPloidy]!=null) maxVal = logProbs[normalPloidy];
-		for(int i=0;i<logProbs.length;i++) {
-			if(logProbs[i]!=null && maxVal<logProbs[i]) {
+		if(logProbs[rowStart+normalPloidy]!=Double.NEGATIVE_INFINITY) maxVal = logProbs[rowStart+normalPloidy];
+		for(int i=0;i<n;i++) {
+			if(maxVal<logProbs[rowStart+i]) {
 				maxI = i;
-				maxVal = logProbs[i];
+				maxVal = logProbs[rowStart+i];
 			}
 		}
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] likelihoods, int firstI, int lastI, int copies) {
-		ReadDepthBin firstBin = seqBins.get(firstI);
-		ReadDepthBin lastBin = seqBins.get(lastI);
+	private CalledCNV createCNV(String seqName, SequenceReadDepthBins seqBins, double [] likelihoods, int n, int firstI, int lastI, int copies) {
 		int fragments = 0;
 		double maxProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
-			fragments+=seqBins.get(i).getRawReadDepth();
-			Double logLike = likelihoods[i][copies];
-			Double logNormalPloidy = likelihoods[i][normalPloidy];
-			Double sum = LogMath.logSum(logLike, logNormalPloidy);
-			double nextProb = LogMath.power10(logLike-sum);
+			fragments+=seqBins.getRawReadDepth(i);
+			double logLike = likelihoods[i*n+copies];
+			double logNormalPloidy = likelihoods[i*n+normalPloidy];
+			double sum = LogMath.logSumExp(logLike, logNormalPloidy);
+			double nextProb = Math.pow(10.0, logLike-sum);
 			//System.out.println("--nextProb---" + nextProb + " ----binI---- " + binI + " -----binInormalPloidy---- " + binInormalPloidy);
 			if(nextProb > maxProb) maxProb = nextProb;
 		}
-		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, firstBin.getFirst(), lastBin.getLast(),GenomicVariant.TYPE_CNV);
+		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(firstI), seqBins.getLast(lastI),GenomicVariant.TYPE_CNV);
 		CalledCNV call = new CalledCNV(cnv,copies);
 		call.setTotalReadDepth(fragments);
 		//System.out.println("-----Phred-----" + PhredScoreHelper.calculatePhredScore(1-maxProb) + " --maxProb---" + maxProb);
@@ -161,7 +167,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		return call;
 	}
 
-	protected HMMState createHMMState(int copies, Double logStart) {
+	protected HMMState createHMMState(int copies, double logStart) {
 		double avgNormalDepth = this.getReadDepthDistribution().getMeanReadDepth();
 		double avgDepthState = avgNormalDepth*copies/getNormalPloidy();
 		double varianza = Math.pow(this.getReadDepthDistribution().getSigmaReadDepth(),2);
@@ -171,46 +177,45 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		return state; 
 	}
 	
-	private void calculateLikelihood(List<Double> observations, Double[][] likelihoods){
+	private void calculateLikelihood(List<Double> observations, double[] likelihoods){
 		int m = observations.size();
 		int k = hmm.getNumStates();
-		if(likelihoods.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+likelihoods.length);
-		if(m>0 && likelihoods[0].length!=k) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+k+" Given: "+likelihoods[0].length);
-		for(int i=0;i<likelihoods.length;i++) {
-			for(int j=0;j<likelihoods[0].length;j++) {
-				Double e = getEmission(j, observations.get(i));
-				likelihoods[i][j] = e;
+		if(likelihoods.length!=m*k) throw new IllegalArgumentException("Invalid length of likelihoods. Expected: "+m+" x "+k+" Given: "+likelihoods.length);
+		for(int i=0;i<m;i++) {
+			Object o = observations.get(i);
+			for(int j=0;j<k;j++) {
+				likelihoods[i*k+j] = getEmission(j, o);
 			}
 		}
 	}
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins){
+	private List<CalledCNV> callCNVsSequence(String seqName, SequenceReadDepthBins seqBins){
 		int m = seqBins.size();
 		int n = hmm.getNumStates();
-		Double [] [] likelihoods = new Double [m][n];
+		double [] likelihoods = new double [m*n];
 		List<Double> observations = buildObservations(seqBins);
 		calculateLikelihood(observations, likelihoods);
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		int nextStartBin = -1;
 		int copies = normalPloidy;
 		for(int i=0;i<m;i++) {
-			int state = chooseState(likelihoods[i]);
+			int state = chooseState(likelihoods, i*n, n);
 			if(state!=copies) {
 				if(copies!=normalPloidy) {
-					answer.add(createCNV(seqName,seqBins,likelihoods,nextStartBin,i-1,copies));
+					answer.add(createCNV(seqName,seqBins,likelihoods,n,nextStartBin,i-1,copies));
 				}
 				copies = state;
 				nextStartBin=i;
 			}
 		}
 		if(copies!=normalPloidy) {
-			answer.add(createCNV(seqName,seqBins,likelihoods,nextStartBin,m-1,copies));
+			answer.add(createCNV(seqName,seqBins,likelihoods,n,nextStartBin,m-1,copies));
 		}
 		return answer;
 
 	}
 
-	public Double getEmission(int state, Object value) {
+	public double getEmission(int state, Object value) {
 		return ((MaximumLikelihoodState) hmm.getState(state)).getEmission2(value);
 	}
 
@@ -226,6 +231,8 @@ class MaximumLikelihoodState implements HMMState{
 	private int copies;
 	private double averageDepth;
 	private double variance;
+	private NormalDistribution dist;
+	private double logStart;
 
 
 	/**
@@ -233,21 +240,23 @@ class MaximumLikelihoodState implements HMMState{
 	 * @param averageDepth
 	 * @param logStart
 	 */
-	public MaximumLikelihoodState(int copies, double averageDepth, double variance, Double logStart) {
+	public MaximumLikelihoodState(int copies, double averageDepth, double variance, double logStart) {
 		super();
 		this.copies = copies;
 		this.averageDepth = averageDepth;
 		this.variance = variance;
+		this.logStart = logStart;
+		dist = new NormalDistribution(averageDepth,variance);
 	}
 	
-	public Double getEmission2(Object value) {
-		if(value == null || !(value instanceof Double)) return null;
+	public double getEmission2(Object value) {
+		if(value == null || !(value instanceof Double)) return Double.NEGATIVE_INFINITY;
 		double depth = (Double)value;
 		if(depth<1) depth = 1;
-		NormalDistribution dist = new NormalDistribution(averageDepth,variance);
 		double p = dist.cumulative(depth+0.5)-dist.cumulative(depth-0.5);
 		//if(copies==0 && p<0.00001) System.out.println("Emission prob "+p+" cumulative 1: "+dist.cumulative(depth-0.5)+"cumulative 2 "+dist.cumulative(depth+0.5)+" depth "+depth);
-		return LogMath.log10(p);
+		if(p<=0) return Double.NEGATIVE_INFINITY;
+		return Math.log10(p);
 	}
 	
 	public double getAverageDepth(){
@@ -259,21 +268,18 @@ class MaximumLikelihoodState implements HMMState{
 	}
 
 	@Override
-	public Double getEmission(Object value, int step) {
-		// TODO Auto-generated method stub
-		return null;
+	public double getEmission(Object value, int step) {
+		return getEmission2(value);
 	}
 
 	@Override
-	public Double getLogStart() {
-		// TODO Auto-generated method stub
-		return null;
+	public double getLogStart() {
+		return logStart;
 	}
 
 	@Override
-	public void setLogStart(Double logStart) {
-		// TODO Auto-generated method stub
-		
+	public void setLogStart(double logStart) {
+		this.logStart = logStart;
 	}
 
 }
\ No newline at end of file
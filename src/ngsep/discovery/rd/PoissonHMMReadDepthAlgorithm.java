@@ -21,7 +21,6 @@ package ngsep.discovery.rd;
 
 import JSci.maths.statistics.PoissonDistribution;
 import ngsep.hmm.HMMState;
-import ngsep.math.LogMath;
 
 public class PoissonHMMReadDepthAlgorithm extends AbstractHMMReadDepthAlgorithm {
 	
@@ -31,7 +30,7 @@ public class PoissonHMMReadDepthAlgorithm extends AbstractHMMReadDepthAlgorithm
 		return SOURCE_POISSONHMM;
 	}
 	@Override
-	protected HMMState createHMMState(int copies, Double logStart) {
+	protected HMMState createHMMState(int copies, double logStart) {
 		double avgNormalDepth = this.getReadDepthDistribution().getMeanReadDepth();
 		double avgDepthState = avgNormalDepth*copies/getNormalPloidy();
 		if(copies==0) avgDepthState = 1;
@@ -44,7 +43,8 @@ class PoissonHMMState implements HMMState {
 
 	private int copies;
 	private double averageDepth;
-	private Double logStart;
+	private PoissonDistribution dist;
+	private double logStart;
 	
 	
 	/**
@@ -52,33 +52,34 @@ class PoissonHMMState implements HMMState {
 	 * @param averageDepth
 	 * @param logStart
 	 */
-	public PoissonHMMState(int copies, double averageDepth, Double logStart) {
+	public PoissonHMMState(int copies, double averageDepth, double logStart) {
 		super();
 		this.copies = copies;
 		this.averageDepth = averageDepth;
 		this.logStart = logStart;
+		dist = new PoissonDistribution(averageDepth);
 	}
 
 	@Override
-	public Double getEmission(Object value, int step) {
-		if(value == null || !(value instanceof Double)) return null;
+	public double getEmission(Object value, int step) {
+		if(value == null || !(value instanceof Double)) return Double.NEGATIVE_INFINITY;
 		double depth = (Double)value;
 		if(depth<1) depth = 1;
-		PoissonDistribution dist = new PoissonDistribution(averageDepth);
 		double a = dist.probability(depth);
 		//System.out.println("--- depthPoisson ---- " + depth + " ----a--- " + a);
 		// double p = dist.cumulative(depth+0.5)-dist.cumulative(depth-0.5);
 		// if(copies==0 && p<0.00001) System.out.println("Emission prob "+p+" cumulative 1: "+dist.cumulative(depth-0.05)+"cumulative 2 "+dist.cumulative(depth+0.05)+" depth "+depth);
-		return LogMath.log10(a);
+		if(a<=0) return Double.NEGATIVE_INFINITY;
+		return Math.log10(a);
 	}
 
 	@Override
-	public Double getLogStart() {
+	public double getLogStart() {
 		return logStart;
 	}
 
 	@Override
-	public void setLogStart(Double logStart) {
+	public void setLogStart(double logStart) {
 		this.logStart = logStart;
 	}
 
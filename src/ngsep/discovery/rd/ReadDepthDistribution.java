@@ -26,11 +26,15 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -43,10 +47,12 @@ import ngsep.sequences.QualifiedSequenceList;
 
 public class ReadDepthDistribution {
 	public static final int DEFAULT_BIN_SIZE=100;
+	public static final int DEF_NUM_THREADS = 1;
 	private Logger log = Logger.getLogger(ReadDepthDistribution.class.getName());
 	//Parameters set before starting
 	private int binSize = DEFAULT_BIN_SIZE;
-	private Map<String, List<ReadDepthBin>> bins = new TreeMap<String, List<ReadDepthBin>>();
+	private int numThreads = DEF_NUM_THREADS;
+	private Map<String, SequenceReadDepthBins> bins = new TreeMap<String, SequenceReadDepthBins>();
 	private QualifiedSequenceList sequences;
 	private long genomeSize = 0;
 	private long totalReads = 0;
@@ -81,6 +87,19 @@ public class ReadDepthDistribution {
 		this.minMQ = minMQ;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to count reads. Alignments of different sequences are counted in parallel
+	 * only if the alignments file is indexed
+	 * @param numThreads Number of threads
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
 	public QualifiedSequenceList getSequences() {
 		return sequences;
 	}
@@ -110,22 +129,23 @@ public class ReadDepthDistribution {
 		while (line != null) {
 			String[] items = line.split("\t| ");
 			String seqName = sequences.addOrLookupName(items[0]).getName(); 
-			List<ReadDepthBin> binsSeq = bins.get(seqName);
-			if(binsSeq==null) {
-				binsSeq = new ArrayList<ReadDepthBin>();
-				bins.put(seqName, binsSeq);
-			}
 			int first = Integer.parseInt(items[1]);
 			int last = Integer.parseInt(items[2]);
-			ReadDepthBin bin = new ReadDepthBin(seqName, first, last, Double.parseDouble(items[3])/100.0);
-			bin.setRawReadDepth(Double.parseDouble(items[4]));
-			bin.setCorrectedReadDepth(Double.parseDouble(items[5]));
-			if(includeLevels) bin.setReadDepthLevel(Double.parseDouble(items[6]));
-			binsSeq.add(bin);
 			if(partitionGenomeSize==0) {
 				//Obtain bin size from the first bin
 				binSize = last - first + 1;
 			}
+			SequenceReadDepthBins binsSeq = bins.get(seqName);
+			if(binsSeq==null) {
+				binsSeq = new SequenceReadDepthBins(seqName, binSize, new double[0]);
+				bins.put(seqName, binsSeq);
+			}
+			int i = (first-1)/binSize;
+			binsSeq.ensureBin(i);
+			binsSeq.setGcContent(i, Double.parseDouble(items[3])/100.0);
+			binsSeq.setRawReadDepth(i, (int)Math.round(Double.parseDouble(items[4])));
+			binsSeq.setCorrectedReadDepth(i, Double.parseDouble(items[5]));
+			if(includeLevels) binsSeq.setReadDepthLevel(i, Double.parseDouble(items[6]));
 			partitionGenomeSize+=binSize;
 			line = in.readLine();
 		}
@@ -143,18 +163,16 @@ public class ReadDepthDistribution {
 		for(int h=0;h<n;h++) {
 			QualifiedSequence sequence = genome.getSequenceByIndex(h);
 			String seqName = sequence.getName();
-			List<ReadDepthBin> seqBins = new ArrayList<ReadDepthBin>(); 
-			bins.put(seqName, seqBins);
 			CharSequence sequenceChars = sequence.getCharacters();
 			int l = sequenceChars.length();
-			int end = l - l%binSize;
 			//Ignore the last basepairs to avoid going over the end of the chromosome
-			for(int i=0;i<end;i+=binSize) {
-				String binSequence = sequenceChars.subSequence(i, i+binSize).toString();
+			double [] gcContents = new double [l/binSize];
+			for(int b=0;b<gcContents.length;b++) {
+				int start = b*binSize;
 				double gcContent = 0;
 				int nBases = 0;
-				for(int j=0;j<binSize;j++) {
-					char base = Character.toUpperCase(binSequence.charAt(j)); 
+				for(int j=start;j<start+binSize;j++) {
+					char base = Character.toUpperCase(sequenceChars.charAt(j)); 
 					if(DNASequence.isInAlphabeth(base)) {
 						nBases++;
 						if(base == 'G' || base == 'C') {
@@ -167,52 +185,38 @@ public class ReadDepthDistribution {
 				} else {
 					gcContent = -1;
 				}
-				seqBins.add(new ReadDepthBin(seqName, i+1, i+binSize,gcContent));
+				gcContents[b] = gcContent;
 			}
+			bins.put(seqName, new SequenceReadDepthBins(seqName, binSize, gcContents));
 			//System.out.println("Sequence name: "+seqName+" Sequence length "+sequence.length+" end: "+end+" bins: "+seqBins.size());
 		}
 	}
+	/**
+	 * Counts the alignments of the given file within each bin. If the file is indexed and more than one thread is available,
+	 * the alignments of different sequences are counted in parallel
+	 * @param filename Alignments file
+	 * @throws IOException If the file can not be read or if the average coverage is too low
+	 */
 	public void processAlignments (String filename) throws IOException {
-		
-		
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename)) {
-			reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
-			reader.setLog(log);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			reader.setFilterFlags(filterFlags);
-			reader.setMinMQ(minMQ);
-			Iterator<ReadAlignment> it = reader.iterator();
-			//Sequence under processing
-			while(it.hasNext()) {
-				ReadAlignment aln = it.next();
-				boolean uniqueRead = aln.isUnique();
-				
-				int middle = aln.getFirst()+aln.getReadLength()/2;
-				List<ReadDepthBin> seqBins = bins.get(aln.getSequenceName());
-				if(seqBins==null) continue;
-				int binPos = middle/binSize;
-				if(seqBins!=null && seqBins.size()>binPos) {
-					ReadDepthBin bin = seqBins.get(binPos);
-					if(!uniqueRead) bin.setInRepetitiveRegion(true);
-					bin.addRead();
-				}
-				totalReads++;
-				if(totalReads%1000000 == 0) log.info("Processed "+totalReads+" alignments");
-				//if(totalReads%100000 == 0) log.info("Processing read: "+aln.getReadName()+". Location: "+aln.getSequenceName()+":"+aln.getFirst()+" flags: "+aln.getFlags()+". Unique: "+aln.isUnique()+". Bins size: "+seqBins.size()+" bin pos: "+binPos);
+		try (ReadAlignmentFileReader reader = openAlignmentsFile(filename)) {
+			if(numThreads>1 && reader.isIndexed()) {
+				processAlignmentsParallel(filename);
+			} else {
+				totalReads+=countReads(reader.iterator(),true);
 			}
 		}
 		//Set corrected depth back to raw depth
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				bin.setCorrectedReadDepth(bin.getRawReadDepth());
+		for(SequenceReadDepthBins binsSeq:bins.values()) {
+			for(int i=0;i<binsSeq.size();i++) {
+				binsSeq.setCorrectedReadDepth(i, binsSeq.getRawReadDepth(i));
 			}
 		}
 		double sum = 0;
 		int n=0;
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				if(!bin.isInRepetitiveRegion()) {
-					sum+=bin.getRawReadDepth();
+		for(SequenceReadDepthBins binsSeq:bins.values()) {
+			for(int i=0;i<binsSeq.size();i++) {
+				if(!binsSeq.isInRepetitiveRegion(i)) {
+					sum+=binsSeq.getRawReadDepth(i);
 					n++;
 				}
 			}
@@ -220,6 +224,87 @@ public class ReadDepthDistribution {
 		if(n==0 || sum/n <1) throw new IOException("The average coverage in unique regions ("+(sum/n)+") is too low for reliable CNV detection. "
 				+ "Check if the XS field is present for all alignments in the bam file and if so, use the option -ignoreXS. If the average genome-wide coverage is low, then skip detection of CNVs"); 
 	}
+	
+	private ReadAlignmentFileReader openAlignmentsFile(String filename) throws IOException {
+		ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename);
+		reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
+		reader.setLog(log);
+		int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
+		reader.setFilterFlags(filterFlags);
+		reader.setMinMQ(minMQ);
+		return reader;
+	}
+	
+	/**
+	 * Queries the alignments of each sequence in a separate reader. Each task updates only the bins of its sequence
+	 * @param filename Indexed alignments file
+	 * @throws IOException If the file can not be read
+	 */
+	private void processAlignmentsParallel(final String filename) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Long>> tasks = new ArrayList<>();
+		try {
+			for(final SequenceReadDepthBins seqBins:bins.values()) {
+				final int length = sequences.get(seqBins.getSequenceName()).getLength();
+				if(length==0) continue;
+				tasks.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException {
+						try (ReadAlignmentFileReader reader = openAlignmentsFile(filename)) {
+							long count = countReads(reader.query(seqBins.getSequenceName(), 1, length), false);
+							log.info("Processed "+count+" alignments in sequence "+seqBins.getSequenceName());
+							return count;
+						}
+					}
+				}));
+			}
+			for(Future<Long> task:tasks) {
+				try {
+					totalReads+=task.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while counting reads",e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException) throw (IOException)cause;
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error counting reads",cause);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Adds the given alignments to the bins in which the middle of each read falls
+	 * @param it Alignments to count
+	 * @param logProgress Tells if the number of processed alignments should be logged every million alignments
+	 * @return long Number of alignments on sequences having bins
+	 */
+	private long countReads(Iterator<ReadAlignment> it, boolean logProgress) {
+		long count = 0;
+		String lastSeqName = null;
+		SequenceReadDepthBins seqBins = null;
+		while(it.hasNext()) {
+			ReadAlignment aln = it.next();
+			String seqName = aln.getSequenceName();
+			//Alignments are usually sorted by sequence. Lookup bins only when the sequence changes
+			if(!seqName.equals(lastSeqName)) {
+				seqBins = bins.get(seqName);
+				lastSeqName = seqName;
+			}
+			if(seqBins==null) continue;
+			int middle = aln.getFirst()+aln.getReadLength()/2;
+			int binPos = middle/binSize;
+			if(seqBins.size()>binPos) {
+				if(!aln.isUnique()) seqBins.setInRepetitiveRegion(binPos, true);
+				seqBins.addRead(binPos);
+			}
+			count++;
+			if(logProgress && count%1000000 == 0) log.info("Processed "+count+" alignments");
+		}
+		return count;
+	}
 	public void correctDepthByGCContent () {
 		int gcContentBins = 100;
 		double [] readDepthGC = new double [gcContentBins];
@@ -231,19 +316,19 @@ public class ReadDepthDistribution {
 		int globalNBins = 0;
 		log.info("Calculating average read depth in unique bins");
 		for(String seqName:bins.keySet()) {
-			List<ReadDepthBin> seqBins = bins.get(seqName);
+			SequenceReadDepthBins seqBins = bins.get(seqName);
 			double seqReadDepth = 0;
 			int seqNBins = 0;
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					seqReadDepth += bin.getRawReadDepth();
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					int rawReadDepth = seqBins.getRawReadDepth(i);
+					seqReadDepth += rawReadDepth;
 					seqNBins++;
-					globalReadDepth+= bin.getRawReadDepth();
+					globalReadDepth+= rawReadDepth;
 					globalNBins++;
-					int gcBinPos = (int)(gcContentBins*bin.getGcContent());
+					int gcBinPos = (int)(gcContentBins*seqBins.getGcContent(i));
 					if(gcBinPos == gcContentBins) gcBinPos--;
-					//if(gcBinPos==0) log.info("Bin "+seqName+":"+bin.getStart()+"-"+bin.getEnd()+" has low gc Content: "+bin.getGcContent()+". Read depth: "+bin.getRawReadDepth());
-					readDepthGC[gcBinPos]+=bin.getRawReadDepth();
+					readDepthGC[gcBinPos]+=rawReadDepth;
 					gcNBins[gcBinPos]++;
 				}
 			}
@@ -268,16 +353,16 @@ public class ReadDepthDistribution {
 		}
 		for(String seqName:bins.keySet()) {
 			if(bins.size()<100) log.info("Correcting GC for bins in sequence "+seqName);
-			List<ReadDepthBin> seqBins = bins.get(seqName);
-			for(ReadDepthBin bin:seqBins) {
-				double gcContentBin = bin.getGcContent();
+			SequenceReadDepthBins seqBins = bins.get(seqName);
+			for(int i=0;i<seqBins.size();i++) {
+				double gcContentBin = seqBins.getGcContent(i);
 				if(gcContentBin>=0) {
 					int gcBinPos = (int)(gcContentBins*gcContentBin);
 					if(gcBinPos == gcContentBins) gcBinPos--;
 					if(readDepthGC[gcBinPos]>0) {
-						bin.setCorrectedReadDepth(bin.getRawReadDepth()*globalReadDepth/readDepthGC[gcBinPos]);
+						seqBins.setCorrectedReadDepth(i, seqBins.getRawReadDepth(i)*globalReadDepth/readDepthGC[gcBinPos]);
 					} else {
-						bin.setCorrectedReadDepth(bin.getRawReadDepth());
+						seqBins.setCorrectedReadDepth(i, seqBins.getRawReadDepth(i));
 					}
 				}
 			}
@@ -288,12 +373,13 @@ public class ReadDepthDistribution {
 		double maxReadDepth = 0;
 		double sum=0;
 		int n=0;
-		for(List<ReadDepthBin> seqBins:bins.values()) {
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					sum+=bin.getCorrectedReadDepth();
-					if(bin.getCorrectedReadDepth()>maxReadDepth) {
-						maxReadDepth = bin.getCorrectedReadDepth();
+		for(SequenceReadDepthBins seqBins:bins.values()) {
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					double correctedReadDepth = seqBins.getCorrectedReadDepth(i);
+					sum+=correctedReadDepth;
+					if(correctedReadDepth>maxReadDepth) {
+						maxReadDepth = correctedReadDepth;
 					}
 					n++;
 				}
@@ -310,16 +396,16 @@ public class ReadDepthDistribution {
 		Map<String,Distribution> seqDistCalc=null;
 		if(bins.size()<100) seqDistCalc =  new TreeMap<String, Distribution>(); 
 		for(String seqName:bins.keySet()) {		
-			List<ReadDepthBin> seqBins = bins.get(seqName);
+			SequenceReadDepthBins seqBins = bins.get(seqName);
 			Distribution seqDist = null;
 			if(seqDistCalc!=null) {
 				seqDist = new Distribution(1, maxValueDistribution, 1);
 				seqDistCalc.put(seqName, seqDist);
 			}
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					distCalc.processDatapoint(bin.getCorrectedReadDepth());
-					if(seqDist!=null) seqDist.processDatapoint(bin.getCorrectedReadDepth());
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					distCalc.processDatapoint(seqBins.getCorrectedReadDepth(i));
+					if(seqDist!=null) seqDist.processDatapoint(seqBins.getCorrectedReadDepth(i));
 				}
 			}
 		}
@@ -360,14 +446,24 @@ public class ReadDepthDistribution {
 		
 	}
 	
-	public List<ReadDepthBin> getBins(String seqName) {
-		return Collections.unmodifiableList(bins.get(seqName));
+	/**
+	 * @param seqName Name of the sequence
+	 * @return SequenceReadDepthBins Bins of the given sequence. null if the sequence does not have bins
+	 */
+	public SequenceReadDepthBins getBins(String seqName) {
+		return bins.get(seqName);
 	}
 	
+	/**
+	 * Creates objects for all the bins of the genome. Changes to these objects are not reflected in this distribution
+	 * @return List<ReadDepthBin> Copies of the bins sorted by sequence and position
+	 */
 	public List<ReadDepthBin> getAllBins() {
 		List<ReadDepthBin> answer = new ArrayList<ReadDepthBin>();
 		for(String seqName:sequences.getNamesStringList()){
-			answer.addAll(getBins(seqName));
+			SequenceReadDepthBins seqBins = bins.get(seqName);
+			if(seqBins==null) continue;
+			for(int i=0;i<seqBins.size();i++) answer.add(seqBins.getBin(i));
 		}
 		return answer;
 	}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery.rd;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Read depth bins of one sequence stored in parallel primitive arrays. Bin i spans the
+ * positions i*binSize+1 to (i+1)*binSize of the sequence
+ * @author Jorge Duitama
+ */
+public class SequenceReadDepthBins {
+	private String sequenceName;
+	private int binSize;
+	private int size;
+	private double [] gcContents;
+	private int [] rawReadDepths;
+	private double [] correctedReadDepths;
+	//Created only if levels are assigned
+	private double [] readDepthLevels;
+	private BitSet repetitive = new BitSet();
+
+	/**
+	 * Creates the bins of a sequence with zero read depth
+	 * @param sequenceName Name of the sequence
+	 * @param binSize Length of each bin
+	 * @param gcContents GC content of each bin. Negative values for bins without information on GC content
+	 */
+	public SequenceReadDepthBins(String sequenceName, int binSize, double [] gcContents) {
+		this.sequenceName = sequenceName;
+		this.binSize = binSize;
+		this.size = gcContents.length;
+		this.gcContents = gcContents;
+		this.rawReadDepths = new int [size];
+		this.correctedReadDepths = new double [size];
+	}
+
+	/**
+	 * Makes sure that the given bin exists. New bins have negative GC content and zero read depth
+	 * @param i Index of the bin
+	 */
+	void ensureBin(int i) {
+		if(i<size) return;
+		int newSize = i+1;
+		if(newSize>gcContents.length) {
+			int capacity = Math.max(newSize, 2*gcContents.length);
+			gcContents = Arrays.copyOf(gcContents, capacity);
+			rawReadDepths = Arrays.copyOf(rawReadDepths, capacity);
+			correctedReadDepths = Arrays.copyOf(correctedReadDepths, capacity);
+			if(readDepthLevels!=null) readDepthLevels = Arrays.copyOf(readDepthLevels, capacity);
+		}
+		Arrays.fill(gcContents, size, newSize, -1);
+		size = newSize;
+	}
+
+	public String getSequenceName() {
+		return sequenceName;
+	}
+
+	public int getBinSize() {
+		return binSize;
+	}
+
+	/**
+	 * @return int Number of bins
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i Index of the bin
+	 * @return int First position of the bin (1-based)
+	 */
+	public int getFirst(int i) {
+		return i*binSize+1;
+	}
+
+	/**
+	 * @param i Index of the bin
+	 * @return int Last position of the bin (1-based)
+	 */
+	public int getLast(int i) {
+		return (i+1)*binSize;
+	}
+
+	public double getGcContent(int i) {
+		return gcContents[i];
+	}
+
+	public void setGcContent(int i, double gcContent) {
+		gcContents[i] = gcContent;
+	}
+
+	public int getRawReadDepth(int i) {
+		return rawReadDepths[i];
+	}
+
+	public void setRawReadDepth(int i, int rawReadDepth) {
+		rawReadDepths[i] = rawReadDepth;
+	}
+
+	public void addRead(int i) {
+		rawReadDepths[i]++;
+	}
+
+	public double getCorrectedReadDepth(int i) {
+		return correctedReadDepths[i];
+	}
+
+	public void setCorrectedReadDepth(int i, double correctedReadDepth) {
+		correctedReadDepths[i] = correctedReadDepth;
+	}
+
+	public double getReadDepthLevel(int i) {
+		if(readDepthLevels==null) return 0;
+		return readDepthLevels[i];
+	}
+
+	public void setReadDepthLevel(int i, double level) {
+		if(readDepthLevels==null) readDepthLevels = new double [gcContents.length];
+		readDepthLevels[i] = level;
+	}
+
+	public boolean isInRepetitiveRegion(int i) {
+		return repetitive.get(i);
+	}
+
+	public void setInRepetitiveRegion(int i, boolean inRepetitiveRegion) {
+		repetitive.set(i, inRepetitiveRegion);
+	}
+
+	public boolean isGoodForAverage (int i) {
+		return !repetitive.get(i) && gcContents[i]>=0;
+	}
+
+	/**
+	 * Creates an object with the information of the given bin. Changes to the object are not reflected in this collection
+	 * @param i Index of the bin
+	 * @return ReadDepthBin Copy of the bin
+	 */
+	public ReadDepthBin getBin(int i) {
+		ReadDepthBin bin = new ReadDepthBin(sequenceName, getFirst(i), getLast(i), getGcContent(i));
+		bin.setRawReadDepth(getRawReadDepth(i));
+		bin.setCorrectedReadDepth(getCorrectedReadDepth(i));
+		bin.setReadDepthLevel(getReadDepthLevel(i));
+		bin.setInRepetitiveRegion(isInRepetitiveRegion(i));
+		return bin;
+	}
+}
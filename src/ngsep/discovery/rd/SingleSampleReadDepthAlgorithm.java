@@ -50,5 +50,17 @@ public interface SingleSampleReadDepthAlgorithm {
 	 * @return List<CalledCNV> CNVs identified by the algorithm
 	 */
 	public List<CalledCNV> callCNVs();
+	/**
+	 * Calculates the information shared by all sequences. Must be called before calling CNVs
+	 * for individual sequences through callCNVs(String)
+	 */
+	public void initialize();
+	/**
+	 * Runs the read depth algorithm to find CNVs within one sequence. After initialization,
+	 * calls for different sequences can be executed concurrently
+	 * @param sequenceName Name of the sequence to analyze
+	 * @return List<CalledCNV> CNVs identified by the algorithm within the given sequence sorted by position
+	 */
+	public List<CalledCNV> callCNVs(String sequenceName);
 	
 }
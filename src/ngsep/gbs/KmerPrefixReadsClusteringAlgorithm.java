@@ -19,13 +19,16 @@
  *******************************************************************************/
 package ngsep.gbs;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -33,6 +36,12 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -75,13 +84,17 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	public static final byte DEF_PLOIDY = GenomicVariant.DEFAULT_PLOIDY;
 	
 	private static final String READID_SEPARATOR="$";
+	private static final String PAIRED_SUFFIX_1="_1";
+	private static final String PAIRED_SUFFIX_2="_2";
+	private static final int READS_BATCH_SIZE = 10000;
+	private static final int MAX_CLUSTERED_READS_FILES = 1000;
 	
 	private int minClusterDepth = 10;
 	private int maxClusterDepth = 1000;
 	
-	//Variables for parallel VCF
-	private final int MAX_TASK_COUNT = 20;
+	//Variables for parallel clustering and VCF
 	private int numThreads = DEF_NUM_THREADS;
+	private boolean pairedEnd = false;
 	private int kmerLength = DEF_KMER_LENGTH;
 	private int maxNumClusters = DEF_MAX_NUM_CLUSTERS;
 	
@@ -91,8 +104,9 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	private Map<String, String> filenamesBySampleId1=new HashMap<>();
 	private Map<String, String> filenamesBySampleId2=new HashMap<>();
 	private DNAShortKmerClusterMap kmersMap;
-	private int[] clusterSizes;
+	private AtomicIntegerArray clusterSizes;
 	private List<Sample> samples = new ArrayList<>();
+	private Map<String, Integer> sampleIndexes = new HashMap<>();
 	
 	private ProcessInfo processInfo = new ProcessInfo();
 	private short minQuality = DEF_MIN_QUALITY;
@@ -110,6 +124,8 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	private int numLargeClusters = 0;
 	private int numSmallClusters = 0;
 	private int numTotalReads = 0;
+	//Number of reads that will be saved in the clustered reads files. Two reads are saved per paired-end fragment
+	private long numReadsToCluster = 0;
 	
 	
 	public static void main(String[] args) throws Exception {
@@ -189,6 +205,24 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	/**
+	 * @return true if the input files have paired-end reads
+	 */
+	public boolean isPairedEnd() {
+		return pairedEnd;
+	}
+
+	/**
+	 * @param pairedEnd true if the input files have paired-end reads with names following the pattern DEF_REGEXP_PAIRED
+	 */
+	public void setPairedEnd(boolean pairedEnd) {
+		this.pairedEnd = pairedEnd;
+	}
+	
+	public void setPairedEnd(Boolean pairedEnd) {
+		setPairedEnd(pairedEnd.booleanValue());
+	}
+	
 	/**
 	 * @return the minAlleleFrequency
 	 */
@@ -284,7 +318,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		processInfo.addTime(System.currentTimeMillis(), "BuildKmersMap end");
 		processInfo.addTime(System.currentTimeMillis(), "Cluster reads start");
 		log.info("Built kmers map with "+kmersMap.size()+" clusters");
-		this.clusterSizes = new int[kmersMap.size()];
+		this.clusterSizes = new AtomicIntegerArray(kmersMap.size());
 		List<String> clusteredReadsFilenames = clusterReads();
 		kmersMap.dispose();
 		printDistribution();
@@ -306,6 +340,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 			Sample sample = new Sample(sampleName);
 			sample.setNormalPloidy(normalPloidy);
 			sample.addReadGroup(sampleName);
+			sampleIndexes.put(sampleName, samples.size());
 			samples.add(sample);
 		}
 	}
@@ -323,28 +358,53 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	
 	private int[] getClusterSizeDist() {
 		int max = 0;
-		for(int size: this.clusterSizes) {
+		for(int i=0;i<clusterSizes.length();i++) {
+			int size = clusterSizes.get(i);
 			if(size>=max) {
 				max = size;
 			}
 		}
 		int[] dist = new int[max+1];
-		for(int size: this.clusterSizes) {
-			dist[size]++;
+		for(int i=0;i<clusterSizes.length();i++) {
+			dist[clusterSizes.get(i)]++;
 		}
 		return dist;
 	}
 
-	private void loadFilenamesAndSamples() {
+	private void loadFilenamesAndSamples() throws IOException {
 		File[] files = (new File(inputDirectory)).listFiles();
+		Map<String,String> filenamesById = new TreeMap<>();
 		for(File f : files) {
 			String filename = f.getName();
 			int i = filename.indexOf(".fastq");
 			if(i>=0) {
 				String sampleId = filename.substring(0, i);
-				filenamesBySampleId1.put(sampleId, f.getAbsolutePath());
+				filenamesById.put(sampleId, f.getAbsolutePath());
 			}
 		}
+		if(!pairedEnd) {
+			filenamesBySampleId1.putAll(filenamesById);
+			return;
+		}
+		//Files of paired-end reads of sample <S> are named <S>_1.fastq* and <S>_2.fastq*
+		for(String id:filenamesById.keySet()) {
+			if(id.endsWith(PAIRED_SUFFIX_2) && filenamesById.containsKey(getSampleIdPaired(id)+PAIRED_SUFFIX_1)) continue;
+			String sampleId = getSampleIdPaired(id);
+			if(sampleId == null || !id.endsWith(PAIRED_SUFFIX_1)) throw new IOException("File "+filenamesById.get(id)+" does not follow the pattern "+DEF_REGEXP_PAIRED+" of paired-end reads files");
+			String filename2 = filenamesById.get(sampleId+PAIRED_SUFFIX_2);
+			if(filename2==null) throw new IOException("Second reads file not found for "+filenamesById.get(id));
+			filenamesBySampleId1.put(sampleId, filenamesById.get(id));
+			filenamesBySampleId2.put(sampleId, filename2);
+		}
+	}
+	
+	/**
+	 * @param id Name of a file of paired-end reads without the fastq extension
+	 * @return String Sample id removing the read number suffix. null if the name does not have a read number suffix
+	 */
+	private String getSampleIdPaired(String id) {
+		if(!id.endsWith(PAIRED_SUFFIX_1) && !id.endsWith(PAIRED_SUFFIX_2)) return null;
+		return id.substring(0,id.length()-PAIRED_SUFFIX_1.length());
 	}
 	
 	
@@ -352,90 +412,221 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		kmersMap = new DNAShortKmerClusterMap(kmerLength,maxNumClusters);
 		log.info("Initialized k-mers map");
 		int n=0;
-		for(String filename:filenamesBySampleId1.values()) {
+		for(String sampleId:filenamesBySampleId1.keySet()) {
+			String filename = filenamesBySampleId1.get(sampleId);
 			log.info("Processing file "+filename);
-			addKmersFromFile(filename);
+			int numReads = addKmersFromFile(filename);
+			numReadsToCluster+=(filenamesBySampleId2.containsKey(sampleId)?2*numReads:numReads);
 			n++;
 			log.info(kmersMap.getNumClusters() + " clusters created for " + n + " files.");
 		}
 	}
 
-	private void addKmersFromFile(String filename) throws IOException {
+	private int addKmersFromFile(String filename) throws IOException {
 		int readCount = 0;
 		try (FastqFileReader openFile = new FastqFileReader(filename);) {
 			Iterator<RawRead> reader = openFile.iterator();
 			while(reader.hasNext()) {
 				RawRead read = reader.next();
-				String s = read.getSequenceString();
-				if(DEF_START + kmerLength>s.length()) continue;
-				String prefix = s.substring(DEF_START,DEF_START + kmerLength);
-				if(DNASequence.isDNA(prefix)) {
+				String prefix = extractPrefix(read.getSequenceString());
+				if(prefix!=null) {
 					kmersMap.addOcurrance(new DNAShortKmer(prefix));
 					readCount++;
 				}
 			}
 		}
 		log.info("Processed a total of " + readCount + " reads for file: "+filename);
+		return readCount;
 	}
+	
+	/**
+	 * @param s Read sequence
+	 * @return String prefix of the read used to cluster the read. null if the read is too short or if the prefix has non DNA characters
+	 */
+	private String extractPrefix(String s) {
+		if(DEF_START + kmerLength>s.length()) return null;
+		String prefix = s.substring(DEF_START,DEF_START + kmerLength);
+		if(!DNASequence.isDNA(prefix)) return null;
+		return prefix;
+	}
+	
+	/**
+	 * Clusters the reads of the samples in parallel. Clusters are distributed among files such that the reads of each cluster
+	 * are stored in the same file and each file fits in memory. Each file can then be processed independently
+	 * @return List<String> Names of the files with the clustered reads
+	 * @throws IOException If the files can not be read or written
+	 */
 	public List<String> clusterReads() throws IOException {
-		ClusteredReadsCache clusteredReadsCache = new ClusteredReadsCache(); 
-		for(String sampleId:filenamesBySampleId1.keySet()) {
-			String filename1 = filenamesBySampleId1.get(sampleId);
-			String filename2 = filenamesBySampleId2.get(sampleId);
-			if(filename2 == null) {
-				log.info("Clustering reads from " + filename1);
-				clusterReadsSingleFile (sampleId, filename1, clusteredReadsCache);
-			} else {
-				clusterReadsPairedEndFiles (sampleId, filename1, filename2, clusteredReadsCache);
+		int [] shardsFirstClusters = calculateShardsFirstClusters();
+		log.info("Saving clustered reads of "+numReadsToCluster+" reads in "+shardsFirstClusters.length+" files");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try (ClusteredReadsShards shards = new ClusteredReadsShards(outPrefix, shardsFirstClusters)) {
+			List<Future<Void>> tasks = new ArrayList<>();
+			for(final String sampleId:filenamesBySampleId1.keySet()) {
+				final String filename1 = filenamesBySampleId1.get(sampleId);
+				final String filename2 = filenamesBySampleId2.get(sampleId);
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						if(filename2 == null) {
+							log.info("Clustering reads from " + filename1);
+							clusterReadsSingleFile (sampleId, filename1, shards);
+						} else {
+							log.info("Clustering paired-end reads from " + filename1 + " and " + filename2);
+							clusterReadsPairedEndFiles (sampleId, filename1, filename2, shards);
+						}
+						return null;
+					}
+				}));
 			}
+			for(Future<Void> task:tasks) waitTask(task, "clustering reads");
+			return shards.getFilenames();
+		} finally {
+			pool.shutdownNow();
 		}
-		clusteredReadsCache.dump(outPrefix);
-		return clusteredReadsCache.getClusteredReadFiles();
+	}
+	
+	/**
+	 * Distributes the clusters in files storing consecutive clusters. Files are processed in order, so the variants are
+	 * sorted by cluster regardless of the number of files. The number of files is calculated such that the threads calling
+	 * variants keep in memory at most DEF_MAX_READS_IN_MEMORY reads. Reads of each cluster are estimated from the
+	 * k-mers map, counting at most maxClusterDepth reads per cluster because reads of larger clusters are not saved
+	 * @return int[] First cluster stored in each file
+	 */
+	private int [] calculateShardsFirstClusters() {
+		int numClusters = kmersMap.size();
+		int readsPerFragment = pairedEnd?2:1;
+		long [] expectedReads = new long [numClusters];
+		long totalExpected = 0;
+		for(int i=0;i<numClusters;i++) {
+			expectedReads[i] = readsPerFragment*Math.min(maxClusterDepth, kmersMap.getClusterCount(i));
+			totalExpected += expectedReads[i];
+		}
+		long readsPerShard = Math.max(1, DEF_MAX_READS_IN_MEMORY/numThreads);
+		long numShards = Math.max(numThreads, (totalExpected+readsPerShard-1)/readsPerShard);
+		if(numShards>MAX_CLUSTERED_READS_FILES) {
+			log.warning("Clustered reads require "+numShards+" files to keep at most "+readsPerShard+" reads in memory per thread. Saving reads in "+MAX_CLUSTERED_READS_FILES+" files. Each thread could keep up to "+((totalExpected+MAX_CLUSTERED_READS_FILES-1)/MAX_CLUSTERED_READS_FILES)+" reads in memory");
+			numShards = MAX_CLUSTERED_READS_FILES;
+		}
+		numShards = Math.max(1, Math.min(numShards, numClusters));
+		long target = Math.max(1, (totalExpected+numShards-1)/numShards);
+		List<Integer> firstClusters = new ArrayList<>();
+		firstClusters.add(0);
+		long shardReads = 0;
+		for(int i=0;i<numClusters;i++) {
+			if(shardReads>0 && shardReads+expectedReads[i]>target && firstClusters.size()<numShards) {
+				firstClusters.add(i);
+				shardReads = 0;
+			}
+			shardReads+=expectedReads[i];
+		}
+		int [] answer = new int [firstClusters.size()];
+		for(int i=0;i<answer.length;i++) answer[i] = firstClusters.get(i);
+		return answer;
 	}
 
-	private void clusterReadsSingleFile(String sampleId, String filename, ClusteredReadsCache clusteredReadsCache) throws IOException {
+	private void clusterReadsSingleFile(String sampleId, String filename, ClusteredReadsShards shards) throws IOException {
 		int unmatchedReads = 0;
-		int count = 1;
+		int count = 0;
+		int total = 0;
+		StringBuilder [] shardsReads = new StringBuilder[shards.getNumShards()];
 		try (FastqFileReader openFile = new FastqFileReader(filename);) {
 			Iterator<RawRead> reader = openFile.iterator();
 			while(reader.hasNext()) {
-				this.numTotalReads++;
+				total++;
 				RawRead read = reader.next();
-				String s = read.getSequenceString();
-				if(DEF_START + kmerLength>s.length()) continue;
-				String prefix = s.substring(DEF_START,DEF_START + kmerLength);
-				if(!DNASequence.isDNA(prefix)) continue;
+				String prefix = extractPrefix(read.getSequenceString());
+				if(prefix==null) continue;
 				Integer clusterId = kmersMap.getCluster(new DNAShortKmer(prefix));
 				if(clusterId==null) {
-					this.numUnclusteredReadsI++;
 					unmatchedReads++;
 					continue;
 				}
-				clusterSizes[clusterId]++;
-				if(clusterSizes[clusterId]<=maxClusterDepth) {
-					clusteredReadsCache.addSingleRead(clusterId, new RawRead(sampleId+READID_SEPARATOR+clusterId+READID_SEPARATOR+read.getName(), s, read.getQualityScores()));
+				if(clusterSizes.incrementAndGet(clusterId)<=maxClusterDepth) {
+					StringBuilder shardReads = getShardReads(shardsReads, shards.getShard(clusterId));
+					appendClusteredRead(shardReads, sampleId, clusterId, 1, read);
 				}
-				if(clusteredReadsCache.getTotalReads()>=DEF_MAX_READS_IN_MEMORY) {
-					log.info("dumping reads");
-					clusteredReadsCache.dump(outPrefix);
+				count++;
+				if(count%READS_BATCH_SIZE==0) shards.write(shardsReads);
+			}
+			shards.write(shardsReads);
+		}
+		updateReadCounts(total, unmatchedReads);
+		log.info(Integer.toString(unmatchedReads) + " reads remained unmatched for file: " + filename);
+		log.info(Integer.toString(count) + " reads were succesfully matched for file: " + filename);
+	}
+	
+	/**
+	 * Clusters paired-end reads using the prefix of the first read. Both reads of each fragment are saved in the same cluster
+	 */
+	private void clusterReadsPairedEndFiles(String sampleId, String filename1, String filename2, ClusteredReadsShards shards) throws IOException {
+		int unmatchedReads = 0;
+		int count = 0;
+		int total = 0;
+		StringBuilder [] shardsReads = new StringBuilder[shards.getNumShards()];
+		try (FastqFileReader openFile1 = new FastqFileReader(filename1);
+			 FastqFileReader openFile2 = new FastqFileReader(filename2);) {
+			Iterator<RawRead> reader1 = openFile1.iterator();
+			Iterator<RawRead> reader2 = openFile2.iterator();
+			while(reader1.hasNext() && reader2.hasNext()) {
+				total++;
+				RawRead read1 = reader1.next();
+				RawRead read2 = reader2.next();
+				if(!getFragmentName(read1.getName()).equals(getFragmentName(read2.getName()))) throw new IOException("Read "+read1.getName()+" in file "+filename1+" does not match its mate "+read2.getName()+" in file "+filename2);
+				String prefix = extractPrefix(read1.getSequenceString());
+				if(prefix==null) continue;
+				Integer clusterId = kmersMap.getCluster(new DNAShortKmer(prefix));
+				if(clusterId==null) {
+					unmatchedReads++;
+					continue;
+				}
+				if(clusterSizes.incrementAndGet(clusterId)<=maxClusterDepth) {
+					StringBuilder shardReads = getShardReads(shardsReads, shards.getShard(clusterId));
+					appendClusteredRead(shardReads, sampleId, clusterId, 1, read1);
+					appendClusteredRead(shardReads, sampleId, clusterId, 2, read2);
 				}
 				count++;
+				if(count%READS_BATCH_SIZE==0) shards.write(shardsReads);
 			}
-			log.info(Integer.toString(unmatchedReads) + " reads remained unmatched for file: " + filename);
-			log.info(Integer.toString(count) + " reads were succesfully matched for file: " + filename);
+			if(reader1.hasNext() || reader2.hasNext()) throw new IOException("Files "+filename1+" and "+filename2+" have a different number of reads");
+			shards.write(shardsReads);
 		}
+		updateReadCounts(total, unmatchedReads);
+		log.info(Integer.toString(unmatchedReads) + " fragments remained unmatched for files: " + filename1 + " and " + filename2);
+		log.info(Integer.toString(count) + " fragments were succesfully matched for files: " + filename1 + " and " + filename2);
 	}
 	
-
-	private void clusterReadsPairedEndFiles(String sampleId, String filename1, String filename2, ClusteredReadsCache clusteredReadsCache) throws IOException {
-		// TODO Auto-generated method stub
-		return;
+	/**
+	 * @param readName Name of a paired-end read
+	 * @return String Name of the fragment removing the comments and the read number suffix (/1 or /2)
+	 */
+	private String getFragmentName(String readName) {
+		String answer = readName.split("\\s",2)[0];
+		if(answer.endsWith("/1") || answer.endsWith("/2")) answer = answer.substring(0,answer.length()-2);
+		return answer;
+	}
+	
+	private StringBuilder getShardReads(StringBuilder [] shardsReads, int shard) {
+		if(shardsReads[shard]==null) shardsReads[shard] = new StringBuilder();
+		return shardsReads[shard];
+	}
+	
+	private void appendClusteredRead(StringBuilder out, String sampleId, int clusterId, int readNumber, RawRead read) {
+		out.append("@").append(sampleId).append(READID_SEPARATOR).append(clusterId).append(READID_SEPARATOR).append(readNumber).append(READID_SEPARATOR).append(read.getName()).append("\n");
+		out.append(read.getCharacters()).append("\n+\n");
+		out.append(read.getQualityScores()).append("\n");
+	}
+	
+	private synchronized void updateReadCounts(int totalReads, int unclusteredReads) {
+		this.numTotalReads+=totalReads;
+		this.numUnclusteredReadsI+=unclusteredReads;
 	}
 	
 	public void callVariants(List<String> clusteredReadsFilenames) throws IOException, InterruptedException {
 		int numberOfFiles = clusteredReadsFilenames.size();
 
-		for(int size: this.clusterSizes) {
+		for(int i=0;i<clusterSizes.length();i++) {
+			int size = clusterSizes.get(i);
 			if(size>maxClusterDepth) {
 				this.numLargeClusters++;
 				this.numReadsLargeClusters += size;
@@ -446,10 +637,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 			}
 		}
 		
-		//process files in parallel
-		FastqFileReader [] readers = new FastqFileReader[numberOfFiles];
-		RawRead [] currentReads = new RawRead[numberOfFiles];
-		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+		final VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
 		VCFFileWriter writer = new VCFFileWriter ();
 		
 		// add samples to header
@@ -457,128 +645,94 @@ public class KmerPrefixReadsClusteringAlgorithm {
 			header.addSample(sample, false);
 		}
 		
-		Arrays.fill(currentReads, null);
-		List<Iterator<RawRead>> iterators = new ArrayList<>();
-		//Create pool manager and statistics
-		ThreadPoolManager poolManager = new ThreadPoolManager(numThreads, MAX_TASK_COUNT);
+		//process files in parallel. Records are written in the order of the files, which store consecutive clusters
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<List<VCFRecord>>> pendingFiles = new ArrayDeque<>();
+		Timer timer = new Timer();
 		try (PrintStream outVariants = new PrintStream(outPrefix+"_variants.vcf");
 				PrintStream memUsage = new PrintStream(outPrefix + "_memoryUsage.txt");) {
-			int numNotNull = 0;
-			int numCluster = 0;
-			
 			// save memory usage every 5 seconds
 			memUsage.println("Time(ms)\tMemoryUsage(MB)");
-			Timer timer = new Timer();
 			timer.schedule(new MemoryUsage(memUsage), 0, 5000);
 			
-			for(int i=0; i<numberOfFiles; i++) {
-				readers[i] = new FastqFileReader(clusteredReadsFilenames.get(i));
-				Iterator<RawRead> it = readers[i].iterator();
-				iterators.add(it);
-				if(it.hasNext()) {
-					currentReads[i] = it.next();
-					numNotNull++;
-				}
-			}
-			
 			// print header
 			writer.printHeader(header, outVariants);
 			log.info("Processing a total of " + numberOfFiles + " clustered files.");
-			while(numNotNull>0) {
-				
-				//gather reads next cluster
-				ReadCluster nextCluster = new ReadCluster(numCluster);
-				for(int i=0; i<numberOfFiles; i++) {
-					
-					//skip small clusters
-					if(this.clusterSizes[numCluster] < minClusterDepth) {
-						skipCluster(numCluster, iterators.get(i), currentReads, i);
+			for(final String filename:clusteredReadsFilenames) {
+				pendingFiles.add(pool.submit(new Callable<List<VCFRecord>>() {
+					@Override
+					public List<VCFRecord> call() throws IOException {
+						return callVariantsClusteredReadsFile(filename, header);
 					}
-					
-					//skip large clusters
-					else if(this.clusterSizes[numCluster] > maxClusterDepth) {
-						skipCluster(numCluster, iterators.get(i), currentReads, i);
-					}
-					
-					else {
-						addReadsToCluster(nextCluster, iterators.get(i), currentReads, i);
-					}
-					
-					if(currentReads[i]==null) numNotNull--;
+				}));
+				if(pendingFiles.size()>=2*numThreads) {
+					writer.printVCFRecords(waitTask(pendingFiles.poll(), "calling variants"), outVariants);
 				}
-				
-				//Adding new task to the list and starting the new task
-			    ProcessClusterVCFTask newTask = new ProcessClusterVCFTask(nextCluster, header, writer, this, outVariants);
-			    poolManager.queueTask(newTask);
-				
-				if(nextCluster.getClusterNumber()%10000 == 0) {
-					log.info("Queued cluster " + nextCluster.getClusterNumber());
-				}	
-				numCluster++;
 			}
-			
-			
-		} finally {
-			for(FastqFileReader reader:readers) {
-				if(reader!=null) reader.close();
+			while(!pendingFiles.isEmpty()) {
+				writer.printVCFRecords(waitTask(pendingFiles.poll(), "calling variants"), outVariants);
 			}
-			poolManager.terminatePool();
+		} finally {
+			timer.cancel();
+			pool.shutdownNow();
 		}
 	}
 	
-	private void skipCluster(Integer numCluster, Iterator<RawRead> iterator, 
-			RawRead[] currentReads, int i) throws IOException {
-		RawRead currentRead = currentReads[i];
-		
-		while(currentRead!=null) {
-			String readIdWithCluster = currentRead.getName();
-			String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				continue;
-			}
-			int currentReadCluster = Integer.parseInt(items[1]);
-			// TODO rename reads without cluster info
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+readIdWithCluster);
-			if(iterator.hasNext()) {
-				currentReads[i] = iterator.next();
-				currentRead = currentReads[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads[i] = null;
-				currentRead = null;				
+	/**
+	 * Loads the reads of the given file and calls the variants of each cluster having a depth within the limits
+	 * @param filename Name of the file with clustered reads
+	 * @param header Header of the output VCF file
+	 * @return List<VCFRecord> Records of the variants called within the clusters of the file sorted by cluster
+	 * @throws IOException If the file can not be read
+	 */
+	private List<VCFRecord> callVariantsClusteredReadsFile(String filename, VCFFileHeader header) throws IOException {
+		Map<Integer,List<ClusteredRead>> readsByCluster = new TreeMap<>();
+		try (FastqFileReader reader = new FastqFileReader(filename)) {
+			Iterator<RawRead> it = reader.iterator();
+			while(it.hasNext()) {
+				RawRead read = it.next();
+				String readIdWithCluster = read.getName();
+				String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR,4);
+				if(items.length < 4) throw new IOException("Read without cluster information "+readIdWithCluster+" found in file "+filename);
+				int clusterId = Integer.parseInt(items[1]);
+				int size = clusterSizes.get(clusterId);
+				//skip small and large clusters
+				if(size < minClusterDepth || size > maxClusterDepth) continue;
+				List<ClusteredRead> clusterReads = readsByCluster.get(clusterId);
+				if(clusterReads==null) {
+					clusterReads = new ArrayList<>();
+					readsByCluster.put(clusterId, clusterReads);
+				}
+				RawRead originalRead = new RawRead(items[3], read.getCharacters(), read.getQualityScores());
+				clusterReads.add(new ClusteredRead(items[0], sampleIndexes.get(items[0]), "2".equals(items[2]), originalRead));
 			}
 		}
-	}
-		
-	
-	private void addReadsToCluster(ReadCluster nextCluster, Iterator<RawRead> iterator, 
-			RawRead[] currentReads, int i) throws IOException {
-		
-		RawRead currentRead = currentReads[i];
-		int numCluster = nextCluster.getClusterNumber();
-		while(currentRead!=null) {
-			String readIdWithCluster = currentRead.getName();
-			String [] items = readIdWithCluster.split("\\"+READID_SEPARATOR);
-			if(items.length < 2) {
-				continue;
-			}
-			String sampleId = items[0];
-			int currentReadCluster = Integer.parseInt(items[1]);
-			// TODO rename reads without cluster info
-			if (currentReadCluster>numCluster) break;
-			else if (currentReadCluster<numCluster) throw new RuntimeException("Disorganized file. Current cluster: "+numCluster+" found: "+currentReadCluster+" in read. "+readIdWithCluster);
-			nextCluster.addRead(currentRead, sampleId);
-			if(iterator.hasNext()) {
-				currentReads[i] = iterator.next();
-				currentRead = currentReads[i];
-				
-			} else {
-				log.info("Done with file " + i + ".");
-				currentReads[i] = null;
-				currentRead = null;				
+		List<VCFRecord> records = new ArrayList<>();
+		for(Map.Entry<Integer,List<ClusteredRead>> entry:readsByCluster.entrySet()) {
+			List<ClusteredRead> clusterReads = entry.getValue();
+			//Keep the reads sorted by sample regardless of the order in which samples were clustered
+			Collections.sort(clusterReads);
+			ReadCluster nextCluster = new ReadCluster(entry.getKey());
+			for(ClusteredRead read:clusterReads) {
+				if(read.isSecondRead()) nextCluster.addSecondRead(read.getRead(), read.getSampleId());
+				else nextCluster.addRead(read.getRead(), read.getSampleId());
 			}
+			records.addAll(new ProcessClusterVCFTask(nextCluster, header, this).call());
+		}
+		log.info("Called variants for "+readsByCluster.size()+" clusters of file "+filename);
+		return records;
+	}
+	
+	private <T> T waitTask(Future<T> future, String taskDescription) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while "+taskDescription, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error "+taskDescription,cause);
 		}
 	}
 
@@ -600,7 +754,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 		}
 	}
 
-	public void countVariants(List<VCFRecord> generatedRecords) {
+	public synchronized void countVariants(List<VCFRecord> generatedRecords) {
 		if(generatedRecords.size()>0) {
 			numClustersWithCalledVariants++;
 			//TODO: Calculate well
@@ -653,67 +807,109 @@ class MemoryUsage extends TimerTask {
     
 }
 
-class ClusteredReadsCache {
-	private Map<Integer,List<RawRead>> clusteredReadsCache = new TreeMap<>();
-	private Map<Integer, Map<String, String>> clusterInfo = new TreeMap<>();
-	private int totalReads = 0;
-	private List<String> outFiles = new ArrayList<>();
-	
-	public void addSingleRead(int k, RawRead read) {
-		List<RawRead> readsClusterK = clusteredReadsCache.get(k);
-		if(readsClusterK==null) {
-			readsClusterK = new ArrayList<>();
-			clusteredReadsCache.put(k, readsClusterK);
-		}
-		readsClusterK.add(read);
-		totalReads++;
+class ClusteredRead implements Comparable<ClusteredRead> {
+	private String sampleId;
+	private int sampleIndex;
+	private boolean secondRead;
+	private RawRead read;
+	
+	public ClusteredRead(String sampleId, int sampleIndex, boolean secondRead, RawRead read) {
+		this.sampleId = sampleId;
+		this.sampleIndex = sampleIndex;
+		this.secondRead = secondRead;
+		this.read = read;
 	}
-	
-	public void addClusterInfo(int k, String key, String value) {
-		Map<String, String> info = clusterInfo.get(k);
-		if(clusterInfo == null) {
-			info = new HashMap<>();		
-		}
-		info.put(key, value);
+
+	public String getSampleId() {
+		return sampleId;
 	}
-	
-	public Map<String, String> getClusterInfo(int k) {
-		return clusterInfo.get(k);
+
+	public boolean isSecondRead() {
+		return secondRead;
 	}
+
+	public RawRead getRead() {
+		return read;
+	}
+
+	@Override
+	public int compareTo(ClusteredRead other) {
+		return Integer.compare(sampleIndex, other.sampleIndex);
+	}
+}
+
+/**
+ * Files storing the clustered reads. Each file stores the reads of a range of consecutive clusters
+ * and the reads of a cluster can be written concurrently from different samples
+ */
+class ClusteredReadsShards implements Closeable {
+	private List<String> filenames = new ArrayList<>();
+	private PrintStream [] outs;
+	private int [] firstClusters;
 	
-	public List<String> getClusteredReadFiles() {
-		return outFiles;
+	/**
+	 * Creates the files to store the clustered reads
+	 * @param outPrefix Prefix of the files
+	 * @param firstClusters First cluster stored in each file. It should start with zero and be sorted
+	 * @throws IOException If the files can not be created
+	 */
+	public ClusteredReadsShards(String outPrefix, int [] firstClusters) throws IOException {
+		this.firstClusters = firstClusters;
+		int numShards = firstClusters.length;
+		outs = new PrintStream[numShards];
+		try {
+			for(int i=0;i<numShards;i++) {
+				String filename = outPrefix+"_clusteredReads_"+i+".fastq.gz";
+				filenames.add(filename);
+				outs[i] = new PrintStream(new GZIPOutputStream(new FileOutputStream(filename)));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
 	}
 	
-	public List<RawRead> getClusterReads(int k) {
-		return clusteredReadsCache.get(k);
+	public int getNumShards() {
+		return outs.length;
 	}
 	
 	/**
-	 * @return the totalReads
+	 * @param clusterId Id of a cluster
+	 * @return int Index of the file storing the reads of the given cluster
 	 */
-	public int getTotalReads() {
-		return totalReads;
+	public int getShard(int clusterId) {
+		int idx = Arrays.binarySearch(firstClusters, clusterId);
+		if(idx<0) idx = -idx-2;
+		return idx;
+	}
+	
+	public List<String> getFilenames() {
+		return filenames;
 	}
 	
 	/**
-	 * Dumps the cache to the file with the given name and clears this cache
-	 * @param outPrefix prefix of the file to dump the cache
+	 * Writes the given reads and clears the buffers
+	 * @param shardsReads Reads to write in fastq format indexed by file
 	 */
-	public void dump(String outPrefix) throws IOException {
-		int number = outFiles.size();
-		String singleFilename = outPrefix+"_clusteredReads_"+number+".fastq.gz";
-		outFiles.add(singleFilename);
-		try (OutputStream os = new FileOutputStream(singleFilename);
-			 GZIPOutputStream gos = new GZIPOutputStream(os);
-			 PrintStream out = new PrintStream(gos);) {
-			for(List<RawRead> readsCluster:clusteredReadsCache.values()) {
-				for(RawRead read:readsCluster) {
-					read.save(out);
-				}
+	public void write(StringBuilder [] shardsReads) {
+		for(int i=0;i<shardsReads.length;i++) {
+			StringBuilder reads = shardsReads[i];
+			if(reads==null || reads.length()==0) continue;
+			synchronized (outs[i]) {
+				outs[i].append(reads);
 			}
+			reads.setLength(0);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for(int i=0;i<outs.length;i++) {
+			if(outs[i]==null) continue;
+			outs[i].close();
+			if(outs[i].checkError() && error==null) error = new IOException("Error writing clustered reads file "+filenames.get(i));
 		}
-		clusteredReadsCache.clear();
-		totalReads = 0;
+		if(error!=null) throw error;
 	}
 }
@@ -1,22 +1,18 @@
 package ngsep.gbs;
 
-import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.discovery.CountsHelper;
 import ngsep.discovery.PileupRecord;
 import ngsep.discovery.VariantDiscoverySNVQAlgorithm;
-import ngsep.discovery.VariantPileupListener;
-import ngsep.genome.ReferenceGenome;
 import ngsep.math.NumberArrays;
 import ngsep.sequences.DNASequence;
-import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.RawRead;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.CalledGenomicVariantImpl;
@@ -27,60 +23,35 @@ import ngsep.variants.GenomicVariantImpl;
 import ngsep.variants.SNV;
 import ngsep.variants.Sample;
 import ngsep.vcf.VCFFileHeader;
-import ngsep.vcf.VCFFileWriter;
 import ngsep.vcf.VCFRecord;
 
-public class ProcessClusterVCFTask extends Thread {
-	//Results
-	private boolean hasFinished = false;
+/**
+ * Calls and genotypes the variants of one read cluster
+ */
+public class ProcessClusterVCFTask implements Callable<List<VCFRecord>> {
 	
 	//Data
 	private ReadCluster readCluster;
 	private VCFFileHeader vcfFileHeader;
-	private VCFFileWriter vcfWriter;
-	private PrintStream outVariants;
-	private PrintStream outConsensus;
 	
 	private KmerPrefixReadsClusteringAlgorithm parent;
 	
 	
-	public ProcessClusterVCFTask(ReadCluster readCluster, VCFFileHeader vcfFileHeader, VCFFileWriter writer, KmerPrefixReadsClusteringAlgorithm parent, PrintStream outVariants) {
+	public ProcessClusterVCFTask(ReadCluster readCluster, VCFFileHeader vcfFileHeader, KmerPrefixReadsClusteringAlgorithm parent) {
 		this.readCluster = readCluster;
 		this.vcfFileHeader = vcfFileHeader;
-		this.vcfWriter = writer;
-		this.outVariants = outVariants;
 		this.parent = parent;
 	}
 	
 	/**
-	 * 
-	 * @return true if the task is finished, false otherwise
+	 * Generates the records of the variants of the cluster and updates the statistics of the parent process
+	 * @return List<VCFRecord> Records with the variants called for the cluster
 	 */
-	public boolean hasFinished() {
-		return hasFinished;
-	}
-	
 	@Override
-	public void run() {
+	public List<VCFRecord> call() {
 		List<VCFRecord> generatedRecords = generateRecordsForCluster();
-		
-		if (outConsensus != null) {
-			synchronized (outConsensus) {
-				generateConsensusFasta();
-			}
-		}
-		
-		//Writing synchronously to the centralized vcf writter
-		synchronized (vcfWriter) {
-			vcfWriter.printVCFRecords(generatedRecords, outVariants);
-		}
-		
-		//Writing synchronously to statistics
-		synchronized (parent) {
-			parent.countVariants(generatedRecords);
-		}
-		
-		hasFinished = true;
+		parent.countVariants(generatedRecords);
+		return generatedRecords;
 	}
 	
 	private List<VCFRecord> generateRecordsForCluster() {
@@ -89,28 +60,11 @@ public class ProcessClusterVCFTask extends Thread {
 		int clusterId = readCluster.getClusterNumber();
 		String refSeq = readCluster.getRefSeq();
 		String referenceId = Integer.toString(clusterId);
-		QualifiedSequence refQS = new QualifiedSequence(referenceId, refSeq);
-		ReferenceGenome singleSequenceGenome = new ReferenceGenome (refQS);
-		VariantPileupListener variantsDetector = new VariantPileupListener();
-		variantsDetector.setGenome(singleSequenceGenome);
 		
 		// For each read within the cluster create a ReadAlignment. Set characters and quality scores
-		List<RawRead> reads = readCluster.getReads();
-		List<String> sampleIds = readCluster.getSampleIds();
-		
-		for(int i=0;i<reads.size();i++) {
-			RawRead read = reads.get(i);
-			String sampleId = sampleIds.get(i);
-			int readLength = read.getLength();
-			String CIGARString = Integer.toString(readLength) + "M"; 
-			ReadAlignment readAlignment = new ReadAlignment(referenceId, 1, readLength, readLength, 0);
-			readAlignment.setQualityScores(read.getQualityScores());
-			readAlignment.setReadCharacters(read.getCharacters());
-			readAlignment.setReadName(read.getName());
-			readAlignment.setCigarString(CIGARString);
-			readAlignment.setReadGroup(sampleId);
-			readAlignments.add(readAlignment);	
-		}
+		addReadAlignments(readCluster.getReads(), readCluster.getSampleIds(), referenceId, 1, readAlignments);
+		// Second reads are aligned after the consensus of the first reads
+		addReadAlignments(readCluster.getSecondReads(), readCluster.getSecondReadsSampleIds(), referenceId, readCluster.getSecondReadsStart(), readAlignments);
 
 		// For each position in the representative sequence create a pileup record with cluster id as sequence name and position =i
 		for(int i=1; i<=refSeq.length(); i++) {
@@ -139,10 +93,22 @@ public class ProcessClusterVCFTask extends Thread {
 		return records;
 	}
 	
-	private void generateConsensusFasta() {
-		outConsensus.println(">Cluster_" + readCluster.getClusterNumber());
-		outConsensus.println(readCluster.getRefSeq());
+	private void addReadAlignments(List<RawRead> reads, List<String> sampleIds, String referenceId, int first, List<ReadAlignment> readAlignments) {
+		for(int i=0;i<reads.size();i++) {
+			RawRead read = reads.get(i);
+			String sampleId = sampleIds.get(i);
+			int readLength = read.getLength();
+			String CIGARString = Integer.toString(readLength) + "M"; 
+			ReadAlignment readAlignment = new ReadAlignment(referenceId, first, first+readLength-1, readLength, 0);
+			readAlignment.setQualityScores(read.getQualityScores());
+			readAlignment.setReadCharacters(read.getCharacters());
+			readAlignment.setReadName(read.getName());
+			readAlignment.setCigarString(CIGARString);
+			readAlignment.setReadGroup(sampleId);
+			readAlignments.add(readAlignment);	
+		}
 	}
+	
 	// From MultisampleVariantsDetector.java
 	private GenomicVariant findMultiallelicVariant(List<Sample> samples, PileupRecord clusterPileUp, char reference, String clusterNum, double h) {
 		
@@ -18,6 +18,9 @@ public class ReadCluster {
 	private boolean refSeqDone;
 	private List<RawRead> reads = new ArrayList<>();
 	private List<String> sampleIds = new ArrayList<>();
+	private List<RawRead> reads2 = new ArrayList<>();
+	private List<String> sampleIds2 = new ArrayList<>();
+	private int firstReadsConsensusLength = 0;
 	String refSeq = "";
 	
 	public ReadCluster(int clusterNumber)      
@@ -47,12 +50,33 @@ public class ReadCluster {
 		totalReads++;
 	}
 	
+	/**
+	 * Adds the second read of a paired-end fragment. The consensus of the second reads is appended
+	 * to the consensus of the first reads, keeping the second reads in the orientation in which they were sequenced
+	 * @param read Second read of the fragment
+	 * @param sampleId Id of the sample from which the fragment was sequenced
+	 */
+	public void addSecondRead(RawRead read, String sampleId) {
+		refSeqDone = false;
+		reads2.add(read);
+		sampleIds2.add(sampleId);
+	}
+	
 	private void calcRefSeq() {
-		this.refSeqTable = new int[this.longestRead][DNASequence.BASES_ARRAY.length];
-		this.refCharSeq = new char[this.longestRead];
-		for(RawRead read:reads) {
+		String consensus1 = calcConsensus(reads);
+		this.longestRead = consensus1.length();
+		this.firstReadsConsensusLength = consensus1.length();
+		this.refSeq = consensus1 + calcConsensus(reads2);
+		refSeqDone = true;
+	}
+	
+	private String calcConsensus(List<RawRead> clusterReads) {
+		int length = 0;
+		for(RawRead read:clusterReads) length = Math.max(length, read.getLength());
+		this.refSeqTable = new int[length][DNASequence.BASES_ARRAY.length];
+		this.refCharSeq = new char[length];
+		for(RawRead read:clusterReads) {
 			String s = read.getSequenceString();
-			if(longestRead<s.length()) longestRead = s.length();
 			for(int i=0; i<s.length(); i++) {
 				if(!DNASequence.isInAlphabeth(s.charAt(i))) {
 					continue;
@@ -61,7 +85,8 @@ public class ReadCluster {
 				refSeqTable[i][j]++;
 			}
 		}
-		for(int i = 0; i < this.longestRead; i++) {
+		StringBuilder consensus = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
 			int max = 0;
 			for(int j = 0; j < DNASequence.BASES_STRING.length(); j++) {
 				int next = refSeqTable[i][j];
@@ -69,9 +94,9 @@ public class ReadCluster {
 					this.refCharSeq[i] = DNASequence.BASES_STRING.charAt(j);
 					max = next;
 				}
-			} this.refSeq += this.refCharSeq[i];
+			} consensus.append(this.refCharSeq[i]);
 		}
-		refSeqDone = true;
+		return consensus.toString();
 	}
 	
 	public String getRefSeq() {
@@ -117,5 +142,27 @@ public class ReadCluster {
 		return sampleIds;
 	}
 	
+	/**
+	 * @return List<RawRead> second reads of the paired-end fragments of this cluster
+	 */
+	public List<RawRead> getSecondReads() {
+		return reads2;
+	}
+	
+	/**
+	 * @return List<String> sample ids of the second reads
+	 */
+	public List<String> getSecondReadsSampleIds() {
+		return sampleIds2;
+	}
+	
+	/**
+	 * @return int Position of the reference sequence in which the consensus of the second reads starts
+	 */
+	public int getSecondReadsStart() {
+		getRefSeq();
+		return firstReadsConsensusLength+1;
+	}
+	
 	
 }
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.util.List;
+
+/**
+ * Immutable index of the genomic regions of one sequence to find regions spanning a query in O(log n + k) time,
+ * where k is the number of regions spanning the query, regardless of the length of the regions.
+ * Regions are stored in arrays sorted by position. The arrays are traversed as an implicit balanced binary tree
+ * in which the node at index i has level equal to the number of trailing ones of i. Each node is augmented with
+ * the maximum last position of the regions within its subtree to discard subtrees that can not span the query
+ * @author Jorge Duitama
+ * @param <T> Type of the regions
+ */
+public class GenomicRegionIntervalIndex<T extends GenomicRegion> {
+	//Subtrees of this level or smaller are traversed sequentially
+	private static final int MAX_LEVEL_SCAN = 3;
+	private final Object [] regions;
+	private final int [] firsts;
+	private final int [] lasts;
+	private final int [] maxLasts;
+	private final int rootLevel;
+
+	/**
+	 * Creates an index for the given regions
+	 * @param sortedRegions Regions to index. All of them must be located in the same sequence and must be sorted
+	 * by GenomicRegionPositionComparator. The list is copied, so further changes to the list are not reflected in the index
+	 */
+	public GenomicRegionIntervalIndex(List<T> sortedRegions) {
+		int n = sortedRegions.size();
+		regions = sortedRegions.toArray();
+		firsts = new int [n];
+		lasts = new int [n];
+		maxLasts = new int [n];
+		for(int i=0;i<n;i++) {
+			GenomicRegion r = (GenomicRegion) regions[i];
+			firsts[i] = r.getFirst();
+			lasts[i] = r.getLast();
+			if(i>0 && firsts[i]<firsts[i-1]) throw new IllegalArgumentException("Regions to index are not sorted. Region at "+r.getSequenceName()+":"+r.getFirst()+" found after "+firsts[i-1]);
+		}
+		rootLevel = calculateMaxLasts();
+	}
+
+	/**
+	 * Calculates the maximum last position within the subtree of each node
+	 * @return int Level of the root
+	 */
+	private int calculateMaxLasts() {
+		int n = firsts.length;
+		if(n==0) return 0;
+		//Leaves are located at even indexes
+		int lastIndex = 0;
+		int lastMax = 0;
+		for(int i=0;i<n;i+=2) {
+			lastIndex = i;
+			lastMax = maxLasts[i] = lasts[i];
+		}
+		int level;
+		for(level=1;(1L<<level)<=n;level++) {
+			int halfSpan = 1<<(level-1);
+			int firstNode = (halfSpan<<1)-1;
+			int step = halfSpan<<2;
+			for(int i=firstNode;i<n;i+=step) {
+				int maxLeft = maxLasts[i-halfSpan];
+				//Right children out of range take the maximum of the last nodes of the array
+				int maxRight = (i+halfSpan<n)?maxLasts[i+halfSpan]:lastMax;
+				maxLasts[i] = Math.max(lasts[i], Math.max(maxLeft, maxRight));
+			}
+			//Update the maximum of the last nodes with the ancestor of the last node at this level
+			lastIndex = (((lastIndex>>level)&1)!=0)?lastIndex-halfSpan:lastIndex+halfSpan;
+			if(lastIndex<n && maxLasts[lastIndex]>lastMax) lastMax = maxLasts[lastIndex];
+		}
+		return level-1;
+	}
+
+	/**
+	 * @return int Number of regions in the index
+	 */
+	public int size() {
+		return firsts.length;
+	}
+
+	/**
+	 * Visits the regions spanning the given coordinates in the order of the index
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Object receiving the regions spanning the query
+	 * @return boolean false if the visitor stopped the query, true otherwise
+	 */
+	public boolean visitSpanningRegions(int first, int last, GenomicRegionVisitor<? super T> visitor) {
+		if(firsts.length==0) return true;
+		return visit((1<<rootLevel)-1, rootLevel, first, last, visitor);
+	}
+
+	/**
+	 * Tells if at least one region spans the given coordinates
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return boolean true if at least one region of the index spans the query
+	 */
+	public boolean hasSpanningRegions(int first, int last) {
+		return !visitSpanningRegions(first, last, STOP_VISITOR);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean visit(int node, int level, int first, int last, GenomicRegionVisitor<? super T> visitor) {
+		int n = firsts.length;
+		if(level<=MAX_LEVEL_SCAN) {
+			int start = (node>>level)<<level;
+			int end = Math.min(n, start+(1<<(level+1))-1);
+			for(int i=start;i<end && firsts[i]<=last;i++) {
+				if(lasts[i]>=first && !visitor.visit((T)regions[i])) return false;
+			}
+			return true;
+		}
+		int halfSpan = 1<<(level-1);
+		int left = node-halfSpan;
+		//Left children out of range can have valid nodes
+		if((left>=n || maxLasts[left]>=first) && !visit(left, level-1, first, last, visitor)) return false;
+		//Regions at the node and to the right start after the node
+		if(node>=n || firsts[node]>last) return true;
+		if(lasts[node]>=first && !visitor.visit((T)regions[node])) return false;
+		return visit(node+halfSpan, level-1, first, last, visitor);
+	}
+
+	private static final GenomicRegionVisitor<GenomicRegion> STOP_VISITOR = new GenomicRegionVisitor<GenomicRegion>() {
+		@Override
+		public boolean visit(GenomicRegion region) {
+			return false;
+		}
+	};
+}
@@ -26,17 +26,23 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
+/**
+ * Collection of genomic regions sorted by position.
+ * Methods that modify the collection are not thread safe. Queries, including the ones finding spanning regions,
+ * can be called concurrently from different threads as long as no thread modifies the collection at the same time
+ */
 public class GenomicRegionSortedCollection<T extends GenomicRegion> implements Collection<T> {
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private Map<Integer,List<T>> regionsMap = new HashMap<Integer, List<T>>();
-	private Map<Integer,List<T>> longRegionsMap = new HashMap<Integer, List<T>>();
+	//Indexes to find spanning regions. Indexes of modified sequences are removed and rebuilt on demand by concurrent queries
+	private Map<Integer,GenomicRegionIntervalIndex<T>> indexesMap = new ConcurrentHashMap<Integer, GenomicRegionIntervalIndex<T>>();
 	private int size = 0;
-	private int numSpanningLong = 15;
-	private boolean sorted = true;
+	private volatile boolean sorted = true;
 	
 	
 	public GenomicRegionSortedCollection () {
@@ -51,7 +57,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		this.sequences.addAll(sequences);
 		for(int i=0;i<this.sequences.size();i++) {	 
 			regionsMap.put(i, new ArrayList<T>());
-			longRegionsMap.put(i, new ArrayList<T>());
 		}
 	}
 	@Override
@@ -67,7 +72,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 			}
 			index = sequences.indexOf(seq.getName());
 			regionsMap.put(index, new ArrayList<T>());
-			longRegionsMap.put(index, new ArrayList<T>());
 		}
 		List<T> regions = regionsMap.get(index);
 		regions.add(e);
@@ -91,8 +95,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	public void clear() {
 		for(int index:regionsMap.keySet()) {
 			regionsMap.get(index).clear();
-			longRegionsMap.get(index).clear();
 		}
+		indexesMap.clear();
 		size = 0;
 		sorted = true;
 	}
@@ -125,9 +129,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		if(index<0) return false;
 		regions.remove(index);
 		size--;
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		index = GenomicRegionSortedCollection.indexOf (longRegions,gr);
-		if(index>=0) longRegions.remove(index);
+		indexesMap.remove(sequenceIndex);
 		return true;
 	}
 	@Override
@@ -151,11 +153,10 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		int remaining = n;
 		for(int i=0;i<sequences.size() && remaining > 0;i++) {
 			List<T> regions = regionsMap.get(i);
-			List<T> longRegions = longRegionsMap.get(i);
 			int nSeq = regions.size();
 			if(nSeq<=remaining) {
 				regions.clear();
-				longRegions.clear();
+				indexesMap.remove(i);
 				remaining -= nSeq;
 				size -= nSeq;
 			} else {
@@ -165,8 +166,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 				}
 				regions.clear();
 				regions.addAll(newRegions);
-				//Update long regions in the next sort
-				sorted = false;
+				indexesMap.remove(i);
 				size-=remaining;
 				remaining = 0;
 			}
@@ -182,40 +182,28 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		return removeAll(toRemove);
 	}
 	/**
-	 * Use this method to sort the collection again when the locations of the genomic regions are modified externally
+	 * Use this method to sort the collection again when the locations of the genomic regions are modified externally.
+	 * This method also builds the indexes to find spanning regions, so later queries do not need to build them
 	 */
 	public void forceSort() {
 		sorted = false;
 		sort();
+		for(int index:regionsMap.keySet()) getIndex(index);
 	}
 	private void sort() {
-		if(!sorted) {
+		if(sorted) return;
+		//Queries sort the collection if needed. Synchronization avoids sorting the same lists from different threads
+		synchronized (this) {
+			if(sorted) return;
 			//System.out.println("Sorting "+regionsForward.size()+" regions");
 			//if(regionsForward.size()>0) System.out.println("Type: "+regionsForward.get(0).getClass().getName());
 			for(int index:regionsMap.keySet()) {
 				List<T> regions = regionsMap.get(index);
 				Collections.sort(regions,GenomicRegionPositionComparator.getInstance());
-				List<T> longRegions = longRegionsMap.get(index);
-				longRegions.clear();
-				for(int i=0;i<regions.size();i++) {
-					T r = regions.get(i);
-		 			//if(i<50) System.out.println("Seqname: "+r.getSequenceName()+". Start: "+r.getStart()+" end:"+r.getEnd());
-					int j=i+1;
-					for(;j<regions.size() && j<=i+numSpanningLong;j++) {
-						GenomicRegion r2 = regions.get(j);
-						if(r2.getFirst() > r.getLast()) {
-							break;
-						}
-					}
-					if(j>i+numSpanningLong) {
-						longRegions.add(r);
-					}
-				}
-				
 			}
-			//System.out.println("Found "+longRegions.size()+" long regions");
+			indexesMap.clear();
+			sorted = true;
 		}
-		sorted = true;
 	}
 	
 	public QualifiedSequenceList getSequenceNames() {
@@ -241,41 +229,68 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		return findSpanningRegions(sequences.indexOf(sequenceName),first,last);
 	}
 	public GenomicRegionSortedCollection<T> findSpanningRegions(int sequenceIndex, int first, int last) {
-		GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
-		if(sequenceIndex <0 || sequenceIndex>sequences.size()) return answer;
-		sort();
-		GenomicRegionSpanComparator spanCmp = GenomicRegionSpanComparator.getInstance();
-		GenomicRegion dummyRegion = new GenomicRegionImpl(sequences.get(sequenceIndex).getName(), first, first);
-		List<T> regions = regionsMap.get(sequenceIndex);
-		int index = Collections.binarySearch(regions, dummyRegion,GenomicRegionPositionComparator.getInstance());
-		int indexStart = index;
-		if(index<0) {
-			index = -index-1;
-		}
-		indexStart = Math.max(0,index - numSpanningLong);
-		
-		for(int i=indexStart;i<regions.size();i++) {
-			T r = regions.get(i);
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0) {
-				answer.add(r);
-			} else if (cmp > 0) {
-				break;
+		final GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
+		visitSpanningRegions(sequenceIndex, first, last, new GenomicRegionVisitor<T>() {
+			@Override
+			public boolean visit(T region) {
+				return answer.add(region);
 			}
-		}
-		
-		//Look long regions
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		for(T r: longRegions) {
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0 && !answer.contains(r)) {
-				answer.add(r);
-			} else if (cmp >0) {
-				break;
-			}
-		}
+		});
 		return answer;
 	}
+	/**
+	 * Visits the regions spanning the given coordinates sorted by position without building a new collection
+	 * @param sequenceName Name of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Object receiving the regions spanning the query
+	 */
+	public void visitSpanningRegions(String sequenceName, int first, int last, GenomicRegionVisitor<? super T> visitor) {
+		visitSpanningRegions(sequences.indexOf(sequenceName), first, last, visitor);
+	}
+	/**
+	 * Visits the regions spanning the given coordinates sorted by position without building a new collection
+	 * @param sequenceIndex Index of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Object receiving the regions spanning the query
+	 */
+	public void visitSpanningRegions(int sequenceIndex, int first, int last, GenomicRegionVisitor<? super T> visitor) {
+		GenomicRegionIntervalIndex<T> index = getIndex(sequenceIndex);
+		if(index!=null) index.visitSpanningRegions(first, last, visitor);
+	}
+	/**
+	 * Tells if at least one region of this collection spans the given region
+	 * @param region Region to query
+	 * @return boolean true if at least one region spans the given region
+	 */
+	public boolean hasSpanningRegions(GenomicRegion region) {
+		return hasSpanningRegions(region.getSequenceName(), region.getFirst(), region.getLast());
+	}
+	/**
+	 * Tells if at least one region of this collection spans the given coordinates
+	 * @param sequenceName Name of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @return boolean true if at least one region spans the query
+	 */
+	public boolean hasSpanningRegions(String sequenceName, int first, int last) {
+		GenomicRegionIntervalIndex<T> index = getIndex(sequences.indexOf(sequenceName));
+		return index!=null && index.hasSpanningRegions(first, last);
+	}
+	/**
+	 * Returns the index of the regions of the given sequence, building it if the sequence was modified after the last query.
+	 * Indexes are built atomically, so concurrent queries build each index only once
+	 * @param sequenceIndex Index of the sequence
+	 * @return GenomicRegionIntervalIndex<T> Index of the regions in the sequence. Null if the sequence index is invalid
+	 */
+	private GenomicRegionIntervalIndex<T> getIndex(int sequenceIndex) {
+		if(sequenceIndex <0 || sequenceIndex>=sequences.size()) return null;
+		sort();
+		final List<T> regions = regionsMap.get(sequenceIndex);
+		if(regions==null) return null;
+		return indexesMap.computeIfAbsent(sequenceIndex, (i)->new GenomicRegionIntervalIndex<T>(regions));
+	}
 	
 	public List<T> asList() {
 		sort();
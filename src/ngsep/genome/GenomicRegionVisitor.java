@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+/**
+ * Receives the genomic regions found by a query to a collection of regions
+ * @author Jorge Duitama
+ * @param <T> Type of the regions to visit
+ */
+public interface GenomicRegionVisitor<T extends GenomicRegion> {
+	/**
+	 * Processes a region found by a query
+	 * @param region Region to process
+	 * @return boolean true if the query should continue, false to stop the query
+	 */
+	public boolean visit(T region);
+}
@@ -19,36 +19,44 @@
  *******************************************************************************/
 package ngsep.genome;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import ngsep.alignments.ReadAlignment;
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+import ngsep.sequences.BidirectionalFMIndex;
+import ngsep.sequences.BidirectionalFMInterval;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.FMIndexSingleSequence;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
 /**
- * FMIndex for reference genomes
+ * FMIndex for reference genomes. The index is saved in a versioned binary format in which
+ * the data of each sequence is stored as flat little-endian sections. Loading the index maps
+ * these sections in memory, so several processes using the same index share the page cache.
+ * Each sequence has a bidirectional index to support the calculation of super maximal exact matches
  * @author German Andrade
  * @author Jorge Duitama
  */
-public class ReferenceGenomeFMIndex implements Serializable {
+public class ReferenceGenomeFMIndex {
 	/**
-	 * Serial number
+	 * First bytes of a binary file storing a ReferenceGenomeFMIndex
 	 */
-	private static final long serialVersionUID = 5577026857894649939L;
+	public static final byte [] FILE_MAGIC = "NGSEPFMI".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Version of the binary format. It should be increased every time the layout of the file changes
+	 */
+	public static final int FORMAT_VERSION = 4;
 	private QualifiedSequenceList sequencesMetadata;
-	private Map<String,FMIndexSingleSequence> internalIndexes = new HashMap<>();
+	private Map<String,BidirectionalFMIndex> internalIndexes = new HashMap<>();
 	
 	public ReferenceGenomeFMIndex (ReferenceGenome genome) {
 		sequencesMetadata = genome.getSequencesMetadata();
@@ -58,39 +66,82 @@ public class ReferenceGenomeFMIndex implements Serializable {
 		{
 			QualifiedSequence q = genome.getSequenceByIndex(i);
 			CharSequence seqChars = q.getCharacters();
-			FMIndexSingleSequence idxForward = new FMIndexSingleSequence(seqChars.toString().toUpperCase());
-			internalIndexes.put(q.getName(),idxForward);
+			BidirectionalFMIndex idx = new BidirectionalFMIndex(seqChars.toString().toUpperCase());
+			internalIndexes.put(q.getName(),idx);
 		}
 	}
 	
+	private ReferenceGenomeFMIndex () {
+		
+	}
+	
 	/**
-	 * Loads an instance of the FMIndex from a serialized binary file
-	 * @param filename Binary file with the serialization of an FMIndex
-	 * @return FMIndex serialized in the given file
-	 * @throws IOException If there were errors reading the file
+	 * Loads an instance of the FMIndex from a binary file created with the save method.
+	 * The internal indexes are memory mapped rather than deserialized
+	 * @param filename Binary file with an FMIndex
+	 * @return FMIndex stored in the given file
+	 * @throws IOException If there were errors reading the file or if the file format is not supported
 	 */
 	public static ReferenceGenomeFMIndex loadFromBinaries(String filename) throws IOException
 	{
-		ReferenceGenomeFMIndex fmIndex;
-		try (FileInputStream fis = new FileInputStream(filename);
-			 ObjectInputStream ois = new ObjectInputStream(fis);) {
-			fmIndex = (ReferenceGenomeFMIndex) ois.readObject();
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException("FMIndex class not found",e);
+		ReferenceGenomeFMIndex fmIndex = new ReferenceGenomeFMIndex();
+		fmIndex.sequencesMetadata = new QualifiedSequenceList();
+		try (MappedBinaryFileReader reader = new MappedBinaryFileReader(filename)) {
+			if(reader.size()<FILE_MAGIC.length+4) throw new IOException("File "+filename+" is not a valid FM-index file");
+			byte [] magic = reader.readBytes(FILE_MAGIC.length);
+			if(!Arrays.equals(magic, FILE_MAGIC)) throw new IOException("File "+filename+" is not a valid FM-index file. Indexes created with older versions must be rebuilt with the GenomeIndexer command");
+			int version = reader.readInt();
+			if(version!=FORMAT_VERSION) throw new IOException("Unsupported version "+version+" of FM-index file "+filename+". Expected version: "+FORMAT_VERSION+". Rebuild the index with the GenomeIndexer command");
+			int n = reader.readInt();
+			long [] offsets = new long[n];
+			for(int i=0;i<n;i++) {
+				String name = reader.readString();
+				int length = reader.readInt();
+				offsets[i] = reader.readLong();
+				QualifiedSequence seq = new QualifiedSequence(name);
+				seq.setLength(length);
+				fmIndex.sequencesMetadata.add(seq);
+			}
+			for(int i=0;i<n;i++) {
+				reader.seek(offsets[i]);
+				BidirectionalFMIndex idx = BidirectionalFMIndex.load(reader);
+				fmIndex.internalIndexes.put(fmIndex.sequencesMetadata.get(i).getName(), idx);
+			}
 		}
+		fmIndex.sequencesMetadata.setAllowChanges(false);
 		return fmIndex;
 	}
 	
 	/**
-	 * Saves this FM-Index as a serializable object
-	 * @param filename
-	 * @throws IOException
+	 * Saves this FM-Index in binary format. The file starts with a header including the
+	 * version of the format and the names, lengths and offsets of the indexed sequences.
+	 * The data of each sequence follows as flat little-endian sections
+	 * @param filename Name of the file to write
+	 * @throws IOException If the file can not be written
 	 */
 	public void save (String filename) throws IOException 
 	{
-		try (FileOutputStream fos = new FileOutputStream( filename );
-			 ObjectOutputStream oos = new ObjectOutputStream( fos );) {
-			oos.writeObject( this );
+		int n = sequencesMetadata.size();
+		long [] offsetPositions = new long[n];
+		try (BinaryFileWriter writer = new BinaryFileWriter(filename)) {
+			writer.writeBytes(FILE_MAGIC);
+			writer.writeInt(FORMAT_VERSION);
+			writer.writeInt(n);
+			for(int i=0;i<n;i++) {
+				QualifiedSequence seq = sequencesMetadata.get(i);
+				writer.writeString(seq.getName());
+				writer.writeInt(seq.getLength());
+				offsetPositions[i] = writer.getPosition();
+				//Offset of the index. Filled after writing the index
+				writer.writeLong(0);
+			}
+			writer.align();
+			for(int i=0;i<n;i++) {
+				BidirectionalFMIndex idx = internalIndexes.get(sequencesMetadata.get(i).getName());
+				long offset = writer.getPosition();
+				idx.save(writer);
+				writer.writeLongAt(offsetPositions[i], offset);
+			}
 		}
 	}
 	/**
@@ -130,7 +181,7 @@ public class ReferenceGenomeFMIndex implements Serializable {
 		int lq = searchUp.length();
 		for (String seqName:internalIndexes.keySet()) 
 		{
-			FMIndexSingleSequence idxSeq = internalIndexes.get(seqName);
+			FMIndexSingleSequence idxSeq = internalIndexes.get(seqName).getForwardIndex();
 			Set<Integer> matches = idxSeq.search(searchUp);
 			//System.out.println("Search: "+searchUp+" matches: "+matches);
 			for (int internalPosMatch:matches) 
@@ -145,7 +196,7 @@ public class ReferenceGenomeFMIndex implements Serializable {
 			searchUp = DNAMaskedSequence.getReverseComplement(searchUp);
 			for (String seqName:internalIndexes.keySet()) 
 			{
-				FMIndexSingleSequence idxSeq = internalIndexes.get(seqName);
+				FMIndexSingleSequence idxSeq = internalIndexes.get(seqName).getForwardIndex();
 				Set<Integer> matches = idxSeq.search(searchUp);
 				for (int internalPosMatch:matches) 
 				{
@@ -158,6 +209,54 @@ public class ReferenceGenomeFMIndex implements Serializable {
 		return alignments;
 	}
 	
+	/**
+	 * Calculates the super maximal exact matches (SMEMs) between the given sequence and each indexed sequence.
+	 * Matches having many occurrences are located only up to the given maximum number of hits,
+	 * to avoid spending time locating seeds in repetitive regions. Sequences in which no segment of length minLength
+	 * of the query has exact matches are skipped before calculating the SMEMs
+	 * @param searchSequence sequence to search. It should be in upper case
+	 * @param minLength Minimum length of the matches
+	 * @param maxHits Maximum number of occurrences to locate for each match in each indexed sequence
+	 * @return List<ReferenceGenomeSMEM> Occurrences of the matches in the indexed sequences
+	 */
+	public List<ReferenceGenomeSMEM> findSMEMs (CharSequence searchSequence, int minLength, int maxHits) {
+		List<ReferenceGenomeSMEM> answer = new ArrayList<>();
+		for (QualifiedSequence seq:sequencesMetadata) {
+			String seqName = seq.getName();
+			BidirectionalFMIndex idxSeq = internalIndexes.get(seqName);
+			if(!hasSegmentMatch(idxSeq.getForwardIndex(), searchSequence, minLength)) continue;
+			List<BidirectionalFMInterval> smems = idxSeq.findSMEMs(searchSequence, minLength);
+			for(BidirectionalFMInterval smem:smems) {
+				int length = smem.getQueryLength();
+				int [] positions = idxSeq.locate(smem, maxHits);
+				for(int internalPosMatch:positions) {
+					answer.add(new ReferenceGenomeSMEM(seqName, internalPosMatch+1, internalPosMatch+length, smem.getQueryStart()));
+				}
+			}
+		}
+		return answer;
+	}
+	
+	/**
+	 * Tells if at least one segment of the given length of the query has exact matches in the given index.
+	 * Segments are tested from left to right. If the backward search of a segment fails at position p,
+	 * every segment ending at or after the end of the current segment and including p fails,
+	 * so the next segment to test starts at p+1
+	 * @param idxSeq Index to search
+	 * @param searchSequence Query sequence
+	 * @param segmentLength Length of the segments to test
+	 * @return boolean true if at least one segment of the query has exact matches
+	 */
+	private boolean hasSegmentMatch(FMIndexSingleSequence idxSeq, CharSequence searchSequence, int segmentLength) {
+		int n = searchSequence.length();
+		for(int end=segmentLength;end<=n;) {
+			int start = idxSeq.getMatchStart(searchSequence, end-segmentLength, end);
+			if(start==end-segmentLength) return true;
+			end = start+segmentLength;
+		}
+		return false;
+	}
+	
 	/**
 	 * Return the subsequence of the indexed sequence between the given genomic coordinates
 	 * @param sequenceName Name of the sequence to search
@@ -166,9 +265,9 @@ public class ReferenceGenomeFMIndex implements Serializable {
 	 * @return CharSequence segment of the given sequence between the given coordinates
 	 */
 	public CharSequence getSequence (String sequenceName, int first, int last) {
-		FMIndexSingleSequence idxSeq = internalIndexes.get(sequenceName);
+		BidirectionalFMIndex idxSeq = internalIndexes.get(sequenceName);
 		if(idxSeq==null) return null;
-		CharSequence seq = idxSeq.getSequence(first-1, last);
+		CharSequence seq = idxSeq.getForwardIndex().getSequence(first-1, last);
 		return seq;
 	}
 	
@@ -185,7 +284,7 @@ public class ReferenceGenomeFMIndex implements Serializable {
 	}
 
 	public boolean isValidAlignment(String sequenceName,int last) {
-		FMIndexSingleSequence internalIndex = internalIndexes.get(sequenceName);
+		BidirectionalFMIndex internalIndex = internalIndexes.get(sequenceName);
 		if(internalIndex == null) return false;
 		return internalIndex.getSequenceLength()>=last;
 	}
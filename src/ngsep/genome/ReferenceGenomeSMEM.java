@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+/**
+ * Occurrence in a reference genome of a super maximal exact match (SMEM) of a query sequence
+ * @author Jorge Duitama
+ */
+public class ReferenceGenomeSMEM extends GenomicRegionImpl {
+	private int queryStart;
+	
+	/**
+	 * Creates a new occurrence of a match
+	 * @param sequenceName Name of the reference sequence
+	 * @param first First position of the occurrence in the reference sequence (1-based)
+	 * @param last Last position of the occurrence in the reference sequence (1-based)
+	 * @param queryStart Start of the match within the query sequence (0-based)
+	 */
+	public ReferenceGenomeSMEM(String sequenceName, int first, int last, int queryStart) {
+		super(sequenceName, first, last);
+		this.queryStart = queryStart;
+	}
+
+	/**
+	 * @return int Start of the match within the query sequence (0-based)
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+}
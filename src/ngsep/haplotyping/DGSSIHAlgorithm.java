@@ -72,10 +72,11 @@ public class DGSSIHAlgorithm implements SIHAlgorithm {
 		for(int h=0;h<n-1;h++) {
 			int maxAbsScore =0;
 			int maxScore =0;
+			HaplotypeFragment packedHap = new HaplotypeFragment(0, hap);
 			//Find the best next fragment
 			for(int i=0;i<n;i++) {
 				if(!assigned[i]) {
-					int score = b.getHamming2(hap,i);
+					int score = b.getHamming2(packedHap,i);
 					int absScore = Math.abs(score);
 					if(absScore > maxAbsScore) {
 						maxAbsScore = absScore;
@@ -110,8 +111,9 @@ public class DGSSIHAlgorithm implements SIHAlgorithm {
 	}
 	private void updateCut(HaplotypeBlock b, byte [] haplotype) {
 		int n = b.getNumFragments();
+		HaplotypeFragment packedHaplotype = new HaplotypeFragment(0, haplotype);
 		for(int i=0;i<n;i++) {
-			int score = b.getHamming2(haplotype,i);
+			int score = b.getHamming2(packedHaplotype,i);
 			if(score != 0) {
 				cut[i] = score > 0;
 			}
@@ -288,6 +288,8 @@ public class GenHapSIHAlgorithm implements SIHAlgorithm
 	 */
 	private void calculateFitness() 
 	{ 
+		HaplotypeFragment packedHaplotype0 = new HaplotypeFragment(0, haplotype0);
+		HaplotypeFragment packedHaplotype1 = new HaplotypeFragment(0, haplotype1);
 		for (int j = 0; j<cutsPoblations.size();j++)
 		{
 			boolean [] cutActual = cutsPoblations.get(j);
@@ -296,11 +298,11 @@ public class GenHapSIHAlgorithm implements SIHAlgorithm
 			{
 				if(cutActual[i])
 				{
-					fitnessValue+=block.getHamming2(haplotype0, i);
+					fitnessValue+=block.getHamming2(packedHaplotype0, i);
 				}
 				else
 				{
-					fitnessValue+=block.getHamming2(haplotype1, i);
+					fitnessValue+=block.getHamming2(packedHaplotype1, i);
 
 				}
 			}
@@ -353,12 +355,13 @@ public class GenHapSIHAlgorithm implements SIHAlgorithm
 		{
 			int maxAbsScore =0;
 			int maxScore =0;
+			HaplotypeFragment packedHap = new HaplotypeFragment(0, hap);
 			//Find the best next fragment
 			for(int i=0;i<n;i++) 
 			{
 				if(!assigned[i]) 
 				{
-					int score = b.getHamming2(hap,i);
+					int score = b.getHamming2(packedHap,i);
 					int absScore = Math.abs(score);
 					if(absScore > maxAbsScore)
 					{
@@ -410,12 +413,13 @@ public class GenHapSIHAlgorithm implements SIHAlgorithm
 		{
 			int maxAbsScore =0;
 			int maxScore =0;
+			HaplotypeFragment packedHap = new HaplotypeFragment(0, hap);
 			//Find the best next fragment
 			for(int i=0;i<n;i++)
 			{
 				if(!assigned[i])
 				{
-					int score = b.getHamming2(hap,i);
+					int score = b.getHamming2(packedHap,i);
 					int absScore = Math.abs(score);
 					if(absScore > maxAbsScore) 
 					{
@@ -95,7 +95,7 @@ public class GroupsSIHAlgorithm implements SIHAlgorithm
 	{
 		// TODO Auto-generated method stub
 		HaplotypeFragment f= block.getHaplotypeFragment(fragmentMaxId);
-		int columns = f.getCalls().length;
+		int columns = f.getLength();
 
 
 
@@ -179,12 +179,13 @@ public class GroupsSIHAlgorithm implements SIHAlgorithm
 		{
 			int maxAbsScore =0;
 			int maxScore =0;
+			HaplotypeFragment packedHap = new HaplotypeFragment(0, hap);
 			//Find the best next fragment
 			for(int i=0;i<n;i++) 
 			{
 				if(!assigned[i]) 
 				{
-					int score = b.getHamming2(hap,i);
+					int score = b.getHamming2(packedHap,i);
 					int absScore = Math.abs(score);
 					if(absScore > maxAbsScore)
 					{
@@ -50,6 +50,11 @@ public class HaplotypeBlock
 	 * Indicates if the matrix is already sorted
 	 */
 	private boolean sorted = true;
+	
+	/**
+	 * Buffer to compare fragments
+	 */
+	private int [] counts = new int[2];
 
 	
 	/**
@@ -120,14 +125,8 @@ public class HaplotypeBlock
 	public int getHammingDistance(int row1, int row2) 
 	{
 		sort();
-		int score = 0;
-		int lastColRow1 = getLastColumn(row1);
-		for(int i = getFirstColumn(row2) ; i <=lastColRow1 ; i++) {
-			byte allele1 = getAllele(row1, i);
-			byte allele2 = getAllele(row2, i);
-			score+=getHammingScore(allele1, allele2, false);
-		}	
-		return score;
+		matrix.get(row1).compare(matrix.get(row2), counts);
+		return counts[1];
 	}
 	
 	/**
@@ -141,15 +140,9 @@ public class HaplotypeBlock
 	public int getHamming2(int row1, int row2)
 	{
 		sort();
-		int score = 0;
-		int lastColRow1 = getLastColumn(row1);
-		for(int i = getFirstColumn(row2) ; i <=lastColRow1 ; i++) 
-		{
-			byte allele1 = getAllele(row1, i);
-			byte allele2 = getAllele(row2, i);
-			score+=getHammingScore(allele1, allele2, true);
-		}
-		return score;
+		matrix.get(row1).compare(matrix.get(row2), counts);
+		//Different calls minus equal calls
+		return 2*counts[1] - counts[0];
 	}
 	
 	/**
@@ -163,35 +156,39 @@ public class HaplotypeBlock
 	public int getHamming2(byte [] haplotype, int row)
 	{
 		sort();
+		HaplotypeFragment fragment = matrix.get(row);
 		int score = 0;
-		int lastColRow = getLastColumn(row);
-		for(int j = getFirstColumn(row) ; j <=lastColRow ; j++) {
-			byte allele1 = haplotype[j];
-			byte allele2 = getAllele(row, j);
-			score+=getHammingScore(allele1, allele2, true);
+		int firstColumn = fragment.getFirstColumn();
+		int lastColumn = fragment.getLastColumn();
+		for(int column = firstColumn ; column <=lastColumn ; column+=64) {
+			long called = fragment.getCalledBits(column);
+			long alternative = fragment.getAlternativeBits(column);
+			//Visit only the columns with calls
+			while(called!=0) {
+				int i = Long.numberOfTrailingZeros(called);
+				called &= called-1;
+				byte allele1 = haplotype[column+i];
+				if(allele1 == CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+				byte allele2 = ((alternative >>> i) & 1)!=0?CalledGenomicVariant.ALLELE_ALTERNATIVE:CalledGenomicVariant.ALLELE_REFERENCE;
+				score+=(allele1 != allele2)?1:-1;
+			}
 		}
 		return score;
 	}
 	
 	/**
-	 * Calculates the hamming score of two alleles
-	 * @param allele1
-	 * @param allele2
-	 * @param type2
-	 * @return
+	 * Calculates the hamming2 score of a haplotype packed as a fragment against a fragment of this block
+	 * Equivalent to getHamming2(byte[],int) but compares 64 columns at a time.
+	 * <b> pre: </b> The matrix of fragments has been initialized.
+	 * @param haplotype packed as a fragment starting at column zero. Undecided calls are ignored
+	 * @param row of the matrix to calculate the score
+	 * @return int Modified hamming distance score
 	 */
-	private int getHammingScore (byte allele1, byte allele2, boolean type2) 
+	public int getHamming2(HaplotypeFragment haplotype, int row)
 	{
-		if(allele1 != CalledGenomicVariant.ALLELE_UNDECIDED && allele2!= CalledGenomicVariant.ALLELE_UNDECIDED) {
-			if( allele1 != allele2)
-			{
-				return 1;
-			} else if(type2)
-			{
-				return -1;
-			}
-		}
-		return 0;
+		sort();
+		haplotype.compare(matrix.get(row), counts);
+		return 2*counts[1] - counts[0];
 	}
 	
 	/**
@@ -253,19 +250,16 @@ public class HaplotypeBlock
 
 	/**
 	 * Obtains the calls that are in a column of the Haplotype Block 
-	 * @param j
-	 * @return
+	 * @param j column
+	 * @param column Array to store the call of each fragment. Its length must be at least the number of fragments
 	 */
-	public ArrayList<Byte> getColumn(int j)
+	public void getColumn(int j, byte [] column)
 	{
-		ArrayList<Byte> column = new ArrayList<Byte>();
+		sort();
 		for(int i =0; i<matrix.size();i++)
 		{
-		column.add(getAllele(i, j));
+			column[i] = matrix.get(i).getCall(j);
 		}
-		
-		return column;
-		
 	}
 	
 	/**
@@ -284,17 +278,8 @@ public class HaplotypeBlock
 	 */
 	public int getFragmentCalls(int row) 
 	{
-		int firstJ = getFirstColumn(row);
-		int lastJ = getLastColumn(row);
-		int count = 0;
-		for(int j=firstJ;j<=lastJ;j++)
-		{
-			if(getAllele(row, j)!=CalledGenomicVariant.ALLELE_UNDECIDED) 
-			{
-				count++;
-			}
-		}
-		return count;
+		sort();
+		return matrix.get(row).getNumCalls();
 	}
 	
 	/**
@@ -337,6 +322,36 @@ public class HaplotypeBlock
 		}
 	}
 	
+	/**
+	 * Splits this block into blocks of fragments connected through overlapping columns.
+	 * Each new block includes only the variants from the first to the last column covered
+	 * by its fragments. Variants not covered by any fragment are not included in any block
+	 * @return List<HaplotypeBlock> Connected blocks sorted by first column
+	 */
+	public List<HaplotypeBlock> splitConnectedBlocks()
+	{
+		sort();
+		List<HaplotypeBlock> answer = new ArrayList<HaplotypeBlock>();
+		int start = 0;
+		while(start<matrix.size()) {
+			int firstColumn = matrix.get(start).getFirstColumn();
+			int lastColumn = matrix.get(start).getLastColumn();
+			int end = start+1;
+			while(end<matrix.size() && matrix.get(end).getFirstColumn()<=lastColumn) {
+				lastColumn = Math.max(lastColumn, matrix.get(end).getLastColumn());
+				end++;
+			}
+			HaplotypeBlock block = new HaplotypeBlock(new ArrayList<CalledGenomicVariant>(calls.subList(firstColumn, lastColumn+1)));
+			for(int i=start;i<end;i++) {
+				HaplotypeFragment fragment = matrix.get(i);
+				block.matrix.add(new HaplotypeFragment(fragment.getFirstColumn()-firstColumn, fragment));
+			}
+			answer.add(block);
+			start = end;
+		}
+		return answer;
+	}
+
 	/**
 	 * Deletes the fragment j of the haplotype block
 	 * @param j
@@ -21,6 +21,11 @@ package ngsep.haplotyping;
 
 import ngsep.variants.CalledGenomicVariant;
 
+/**
+ * Fragment of a haplotype block packed in two bit sets with one bit per column. The first bit set
+ * tells which columns have a call. The second tells which calls are the alternative allele.
+ * Scores between fragments are calculated comparing 64 columns at a time
+ */
 public class HaplotypeFragment {
 	
 	/**
@@ -29,19 +34,51 @@ public class HaplotypeFragment {
 	private int firstColumn;
 	
 	/**
-	 * Represents the list of calls of a fragment.
+	 * Number of columns from the first to the last column of the fragment
 	 */
-	private byte calls [];
+	private int length;
+	
+	/**
+	 * Bit i is set if the fragment has a call for column firstColumn+i
+	 */
+	private long [] calledBits;
+	
+	/**
+	 * Bit i is set if the call for column firstColumn+i is the alternative allele
+	 */
+	private long [] alternativeBits;
 	
 	/**
 	 * Constructor that initializes the attributes of a HaplotypeFragment with the given parameters.
+	 * Calls different from the reference allele and from the undecided allele are stored as alternative
 	 * @param firstColumn.
 	 * @param calls.
 	 */
 	public HaplotypeFragment(int firstColumn, byte[] calls) {
 		
 		this.firstColumn = firstColumn;
-		this.calls = calls;
+		this.length = calls.length;
+		int words = (length+63)/64;
+		calledBits = new long[words];
+		alternativeBits = new long[words];
+		for(int i=0;i<length;i++) {
+			byte call = calls[i];
+			if(call==CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+			calledBits[i>>>6] |= 1L << i;
+			if(call!=CalledGenomicVariant.ALLELE_REFERENCE) alternativeBits[i>>>6] |= 1L << i;
+		}
+	}
+	
+	/**
+	 * Creates a fragment with the calls of the given fragment starting at a different column
+	 * @param firstColumn of the new fragment
+	 * @param fragment with the calls. Bit sets are shared with the new fragment
+	 */
+	HaplotypeFragment(int firstColumn, HaplotypeFragment fragment) {
+		this.firstColumn = firstColumn;
+		this.length = fragment.length;
+		this.calledBits = fragment.calledBits;
+		this.alternativeBits = fragment.alternativeBits;
 	}
 
 	/**
@@ -53,11 +90,11 @@ public class HaplotypeFragment {
 	}
 	
 	/**
-	 * Returns the list of calls of fragment.
-	 * @return calls.
+	 * Returns the number of columns from the first to the last column of the fragment
+	 * @return int length of the fragment
 	 */
-	public byte[] getCalls() {
-		return calls;
+	public int getLength() {
+		return length;
 	}
 	
 	/**
@@ -67,17 +104,13 @@ public class HaplotypeFragment {
 	 */
 	public byte getCall(int column)
 	{
-		byte call = CalledGenomicVariant.ALLELE_UNDECIDED;
-		int posIni = getFirstColumn();
-		int length = calls.length;
-		int posLas = posIni + length - 1;
-		if (column >= posIni && column <= posLas)
-		{
-			int relativePosition = column - posIni;
-			call = calls[relativePosition];
-		}
-		return call;	
-		
+		int relativePosition = column - firstColumn;
+		if (relativePosition < 0 || relativePosition >= length) return CalledGenomicVariant.ALLELE_UNDECIDED;
+		long bit = 1L << relativePosition;
+		int word = relativePosition>>>6;
+		if((calledBits[word] & bit)==0) return CalledGenomicVariant.ALLELE_UNDECIDED;
+		if((alternativeBits[word] & bit)==0) return CalledGenomicVariant.ALLELE_REFERENCE;
+		return CalledGenomicVariant.ALLELE_ALTERNATIVE;
 	}
 	/**
 	 * Returns the last column of a fragment.
@@ -85,10 +118,66 @@ public class HaplotypeFragment {
 	 */
 	public int getLastColumn()
 	{
-		int lastColumn = getFirstColumn() + calls.length -1;
+		int lastColumn = getFirstColumn() + length -1;
 		return lastColumn;
 	}
 	
+	/**
+	 * Returns the number of columns with a call different from undecided
+	 * @return int number of calls
+	 */
+	public int getNumCalls() {
+		int count = 0;
+		for(int i=0;i<calledBits.length;i++) count+=Long.bitCount(calledBits[i]);
+		return count;
+	}
+	
+	/**
+	 * Returns the bits telling which of the 64 columns starting at the given column have a call
+	 * @param column First column. Must be at least the first column of the fragment
+	 * @return long Bit i is set if the column plus i has a call
+	 */
+	long getCalledBits(int column) {
+		return extractBits(calledBits, column-firstColumn);
+	}
 	
-
+	/**
+	 * Returns the bits telling which of the 64 columns starting at the given column have a call to the alternative allele
+	 * @param column First column. Must be at least the first column of the fragment
+	 * @return long Bit i is set if the column plus i has a call to the alternative allele
+	 */
+	long getAlternativeBits(int column) {
+		return extractBits(alternativeBits, column-firstColumn);
+	}
+	
+	/**
+	 * Counts the columns in which this fragment and the given fragment have calls
+	 * and the columns in which the calls are different
+	 * @param fragment to compare
+	 * @param counts Array of length at least 2 to store the counts. Columns with calls in both
+	 * fragments are stored in the first entry and columns with different calls in the second
+	 */
+	void compare(HaplotypeFragment fragment, int [] counts) {
+		int first = Math.max(firstColumn, fragment.firstColumn);
+		int last = Math.min(getLastColumn(), fragment.getLastColumn());
+		int both = 0;
+		int different = 0;
+		for(int column = first;column<=last;column+=64) {
+			long called = getCalledBits(column) & fragment.getCalledBits(column);
+			if(called==0) continue;
+			both+=Long.bitCount(called);
+			different+=Long.bitCount((getAlternativeBits(column) ^ fragment.getAlternativeBits(column)) & called);
+		}
+		counts[0] = both;
+		counts[1] = different;
+	}
+	
+	private static long extractBits(long [] words, int start) {
+		int word = start>>>6;
+		int offset = start & 63;
+		if(word>=words.length) return 0;
+		long answer = words[word] >>> offset;
+		if(offset>0 && word+1<words.length) answer |= words[word+1] << (64-offset);
+		return answer;
+	}
 }
@@ -2,15 +2,23 @@ package ngsep.haplotyping;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.main.CommandsDescriptor;
-import ngsep.math.NumberArrays;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.CalledSNV;
 import ngsep.variants.GenomicVariant;
@@ -20,11 +28,13 @@ import ngsep.vcf.VCFFileWriter;
 import ngsep.vcf.VCFRecord;
 
 public class SingleIndividualHaplotyper {
+	
+	public static final int DEF_NUM_THREADS = 1;
 
 	private String algorithmClassName = "ngsep.haplotyping.RefhapSIHAlgorithm";
-	private SIHAlgorithm algorithm;
 	
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	public static void main(String[] args) throws Exception {
 		SingleIndividualHaplotyper instance = new SingleIndividualHaplotyper();
@@ -56,36 +66,57 @@ public class SingleIndividualHaplotyper {
 		this.setMinMQ(minMQ.intValue());
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+	
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public void setAlgorithmName(String name) {
 		algorithmClassName = "ngsep.haplotyping."+name+"SIHAlgorithm";
 	}
 	/**
-	 * 
+	 * Phases the heterozygous calls of the given VCF. If the alignments file is indexed, each sequence is processed
+	 * in a separate task querying only the alignments overlapping heterozygous calls. Otherwise, the alignments
+	 * file is read sequentially. Connected blocks of fragments are phased in parallel
 	 * @param vcfFilename Input VCF
 	 * @param bamFilename Input BAM file
 	 * @param out Output VCF
 	 */
 	public void process(String vcfFilename, String bamFilename, PrintStream out) throws IOException {
-		loadAlgorithm();
+		//Fail early if the algorithm can not be loaded
+		createAlgorithm();
 		List<VCFRecord> records = new ArrayList<>();
 		List<CalledGenomicVariant> hetCalls = new ArrayList<>();
 		VCFFileReader inputVCF = null;
 		ReadAlignmentFileReader alnReader = null;
 		VCFFileWriter vcfWriter = new VCFFileWriter();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<PhasingSequence> pending = new ArrayDeque<>();
 		try
 		{
 			inputVCF = new VCFFileReader(vcfFilename);
 			VCFFileHeader header = inputVCF.getHeader();
 			vcfWriter = new VCFFileWriter();
 			vcfWriter.printHeader(header, out);
-			alnReader = new ReadAlignmentFileReader(bamFilename);
-			alnReader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_SEQUENCE);
-			alnReader.setMinMQ(minMQ);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			filterFlags+=ReadAlignment.FLAG_MULTIPLE_ALN;
-			alnReader.setFilterFlags(filterFlags);
-			Iterator<ReadAlignment> alnIt = alnReader.iterator();
-			ReadAlignment nextAln = alnIt.next();
+			alnReader = openAlignmentsFile(bamFilename);
+			//If the alignments file is indexed, alignments are queried for each sequence
+			Iterator<ReadAlignment> alnIt = null;
+			ReadAlignment nextAln = null;
+			if(!alnReader.isIndexed()) {
+				alnIt = alnReader.iterator();
+				if(alnIt.hasNext()) nextAln = alnIt.next();
+			}
 			String lastSeqName = null;
 			Iterator<VCFRecord> iter = inputVCF.iterator();
 			while(iter.hasNext())
@@ -93,11 +124,11 @@ public class SingleIndividualHaplotyper {
 				VCFRecord record = iter.next();
 				if(!record.getSequenceName().equals(lastSeqName)) {
 					if(records.size()>0) {
-						nextAln = phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
-						vcfWriter.printVCFRecords(records, out);
+						nextAln = submitSequence(pool, pending, lastSeqName, records, hetCalls, bamFilename, nextAln, alnIt);
+						while(pending.size()>2*numThreads) printSequence(pending.removeFirst(), vcfWriter, out);
 					}
-					records.clear();
-					hetCalls.clear();
+					records = new ArrayList<>();
+					hetCalls = new ArrayList<>();
 					lastSeqName = record.getSequenceName();
 				}
 				records.add(record);
@@ -110,100 +141,208 @@ public class SingleIndividualHaplotyper {
 				
 			}
 			if(records.size()>0) {
-				phaseSequenceVariants(lastSeqName, hetCalls, nextAln, alnIt);
-				vcfWriter.printVCFRecords(records, out);
+				submitSequence(pool, pending, lastSeqName, records, hetCalls, bamFilename, nextAln, alnIt);
 			}
+			while(pending.size()>0) printSequence(pending.removeFirst(), vcfWriter, out);
 		}
 		finally{
+			pool.shutdownNow();
 			if(inputVCF!=null) inputVCF.close();
 			if(alnReader!=null) alnReader.close();
 		}
 	}
-	private void loadAlgorithm() throws IOException {
+	private SIHAlgorithm createAlgorithm() throws IOException {
 		try {
-			algorithm = (SIHAlgorithm)Class.forName(algorithmClassName).newInstance();
+			return (SIHAlgorithm)Class.forName(algorithmClassName).newInstance();
 		} catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
 			throw new IOException("Can not load algorithm with classname: "+algorithmClassName,e);
 		}
-		
 	}
-	private ReadAlignment phaseSequenceVariants(String seqName, List<CalledGenomicVariant> hetCalls, ReadAlignment nextAln, Iterator<ReadAlignment> alnIt) {
-		System.err.println("Sequence: "+seqName+" Phasing "+hetCalls.size()+" het calls");
+	private ReadAlignmentFileReader openAlignmentsFile(String bamFilename) throws IOException {
+		ReadAlignmentFileReader alnReader = new ReadAlignmentFileReader(bamFilename);
+		alnReader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_SEQUENCE);
+		alnReader.setMinMQ(minMQ);
+		int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
+		filterFlags+=ReadAlignment.FLAG_MULTIPLE_ALN;
+		alnReader.setFilterFlags(filterFlags);
+		return alnReader;
+	}
+	/**
+	 * Submits the tasks to phase the heterozygous calls of a sequence
+	 * @param pool Executor running the tasks
+	 * @param pending Sequences waiting to be printed. The submitted sequence is added at the end
+	 * @param seqName Name of the sequence
+	 * @param records VCF records of the sequence
+	 * @param hetCalls Heterozygous calls within the sequence
+	 * @param bamFilename Alignments file. Queried in a separate reader if alnIt is null
+	 * @param nextAln Next alignment to process if the file is read sequentially
+	 * @param alnIt Iterator over the alignments file. Null if the alignments should be queried from the file
+	 * @return ReadAlignment First alignment after the sequence if the file is read sequentially, null otherwise
+	 */
+	private ReadAlignment submitSequence(final ExecutorService pool, Deque<PhasingSequence> pending, final String seqName, List<VCFRecord> records, final List<CalledGenomicVariant> hetCalls, final String bamFilename, ReadAlignment nextAln, Iterator<ReadAlignment> alnIt) {
+		Future<List<Future<HaplotypeBlock>>> blocks;
+		if(alnIt!=null) {
+			//Fragments are extracted in this thread because the alignments are read sequentially
+			final HaplotypeBlock block = new HaplotypeBlock(hetCalls);
+			nextAln = buildFragments(seqName, block, nextAln, alnIt);
+			blocks = pool.submit(new Callable<List<Future<HaplotypeBlock>>>() {
+				@Override
+				public List<Future<HaplotypeBlock>> call() {
+					return submitBlocks(pool, seqName, block);
+				}
+			});
+		} else {
+			nextAln = null;
+			blocks = pool.submit(new Callable<List<Future<HaplotypeBlock>>>() {
+				@Override
+				public List<Future<HaplotypeBlock>> call() throws IOException {
+					HaplotypeBlock block = new HaplotypeBlock(hetCalls);
+					//At least two heterozygous calls are needed to build fragments
+					if(hetCalls.size()>=2) {
+						try (ReadAlignmentFileReader alnReader = openAlignmentsFile(bamFilename)) {
+							Iterator<ReadAlignment> queryIt = alnReader.query(hetCalls);
+							if(queryIt.hasNext()) buildFragments(seqName, block, queryIt.next(), queryIt);
+						}
+					}
+					return submitBlocks(pool, seqName, block);
+				}
+			});
+		}
+		pending.add(new PhasingSequence(records, blocks));
+		return nextAln;
+	}
+	/**
+	 * Splits the given block into connected blocks and submits one task to phase each connected block
+	 * @param pool Executor running the tasks
+	 * @param seqName Name of the sequence
+	 * @param block with the fragments of the whole sequence
+	 * @return List<Future<HaplotypeBlock>> Tasks phasing the connected blocks
+	 */
+	private List<Future<HaplotypeBlock>> submitBlocks(ExecutorService pool, String seqName, HaplotypeBlock block) {
+		List<HaplotypeBlock> connectedBlocks = block.splitConnectedBlocks();
+		System.err.println("Phasing sequence "+seqName+" with "+block.getNumFragments()+" fragments in "+connectedBlocks.size()+" blocks");
+		List<Future<HaplotypeBlock>> answer = new ArrayList<>(connectedBlocks.size());
+		for(final HaplotypeBlock connectedBlock:connectedBlocks) {
+			answer.add(pool.submit(new Callable<HaplotypeBlock>() {
+				@Override
+				public HaplotypeBlock call() throws IOException {
+					SIHAlgorithm algorithm = createAlgorithm();
+					algorithm.buildHaplotype(connectedBlock);
+					connectedBlock.phaseCallsWithHaplotype();
+					return connectedBlock;
+				}
+			}));
+		}
+		return answer;
+	}
+	/**
+	 * Waits until the calls of the given sequence are phased and prints its records
+	 * @param sequence to print
+	 * @param vcfWriter Writer of VCF records
+	 * @param out Output VCF
+	 * @throws IOException If an error occurs phasing the calls
+	 */
+	private void printSequence(PhasingSequence sequence, VCFFileWriter vcfWriter, PrintStream out) throws IOException {
+		try {
+			for(Future<HaplotypeBlock> block:sequence.blocks.get()) {
+				block.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while phasing variants",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error phasing variants",cause);
+		}
+		vcfWriter.printVCFRecords(sequence.records, out);
+	}
+	/**
+	 * Builds the fragments of the given block from the alignments of a sequence
+	 * @param seqName Name of the sequence
+	 * @param block to add the fragments. Columns of the block are the heterozygous calls of the sequence
+	 * @param nextAln First alignment to process
+	 * @param alnIt Iterator over the remaining alignments
+	 * @return ReadAlignment First alignment after the sequence. Null if the iterator does not have more alignments
+	 */
+	private ReadAlignment buildFragments(String seqName, HaplotypeBlock block, ReadAlignment nextAln, Iterator<ReadAlignment> alnIt) {
+		int numHetCalls = block.getNumVariants();
+		System.err.println("Sequence: "+seqName+" Phasing "+numHetCalls+" het calls");
 		if(nextAln!=null) System.err.println("First alignment. "+nextAln.getSequenceName()+":"+nextAln.getFirst());
-		HaplotypeBlock block = new HaplotypeBlock(hetCalls);
+		byte [] calls = new byte[numHetCalls];
 		int i=0;
 		while(nextAln!=null && nextAln.getSequenceName().equals(seqName)) {
 			//Advance i
-			GenomicVariant firstHetVar = null;
-			while(i<hetCalls.size()) {
-				firstHetVar = hetCalls.get(i);
+			while(i<numHetCalls) {
+				GenomicVariant firstHetVar = block.getVariant(i);
 				if(GenomicRegionPositionComparator.getInstance().compare(firstHetVar, nextAln)>=0) {
 					break;
 				}
 				i++;
 			}
-			if(i==hetCalls.size()) {
-				//Try to go to next alignment
-				if(alnIt.hasNext()) nextAln = alnIt.next();
-				else nextAln = null;
-				continue;
-			}
-			//Extract relevant calls from alignment
-			int lastAln = nextAln.getLast();
-			List<Byte> calls = new ArrayList<>(50);
-			int realCalls = 0;
-			int first = i;
-			for(int j=i;j<hetCalls.size();j++) {
-				GenomicVariant var = hetCalls.get(j);
-				if(var.getFirst()>lastAln) {
-					break;
-				}
-				String [] alleles = var.getAlleles();
-				CharSequence callS = nextAln.getAlleleCall(var.getFirst(), var.getLast());
-				String call = null;
-				if(callS!=null) {
-					call = callS.toString();
-				}
-				if(alleles[0].equals(call)) {
-					calls.add(CalledGenomicVariant.ALLELE_REFERENCE);
-					realCalls++;
-				} else if(alleles[1].equals(call)) {
-					calls.add(CalledGenomicVariant.ALLELE_ALTERNATIVE);
-					realCalls++;
-				} else if (calls.size()==0) {
-					first=j+1;
-				} else {
-					calls.add(CalledGenomicVariant.ALLELE_UNDECIDED);
-				}
-			}
-			//Trim last undecided calls
-			for(int j=calls.size()-1;j>=0;j--) {
-				Byte call = calls.get(j);
-				if(call!=CalledGenomicVariant.ALLELE_UNDECIDED) {
-					break;
-				}
-				calls.remove(j);
-			}
-			
-			if(realCalls>1) {
-				block.addFragment (first,NumberArrays.toByteArray(calls));
-				if(block.getNumFragments()%1000==0) System.err.println("Added "+block.getNumFragments()+" fragments"+" calls last fragment: "+realCalls);
+			//Calls are extracted only from alignments spanning at least two heterozygous calls
+			if(i+1<numHetCalls && block.getVariant(i+1).getFirst()<=nextAln.getLast()) {
+				addFragment(block, i, nextAln, calls);
 			}
 			//Try to go to next alignment
 			if(alnIt.hasNext()) nextAln = alnIt.next();
 			else nextAln = null;
 		}
-		System.err.println("Phasing sequence "+seqName+" with "+block.getNumFragments()+" fragments");
 		if(nextAln!=null) System.err.println("First alignment for next sequence. "+nextAln.getSequenceName()+":"+nextAln.getFirst());
-		if(block.getNumFragments()>0) {
-			phaseBlockVariants (seqName, block,hetCalls);
+		return nextAln;
+	}
+	/**
+	 * Extracts the allele calls of the given alignment and adds a fragment to the block if at least two calls are found
+	 * @param block to add the fragment
+	 * @param i First column with a call starting at or after the alignment start
+	 * @param aln Alignment to extract the allele calls
+	 * @param calls Buffer to store the calls. Its length must be at least the number of variants of the block
+	 */
+	private void addFragment(HaplotypeBlock block, int i, ReadAlignment aln, byte [] calls) {
+		int lastAln = aln.getLast();
+		int n = 0;
+		int realCalls = 0;
+		int first = i;
+		for(int j=i;j<block.getNumVariants();j++) {
+			GenomicVariant var = block.getVariant(j);
+			if(var.getFirst()>lastAln) {
+				break;
+			}
+			String [] alleles = var.getAlleles();
+			CharSequence callS = aln.getAlleleCall(var.getFirst(), var.getLast());
+			String call = null;
+			if(callS!=null) {
+				call = callS.toString();
+			}
+			if(alleles[0].equals(call)) {
+				calls[n++] = CalledGenomicVariant.ALLELE_REFERENCE;
+				realCalls++;
+			} else if(alleles[1].equals(call)) {
+				calls[n++] = CalledGenomicVariant.ALLELE_ALTERNATIVE;
+				realCalls++;
+			} else if (n==0) {
+				first=j+1;
+			} else {
+				calls[n++] = CalledGenomicVariant.ALLELE_UNDECIDED;
+			}
 		}
+		//Trim last undecided calls
+		while(n>0 && calls[n-1]==CalledGenomicVariant.ALLELE_UNDECIDED) n--;
 		
-		return nextAln;
+		if(realCalls>1) {
+			block.addFragment (first,Arrays.copyOf(calls, n));
+			if(block.getNumFragments()%1000==0) System.err.println("Added "+block.getNumFragments()+" fragments"+" calls last fragment: "+realCalls);
+		}
 	}
-	private void phaseBlockVariants(String seqName, HaplotypeBlock block, List<CalledGenomicVariant> hetCalls) {
-		algorithm.buildHaplotype(block);
-		System.err.println("Phased sequence "+seqName+" with "+block.getNumFragments()+" fragments");
-		block.phaseCallsWithHaplotype();
+}
+/**
+ * Records of a sequence waiting for its heterozygous calls to be phased
+ */
+class PhasingSequence {
+	final List<VCFRecord> records;
+	final Future<List<Future<HaplotypeBlock>>> blocks;
+	PhasingSequence(List<VCFRecord> records, Future<List<Future<HaplotypeBlock>>> blocks) {
+		this.records = records;
+		this.blocks = blocks;
 	}
 }
@@ -19,7 +19,6 @@
  *******************************************************************************/
 package ngsep.hmm;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -32,11 +31,13 @@ public abstract class AbstractHMM implements HMM {
 	public static final int DEF_ITER_BAUM_WELCH = 20;
 	
 	private Logger log = Logger.getLogger(AbstractHMM.class.getName());
-	private Double [][] forwardLogs=new Double[0][0];
-	private Double [][] backwardLogs=new Double[0][0];
-	private Double [][] posteriorLogs=new Double[0][0];
-	private Double [][] viterbiLogs = new Double [0][0];
-	private int [][] viterbiBacktrace = new int [0][0];
+	//Buffers are kept per thread so that a trained model can be used concurrently by many threads
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
 	
 	public Logger getLog() {
 		return log;
@@ -47,240 +48,266 @@ public abstract class AbstractHMM implements HMM {
 	}
 	
 	@Override
-	public Double getEmission(int state, Object value, int step) {
+	public double getEmission(int state, Object value, int step) {
 		return getState(state).getEmission(value,step);
 	}
 	
 	@Override
-	public Double getStart(int state) {
+	public double getStart(int state) {
 		return getState(state).getLogStart();
 	}
-	@Override
-	public Double calculatePosteriorLogs(List<? extends Object> observations,Double[][] posteriorLogs) {
+	
+	/**
+	 * Calculates the emission log probabilities of the given observations for every state
+	 * @param observations List of observed values
+	 * @param emissionLogs Output flat matrix with as many rows as observations and as many columns as states
+	 */
+	public void calculateEmissionLogs(List<? extends Object> observations, double [] emissionLogs) {
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,false);
-		if(posteriorLogs.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriorLogs.length);
-		if(m>0 && posteriorLogs[0].length!=k) throw new IllegalArgumentException("Invalid columns of posterior logs. Expected: "+k+" Given: "+posteriorLogs[0].length);
-		Double logProb = calculateForward(observations,forwardLogs);
-		calculateBackward(observations,backwardLogs);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			for(int j=0;j<posteriorLogs[0].length;j++) {
-				Double f = forwardLogs[i][j];
-				Double b = backwardLogs[i][j];
-				Double e = getEmission(j, observations.get(i), i);
-				Double fTimesE = LogMath.logProduct(f,e);
-				posteriorLogs[i][j] = LogMath.logProduct(b, fTimesE);
-				if(i==posteriorLogs.length-1) logProb=LogMath.logSum(logProb, fTimesE);
+		int n = getNumStates();
+		checkLength(emissionLogs, m, n, "emission logs");
+		for(int i=0;i<m;i++) {
+			Object o = observations.get(i);
+			int row = i*n;
+			for(int j=0;j<n;j++) {
+				emissionLogs[row+j] = getEmission(j, o, i);
 			}
 		}
+	}
+	
+	@Override
+	public double calculatePosteriorLogs(List<? extends Object> observations,double[] posteriorLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		checkLength(posteriorLogs, m, n, "posterior logs");
+		double logProb = runForwardBackward(observations);
+		Buffers b = buffers.get();
+		for(int idx=0;idx<m*n;idx++) {
+			posteriorLogs[idx] = b.forwardLogs[idx]+b.backwardLogs[idx]+b.emissionLogs[idx];
+		}
 		return logProb;
 	}
-	protected Double [][] calculatePosteriorLogs (List<? extends Object> observations) {
+	/**
+	 * Calculates posterior log probabilities saving them in an internal array
+	 * @param observations List of observed values
+	 * @return double [] Internal flat matrix with posterior log probabilities with as many rows as observations and as many columns as states
+	 */
+	protected double [] calculatePosteriorLogs (List<? extends Object> observations) {
 		//Init arrays if not previously created to avoid reassignment of posteriorLogs cache attribute
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m,k,true);
-		calculatePosteriorLogs(observations,posteriorLogs);
-		return posteriorLogs;
+		int n = getNumStates();
+		Buffers b = initArrays(m,n,true);
+		calculatePosteriorLogs(observations,b.posteriorLogs);
+		return b.posteriorLogs;
 	}
 	
 
 	@Override
 	public void calculatePosteriors(List<? extends Object> observations, double[][] posteriors) {
-		int m = observations.size();
-		int k = getNumStates();
-		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriors.length);
-		if(m>0 && posteriors[0].length!=k) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+k+" Given: "+posteriors[0].length);
-		Double [][] posteriorLogs = calculatePosteriorLogs(observations);
-		for(int i=0;i<posteriorLogs.length;i++) {
-			//System.out.println("i: "+i+" observation: "+observations.get(i)+" posteriorLogs: "+posteriorLogs[i][0]+" "+posteriorLogs[i][1]);
-			LogMath.normalizeLogs(posteriorLogs[i]);
-			for(int j=0;j<posteriorLogs[i].length;j++) {
-				posteriors[i][j] = LogMath.power10(posteriorLogs[i][j]);
-			}
-		}
-	}
-
-	@Override
-	public Double calculateForward(List<? extends Object> observations, Double [][] forwardLogs) {
 		int m = observations.size();
 		int n = getNumStates();
-		if(forwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of forward logs. Expected: "+m+" Given: "+forwardLogs.length);
-		if(m>0 && forwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of forwardLogs. Expected: "+n+" Given: "+forwardLogs.length);
-		
-		//Array to precalculate forward times emission
-		Double [] fTimesE = new Double[n]; 
+		if(posteriors.length!=m) throw new IllegalArgumentException("Invalid rows of posterior logs. Expected: "+m+" Given: "+posteriors.length);
+		if(m>0 && posteriors[0].length!=n) throw new IllegalArgumentException("Invalid columns of posteriors. Expected: "+n+" Given: "+posteriors[0].length);
+		double [] posteriorLogs = calculatePosteriorLogs(observations);
 		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(fTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					fTimesE[k] = LogMath.logProduct(forwardLogs[i-1][k],e);
-				}
-			}
-			
+			int row = i*n;
+			LogMath.normalizeLogs(posteriorLogs, row, row+n);
 			for(int j=0;j<n;j++) {
-				if(lastO==null) forwardLogs[i][j] = getStart(j);
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					forwardLogs[i][j] = null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						forwardLogs[i][j]=LogMath.logSum(forwardLogs[i][j],LogMath.logProduct(fTimesE[k],t));
-					}
-				}
-			}	
+				posteriors[i][j] = Math.pow(10.0, posteriorLogs[row+j]);
+			}
 		}
-		//Calculate final probability
-		return getSequenceLogProb(observations, forwardLogs);
 	}
 	
 	/**
-	 * Method that recalculates forward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with forward probabilities with as many rows as observations and as many columns as states
+	 * Calculates emissions, forward and backward log probabilities of the given observations. Results are stored
+	 * in internal arrays that can be retrieved with getEmissionLogs, getForwardLogs and getBackwardLogs
+	 * @param observations List of observed values
+	 * @return double log10 of the probability of the data given the HMM
 	 */
-	protected Double [][] calculateForward (List<? extends Object> observations) {
+	protected double runForwardBackward(List<? extends Object> observations) {
 		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateForward(observations,forwardLogs);
-		return forwardLogs;
+		int n = getNumStates();
+		Buffers b = initArrays(m, n, false);
+		calculateEmissionLogs(observations, b.emissionLogs);
+		double logProb = calculateForward(m, b.emissionLogs, b.forwardLogs, b);
+		calculateBackward(m, b.emissionLogs, b.backwardLogs, b);
+		return logProb;
 	}
 	
 	/**
-	 * Calculates the total probability of the given observations
-	 * @param observations list of m observations
-	 * @param forwardLogs precalculated forward logs
-	 * @return Double log of the total probability of the sequence of observations
+	 * @return double [] Internal flat matrix with the emission log probabilities calculated in the last call to runForwardBackward
+	 * within the current thread
 	 */
-	protected Double getSequenceLogProb(List<? extends Object> observations, Double [][] forwardLogs) {
-		Double logProb = null;
-		int m = observations.size();
-		for(int j=0;j<forwardLogs[m-1].length;j++) {
-			Double f = forwardLogs[m-1][j];
-			Double e = getEmission(j, observations.get(m-1), m-1);
-			logProb=LogMath.logSum(logProb, LogMath.logProduct(f,e));
-		}
-		return logProb;
+	protected double[] getEmissionLogs() {
+		return buffers.get().emissionLogs;
+	}
+	/**
+	 * @return double [] Internal flat matrix with the forward log probabilities calculated in the last call to runForwardBackward
+	 * within the current thread
+	 */
+	protected double[] getForwardLogs() {
+		return buffers.get().forwardLogs;
+	}
+	/**
+	 * @return double [] Internal flat matrix with the backward log probabilities calculated in the last call to runForwardBackward
+	 * within the current thread
+	 */
+	protected double[] getBackwardLogs() {
+		return buffers.get().backwardLogs;
 	}
 
 	@Override
-	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs) {
+	public double calculateForward(List<? extends Object> observations, double [] forwardLogs) {
 		int m = observations.size();
 		int n = getNumStates();
-		
-		if(backwardLogs.length!=m) throw new IllegalArgumentException("Invalid rows of backwardLogs. Expected: "+m+" Given: "+backwardLogs.length);
-		if(m>0 && backwardLogs[0].length!=n) throw new IllegalArgumentException("Invalid columns of backwardLogs. Expected: "+n+" Given: "+backwardLogs.length);
-		
-		Double [] bTimesE = new Double[n]; 
-		for(int i=m-1;i>=0;i--) {
-			Object lastO = null;
-			if(i<m-1) {
-				lastO = observations.get(i+1);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i+1);
-					bTimesE[k] = LogMath.logProduct(backwardLogs[i+1][k],e);
-				}
+		checkLength(forwardLogs, m, n, "forward logs");
+		Buffers b = initArrays(m, n, false);
+		calculateEmissionLogs(observations, b.emissionLogs);
+		return calculateForward(m, b.emissionLogs, forwardLogs, b);
+	}
+	
+	/**
+	 * Calculates forward log probabilities from precalculated emission log probabilities
+	 * @param m Number of observations
+	 * @param emissionLogs Flat matrix with the emission log probabilities of the observations
+	 * @param forwardLogs Output flat matrix with forward log probabilities
+	 * @param b Buffers of the current thread
+	 * @return double log10 of the probability of the data given the HMM
+	 */
+	private double calculateForward(int m, double [] emissionLogs, double [] forwardLogs, Buffers b) {
+		int n = getNumStates();
+		if(m==0) return Double.NEGATIVE_INFINITY;
+		//Array to precalculate forward times emission
+		double [] fTimesE = b.stateBuffer;
+		double [] terms = b.termsBuffer;
+		for(int j=0;j<n;j++) forwardLogs[j] = getStart(j);
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) {
+				fTimesE[k] = forwardLogs[lastRow+k]+emissionLogs[lastRow+k];
 			}
 			for(int j=0;j<n;j++) {
-				if(lastO==null) backwardLogs[i][j] = (double) 0;
-				else {
-					//The sum of probabilities starts with zero which in logarithm is represented as null
-					backwardLogs[i][j]=null;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(j, k, i);
-						backwardLogs[i][j]=LogMath.logSum(backwardLogs[i][j],LogMath.logProduct(bTimesE[k],t));
-					}
+				for(int k=0;k<n;k++) {
+					terms[k] = fTimesE[k]+getTransition(k, j, i-1);
 				}
+				forwardLogs[row+j] = LogMath.logSumExp(terms, 0, n);
 			}	
 		}
+		//Calculate final probability
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n;j++) {
+			terms[j] = forwardLogs[lastRow+j]+emissionLogs[lastRow+j];
+		}
+		return LogMath.logSumExp(terms, 0, n);
+	}
+
+	@Override
+	public void calculateBackward(List<? extends Object> observations, double [] backwardLogs) {
+		int m = observations.size();
+		int n = getNumStates();
+		checkLength(backwardLogs, m, n, "backward logs");
+		Buffers b = initArrays(m, n, false);
+		calculateEmissionLogs(observations, b.emissionLogs);
+		calculateBackward(m, b.emissionLogs, backwardLogs, b);
 	}
 	
 	/**
-	 * Method that recalculates backward probabilities and returns the internal array where they get saved
-	 * @param observations
-	 * @return Double [][] array with backward probabilities with as many rows as observations and as many columns as states
+	 * Calculates backward log probabilities from precalculated emission log probabilities
+	 * @param m Number of observations
+	 * @param emissionLogs Flat matrix with the emission log probabilities of the observations
+	 * @param backwardLogs Output flat matrix with backward log probabilities
+	 * @param b Buffers of the current thread
 	 */
-	protected Double [][] calculateBackward (List<? extends Object> observations) {
-		int m = observations.size();
-		int k = getNumStates();
-		initArrays(m, k, true);
-		calculateBackward(observations, backwardLogs);
-		return backwardLogs;
+	private void calculateBackward(int m, double [] emissionLogs, double [] backwardLogs, Buffers b) {
+		int n = getNumStates();
+		if(m==0) return;
+		double [] bTimesE = b.stateBuffer;
+		double [] terms = b.termsBuffer;
+		int lastRow = (m-1)*n;
+		for(int j=0;j<n;j++) backwardLogs[lastRow+j] = 0;
+		for(int i=m-2;i>=0;i--) {
+			int nextRow = (i+1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) {
+				bTimesE[k] = backwardLogs[nextRow+k]+emissionLogs[nextRow+k];
+			}
+			for(int j=0;j<n;j++) {
+				for(int k=0;k<n;k++) {
+					terms[k] = bTimesE[k]+getTransition(j, k, i);
+				}
+				backwardLogs[row+j] = LogMath.logSumExp(terms, 0, n);
+			}	
+		}
 	}
 
 	@Override
-	public Double getViterbiPath(List<? extends Object> observations, int [] path) {
+	public double getViterbiPath(List<? extends Object> observations, int [] path) {
 		int m = observations.size();
 		int n = getNumStates();
-		initArraysViterbi(m, n);
+		if(m==0) return Double.NEGATIVE_INFINITY;
+		Buffers b = initArrays(m, n, false);
+		initArraysViterbi(b, m, n);
+		double [] emissionLogs = b.emissionLogs;
+		double [] viterbiLogs = b.viterbiLogs;
+		int [] viterbiBacktrace = b.viterbiBacktrace;
+		calculateEmissionLogs(observations, emissionLogs);
 		//Array to precalculate viterbi times emission
-		Double [] vTimesE = new Double[n];
-		for(int i=0;i<m;i++) {
-			Object lastO = null;
-			if(i>0) {
-				lastO = observations.get(i-1);
-				Arrays.fill(vTimesE, null);
-				for(int k=0;k<n;k++) {
-					Double e = getEmission(k, lastO, i-1);
-					vTimesE[k] = LogMath.logProduct(viterbiLogs[i-1][k],e);
-				}
+		double [] vTimesE = b.stateBuffer;
+		for(int j=0;j<n;j++) {
+			viterbiLogs[j] = getStart(j);
+			viterbiBacktrace[j] = -1;
+		}
+		for(int i=1;i<m;i++) {
+			int lastRow = (i-1)*n;
+			int row = i*n;
+			for(int k=0;k<n;k++) {
+				vTimesE[k] = viterbiLogs[lastRow+k]+emissionLogs[lastRow+k];
 			}
-			
 			for(int j=0;j<n;j++) {
-				if(lastO==null) {
-					viterbiLogs[i][j] = getStart(j);
-					viterbiBacktrace[i][j] = -1;
-				}
-				else {
-					//The max probabilities starts with zero which in logarithm is represented as null
-					viterbiLogs[i][j] = null;
-					viterbiBacktrace[i][j] = -1;
-					for(int k=0;k<n;k++) {
-						Double t = getTransition(k, j, i-1);
-						Double prob = LogMath.logProduct(vTimesE[k],t);
-						if(prob != null && (viterbiLogs[i][j] == null || viterbiLogs[i][j] < prob) ) {
-							viterbiLogs[i][j] = prob;
-							viterbiBacktrace[i][j] = k;
-						}
+				double max = Double.NEGATIVE_INFINITY;
+				int maxK = -1;
+				for(int k=0;k<n;k++) {
+					double prob = vTimesE[k]+getTransition(k, j, i-1);
+					if(prob > max) {
+						max = prob;
+						maxK = k;
 					}
 				}
+				viterbiLogs[row+j] = max;
+				viterbiBacktrace[row+j] = maxK;
 			}	
 		}
-		Double bestP = null;
+		double bestP = Double.NEGATIVE_INFINITY;
 		int bestState = -1;
+		int lastRow = (m-1)*n;
 		for(int j=0;j<n;j++) {
-			Double p = viterbiLogs[m-1][j];
-			p = LogMath.logProduct(p,getEmission(j, observations.get(m-1), m-1));
-			if(p!=null && (bestP == null || bestP < p)) {
+			double p = viterbiLogs[lastRow+j]+emissionLogs[lastRow+j];
+			if(p > bestP) {
 				bestState = j;
 				bestP = p;
 			}
 		}
-		if(bestP == null) {
+		if(bestState == -1) {
 			return bestP;
 		}
 		//Backtrace best path
 		for(int i=m-1;i>=0;i--) {
 			path[i] = bestState;
-			bestState = viterbiBacktrace[i][bestState];
+			bestState = viterbiBacktrace[i*n+bestState];
 		}
 		return bestP;
 	}
 	
 
 	
-	public static void calculateUniformChangeTransitions(double changeProbability, Double [][]transitions) {
+	public static void calculateUniformChangeTransitions(double changeProbability, double [][]transitions) {
 		int n = transitions.length;
 		
 		double noChangeP = 1.0-changeProbability;
-		Double logNoChange = LogMath.log10(noChangeP);
+		double logNoChange = Math.log10(noChangeP);
 		//The probability of recombination is split uniformly across the parents
-		Double logChange1 = LogMath.log10(changeProbability/(n-1));
+		double logChange1 = Math.log10(changeProbability/(n-1));
 		for(int j=0;j<n;j++) {
 			for(int k=0;k<n;k++) {
 				if(j==k) transitions[j][k] = logNoChange;
@@ -288,29 +315,58 @@ public abstract class AbstractHMM implements HMM {
 			}
 		}
 	}
-	private void initArrays(int m, int k, boolean initPosteriors) {
-		if(forwardLogs.length!=m || forwardLogs[0].length!=k) {
-			getLog().info("Creating array for forward probabilities of dimensions "+m+" x "+k);
-			forwardLogs = new Double[m][k];
+	
+	private void checkLength(double [] matrix, int m, int n, String name) {
+		if(matrix.length<m*n) throw new IllegalArgumentException("Invalid length of "+name+". Expected at least: "+m+" x "+n+" Given: "+matrix.length);
+	}
+	
+	private Buffers initArrays(int m, int n, boolean initPosteriors) {
+		Buffers b = buffers.get();
+		int length = m*n;
+		if(b.emissionLogs.length<length) {
+			getLog().info("Creating array for emission probabilities of dimensions "+m+" x "+n);
+			b.emissionLogs = new double[length];
+		}
+		if(b.forwardLogs.length<length) {
+			getLog().info("Creating array for forward probabilities of dimensions "+m+" x "+n);
+			b.forwardLogs = new double[length];
 		}
-		if(backwardLogs.length!=m || backwardLogs[0].length!=k) {
-			getLog().info("Creating array for backward probabilities of dimensions "+m+" x "+k);
-			backwardLogs = new Double[m][k];
+		if(b.backwardLogs.length<length) {
+			getLog().info("Creating array for backward probabilities of dimensions "+m+" x "+n);
+			b.backwardLogs = new double[length];
 		}
-		if(initPosteriors && (posteriorLogs.length!=m || posteriorLogs[0].length!=k)) {
-			getLog().info("Creating array for posterior probabilities of dimensions "+m+" x "+k);
-			posteriorLogs = new Double[m][k];
+		if(initPosteriors && b.posteriorLogs.length<length) {
+			getLog().info("Creating array for posterior probabilities of dimensions "+m+" x "+n);
+			b.posteriorLogs = new double[length];
 		}
+		if(b.stateBuffer.length!=n) {
+			b.stateBuffer = new double[n];
+			b.termsBuffer = new double[n];
+		}
+		return b;
 	}
-	private void initArraysViterbi(int m, int k) {
-		if(viterbiLogs.length!=m || viterbiLogs[0].length!=k) {
-			getLog().info("Creating array for viterbi probabilities of dimensions "+m+" x "+k);
-			viterbiLogs = new Double[m][k];
+	private void initArraysViterbi(Buffers b, int m, int n) {
+		int length = m*n;
+		if(b.viterbiLogs.length<length) {
+			getLog().info("Creating array for viterbi probabilities of dimensions "+m+" x "+n);
+			b.viterbiLogs = new double[length];
 		}
-		if(viterbiBacktrace.length!=m || viterbiBacktrace[0].length!=k) {
-			getLog().info("Creating array for viterbi backtrack of dimensions "+m+" x "+k);
-			viterbiBacktrace = new int[m][k];
+		if(b.viterbiBacktrace.length<length) {
+			getLog().info("Creating array for viterbi backtrack of dimensions "+m+" x "+n);
+			b.viterbiBacktrace = new int[length];
 		}
 	}
 	
+	private static class Buffers {
+		//Flat matrices with one row per observation and one column per state
+		private double [] emissionLogs = new double [0];
+		private double [] forwardLogs = new double [0];
+		private double [] backwardLogs = new double [0];
+		private double [] posteriorLogs = new double [0];
+		private double [] viterbiLogs = new double [0];
+		private int [] viterbiBacktrace = new int [0];
+		//Buffers with one entry per state
+		private double [] stateBuffer = new double [0];
+		private double [] termsBuffer = new double [0];
+	}
 }
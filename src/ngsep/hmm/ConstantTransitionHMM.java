@@ -24,7 +24,7 @@ import java.util.List;
 public class ConstantTransitionHMM extends AbstractHMM {
 	private List<? extends HMMState> states;
 	private int n;
-	private Double [][] transitions;
+	private double [][] transitions;
 	
 	/**
 	 * @param states
@@ -33,10 +33,10 @@ public class ConstantTransitionHMM extends AbstractHMM {
 		super();
 		this.states = states;
 		n = states.size();
-		transitions = new Double[n][n];
+		transitions = new double[n][n];
 	}
 
-	public void setTransitions(Double[][] transitions) {
+	public void setTransitions(double[][] transitions) {
 		if(transitions.length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+n+" rows: "+transitions.length);
 		for(int i=0;i<n;i++) {
 			if(transitions[i].length!=n) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+n+" columns: "+transitions[i].length);
@@ -46,7 +46,7 @@ public class ConstantTransitionHMM extends AbstractHMM {
 
 
 	@Override
-	public Double getTransition(int source, int dest, int step) {
+	public double getTransition(int source, int dest, int step) {
 		return transitions[source][dest];
 	}
 	
@@ -21,6 +21,12 @@ package ngsep.hmm;
 
 import java.util.List;
 
+/**
+ * Hidden Markov model working on logarithms (base 10) of probabilities. Zero probabilities are
+ * represented as Double.NEGATIVE_INFINITY. Matrices with one row per observation and one column per
+ * state are stored in flat arrays in row-major order, so the value for observation i and state j is
+ * located at position i*getNumStates()+j
+ */
 public interface HMM {
 
 	/**
@@ -29,28 +35,28 @@ public interface HMM {
 	 * @param source First state
 	 * @param dest Second state
 	 * @param step Step at which the transition will happen
-	 * @return Double log10 of the transition probability between source and dest at step.
-	 * Null if the probability is zero 
+	 * @return double log10 of the transition probability between source and dest at step.
+	 * Double.NEGATIVE_INFINITY if the probability is zero 
 	 */
-	public Double getTransition(int source, int dest, int step );
+	public double getTransition(int source, int dest, int step );
 	/**
 	 * Returns the logarithm (base 10) of the emission probability of the given value by the given state
 	 * at the given step 
 	 * @param state From which the value is emitted
 	 * @param value observed value
 	 * @param step At which the value is emitted
-	 * @return Double log10 of the emission probability of the given value by the given state
+	 * @return double log10 of the emission probability of the given value by the given state
 	 * at the given step
-	 * Null if the probability is zero
+	 * Double.NEGATIVE_INFINITY if the probability is zero
 	 */
-	public Double getEmission(int state, Object value, int step);
+	public double getEmission(int state, Object value, int step);
 	/**
 	 * Returns the logarithm (base 10) of the initial probability of the given state
 	 * @param state Potential initial state
-	 * @return Double log10 of the probability of starting at the given state
-	 * Null if the probability is zero
+	 * @return double log10 of the probability of starting at the given state
+	 * Double.NEGATIVE_INFINITY if the probability is zero
 	 */
-	public Double getStart(int state);
+	public double getStart(int state);
 	/**
 	 * Returns the state at the given position
 	 * @param state Position of the state in the HMM
@@ -65,13 +71,13 @@ public interface HMM {
 	/**
 	 * Run the forward-backward algorithm to calculate posterior probabilities of states given a set of observations
 	 * @param observations List of observed values
-	 * @param posteriorLogs Output matrix with as many rows as observations and as many columns as states. It is
+	 * @param posteriorLogs Output flat matrix with as many rows as observations and as many columns as states. It is
 	 * designed as a parameter instead of a return value to avoid constant reallocation and to allow returning the
-	 * probability of the data as a return value. Zero probabilities are represented as null objects
-	 * @return Double log10 of the probability of the data given the HMM
-	 * Null if the probability is zero   
+	 * probability of the data as a return value
+	 * @return double log10 of the probability of the data given the HMM
+	 * Double.NEGATIVE_INFINITY if the probability is zero   
 	 */
-	public Double calculatePosteriorLogs (List<? extends Object> observations, Double [][] posteriorLogs);
+	public double calculatePosteriorLogs (List<? extends Object> observations, double [] posteriorLogs);
 	
 	/**
 	 * Run the forward-backward algorithm to calculate posterior probabilities of states given a set of observations
@@ -86,27 +92,27 @@ public interface HMM {
 	/**
 	 * Calculate forward log probabilities for each state at each step
 	 * @param observations List of observed values
-	 * @param forwardLogs Output matrix with as many rows as observations and as many columns as states.
+	 * @param forwardLogs Output flat matrix with as many rows as observations and as many columns as states.
 	 * It is designed as a parameter instead of a return value to avoid constant reallocation
 	 * To facilitate calculations, forward probabilities do not include the emission probability at
 	 * each state.
-	 * @return Double log10 of the probability of the data given the HMM
+	 * @return double log10 of the probability of the data given the HMM
 	 */
-	public Double calculateForward(List<? extends Object> observations, Double [][] forwardLogs);
+	public double calculateForward(List<? extends Object> observations, double [] forwardLogs);
 	/**
 	 * Calculate backward log probabilities for each state at each step
 	 * @param observations List of observed values
-	 * @param backwardLogs Output matrix with as many rows as observations and as many columns as states.
+	 * @param backwardLogs Output flat matrix with as many rows as observations and as many columns as states.
 	 * It is designed as a parameter instead of a return value to avoid constant reallocation
 	 */
-	public void calculateBackward(List<? extends Object> observations, Double [][] backwardLogs);
+	public void calculateBackward(List<? extends Object> observations, double [] backwardLogs);
 	/**
 	 * 
 	 * @param observations to calculate the path with the best probability
 	 * @param path Output path
-	 * @return Double Logarithm of th probability of the best path. Null if all paths have zero probability
+	 * @return double Logarithm of th probability of the best path. Double.NEGATIVE_INFINITY if all paths have zero probability
 	 */
-	public Double getViterbiPath (List<? extends Object> observations, int [] path );
+	public double getViterbiPath (List<? extends Object> observations, int [] path );
 	
 	
 	
@@ -24,23 +24,23 @@ public interface HMMState {
 	 * Returns the logarithm (base 10) of the probability of emission of the given value
 	 * @param value that will be emitted
 	 * @param step At which the value is emitted
-	 * @return Double log10 of the probability of observing the given value
-	 * Null if the probability is zero 
+	 * @return double log10 of the probability of observing the given value
+	 * Double.NEGATIVE_INFINITY if the probability is zero 
 	 */
-	public Double getEmission(Object value, int step);
+	public double getEmission(Object value, int step);
 	
 	/**
 	 * Returns the logarithm (base 10) of the probability of starting at this state
 	 * @return double log10 of the probability of starting at this state
-	 * Null if the probability is zero 
+	 * Double.NEGATIVE_INFINITY if the probability is zero 
 	 */
-	public Double getLogStart();
+	public double getLogStart();
 	/**
 	 * Changes the probability of starting at this state
 	 * @param logStart log10 of the new probability of starting at this state
-	 * Null if the probability is zero 
+	 * Double.NEGATIVE_INFINITY if the probability is zero 
 	 */
-	public void setLogStart(Double logStart);
+	public void setLogStart(double logStart);
 	/**
 	 * Returns the id of the state
 	 * @return String id assigned to the state
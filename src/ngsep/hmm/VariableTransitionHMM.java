@@ -19,24 +19,34 @@
  *******************************************************************************/
 package ngsep.hmm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ngsep.math.LogMath;
 
 public class VariableTransitionHMM extends AbstractHMM {
 
+	public static final int DEF_NUM_THREADS = 1;
+	
 	private int iterationsBaumWelch = DEF_ITER_BAUM_WELCH;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	private List<? extends HMMState> states;
 	private int steps;
 	private int numStates;
-	private Double [][][] logTransitions;
+	//Flat array with one matrix of numStates x numStates transitions per step
+	private double [] logTransitions;
 	private boolean skipTransitionsTraining = false;
-	//Local arrays to save reallocation over many runs
-	private Double [] logStarts = new Double [0];
-	private Double [][][] logTransitionsTrain = new Double [0][0][0];
+	//Local arrays to save reallocation over many runs. One array of expected counts per group of training sequences
+	private double [][] logStartsTrain = new double [0][0];
+	private double [][] logTransitionsTrain = new double [0][0];
 	private List<List<? extends Object>> trainingData = null;
 	
 	/**
@@ -48,8 +58,10 @@ public class VariableTransitionHMM extends AbstractHMM {
 		this.states = states;
 		numStates = states.size();
 		this.steps = steps;
+		long length = (long)(steps-1)*numStates*numStates;
+		if(length>Integer.MAX_VALUE) throw new IllegalArgumentException("Transitions for "+steps+" steps and "+numStates+" states can not be stored in memory");
 		getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-		logTransitions = new Double [steps-1][numStates][numStates];
+		logTransitions = new double [(int)length];
 	}
 	
 	public int getIterationsBaumWelch() {
@@ -62,6 +74,19 @@ public class VariableTransitionHMM extends AbstractHMM {
 	}
 
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Changes the number of threads used to calculate expected counts during Baum-Welch training.
+	 * The trained model does not depend on the number of threads beyond rounding errors
+	 * @param numThreads Number of threads
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
 	public boolean isSkipTransitionsTraining() {
 		return skipTransitionsTraining;
 	}
@@ -78,18 +103,33 @@ public class VariableTransitionHMM extends AbstractHMM {
 		this.trainingData = trainingData;
 	}
 
-	public void setTransitions(Double[][] logTransitions, int step) {
+	public void setTransitions(double[][] logTransitions, int step) {
 		if(logTransitions.length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of rows as states of the HMM. States: "+numStates+" rows: "+logTransitions.length);
+		int stepStart = step*numStates*numStates;
 		for(int i=0;i<numStates;i++) {
 			if(logTransitions[i].length!=numStates) throw new IllegalArgumentException("Transitions matrix should have the same number of columns as states of the HMM. States: "+numStates+" columns: "+logTransitions[i].length);
-			//Normalize before update
-			LogMath.normalizeLogs(logTransitions[i]);
-			for(int j=0;j<numStates;j++)  this.logTransitions[step][i][j] = logTransitions[i][j];
+			int row = stepStart+i*numStates;
+			System.arraycopy(logTransitions[i], 0, this.logTransitions, row, numStates);
+			LogMath.normalizeLogs(this.logTransitions, row, row+numStates);
+		}
+	}
+	
+	/**
+	 * Updates the transitions of the given step from a flat array with the same layout of the transitions of this HMM
+	 * @param logTransitions Flat array with one matrix of transitions per step
+	 * @param step Step to update
+	 */
+	private void updateTransitions(double [] logTransitions, int step) {
+		int stepStart = step*numStates*numStates;
+		for(int i=0;i<numStates;i++) {
+			int row = stepStart+i*numStates;
+			System.arraycopy(logTransitions, row, this.logTransitions, row, numStates);
+			LogMath.normalizeLogs(this.logTransitions, row, row+numStates);
 		}
 	}
 	
 	public void setRandomTransitions() {
-		Double[][] logRandom = new Double[numStates][numStates];
+		double[][] logRandom = new double[numStates][numStates];
 		Random r = new Random();
 		//System.out.println("Random transitions for "+steps+" steps");
 		for(int i=0;i<steps-1;i++) {
@@ -109,7 +149,7 @@ public class VariableTransitionHMM extends AbstractHMM {
 		int n = this.getNumStates();
 		int m = getSteps();
 		if(m-1!=changeProbabilities.length) throw new IllegalArgumentException("Length of changes vector "+changeProbabilities.length+" is not consistent with the number of steps "+m+". It should be "+(m-1));
-		Double [][] transitions = new Double [n][n];
+		double [][] transitions = new double [n][n];
 		for(int i=0;i<m-1;i++) {
 			double p = changeProbabilities[i];
 			AbstractHMM.calculateUniformChangeTransitions(p, transitions);
@@ -119,8 +159,8 @@ public class VariableTransitionHMM extends AbstractHMM {
 	}
 
 	@Override
-	public Double getTransition(int source, int dest, int step) {
-		return logTransitions[step][source][dest];
+	public double getTransition(int source, int dest, int step) {
+		return logTransitions[(step*numStates+source)*numStates+dest];
 	}
 	
 	@Override
@@ -160,47 +200,142 @@ public class VariableTransitionHMM extends AbstractHMM {
 	
 	
 	/**
-	 * Runs a step of baum-welch training with the attribute training data
+	 * Runs a step of baum-welch training with the attribute training data.
+	 * Training sequences are split in as many groups as threads. Expected counts of each group
+	 * are calculated in parallel and then added
 	 */
 	protected void runBaumWelchStep() {
-		initArrays();
-		Arrays.fill(logStarts, null);
-		for(int i=0;i<logTransitionsTrain.length;i++) {
-			for(int j=0;j<logTransitionsTrain[i].length;j++) {
-				Arrays.fill(logTransitionsTrain[i][j], null);
+		int n = numStates;
+		int numGroups = Math.max(1, Math.min(numThreads, trainingData.size()));
+		initArrays(numGroups);
+		for(int g=0;g<numGroups;g++) {
+			Arrays.fill(logStartsTrain[g], Double.NEGATIVE_INFINITY);
+			if(!skipTransitionsTraining) Arrays.fill(logTransitionsTrain[g], Double.NEGATIVE_INFINITY);
+		}
+		initEmissionsBaumWelch(numGroups);
+		if(numGroups==1) {
+			accumulateExpectedCounts(0, 0, trainingData.size());
+		} else {
+			accumulateExpectedCountsParallel(numGroups);
+		}
+		//Add counts of the groups
+		double [] logStarts = logStartsTrain[0];
+		double [] logTransitionsTotal = logTransitionsTrain[0];
+		for(int g=1;g<numGroups;g++) {
+			for(int j=0;j<n;j++) logStarts[j] = LogMath.logSumExp(logStarts[j], logStartsTrain[g][j]);
+			if(skipTransitionsTraining) continue;
+			double [] logTransitionsGroup = logTransitionsTrain[g];
+			for(int i=0;i<logTransitionsTotal.length;i++) {
+				logTransitionsTotal[i] = LogMath.logSumExp(logTransitionsTotal[i], logTransitionsGroup[i]);
 			}
 		}
-		initEmissionsBaumWelch();
-		//int datumIdx = 0;
-		for (List<? extends Object> trainingDatum:trainingData) {
-			Double [][] forwardLogs=calculateForward(trainingDatum);
-			Double [][] backwardLogs=calculateBackward(trainingDatum);
-			Double logProb = getSequenceLogProb(trainingDatum, forwardLogs);
+		//Normalize and update starts
+		double total = LogMath.logSumExp(logStarts, 0, n);
+		for(int j=0;j<n;j++) getState(j).setLogStart(logStarts[j]-total);
+		//Normalize and update transitions
+		if(!skipTransitionsTraining) {
+			for(int i=0;i<steps-1;i++) {
+				updateTransitions(logTransitionsTotal, i);
+			}
+		}
+		
+		//Normalize and update emissions
+		for(int j=0;j<numStates;j++) {
+			updateEmissionsBaumWelch(j);
+		}
+	}
+	
+	private void accumulateExpectedCountsParallel(int numGroups) {
+		int size = trainingData.size();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int g=0;g<numGroups;g++) {
+			final int group = g;
+			final int first = (int)((long)size*g/numGroups);
+			final int end = (int)((long)size*(g+1)/numGroups);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					accumulateExpectedCounts(group, first, end);
+					return null;
+				}
+			});
+		}
+		runTasks(tasks);
+	}
+	
+	/**
+	 * Runs the given tasks using up to numThreads threads and waits until all tasks finish
+	 * @param tasks Independent tasks to run
+	 */
+	protected void runTasks(List<Callable<Void>> tasks) {
+		int poolSize = Math.min(numThreads, tasks.size());
+		if(poolSize<=1) {
+			for(Callable<Void> task:tasks) {
+				try {
+					task.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+			for(Callable<Void> task:tasks) results.add(pool.submit(task));
+			for(Future<Void> result:results) {
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while running HMM tasks",e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException("Error running HMM tasks",cause);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Accumulates the expected counts of starts, transitions and emissions for a group of training sequences
+	 * @param group Index of the arrays of expected counts for the group
+	 * @param first First training sequence of the group
+	 * @param end Position after the last training sequence of the group
+	 */
+	private void accumulateExpectedCounts(int group, int first, int end) {
+		int n = numStates;
+		double [] logStarts = logStartsTrain[group];
+		double [] logTransitionsGroup = logTransitionsTrain[group];
+		for (int d=first;d<end;d++) {
+			List<? extends Object> trainingDatum = trainingData.get(d);
+			double logProb = runForwardBackward(trainingDatum);
+			//Sequences with zero probability do not contribute to the expected counts
+			if(logProb==Double.NEGATIVE_INFINITY) continue;
+			double [] forwardLogs = getForwardLogs();
+			double [] backwardLogs = getBackwardLogs();
+			double [] emissionLogs = getEmissionLogs();
 			//Calculate new starts
-			for(int j=0;j<logStarts.length;j++) {
-				Object o = trainingDatum.get(0);
-				Double seqProduct = LogMath.logProduct(forwardLogs[0][j], backwardLogs[0][j]);
-				Double emission = getEmission(j, o, 0);
-				seqProduct = LogMath.logProduct(seqProduct, emission);
-				seqProduct = LogMath.logProduct(seqProduct, -logProb);
-				//if(seqProduct>-0.5) System.out.println("Datum: "+datumIdx+". Next most likely start: "+j+" forward: "+forwardLogs[0][j]+" backward: "+backwardLogs[0][j]+" emission: "+emission+" logProb: "+logProb+"seq product: "+seqProduct);
-				logStarts[j] = LogMath.logSum(logStarts[j], seqProduct);
+			for(int j=0;j<n;j++) {
+				double seqProduct = forwardLogs[j]+backwardLogs[j]+emissionLogs[j]-logProb;
+				logStarts[j] = LogMath.logSumExp(logStarts[j], seqProduct);
 			}
 			//Calculate new transitions
 			if(!skipTransitionsTraining) {
-				for(int i=0;i<logTransitionsTrain.length;i++) {
-					for(int j=0;j<logTransitionsTrain[i].length;j++) {
-						
-						for(int k=0;k<logTransitionsTrain[i][j].length;k++) {
-							Object o1 = trainingDatum.get(i);
-							Object o2 = trainingDatum.get(i+1);
-							
-							Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i+1][k]);
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o1, i));
-							seqProduct = LogMath.logProduct(seqProduct, getEmission(k, o2, i+1));
-							seqProduct = LogMath.logProduct(seqProduct, getTransition(j, k, i));
-							seqProduct = LogMath.logProduct(seqProduct, -logProb);
-							logTransitionsTrain[i][j][k] = LogMath.logSum(logTransitionsTrain[i][j][k], seqProduct);
+				for(int i=0;i<steps-1;i++) {
+					int row = i*n;
+					int nextRow = row+n;
+					for(int j=0;j<n;j++) {
+						double fTimesE = forwardLogs[row+j]+emissionLogs[row+j]-logProb;
+						if(fTimesE==Double.NEGATIVE_INFINITY) continue;
+						int trainRow = (row+j)*n;
+						for(int k=0;k<n;k++) {
+							double seqProduct = fTimesE+backwardLogs[nextRow+k]+emissionLogs[nextRow+k]+getTransition(j, k, i);
+							logTransitionsGroup[trainRow+k] = LogMath.logSumExp(logTransitionsGroup[trainRow+k], seqProduct);
 						}
 					}
 				}
@@ -209,29 +344,12 @@ public class VariableTransitionHMM extends AbstractHMM {
 			//Calculate new emissions
 			for(int i=0;i<steps;i++) {
 				Object o = trainingDatum.get(i);
-				for(int j=0;j<numStates;j++) {
-					Double seqProduct = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-					seqProduct = LogMath.logProduct(seqProduct, getEmission(j, o, i));
-					seqProduct = LogMath.logProduct(seqProduct, -logProb);
-					accumulateEmissionBaumWelch(i,j,o,seqProduct);
+				int row = i*n;
+				for(int j=0;j<n;j++) {
+					double seqProduct = forwardLogs[row+j]+backwardLogs[row+j]+emissionLogs[row+j]-logProb;
+					accumulateEmissionBaumWelch(group,i,j,o,seqProduct);
 				}
 			}
-			//datumIdx++;
-		}
-		//Normalize and update starts
-		Double total = null;
-		for(int j=0;j<logStarts.length;j++) total = LogMath.logSum(total, logStarts[j]);
-		for(int j=0;j<logStarts.length;j++) getState(j).setLogStart(LogMath.logProduct(logStarts[j],-total));
-		//Normalize and update transitions
-		if(!skipTransitionsTraining) {
-			for(int i=0;i<logTransitionsTrain.length;i++) {
-				setTransitions(logTransitionsTrain[i], i);
-			}
-		}
-		
-		//Normalize and update emissions
-		for(int j=0;j<numStates;j++) {
-			updateEmissionsBaumWelch(j);
 		}
 	}
 	
@@ -259,25 +377,28 @@ public class VariableTransitionHMM extends AbstractHMM {
 	/**
 	 * Initializes training emissions for a baum welch step
 	 * WARN: This method will throw a RuntimeException because it should be redefined to use automated training
+	 * @param numGroups Number of groups of training sequences. Expected counts of each group are accumulated
+	 * separately because groups are processed in parallel
 	 */
-	protected void initEmissionsBaumWelch() {
+	protected void initEmissionsBaumWelch(int numGroups) {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");	
 	}
 
 	/**
 	 * Registers a posterior probability of a fixed emission during Baum-Welch training
 	 * WARN: This method will throw a RuntimeException because it should be redefined to use automated training
+	 * @param group Group of the training sequence. Different groups can be accumulated concurrently
 	 * @param step at which the observation is registered
 	 * @param stateIndex Index of the state where the posterior was calculated
 	 * @param datum observed value
 	 * @param logPosterior Logarithm of the posterior probability
 	 */
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int group, int step, int stateIndex, Object datum, double logPosterior) {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");
 	}
 
 	/**
-	 * Updates the emission probabilities during Baum-Welch training
+	 * Updates the emission probabilities during Baum-Welch training adding the expected counts of all groups
 	 * WARN: This method will throw a RuntimeException because it should be redefined in a subclass to use automated training
 	 * @param stateIndex Index of the state to be updated
 	 */
@@ -285,12 +406,18 @@ public class VariableTransitionHMM extends AbstractHMM {
 		throw new RuntimeException("This method should be redefined in a subclass to use automated Baum-Welch training");
 	}
 
-	private void initArrays() {
-		if(logTransitionsTrain.length!=steps-1 || logTransitionsTrain[0].length!=numStates) {
-			getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
-			logTransitionsTrain = new Double [steps-1][numStates][numStates];
+	private void initArrays(int numGroups) {
+		if(logTransitionsTrain.length!=numGroups) {
+			logTransitionsTrain = new double [numGroups][0];
+			logStartsTrain = new double [numGroups][0];
+		}
+		for(int g=0;g<numGroups;g++) {
+			if(!skipTransitionsTraining && logTransitionsTrain[g].length!=logTransitions.length) {
+				getLog().info("Creating array for transitions of dimensions "+(steps-1)+" x "+numStates+" x "+numStates);
+				logTransitionsTrain[g] = new double [logTransitions.length];
+			}
+			if(logStartsTrain[g].length!=numStates) logStartsTrain[g] = new double [numStates];
 		}
-		if(logStarts.length!=numStates) logStarts = new Double [numStates];
 	}
 	
 }
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes binary files organized in flat little-endian sections that can be later
+ * memory mapped through a MappedBinaryFileReader
+ * @author Jorge Duitama
+ */
+public class BinaryFileWriter implements Closeable {
+	/**
+	 * Sections are aligned to this number of bytes to allow aligned reads of mapped primitive arrays
+	 */
+	public static final int SECTION_ALIGNMENT = 8;
+	private static final int BUFFER_SIZE = 1<<20;
+
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private long position = 0;
+
+	public BinaryFileWriter (String filename) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @return long Current position in the file, including data not yet flushed
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public void writeInt (int value) throws IOException {
+		ensureCapacity(4);
+		buffer.putInt(value);
+		position+=4;
+	}
+
+	public void writeLong (long value) throws IOException {
+		ensureCapacity(8);
+		buffer.putLong(value);
+		position+=8;
+	}
+
+	public void writeBytes (byte [] values) throws IOException {
+		writeBytes(ByteBuffer.wrap(values));
+	}
+
+	/**
+	 * Writes the remaining bytes of the given buffer. The position of the buffer is not modified
+	 * @param values Buffer with the data to write
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeBytes (ByteBuffer values) throws IOException {
+		ByteBuffer copy = values.duplicate();
+		while(copy.hasRemaining()) {
+			ensureCapacity(1);
+			int n = Math.min(buffer.remaining(), copy.remaining());
+			ByteBuffer chunk = copy.slice();
+			chunk.limit(n);
+			buffer.put(chunk);
+			copy.position(copy.position()+n);
+			position+=n;
+		}
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 encoding
+	 * @param value String to write
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeString (String value) throws IOException {
+		byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		writeBytes(bytes);
+	}
+
+	public void writeInts (int [] values) throws IOException {
+		writeInts(IntBuffer.wrap(values));
+	}
+
+	/**
+	 * Writes the remaining integers of the given buffer. The position of the buffer is not modified
+	 * @param values Buffer with the data to write
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeInts (IntBuffer values) throws IOException {
+		int n = values.limit();
+		for(int i=values.position();i<n;i++) writeInt(values.get(i));
+	}
+
+	public void writeLongs (long [] values) throws IOException {
+		writeLongs(LongBuffer.wrap(values));
+	}
+
+	/**
+	 * Writes the remaining longs of the given buffer. The position of the buffer is not modified
+	 * @param values Buffer with the data to write
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeLongs (LongBuffer values) throws IOException {
+		int n = values.limit();
+		for(int i=values.position();i<n;i++) writeLong(values.get(i));
+	}
+
+	/**
+	 * Writes zeros until the current position is a multiple of SECTION_ALIGNMENT
+	 * @throws IOException If the data can not be written
+	 */
+	public void align() throws IOException {
+		while(position%SECTION_ALIGNMENT!=0) {
+			ensureCapacity(1);
+			buffer.put((byte)0);
+			position++;
+		}
+	}
+
+	/**
+	 * Overwrites a long value at a position already written. Useful to fill offsets of a header
+	 * @param filePosition Absolute position in the file
+	 * @param value to write
+	 * @throws IOException If the data can not be written
+	 */
+	public void writeLongAt (long filePosition, long value) throws IOException {
+		flush();
+		ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		b.putLong(value);
+		b.flip();
+		while(b.hasRemaining()) channel.write(b, filePosition+b.position());
+	}
+
+	private void ensureCapacity(int bytes) throws IOException {
+		if(buffer.remaining()<bytes) flush();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) channel.write(buffer, position-buffer.remaining());
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads binary files written by a BinaryFileWriter. Small header values are read directly
+ * from the file and large sections are memory mapped as read-only buffers. Mapped buffers remain
+ * valid after this reader is closed and they are shared through the page cache by every process
+ * mapping the same file
+ * @author Jorge Duitama
+ */
+public class MappedBinaryFileReader implements Closeable {
+	private FileChannel channel;
+	private long position = 0;
+	private ByteBuffer smallBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+	public MappedBinaryFileReader (String filename) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+	}
+
+	/**
+	 * @return long Current position in the file
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Moves the reader to the given position of the file
+	 * @param position Absolute position in the file
+	 */
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	/**
+	 * @return long Size of the file
+	 * @throws IOException If the size can not be retrieved
+	 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	public int readInt() throws IOException {
+		readFully(4);
+		return smallBuffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		readFully(8);
+		return smallBuffer.getLong();
+	}
+
+	public byte [] readBytes (int length) throws IOException {
+		byte [] answer = new byte[length];
+		ByteBuffer b = ByteBuffer.wrap(answer);
+		while(b.hasRemaining()) {
+			int n = channel.read(b, position+b.position());
+			if(n<0) throw new EOFException("Unexpected end of file at position "+(position+b.position()));
+		}
+		position+=length;
+		return answer;
+	}
+
+	/**
+	 * Reads a string written as its length in bytes followed by its UTF-8 encoding
+	 * @return String the decoded string
+	 * @throws IOException If the data can not be read
+	 */
+	public String readString() throws IOException {
+		int length = readInt();
+		return new String(readBytes(length),StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Maps the given number of bytes starting at the current position
+	 * @param length Number of bytes to map
+	 * @return ByteBuffer Read-only buffer with little-endian order
+	 * @throws IOException If the section can not be mapped
+	 */
+	public ByteBuffer mapBytes (long length) throws IOException {
+		if(length>Integer.MAX_VALUE) throw new IOException("Section of "+length+" bytes at position "+position+" is too large to be mapped");
+		if(position+length>channel.size()) throw new EOFException("Section of "+length+" bytes at position "+position+" exceeds the file size "+channel.size());
+		ByteBuffer answer = channel.map(MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+		position+=length;
+		return answer;
+	}
+
+	/**
+	 * Maps the given number of integers starting at the current position
+	 * @param count Number of integers to map
+	 * @return IntBuffer Read-only view of the mapped section
+	 * @throws IOException If the section can not be mapped
+	 */
+	public IntBuffer mapInts (int count) throws IOException {
+		return mapBytes(4L*count).asIntBuffer();
+	}
+
+	/**
+	 * Maps the given number of longs starting at the current position
+	 * @param count Number of longs to map
+	 * @return LongBuffer Read-only view of the mapped section
+	 * @throws IOException If the section can not be mapped
+	 */
+	public LongBuffer mapLongs (int count) throws IOException {
+		return mapBytes(8L*count).asLongBuffer();
+	}
+
+	/**
+	 * Skips bytes until the current position is a multiple of BinaryFileWriter.SECTION_ALIGNMENT
+	 */
+	public void align() {
+		long mod = position%BinaryFileWriter.SECTION_ALIGNMENT;
+		if(mod>0) position+= BinaryFileWriter.SECTION_ALIGNMENT-mod;
+	}
+
+	private void readFully(int bytes) throws IOException {
+		smallBuffer.clear();
+		smallBuffer.limit(bytes);
+		while(smallBuffer.hasRemaining()) {
+			int n = channel.read(smallBuffer, position+smallBuffer.position());
+			if(n<0) throw new EOFException("Unexpected end of file at position "+(position+smallBuffer.position()));
+		}
+		smallBuffer.flip();
+		position+=bytes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
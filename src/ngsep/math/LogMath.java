@@ -22,7 +22,7 @@ package ngsep.math;
 /**
  * Class with static methods performing basic math operations that receive and
  * return logarithms of the values to operate. Minus infinitum is represented
- * as a null object 
+ * as a null object for Double values and as Double.NEGATIVE_INFINITY for primitive values
  * @author Jorge Duitama
  *
  */
@@ -72,6 +72,54 @@ public class LogMath {
 		else return null;
 	}
 
+	/**
+	 * Sum of probabilities for primitive logarithms. Zero probabilities are represented
+	 * as Double.NEGATIVE_INFINITY
+	 * @param log1 10-based logarithm of the first probability to add
+	 * @param log2 10-based logarithm of the second probability to add
+	 * @return double logarithm of the sum of the probabilities
+	 */
+	public static double logSumExp (double log1, double log2) {
+		if(log2==Double.NEGATIVE_INFINITY) return log1;
+		if(log1==Double.NEGATIVE_INFINITY) return log2;
+		if(log1-log2>MAXLOGDIFF) return log1;
+		if(log2-log1>MAXLOGDIFF) return log2;
+		return log1 + Math.log10(1+Math.pow(10.0, log2-log1));
+	}
+	/**
+	 * Sum of the probabilities stored as primitive logarithms in a range of the given array.
+	 * Values are scaled by the maximum so only one logarithm is calculated
+	 * @param logs Array with 10-based logarithms. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param first First position to sum
+	 * @param end Position after the last position to sum
+	 * @return double logarithm of the sum of the probabilities. Double.NEGATIVE_INFINITY if all probabilities are zero
+	 */
+	public static double logSumExp (double [] logs, int first, int end) {
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i=first;i<end;i++) {
+			if(logs[i]>max) max = logs[i];
+		}
+		if(max==Double.NEGATIVE_INFINITY) return max;
+		double sum = 0;
+		for(int i=first;i<end;i++) {
+			double diff = logs[i]-max;
+			if(diff>-MAXLOGDIFF) sum+=Math.pow(10.0, diff);
+		}
+		return max + Math.log10(sum);
+	}
+	/**
+	 * Normalizes the probabilities stored as primitive logarithms in a range of the given array.
+	 * If all probabilities are zero the values are not modified
+	 * @param logProbs Array with 10-based logarithms. Zero probabilities are represented as Double.NEGATIVE_INFINITY
+	 * @param first First position to normalize
+	 * @param end Position after the last position to normalize
+	 */
+	public static void normalizeLogs(double [] logProbs, int first, int end) {
+		double total = logSumExp(logProbs, first, end);
+		if(total==Double.NEGATIVE_INFINITY) return;
+		for(int i=first;i<end;i++) logProbs[i]-=total;
+	}
+	
 	public static void normalizeLogs(Double[] logProbs) {
 		Double total = null;
 		int n = logProbs.length;
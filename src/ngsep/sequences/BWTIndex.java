@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+
+import ngsep.main.io.BinaryFileWriter;
+
+/**
+ * Burrows Wheeler transform supporting the rank queries needed for backward search in an FM-index.
+ * Characters are identified by their index in the alphabet of the FM-index. The special character
+ * is not part of the alphabet
+ * @author Jorge Duitama
+ */
+interface BWTIndex {
+	/**
+	 * Identifier of the byte per character implementation in binary files
+	 */
+	public static final int TYPE_SAMPLED_TALLY = 1;
+	/**
+	 * Identifier of the 2-bit packed implementation in binary files
+	 */
+	public static final int TYPE_PACKED_DNA = 2;
+
+	/**
+	 * @return int Number of rows of the transform (sequence length plus one)
+	 */
+	public int length();
+
+	/**
+	 * @param row of the transform
+	 * @return char Character at the given row
+	 */
+	public char getCharacter(int row);
+
+	/**
+	 * Counts the occurrences of a character before the given row
+	 * @param charIdx Index of the character in the alphabet of the FM-index
+	 * @param row Row of the transform. It can be equal to the length of the transform
+	 * @return int Number of occurrences of the character in rows [0,row)
+	 */
+	public int getOccurrences(int charIdx, int row);
+
+	/**
+	 * Counts the occurrences of every character of the alphabet before the given row
+	 * @param row Row of the transform. It can be equal to the length of the transform
+	 * @param counts Array to store the counts. Position i has the number of occurrences in rows [0,row)
+	 * of the character with index i in the alphabet of the FM-index
+	 */
+	public void getOccurrences(int row, int [] counts);
+
+	/**
+	 * @return int Identifier of the implementation in binary files
+	 */
+	public int getType();
+
+	/**
+	 * Saves the data of this transform in the given binary file writer
+	 * @param writer Writer of the binary file
+	 * @throws IOException If the data can not be written
+	 */
+	public void save(BinaryFileWriter writer) throws IOException;
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+
+/**
+ * Bidirectional FM-index of a single sequence. It is made of an FM-index of the sequence and
+ * an FM-index of the reverse of the sequence. Keeping the intervals of both indexes synchronized
+ * allows to extend matches in both directions, which is needed to calculate super maximal
+ * exact matches (SMEMs) as described by Li, 2012 (Bioinformatics 28:1838)
+ * @author Jorge Duitama
+ */
+public class BidirectionalFMIndex {
+	// Intervals up to this size are extended reading the characters of each row instead of counting occurrences
+	private static final int MAX_SIZE_SCAN_ROWS = 8;
+	private FMIndexSingleSequence forwardIndex;
+	private FMIndexSingleSequence reverseIndex;
+	
+	/**
+	 * Builds the forward and the reverse indexes of the given sequence
+	 * @param sequence to index
+	 */
+	public BidirectionalFMIndex (CharSequence sequence) {
+		forwardIndex = new FMIndexSingleSequence(sequence);
+		reverseIndex = new FMIndexSingleSequence(new StringBuilder(sequence).reverse());
+	}
+	
+	private BidirectionalFMIndex (FMIndexSingleSequence forwardIndex, FMIndexSingleSequence reverseIndex) {
+		this.forwardIndex = forwardIndex;
+		this.reverseIndex = reverseIndex;
+	}
+	
+	/**
+	 * @return FMIndexSingleSequence Index of the sequence in the forward direction
+	 */
+	public FMIndexSingleSequence getForwardIndex() {
+		return forwardIndex;
+	}
+	
+	/**
+	 * @return int Length of the indexed sequence
+	 */
+	public int getSequenceLength() {
+		return forwardIndex.getSequenceLength();
+	}
+	
+	/**
+	 * Saves the forward and the reverse indexes in the given binary file writer
+	 * @param writer Writer of the binary file
+	 * @throws IOException If the data can not be written
+	 */
+	public void save (BinaryFileWriter writer) throws IOException {
+		forwardIndex.save(writer);
+		reverseIndex.save(writer);
+	}
+	
+	/**
+	 * Loads an index saved with the save method mapping its data in memory
+	 * @param reader Positioned at the start of the index
+	 * @return BidirectionalFMIndex backed by read-only mapped buffers
+	 * @throws IOException If the data can not be read
+	 */
+	public static BidirectionalFMIndex load (MappedBinaryFileReader reader) throws IOException {
+		FMIndexSingleSequence forwardIndex = FMIndexSingleSequence.load(reader);
+		FMIndexSingleSequence reverseIndex = FMIndexSingleSequence.load(reader);
+		if(forwardIndex.getSequenceLength()!=reverseIndex.getSequenceLength()) throw new IOException("Corrupted bidirectional index at position "+reader.getPosition()+". Forward and reverse indexes have different lengths");
+		return new BidirectionalFMIndex(forwardIndex, reverseIndex);
+	}
+	
+	/**
+	 * Calculates the super maximal exact matches (SMEMs) between the given query and the indexed sequence.
+	 * A SMEM is an exact match that can not be extended in any direction and that is not contained in another exact match 
+	 * @param query Sequence to search
+	 * @param minLength Minimum length of the matches to report
+	 * @return List<BidirectionalFMInterval> SMEMs sorted by query start
+	 */
+	public List<BidirectionalFMInterval> findSMEMs (CharSequence query, int minLength) {
+		List<BidirectionalFMInterval> smems = new ArrayList<>();
+		int n = query.length();
+		int alphabetSize = forwardIndex.getAlphabet().length();
+		int [] startCounts = new int [alphabetSize];
+		int [] endCounts = new int [alphabetSize];
+		int x = 0;
+		int minStart = 0;
+		while(x<n) {
+			List<BidirectionalFMInterval> smemsX = new ArrayList<>();
+			int next = findSMEMs(query, x, minStart, minLength, smemsX, startCounts, endCounts);
+			smems.addAll(smemsX);
+			//The longest match starting at x ends at next. Hence, matches including next start after x
+			minStart = x+1;
+			x = next;
+		}
+		List<BidirectionalFMInterval> answer = new ArrayList<>(smems.size());
+		for(BidirectionalFMInterval smem:smems) {
+			if(smem.getQueryLength()>=minLength) answer.add(smem);
+		}
+		Collections.sort(answer, (s1,s2)->s1.getQueryStart()-s2.getQueryStart());
+		return answer;
+	}
+	
+	/**
+	 * Finds the SMEMs overlapping the given query position
+	 * @param query Sequence to search
+	 * @param x Position of the query
+	 * @param minStart Minimum start of the matches including x
+	 * @param minLength Minimum length of the matches. Backward extensions are skipped if no match including x can be this long
+	 * @param smems List to add the SMEMs found. It should be empty
+	 * @param startCounts Buffer to store occurrence counts at the start of intervals
+	 * @param endCounts Buffer to store occurrence counts at the end of intervals
+	 * @return int Next position to query. It is the end of the longest match starting at x
+	 */
+	private int findSMEMs (CharSequence query, int x, int minStart, int minLength, List<BidirectionalFMInterval> smems, int [] startCounts, int [] endCounts) {
+		int n = query.length();
+		int charIdx = forwardIndex.getAlphabetIndex(query.charAt(x));
+		if(charIdx<0) return x+1;
+		BidirectionalFMInterval ik = new BidirectionalFMInterval(forwardIndex.getFirstRow(charIdx), reverseIndex.getFirstRow(charIdx), forwardIndex.getCharacterCount(charIdx), x, x+1);
+		if(ik.getSize()==0) return x+1;
+		//Forward extension. Keeps the intervals whose size changes with the next extension
+		List<BidirectionalFMInterval> prev = new ArrayList<>();
+		int i;
+		for(i=x+1;i<n;i++) {
+			BidirectionalFMInterval ok = extendForward(ik, query.charAt(i), startCounts, endCounts);
+			if(ok==null || ok.getSize()!=ik.getSize()) prev.add(ik);
+			if(ok==null || ok.getSize()==0) break;
+			ik = ok;
+		}
+		if(i==n) prev.add(ik);
+		//Longest matches first
+		Collections.reverse(prev);
+		int answer = prev.get(0).getQueryEnd();
+		if(answer-minStart<minLength) return answer;
+		//Backward extension
+		for(i=x-1;i>=-1;i--) {
+			List<BidirectionalFMInterval> curr = new ArrayList<>();
+			for(BidirectionalFMInterval p:prev) {
+				BidirectionalFMInterval ok = (i>=0)?extendBackward(p, query.charAt(i), startCounts, endCounts):null;
+				if(ok==null || ok.getSize()==0) {
+					//p can not be extended. It is a SMEM if no longer match contains it
+					if(curr.isEmpty() && (smems.isEmpty() || i+1<smems.get(smems.size()-1).getQueryStart())) smems.add(p);
+				} else if (curr.isEmpty() || ok.getSize()!=curr.get(curr.size()-1).getSize()) {
+					curr.add(ok);
+				}
+			}
+			if(curr.isEmpty()) break;
+			prev = curr;
+		}
+		return answer;
+	}
+	
+	/**
+	 * Extends the given interval adding the given character at the start of the query segment
+	 * @param interval to extend
+	 * @param c Character to add
+	 * @return BidirectionalFMInterval Extended interval. null if the character is not in the alphabet
+	 */
+	public BidirectionalFMInterval extendBackward (BidirectionalFMInterval interval, char c) {
+		int alphabetSize = forwardIndex.getAlphabet().length();
+		return extendBackward(interval, c, new int[alphabetSize], new int[alphabetSize]);
+	}
+	
+	private BidirectionalFMInterval extendBackward (BidirectionalFMInterval interval, char c, int [] startCounts, int [] endCounts) {
+		int [] rows = extend(forwardIndex, interval.getForwardRow(), interval.getReverseRow(), interval.getSize(), c, startCounts, endCounts);
+		if(rows==null) return null;
+		return new BidirectionalFMInterval(rows[0], rows[1], rows[2], interval.getQueryStart()-1, interval.getQueryEnd());
+	}
+	
+	/**
+	 * Extends the given interval adding the given character at the end of the query segment
+	 * @param interval to extend
+	 * @param c Character to add
+	 * @return BidirectionalFMInterval Extended interval. null if the character is not in the alphabet
+	 */
+	public BidirectionalFMInterval extendForward (BidirectionalFMInterval interval, char c) {
+		int alphabetSize = forwardIndex.getAlphabet().length();
+		return extendForward(interval, c, new int[alphabetSize], new int[alphabetSize]);
+	}
+	
+	private BidirectionalFMInterval extendForward (BidirectionalFMInterval interval, char c, int [] startCounts, int [] endCounts) {
+		//Forward extension is a backward extension in the reverse index
+		int [] rows = extend(reverseIndex, interval.getReverseRow(), interval.getForwardRow(), interval.getSize(), c, startCounts, endCounts);
+		if(rows==null) return null;
+		return new BidirectionalFMInterval(rows[1], rows[0], rows[2], interval.getQueryStart(), interval.getQueryEnd()+1);
+	}
+	
+	/**
+	 * Performs a backward extension in the given index updating the interval of the complementary index
+	 * @param index in which the backward extension is performed
+	 * @param row First row of the interval in the given index
+	 * @param complementRow First row of the interval in the complementary index
+	 * @param size of the interval
+	 * @param c Character to add
+	 * @param startCounts Buffer to store the occurrence counts at the start of the interval
+	 * @param endCounts Buffer to store the occurrence counts at the end of the interval
+	 * @return int[] First row in the given index, first row in the complementary index and size of the new interval.
+	 * null if the character is not in the alphabet
+	 */
+	private int [] extend(FMIndexSingleSequence index, int row, int complementRow, int size, char c, int [] startCounts, int [] endCounts) {
+		int charIdx = index.getAlphabetIndex(c);
+		if(charIdx<0) return null;
+		int end = row+size;
+		if(size<=MAX_SIZE_SCAN_ROWS) {
+			int smaller = 0;
+			int newSize = 0;
+			for(int r=row;r<end;r++) {
+				char rowChar = index.getBWTCharacter(r);
+				if(rowChar==c) newSize++;
+				else if(rowChar<c) smaller++;
+			}
+			int newRow = index.getFirstRow(charIdx);
+			if(newSize>0) newRow+=index.getOccurrences(charIdx, row);
+			return new int [] {newRow, complementRow+smaller, newSize};
+		}
+		index.getOccurrences(row, startCounts);
+		index.getOccurrences(end, endCounts);
+		// Rows of the complementary interval are sorted by the character preceding the segment.
+		// The special character goes first followed by the characters of the alphabet
+		int smaller = 0;
+		int dollarRow = index.getSpecialCharacterRow();
+		if(row<=dollarRow && dollarRow<end) smaller++;
+		for(int j=0;j<charIdx;j++) {
+			smaller+=endCounts[j]-startCounts[j];
+		}
+		return new int [] {index.getFirstRow(charIdx)+startCounts[charIdx], complementRow+smaller, endCounts[charIdx]-startCounts[charIdx]};
+	}
+	
+	/**
+	 * Calculates the positions in the indexed sequence of the occurrences of the given interval
+	 * @param interval with the rows to locate
+	 * @param maxHits Maximum number of positions to calculate
+	 * @return int[] Positions (0-based) in the sequence of at most maxHits occurrences of the interval
+	 */
+	public int [] locate (BidirectionalFMInterval interval, int maxHits) {
+		int n = Math.min(interval.getSize(), maxHits);
+		int [] answer = new int [n];
+		for(int i=0;i<n;i++) {
+			answer[i] = forwardIndex.locate(interval.getForwardRow()+i);
+		}
+		return answer;
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+/**
+ * Pair of intervals representing the occurrences of a query segment in a bidirectional FM-index.
+ * The forward interval has the rows of the forward index starting with the segment and the reverse
+ * interval has the rows of the reverse index starting with the reverse of the segment.
+ * Both intervals have the same size
+ * @author Jorge Duitama
+ */
+public class BidirectionalFMInterval {
+	private int forwardRow;
+	private int reverseRow;
+	private int size;
+	private int queryStart;
+	private int queryEnd;
+	
+	/**
+	 * Creates a new interval
+	 * @param forwardRow First row of the interval in the forward index
+	 * @param reverseRow First row of the interval in the reverse index
+	 * @param size Number of rows of both intervals
+	 * @param queryStart Start of the query segment (0-based, included)
+	 * @param queryEnd End of the query segment (0-based, excluded)
+	 */
+	public BidirectionalFMInterval(int forwardRow, int reverseRow, int size, int queryStart, int queryEnd) {
+		this.forwardRow = forwardRow;
+		this.reverseRow = reverseRow;
+		this.size = size;
+		this.queryStart = queryStart;
+		this.queryEnd = queryEnd;
+	}
+	/**
+	 * @return int First row of the interval in the forward index
+	 */
+	public int getForwardRow() {
+		return forwardRow;
+	}
+	/**
+	 * @return int First row of the interval in the reverse index
+	 */
+	public int getReverseRow() {
+		return reverseRow;
+	}
+	/**
+	 * @return int Number of occurrences of the query segment
+	 */
+	public int getSize() {
+		return size;
+	}
+	/**
+	 * @return int Start of the query segment (0-based, included)
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+	/**
+	 * @return int End of the query segment (0-based, excluded)
+	 */
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+	/**
+	 * @return int Length of the query segment
+	 */
+	public int getQueryLength() {
+		return queryEnd - queryStart;
+	}
+}
@@ -167,7 +167,7 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		DNAShortKmer kmer = (DNAShortKmer) seq;
 		Integer k = inexactSearchKmerCluster(kmer);
 		if(k != null) {
-			return getCount(k);
+			return getClusterCount(k);
 		}
 		return 0;
 	}
@@ -175,10 +175,10 @@ public class DNAShortKmerClusterMap implements KmersMap {
 	/**
 	 * Counts the number of kmers in a given cluster by adding the number of
 	 * occurrences of each nucleotide
-	 * @param k
+	 * @param k Id of the cluster
 	 * @return int count
 	 */
-	private int getCount(Integer k) {
+	public int getClusterCount(int k) {
 		int count = 0;
 		for(int j = 0; j < table[k].length; j++) {
 			count += table[k*kmerLength][j];
@@ -197,7 +197,7 @@ public class DNAShortKmerClusterMap implements KmersMap {
 		while (it.hasNext()) {
 			Entry<DNAShortKmer, Integer> entry = it.next();
 			int k = entry.getValue();
-		    kmerSpectrum.processDatapoint(getCount(k));
+		    kmerSpectrum.processDatapoint(getClusterCount(k));
 		}
 		return kmerSpectrum;
 	}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+/**
+ * Rolling encoder of DNA k-mers with k up to 31 as long numbers using two bits per base.
+ * Codes are the same calculated by DNAShortKmer for the same k-mers. Bases are added one at a time
+ * and the codes of the forward k-mer and of its reverse complement are updated in constant time
+ * without creating objects. Characters different than A, C, G and T (upper or lower case) restart the encoding
+ * @author Jorge Duitama
+ */
+public class DNAShortKmerEncoder {
+	public static final int MAX_KMER_SIZE = 31;
+	private int kmerSize;
+	private long mask;
+	private int shiftReverse;
+	private long forward;
+	private long reverse;
+	//Number of valid bases added since the last restart
+	private int validBases;
+
+	/**
+	 * Creates an encoder for k-mers of the given size
+	 * @param kmerSize Length of the k-mers. It must be between 1 and 31
+	 */
+	public DNAShortKmerEncoder(int kmerSize) {
+		if(kmerSize<1 || kmerSize>MAX_KMER_SIZE) throw new IllegalArgumentException("Invalid k-mer size: "+kmerSize+". The k-mer size must be between 1 and "+MAX_KMER_SIZE);
+		this.kmerSize = kmerSize;
+		this.mask = (1L<<(2*kmerSize))-1;
+		this.shiftReverse = 2*(kmerSize-1);
+	}
+
+	public int getKmerSize() {
+		return kmerSize;
+	}
+
+	/**
+	 * Discards the bases added so far
+	 */
+	public void reset() {
+		forward = 0;
+		reverse = 0;
+		validBases = 0;
+	}
+
+	/**
+	 * Adds the given base at the end of the current k-mer
+	 * @param base to add
+	 * @return boolean true if the last kmerSize bases added form a valid k-mer
+	 */
+	public boolean addBase(char base) {
+		int code = getBaseCode(base);
+		if(code<0) {
+			reset();
+			return false;
+		}
+		forward = ((forward<<2) | code) & mask;
+		reverse = (reverse>>>2) | ((long)(3-code)<<shiftReverse);
+		if(validBases<kmerSize) validBases++;
+		return validBases==kmerSize;
+	}
+
+	/**
+	 * @return long code of the k-mer formed by the last kmerSize bases
+	 */
+	public long getForwardCode() {
+		return forward;
+	}
+
+	/**
+	 * @return long code of the reverse complement of the k-mer formed by the last kmerSize bases
+	 */
+	public long getReverseComplementCode() {
+		return reverse;
+	}
+
+	/**
+	 * @return long the minimum between the codes of the current k-mer and its reverse complement
+	 */
+	public long getCanonicalCode() {
+		return Math.min(forward, reverse);
+	}
+
+	/**
+	 * Calculates the two bits code of the given base
+	 * @param base DNA base in upper or lower case
+	 * @return int Index of the base in DNASequence.BASES_STRING. -1 if the base is not A, C, G or T
+	 */
+	public static int getBaseCode(char base) {
+		switch (base) {
+		case 'A':
+		case 'a':
+			return 0;
+		case 'C':
+		case 'c':
+			return 1;
+		case 'G':
+		case 'g':
+			return 2;
+		case 'T':
+		case 't':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+}
@@ -19,7 +19,6 @@
  *******************************************************************************/
 package ngsep.sequences;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -32,13 +31,9 @@ import ngsep.alignments.ReadAlignment;
  * @author German Andrade
  * @author Jorge Duitama
  */
-public class FMIndex implements Serializable
+public class FMIndex
 {
 	
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 6155320979838428304L;
 	private QualifiedSequenceList sequencesWithNames;
 	private List<Integer> sequenceLengths = new ArrayList<>();
 	private List<FMIndexSingleSequence> internalIndexes = new ArrayList<>();
@@ -142,12 +137,7 @@ public class FMIndex implements Serializable
 		return alignments;
 	}	
 }
-class CombinedMultisequenceFMIndexMetadata implements Serializable {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = -4208212205942777492L;
-	
+class CombinedMultisequenceFMIndexMetadata {
 	
 	private int firstInputSequenceIdx=-1;
 	private int lastInputSequenceIdx=-1;
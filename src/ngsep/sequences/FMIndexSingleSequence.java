@@ -19,41 +19,45 @@
  *******************************************************************************/
 package ngsep.sequences;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+
 /**
  * Class that implements an FM-index to perform quick queries over large
- * sequence databases
- * 
+ * sequence databases. The bwt and the partial suffix arrays are
+ * stored as flat primitive buffers. These can be either heap buffers, when the index is calculated,
+ * or read-only memory mapped buffers, when the index is loaded from a binary file.
+ * DNA sequences are stored as a 2-bit packed bwt with interleaved occurrence counts. Other sequences
+ * are stored with one byte per character and sampled tally indexes
+ *
  * @author German Andrade
  * @author Jorge Duitama
  * @author Juan Camilo Bojaca
  */
-public class FMIndexSingleSequence implements Serializable {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 5981359942407474671L;
+public class FMIndexSingleSequence {
 
 	private static final int DEFAULT_TALLY_DISTANCE = 64;
 	private static final int DEFAULT_SUFFIX_FRACTION = 100;
+	// The packed bwt is used if at most 1 of each MIN_PACKED_RATIO characters is not a DNA base
+	private static final int MIN_PACKED_RATIO = 16;
 
-	// Start position in the original sequence of some rows of the BW matrix
-	// representing a partial suffix array
-	private Map<Integer, Integer> partialSuffixArray = new HashMap<>();
-	//Partial map indexed by sequence first position
-	private Map<Integer, Integer> partialReverseSuffixArray = new HashMap<>();
-
-	// Ranks in the bwt for each character in the alphabet for some of the rows in
-	// the BW matrix
-	private int[][] tallyIndexes;
+	// Marks the rows of the BW matrix having a known start position in the original sequence.
+	// Together with sampledPositions it represents a partial suffix array
+	private RankedBitVector sampledRows;
+	// Start position in the original sequence of the rows marked in sampledRows, ordered by row
+	private IntBuffer sampledPositions;
+	// Partial reverse suffix array. Position i has the row of the BW matrix starting at position i*suffixFraction
+	private IntBuffer partialReverseSuffixArray;
 
 	// 1 of each tallyDistance is saved
 	private int tallyDistance;
@@ -62,24 +66,20 @@ public class FMIndexSingleSequence implements Serializable {
 	private int suffixFraction;
 
 	// Burrows Wheeler transform
-	private byte [] bwt;
+	private BWTIndex bwt;
+	private int bwtLength;
 
-	//For each character tells the number of times it appears
-	private Map<Character, Integer> characterCounts;
-	// For each character tells the first time it appears in the left column of the
+	//For each character of the alphabet tells the number of times it appears
+	private int [] characterCounts;
+	// For each character of the alphabet tells the first time it appears in the left column of the
 	// BW matrix
-	private Map<Character, Integer> firstRowsInMatrix;
-
-	// For each character tells the last time it appears in the left column of the
-	// BW matrix
-	private Map<Character, Integer> lastRowsInMatrix;
-	
-	
+	private int [] firstRowsInMatrix;
 
 	// Inferred alphabet of the sequence ordered lexicographical
 	private String alphabet;
-	
-	private Map<Character, Integer> alphabetIndexes;
+
+	// Index in the alphabet plus one of each ASCII character. Zero for characters not in the alphabet
+	private byte [] alphabetIndexes;
 
 	private int maxDifferencesInexactSearch = 1;
 
@@ -93,6 +93,10 @@ public class FMIndexSingleSequence implements Serializable {
 		calculate(sequence);
 	}
 
+	private FMIndexSingleSequence() {
+
+	}
+
 	public int getTallyDistance() {
 		return tallyDistance;
 	}
@@ -104,100 +108,232 @@ public class FMIndexSingleSequence implements Serializable {
 	 * @return Length of the sequence represented by this FMIndex
 	 */
 	public int getSequenceLength() {
-		return bwt.length-1;
+		return bwtLength-1;
 	}
 
 	private void calculate(CharSequence sequence) {
 		SuffixArrayGenerator suffixArrayGenerator = new SuffixArrayGenerator(sequence);
 		alphabet = suffixArrayGenerator.getAlphabet();
-		characterCounts = new TreeMap<>(suffixArrayGenerator.getCharacterCounts());
-		buildCharacterFirstAndLastRows();
+		Map<Character, Integer> counts = suffixArrayGenerator.getCharacterCounts();
+		characterCounts = new int [alphabet.length()];
+		for(int i=0;i<alphabet.length();i++) characterCounts[i] = counts.get(alphabet.charAt(i));
+		buildAlphabetIndexes();
+		buildCharacterFirstRows();
 		int [] sa = suffixArrayGenerator.getSuffixArray();
 		//System.out.println("First pos SA: "+sa[0]+" "+sa[1]+" "+sa[2] );
 		int [] reverseSA = suffixArrayGenerator.getReverseSuffixArray();
-		
-		alphabetIndexes = new HashMap<>();
-		for(int i=0;i<alphabet.length();i++) alphabetIndexes.put(alphabet.charAt(i), i);
-		
-		
+
 		buildBWT(sequence, sa, reverseSA);
-		
+
 		createPartialSuffixArray(sa, reverseSA);
-		buildTally();
 		//printIndexInfo();
 	}
 
 	private void printIndexInfo() {
 		System.out.println("Alphabet: "+alphabet);
-		System.out.println("BWT: "+new String(bwt));
-		System.out.println("Partial array: "+partialSuffixArray);
-		System.out.println("Partial reverse array: "+partialReverseSuffixArray);
-		System.out.println("First rows: "+firstRowsInMatrix);
-		System.out.println("Last rows: "+lastRowsInMatrix);
-	}
-
-	private void buildCharacterFirstAndLastRows() {
-		firstRowsInMatrix = new TreeMap<>();
-		lastRowsInMatrix = new TreeMap<>();
-		char spec = SuffixArrayGenerator.SPECIAL_CHARACTER;
-		firstRowsInMatrix.put(spec, 0);
-		lastRowsInMatrix.put(spec, 0);
+		StringBuilder bwtStr = new StringBuilder();
+		for(int i=0;i<bwtLength;i++) bwtStr.append(bwt.getCharacter(i));
+		System.out.println("BWT: "+bwtStr);
+		System.out.println("Partial array rows: "+sampledRows.getNumOnes());
+		System.out.println("Partial reverse array: "+partialReverseSuffixArray.limit());
+		System.out.println("First rows: "+Arrays.toString(firstRowsInMatrix));
+		System.out.println("Counts: "+Arrays.toString(characterCounts));
+	}
+
+	private void buildAlphabetIndexes() {
+		alphabetIndexes = new byte[128];
+		for(int i=0;i<alphabet.length();i++) alphabetIndexes[alphabet.charAt(i)] = (byte)(i+1);
+	}
+
+	private void buildCharacterFirstRows() {
+		firstRowsInMatrix = new int [alphabet.length()];
+		//The first row is the special character
 		int totalChars = 1;
 		for(int i=0;i<alphabet.length();i++) {
-			char c = alphabet.charAt(i);
-			firstRowsInMatrix.put(c, totalChars);
-	    	totalChars += characterCounts.get(c);
-	    	lastRowsInMatrix.put(c, totalChars - 1);
+			firstRowsInMatrix[i] = totalChars;
+	    	totalChars += characterCounts[i];
 		}
 	}
-	
+
+	/**
+	 * @return String Characters of the indexed sequence sorted lexicographically. Does not include the special character
+	 */
+	public String getAlphabet() {
+		return alphabet;
+	}
+
+	/**
+	 * @param c Character to search
+	 * @return int Index of the character in the alphabet. -1 if the character is not in the alphabet
+	 */
+	public int getAlphabetIndex (char c) {
+		if(c>=alphabetIndexes.length) return -1;
+		return alphabetIndexes[c]-1;
+	}
+
+	/**
+	 * @param charIdx Index of a character in the alphabet
+	 * @return int First row of the BW matrix starting with the given character
+	 */
+	public int getFirstRow (int charIdx) {
+		return firstRowsInMatrix[charIdx];
+	}
+
+	/**
+	 * @param charIdx Index of a character in the alphabet
+	 * @return int Number of times that the given character appears in the indexed sequence
+	 */
+	public int getCharacterCount (int charIdx) {
+		return characterCounts[charIdx];
+	}
+
+	/**
+	 * Counts the occurrences of a character in the bwt before the given row
+	 * @param charIdx Index of the character in the alphabet
+	 * @param row of the index. It can be equal to the sequence length plus one
+	 * @return int Number of occurrences of the character in rows [0,row)
+	 */
+	public int getOccurrences (int charIdx, int row) {
+		return bwt.getOccurrences(charIdx, row);
+	}
+
+	/**
+	 * @param row of the index
+	 * @return char Character of the bwt at the given row. It can be the special character
+	 */
+	public char getBWTCharacter (int row) {
+		return bwt.getCharacter(row);
+	}
+
+	/**
+	 * Counts the occurrences of every character of the alphabet in the bwt before the given row
+	 * @param row of the index. It can be equal to the sequence length plus one
+	 * @param counts Array to store the counts. It must have one position for each character of the alphabet
+	 */
+	public void getOccurrences (int row, int [] counts) {
+		bwt.getOccurrences(row, counts);
+	}
+
+	/**
+	 * @return int Row of the index having the special character in the bwt.
+	 * This is the row of the suffix starting at the first position of the sequence
+	 */
+	public int getSpecialCharacterRow () {
+		return partialReverseSuffixArray.get(0);
+	}
+
 	private void buildBWT(CharSequence sequence, int [] sa, int [] reverseSA) {
-		bwt = new byte[sequence.length() + 1];
-	
+		bwtLength = sequence.length() + 1;
+		byte [] bwtArray = new byte[bwtLength];
+
 		if(sa[0]!=sequence.length()) throw new RuntimeException("Suffix array should have "+sequence.length()+" as first entry");
 		//assert sa[0]==sequence.length();
 		int j = 0;
 		for (int i : sa) {
 			if (i > 0) {
-				bwt[j] = (byte)sequence.charAt(i - 1);
+				bwtArray[j] = (byte)sequence.charAt(i - 1);
 			} else {
-				bwt[j] = SuffixArrayGenerator.SPECIAL_CHARACTER;
+				bwtArray[j] = SuffixArrayGenerator.SPECIAL_CHARACTER;
 			}
 			j++;
 		}
+		int exceptions = PackedDNABWTIndex.countExceptions(bwtArray);
+		if((long)MIN_PACKED_RATIO*exceptions<=bwtLength) bwt = new PackedDNABWTIndex(bwtArray, alphabet);
+		else bwt = new SampledTallyBWTIndex(bwtArray, alphabet, tallyDistance);
 	}
 
-	private void buildTally() {
-		int tallyRows = bwt.length / tallyDistance;
-		if (bwt.length % tallyDistance > 0) tallyRows++;
-		
-		final int[] arr = new int[alphabet.length()];
-		tallyIndexes = new int[tallyRows][alphabet.length()];
-		
-
-		int j = 0;
-		for (int i = 0; i < bwt.length; i++) {
-			char c = (char)bwt[i];
-			if (c != SuffixArrayGenerator.SPECIAL_CHARACTER) {
-				int indexC = alphabetIndexes.get(c);
-				arr[indexC]++;
-			}
-			if (i % tallyDistance == 0) {
-				System.arraycopy(arr, 0, tallyIndexes[j], 0, arr.length);
-				j++;
-			}
+	private void createPartialSuffixArray(int [] sa, int [] reverseSA) {
+		int numSampled = (reverseSA.length-1)/suffixFraction+1;
+		int [] reverseSampled = new int [numSampled];
+		//Pairs row-position sorted by row
+		long [] pairs = new long [numSampled+1];
+		pairs[0] = ((long)0 << 32) | sa[0];
+		for (int i = 0; i < reverseSA.length; i += suffixFraction) {
+			int k = i/suffixFraction;
+			reverseSampled[k] = reverseSA[i];
+			pairs[k+1] = ((long)reverseSA[i] << 32) | i;
 		}
+		Arrays.sort(pairs);
+		int [] rows = new int [pairs.length];
+		int [] positions = new int [pairs.length];
+		int n = 0;
+		for(int i=0;i<pairs.length;i++) {
+			int row = (int) (pairs[i] >>> 32);
+			if(n>0 && rows[n-1]==row) continue;
+			rows[n] = row;
+			positions[n] = (int) pairs[i];
+			n++;
+		}
+		sampledRows = new RankedBitVector(bwtLength, Arrays.copyOf(rows, n));
+		sampledPositions = IntBuffer.wrap(Arrays.copyOf(positions, n));
+		partialReverseSuffixArray = IntBuffer.wrap(reverseSampled);
 	}
 
-	private void createPartialSuffixArray(int [] sa, int [] reverseSA) {
-		partialSuffixArray = new HashMap<>();
-		partialReverseSuffixArray = new HashMap<>();
-		partialSuffixArray.put(0, sa[0]);
-		partialReverseSuffixArray.put(sa[0], 0);
-		for (int i = 0; i < reverseSA.length; i += suffixFraction) {
-			partialSuffixArray.put(reverseSA[i], i);
-			partialReverseSuffixArray.put(i, reverseSA[i]);
+	/**
+	 * Saves this index in the given binary file writer as a series of flat little-endian sections
+	 * @param writer Writer of the binary file
+	 * @throws IOException If the index can not be written
+	 */
+	public void save (BinaryFileWriter writer) throws IOException {
+		int alphabetLength = alphabet.length();
+		writer.writeInt(tallyDistance);
+		writer.writeInt(suffixFraction);
+		writer.writeInt(bwtLength);
+		writer.writeInt(alphabetLength);
+		writer.writeInt(sampledPositions.limit());
+		writer.writeInt(partialReverseSuffixArray.limit());
+		writer.writeBytes(alphabet.getBytes(StandardCharsets.US_ASCII));
+		writer.align();
+		writer.writeInts(characterCounts);
+		writer.align();
+		writer.writeInt(bwt.getType());
+		writer.align();
+		bwt.save(writer);
+		sampledRows.save(writer);
+		writer.writeInts(sampledPositions);
+		writer.align();
+		writer.writeInts(partialReverseSuffixArray);
+		writer.align();
+	}
+
+	/**
+	 * Loads an index saved with the save method. Large sections are memory mapped and
+	 * shared with other processes loading the same file
+	 * @param reader Positioned at the start of the index
+	 * @return FMIndexSingleSequence Index backed by read-only mapped buffers
+	 * @throws IOException If the index can not be read
+	 */
+	public static FMIndexSingleSequence load (MappedBinaryFileReader reader) throws IOException {
+		FMIndexSingleSequence answer = new FMIndexSingleSequence();
+		answer.tallyDistance = reader.readInt();
+		answer.suffixFraction = reader.readInt();
+		answer.bwtLength = reader.readInt();
+		int alphabetLength = reader.readInt();
+		int numSampledRows = reader.readInt();
+		int numReverseSampled = reader.readInt();
+		if(answer.tallyDistance<=0 || answer.suffixFraction<=0 || answer.bwtLength<=0 || alphabetLength<0) {
+			throw new IOException("Corrupted FM-index header at position "+reader.getPosition());
 		}
+		answer.alphabet = new String(reader.readBytes(alphabetLength),StandardCharsets.US_ASCII);
+		reader.align();
+		answer.characterCounts = new int [alphabetLength];
+		for(int i=0;i<alphabetLength;i++) answer.characterCounts[i] = reader.readInt();
+		reader.align();
+		answer.buildAlphabetIndexes();
+		answer.buildCharacterFirstRows();
+		int bwtType = reader.readInt();
+		reader.align();
+		if(bwtType == BWTIndex.TYPE_PACKED_DNA) answer.bwt = PackedDNABWTIndex.load(reader);
+		else if (bwtType == BWTIndex.TYPE_SAMPLED_TALLY) answer.bwt = SampledTallyBWTIndex.load(reader);
+		else throw new IOException("Unknown BWT type "+bwtType+" at position "+reader.getPosition());
+		if(answer.bwt.length()!=answer.bwtLength) throw new IOException("Corrupted BWT at position "+reader.getPosition()+". Expected length: "+answer.bwtLength+" loaded: "+answer.bwt.length());
+		answer.sampledRows = RankedBitVector.load(reader);
+		if(answer.sampledRows.length()!=answer.bwtLength || answer.sampledRows.getNumOnes()!=numSampledRows) throw new IOException("Corrupted partial suffix array at position "+reader.getPosition());
+		answer.sampledPositions = reader.mapInts(numSampledRows);
+		reader.align();
+		answer.partialReverseSuffixArray = reader.mapInts(numReverseSampled);
+		reader.align();
+		return answer;
 	}
 
 	/**
@@ -220,28 +356,25 @@ public class FMIndexSingleSequence implements Serializable {
 		//System.out.println("Search sequence: "+searchSequence+"range: "+range[0]+"-"+range[1]);
 		return getSequenceIndexes(range[0],range[1]);
 	}
-	
+
 	/**
 	 * Looks for the range of row indexes in this index having matches to the given query
 	 * @param query sequence
 	 * @return int [] array with two indexes, the first and last row of this index having exact matches to the given query
 	 * null if the sequence can not be found
 	 */
-	public int[] getRange(String query) {
-		char actualChar = query.charAt(query.length() - 1);
-
-		Integer rowS = firstRowsInMatrix.get(actualChar);
-		Integer rowF = lastRowsInMatrix.get(actualChar);
-		//System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
-		if (rowS == null || rowF == null || rowS == -1 || rowF == -1) {
-			return null;
-		}
+	public int[] getRange(CharSequence query) {
+		int charIdx = getAlphabetIndex(query.charAt(query.length() - 1));
+		if (charIdx<0) return null;
+		int rowS = firstRowsInMatrix[charIdx];
+		int rowF = rowS + characterCounts[charIdx] - 1;
+		//System.out.println("Char: "+query.charAt(query.length() - 1)+" Range: "+rowS+"-"+rowF);
 		for (int j = query.length() - 2; j >= 0; j--) {
-			actualChar = query.charAt(j);
-			if (alphabet.indexOf(actualChar) < 0)
-				return null;
-			rowS = lfMapping(actualChar, rowS, true);
-			rowF = lfMapping(actualChar, rowF, false);
+			charIdx = getAlphabetIndex(query.charAt(j));
+			if (charIdx < 0) return null;
+			int first = firstRowsInMatrix[charIdx];
+			rowS = first + bwt.getOccurrences(charIdx, rowS);
+			rowF = first + bwt.getOccurrences(charIdx, rowF+1) - 1;
 			if (rowS > rowF) {
 				return null;
 			}
@@ -252,7 +385,31 @@ public class FMIndexSingleSequence implements Serializable {
 	}
 
 	/**
-	 * Provides the start indexes in the original sequence corresponding to the given start 
+	 * Extends backwards from the given end a match of a segment of the given query
+	 * @param query sequence
+	 * @param minStart Minimum start of the match (0-based, included)
+	 * @param end End of the match (0-based, excluded)
+	 * @return int Start of the longest segment of the query ending at end that has exact matches in this index,
+	 * considering only starts larger or equal than minStart. Returns end if the character before end can not be found
+	 */
+	public int getMatchStart(CharSequence query, int minStart, int end) {
+		int rowS = 0;
+		int rowF = bwtLength-1;
+		for (int j = end - 1; j >= minStart; j--) {
+			int charIdx = getAlphabetIndex(query.charAt(j));
+			if (charIdx < 0) return j+1;
+			int first = firstRowsInMatrix[charIdx];
+			int nextRowS = first + bwt.getOccurrences(charIdx, rowS);
+			int nextRowF = first + bwt.getOccurrences(charIdx, rowF+1) - 1;
+			if (nextRowS > nextRowF) return j+1;
+			rowS = nextRowS;
+			rowF = nextRowF;
+		}
+		return minStart;
+	}
+
+	/**
+	 * Provides the start indexes in the original sequence corresponding to the given start
 	 * @param firstRow of this index
 	 * @param lastRow of this index
 	 * @return Set<Integer> Start positions in the subject sequence (values of the suffix array)
@@ -262,57 +419,40 @@ public class FMIndexSingleSequence implements Serializable {
 		// From this point is just transform the range into the real indexes in the
 		// sequence
 		for (int i = firstRow; i <= lastRow; i++) {
-			int row = i;
-			Integer begin = partialSuffixArray.get(row);
-			int steps;
-			for (steps = 0; begin == null; steps++) {
-				//System.out.println("Next row: "+row+" bwt: "+((char)bwt[row])+" steps: "+steps);
-				row = lfMapping(row);
-				begin = partialSuffixArray.get(row);
-			}
-			begin += steps;
-			startIndexes.add(begin);
+			startIndexes.add(locate(i));
 		}
 		return startIndexes;
 	}
 
 	/**
-	 * Returns the tally count for the given character in the given row of this index 
+	 * Calculates the start position in the original sequence of the given row.
+	 * Follows the LF mapping until a row marked in the partial suffix array is found
+	 * @param row of this index
+	 * @return int Start position in the subject sequence (value of the suffix array)
+	 */
+	public int locate(int row) {
+		int steps;
+		for (steps = 0; !sampledRows.get(row); steps++) {
+			//System.out.println("Next row: "+row+" bwt: "+((char)bwt[row])+" steps: "+steps);
+			row = lfMapping(row);
+		}
+		return sampledPositions.get(sampledRows.rank(row)) + steps;
+	}
+
+	/**
+	 * Returns the tally count for the given character in the given row of this index
 	 * @param c character to count. c must belong to the alphabet of this index
 	 * @param row to query
 	 * @return int count of appearances of the character c in the bwt up to the given row
 	 */
 	public int getTallyCount(char c, int row) {
-		int r = 0;
-
-		int a = row / tallyDistance;
-		int b = a + 1;
-
-		if (row - a * tallyDistance < b * tallyDistance - row || tallyIndexes.length <= b) {
-			// Recalculate from top record
-			r = tallyIndexes[a][alphabet.indexOf(c)];
-
-			for (int j = a * tallyDistance + 1; j <= row; j++) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r++;
-			}
-		} else {
-			// Recalculate from bottom record
-			r = tallyIndexes[b][alphabet.indexOf(c)];
-			for (int j = b * tallyDistance; j > row; j--) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r--;
-			}
-		}
-		return r;
+		return bwt.getOccurrences(getAlphabetIndex(c), row+1);
 	}
 
 	/**
 	 * Finds the row corresponding to the given character in the given row of the
 	 * index, according to the tally indexes in that row
-	 * 
+	 *
 	 * @param c Character to query
 	 * @param row of the index to query
 	 * @param firstIndexAfter If true, calculates the rank of the character at or after the row
@@ -320,20 +460,15 @@ public class FMIndexSingleSequence implements Serializable {
 	 *         to the tally indexes at the given row
 	 */
 	private int lfMapping(char c, int row, boolean firstIndexAfter) {
-
-		int rank = getTallyCount(c, row);
-		// add1 is true when actualChar is different of bwt[rowS] because in this case,
-		// the last appearance of actualChar before rowS is outside the range defined by
-		// rowS, rowF
-		boolean add1 = firstIndexAfter && (bwt[row] != c);
-		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsInMatrix.get(c));
-		int newRank = firstRowsInMatrix.get(c) + rank - 1;
-		if (add1) newRank++;
-		return newRank;
+		int charIdx = getAlphabetIndex(c);
+		// If firstIndexAfter is true, occurrences before the row are counted because the first
+		// appearance of c at or after the row is the first one inside the range starting at the row
+		if(firstIndexAfter) return firstRowsInMatrix[charIdx] + bwt.getOccurrences(charIdx, row);
+		return firstRowsInMatrix[charIdx] + bwt.getOccurrences(charIdx, row+1) - 1;
 	}
 
 	private int lfMapping(int row) {
-		char c = (char)bwt[row];
+		char c = bwt.getCharacter(row);
 		// System.out.println(""+c);
 		return lfMapping(c, row, false);
 	}
@@ -346,27 +481,28 @@ public class FMIndexSingleSequence implements Serializable {
 	 */
 	public CharSequence getSequence (int start, int end)
 	{
-		if(start>=bwt.length) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+start);
-		if(end>=bwt.length) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+end);
+		if(start>=bwtLength) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+start);
+		if(end>=bwtLength) throw new StringIndexOutOfBoundsException("Invalid coordinate: "+end);
 		if(start>=end) throw new StringIndexOutOfBoundsException("Start position "+start+" should be smaller than end position: "+end);
 		int endReverseSA = end;
-		Integer endRow = partialReverseSuffixArray.get(endReverseSA);
-		if (endRow == null) {
+		if (endReverseSA%suffixFraction!=0) {
 			endReverseSA = suffixFraction*((endReverseSA/suffixFraction)+1);
-			if(endReverseSA>bwt.length-1) endReverseSA = bwt.length-1;
-			endRow = partialReverseSuffixArray.get(endReverseSA);
-			if(endRow==null) throw new RuntimeException("SA index not found for sequence position: "+endReverseSA+" query: "+start+"-"+end+" sequence length: "+(bwt.length-1));
+			if(endReverseSA>bwtLength-1) endReverseSA = bwtLength-1;
 		}
+		int endRow;
+		//The last position of the sequence corresponds to the first row of the matrix
+		if(endReverseSA==bwtLength-1) endRow = 0;
+		else endRow = partialReverseSuffixArray.get(endReverseSA/suffixFraction);
 		int j=endRow;
 		StringBuilder answer = new StringBuilder();
 		for(int i=endReverseSA;i>start;i--) {
-			char c = (char)bwt[j];
+			char c = bwt.getCharacter(j);
 			if(i<=end) answer.append(c);
 			j=lfMapping(j);
 		}
 		return answer.reverse();
 	}
-	
+
 	public static void main(String[] args) {
 		System.out.println("Testing inexactSearch BWA");
 		FMIndexSingleSequence f = new FMIndexSingleSequence(args[0]);
@@ -404,7 +540,7 @@ public class FMIndexSingleSequence implements Serializable {
 		int[] d = calculateD(searchSequence);
 
 		List<int[]> ranges = inexactRecurrentSearch(searchSequence, searchSequence.length() - 1,
-				maxDifferencesInexactSearch, 1, bwt.length - 1, d);
+				maxDifferencesInexactSearch, 1, bwtLength - 1, d);
 		Set<Integer> indexes = new TreeSet<>();
 		for (int[] range : ranges) {
 			indexes.addAll(getSequenceIndexes(range[0], range[1]));
@@ -23,11 +23,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.sequences.io.FastqFileReader;
 
 /**
@@ -36,11 +46,17 @@ import ngsep.sequences.io.FastqFileReader;
  *
  */
 public class FastqFileErrorCorrector {
+	public static final int DEF_NUM_THREADS = 1;
+	/**
+	 * Number of reads corrected by a single task
+	 */
+	public static final int READS_BATCH_SIZE = 1000;
 	private Logger log = Logger.getLogger(FastqFileErrorCorrector.class.getName());
 	private KmersMap kmersMap;
 	private int kmerSize = KmersCounter.DEFAULT_KMER_SIZE;
 	private int minAbundance = 5;
-	private int correctedErrors = 0;
+	private long correctedErrors = 0;
+	private int numThreads = DEF_NUM_THREADS;
 	/**
 	 * @return the minCount
 	 */
@@ -62,6 +78,18 @@ public class FastqFileErrorCorrector {
 		this.setMinAbundance(minAbundance.intValue());
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		FastqFileErrorCorrector instance = new FastqFileErrorCorrector();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -77,6 +105,7 @@ public class FastqFileErrorCorrector {
 		KmersCounter counter = new KmersCounter();
 		counter.setLog(log);
 		counter.setKmerSize(kmerSize);
+		counter.setNumThreads(numThreads);
 		counter.processFile(inFilename);
 		kmersMap = counter.getKmersMap();
 		log.info("Filtering from "+kmersMap.size()+" k-mers by minimum abundance: "+minAbundance);
@@ -86,20 +115,60 @@ public class FastqFileErrorCorrector {
 		kmerSize = counter.getKmerSize();
 		System.out.println("Extracted "+kmersMap.size()+" filtered k-mers from: "+inFilename);
 		System.out.println("Processing file: "+inFilename);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<List<RawRead>>> pendingBatches = new ArrayDeque<>();
 		try (FastqFileReader reader = new FastqFileReader(inFilename);
 			 OutputStream os = new GZIPOutputStream(new FileOutputStream(outFilename));
 			 PrintStream out = new PrintStream(os)) {
+			//Reads are corrected in parallel by batches and written in the order of the input file
 			Iterator<RawRead> it = reader.iterator();
 			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead (read);
-				read.save(out);
+				final List<RawRead> reads = new ArrayList<>(READS_BATCH_SIZE);
+				while(it.hasNext() && reads.size()<READS_BATCH_SIZE) reads.add(it.next());
+				pendingBatches.add(pool.submit(new Callable<List<RawRead>>() {
+					@Override
+					public List<RawRead> call() {
+						int corrections = 0;
+						for(RawRead read:reads) corrections+=processRead(read);
+						addCorrectedErrors(corrections);
+						return reads;
+					}
+				}));
+				if(pendingBatches.size()>=2*numThreads) writeBatch(pendingBatches.poll(), out);
 			}
+			while(!pendingBatches.isEmpty()) writeBatch(pendingBatches.poll(), out);
+		} finally {
+			pool.shutdownNow();
 		}
 		System.out.println("Corrected "+correctedErrors+" potential errors. Output written to "+outFilename);
 	}
+	
+	private synchronized void addCorrectedErrors(int corrections) {
+		correctedErrors+=corrections;
+	}
+
+	private void writeBatch(Future<List<RawRead>> batchFuture, PrintStream out) {
+		List<RawRead> reads;
+		try {
+			reads = batchFuture.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for corrected reads",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error correcting reads",cause);
+		}
+		for(RawRead read:reads) read.save(out);
+	}
 
-	public void processRead(RawRead read) {
+	/**
+	 * Corrects errors in the given read. The k-mers table is only queried,
+	 * so this method can be called concurrently for different reads
+	 * @param read to correct. The characters of the read are replaced if errors are corrected
+	 * @return int Number of corrected errors
+	 */
+	public int processRead(RawRead read) {
+		int corrections = 0;
 		for(int h=0;h<3;h++) {
 			String readStr = read.getCharacters().toString();
 			char [] readChars = readStr.toCharArray();
@@ -118,17 +187,23 @@ public class FastqFileErrorCorrector {
 			for(int i=0;i<readKmers.length;i++) {
 				if(readKmerCounts[i] >= minAbundance) {
 					if(i-1!=lastRepresented) {
-						corrected = corrected || correctErrors (readChars,lastRepresented,i);
+						if(!corrected && correctErrors (readChars,lastRepresented,i)) {
+							corrected = true;
+							corrections++;
+						}
 					}
 					lastRepresented = i;
 				}
 			}
-			corrected = corrected || correctErrors (readChars,lastRepresented,readChars.length);
+			if(!corrected && correctErrors (readChars,lastRepresented,readChars.length)) {
+				corrected = true;
+				corrections++;
+			}
 			if (corrected) {
 				read.setCharacters(new String(readChars));
 			} else break;
 		}
-		
+		return corrections;
 	}
 
 	private boolean correctErrors(char [] readChars, int lastRepresented, int nextRepresented) {
@@ -157,7 +232,6 @@ public class FastqFileErrorCorrector {
 		}
 		if(bestI>=0) {
 			readChars[bestI] = bestBP;
-			correctedErrors++;
 			return true;
 		}
 		return false;
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.math.Distribution;
+
+/**
+ * Counts k-mers with k up to 31 partitioning them in buckets saved in temporary files.
+ * In a first pass, sequences are split in super-k-mers, which are maximal runs of consecutive k-mers sharing the same minimizer.
+ * Each super-k-mer is appended to the bucket selected by its minimizer. Minimizers are calculated over canonical m-mers
+ * so that a k-mer and its reverse complement always fall in the same bucket. In the second pass, the k-mers of each bucket
+ * are counted independently. Hence, the memory needed to count is bounded by the number of distinct k-mers of the largest bucket
+ * @author Jorge Duitama
+ */
+class KmerBucketsCounter implements Closeable {
+	public static final int DEF_MINIMIZER_LENGTH = 11;
+	/**
+	 * Maximum number of bases of a sequence processed at once
+	 */
+	private static final int CHUNK_LENGTH = 1000000;
+	/**
+	 * Maximum number of characters kept in memory before writing super-k-mers to the buckets
+	 */
+	private static final int MAX_BUFFERED_CHARS = 1<<22;
+
+	private Logger log;
+	private int kmerSize;
+	private int minimizerLength;
+	private boolean bothStrands;
+	private File [] bucketFiles;
+	private Writer [] bucketWriters;
+
+	/**
+	 * Creates the temporary files of the buckets
+	 * @param kmerSize Length of the k-mers to count
+	 * @param bothStrands Tells if the reverse complement of each k-mer should also be counted
+	 * @param numBuckets Number of buckets
+	 * @param tmpDir Directory to store the buckets. If null, the default temporary directory is used
+	 * @param log Logger to report progress
+	 * @throws IOException If the files can not be created
+	 */
+	KmerBucketsCounter(int kmerSize, boolean bothStrands, int numBuckets, File tmpDir, Logger log) throws IOException {
+		if(kmerSize>DNAShortKmerEncoder.MAX_KMER_SIZE) throw new IllegalArgumentException("The k-mer size for counting in buckets must be less or equal than "+DNAShortKmerEncoder.MAX_KMER_SIZE);
+		this.kmerSize = kmerSize;
+		this.minimizerLength = Math.min(DEF_MINIMIZER_LENGTH, kmerSize);
+		this.bothStrands = bothStrands;
+		this.log = log;
+		bucketFiles = new File[numBuckets];
+		bucketWriters = new Writer[numBuckets];
+		try {
+			for(int i=0;i<numBuckets;i++) {
+				bucketFiles[i] = File.createTempFile("ngsepKmers", ".txt", tmpDir);
+				bucketWriters[i] = new BufferedWriter(new FileWriter(bucketFiles[i]));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Splits the given sequences in super-k-mers and appends them to the buckets.
+	 * This method can be called concurrently from different threads
+	 * @param sequences to process
+	 * @throws IOException If the super-k-mers can not be written
+	 */
+	void addSequences(List<String> sequences) throws IOException {
+		StringBuilder [] buffers = new StringBuilder[bucketWriters.length];
+		int buffered = 0;
+		for(String seq:sequences) {
+			int n = seq.length();
+			int start = 0;
+			while(start<n) {
+				//Find the next segment of valid DNA bases
+				while(start<n && DNAShortKmerEncoder.getBaseCode(seq.charAt(start))<0) start++;
+				int end = start;
+				while(end<n && DNAShortKmerEncoder.getBaseCode(seq.charAt(end))>=0) end++;
+				//Process long segments in chunks overlapping by kmerSize-1 bases
+				for(int chunkStart=start;chunkStart+kmerSize<=end;chunkStart+=CHUNK_LENGTH) {
+					int chunkEnd = Math.min(end, chunkStart+CHUNK_LENGTH+kmerSize-1);
+					buffered+=addSuperKmers(seq, chunkStart, chunkEnd, buffers);
+					if(buffered>=MAX_BUFFERED_CHARS) {
+						flush(buffers);
+						buffered = 0;
+					}
+				}
+				start = end;
+			}
+		}
+		flush(buffers);
+	}
+
+	/**
+	 * Splits the given segment in super-k-mers
+	 * @param seq Sequence to process
+	 * @param start First position of the segment. Inclusive
+	 * @param end Last position of the segment. Exclusive. All characters within the segment must be valid DNA bases
+	 * @param buffers Buffers to store the super-k-mers of each bucket
+	 * @return int Number of characters added to the buffers
+	 */
+	private int addSuperKmers(String seq, int start, int end, StringBuilder [] buffers) {
+		int numMmers = end-start-minimizerLength+1;
+		int numKmers = end-start-kmerSize+1;
+		//Number of m-mers within a k-mer
+		int window = kmerSize-minimizerLength+1;
+		long [] hashes = new long[numMmers];
+		DNAShortKmerEncoder encoder = new DNAShortKmerEncoder(minimizerLength);
+		for(int i=start;i<end;i++) {
+			encoder.addBase(seq.charAt(i));
+			int mmerStart = i-minimizerLength+1-start;
+			if(mmerStart>=0) hashes[mmerStart] = LongKmersMapImpl.hash(encoder.getCanonicalCode());
+		}
+		//Sliding window minimum. The queue keeps indexes of m-mers with increasing hashes
+		int [] queue = new int[numMmers];
+		int head = 0;
+		int tail = 0;
+		long currentMinimizer = 0;
+		int superKmerStart = 0;
+		int added = 0;
+		for(int j=0;j<numMmers;j++) {
+			while(tail>head && hashes[queue[tail-1]]>hashes[j]) tail--;
+			queue[tail++] = j;
+			int kmerStart = j-window+1;
+			if(kmerStart<0) continue;
+			while(queue[head]<kmerStart) head++;
+			long minimizer = hashes[queue[head]];
+			if(kmerStart==0) {
+				currentMinimizer = minimizer;
+			} else if (minimizer!=currentMinimizer) {
+				added+=addSuperKmer(seq, start+superKmerStart, start+kmerStart-1+kmerSize, currentMinimizer, buffers);
+				currentMinimizer = minimizer;
+				superKmerStart = kmerStart;
+			}
+		}
+		added+=addSuperKmer(seq, start+superKmerStart, start+numKmers-1+kmerSize, currentMinimizer, buffers);
+		return added;
+	}
+
+	private int addSuperKmer(String seq, int start, int end, long minimizer, StringBuilder [] buffers) {
+		int bucket = (int)Long.remainderUnsigned(minimizer, buffers.length);
+		if(buffers[bucket]==null) buffers[bucket] = new StringBuilder();
+		buffers[bucket].append(seq, start, end);
+		buffers[bucket].append('\n');
+		return end-start+1;
+	}
+
+	private void flush(StringBuilder [] buffers) throws IOException {
+		for(int i=0;i<buffers.length;i++) {
+			StringBuilder buffer = buffers[i];
+			if(buffer==null || buffer.length()==0) continue;
+			Writer writer = bucketWriters[i];
+			synchronized (writer) {
+				writer.append(buffer);
+			}
+			buffer.setLength(0);
+		}
+	}
+
+	/**
+	 * Counts the k-mers of the buckets. Buckets are processed in parallel and deleted after they are counted.
+	 * The optional table of k-mers is a binary file with the k-mer size, the number of buckets and the total number of k-mers as header.
+	 * For each bucket it includes the number of k-mers, the codes of the k-mers in ascending order and the count of each k-mer.
+	 * Codes are calculated as in DNAShortKmerEncoder. Arrays start at positions aligned to BinaryFileWriter.SECTION_ALIGNMENT
+	 * @param numThreads Number of buckets counted at the same time
+	 * @param kmersTableFile File to save the k-mers and their counts. If null, the table is not saved
+	 * @return Distribution Distribution of abundances of the k-mers
+	 * @throws IOException If the buckets can not be read or the table can not be written
+	 */
+	Distribution countBuckets(int numThreads, String kmersTableFile) throws IOException {
+		for(Writer writer:bucketWriters) writer.close();
+		Distribution kmerSpectrum = new Distribution(1, 200, 1);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<CountedBucket>> pendingBuckets = new ArrayDeque<>();
+		BinaryFileWriter tableWriter = null;
+		try {
+			long totalKmers = 0;
+			if(kmersTableFile!=null) {
+				tableWriter = new BinaryFileWriter(kmersTableFile);
+				tableWriter.writeInt(kmerSize);
+				tableWriter.writeInt(bucketFiles.length);
+				//Updated after all buckets are written
+				tableWriter.writeLong(0);
+			}
+			for(int i=0;i<bucketFiles.length;i++) {
+				final File bucketFile = bucketFiles[i];
+				pendingBuckets.add(pool.submit(new Callable<CountedBucket>() {
+					@Override
+					public CountedBucket call() throws IOException {
+						return countBucket(bucketFile);
+					}
+				}));
+				if(pendingBuckets.size()>=numThreads) totalKmers+=processBucket(pendingBuckets.poll(), kmerSpectrum, tableWriter);
+			}
+			while(!pendingBuckets.isEmpty()) totalKmers+=processBucket(pendingBuckets.poll(), kmerSpectrum, tableWriter);
+			if(tableWriter!=null) tableWriter.writeLongAt(8, totalKmers);
+			log.info("Counted "+totalKmers+" distinct k-mers in "+bucketFiles.length+" buckets");
+		} finally {
+			pool.shutdownNow();
+			if(tableWriter!=null) tableWriter.close();
+		}
+		return kmerSpectrum;
+	}
+
+	private CountedBucket countBucket(File bucketFile) throws IOException {
+		LongKmersMapImpl bucketMap = new LongKmersMapImpl(kmerSize);
+		DNAShortKmerEncoder encoder = new DNAShortKmerEncoder(kmerSize);
+		try (BufferedReader in = new BufferedReader(new FileReader(bucketFile))) {
+			String line = in.readLine();
+			while(line!=null) {
+				encoder.reset();
+				int n = line.length();
+				for(int i=0;i<n;i++) {
+					if(!encoder.addBase(line.charAt(i))) continue;
+					bucketMap.addOcurrance(encoder.getForwardCode());
+					if(bothStrands) bucketMap.addOcurrance(encoder.getReverseComplementCode());
+				}
+				line = in.readLine();
+			}
+		}
+		bucketFile.delete();
+		CountedBucket answer = new CountedBucket();
+		answer.codes = bucketMap.getSortedKmerCodes();
+		answer.counts = new int [answer.codes.length];
+		for(int i=0;i<answer.codes.length;i++) answer.counts[i] = bucketMap.getCount(answer.codes[i]);
+		return answer;
+	}
+
+	private int processBucket(Future<CountedBucket> bucketFuture, Distribution kmerSpectrum, BinaryFileWriter tableWriter) throws IOException {
+		CountedBucket bucket;
+		try {
+			bucket = bucketFuture.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for k-mers counting",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error counting k-mers",cause);
+		}
+		for(int count:bucket.counts) kmerSpectrum.processDatapoint(count);
+		if(tableWriter!=null) {
+			tableWriter.writeInt(bucket.codes.length);
+			tableWriter.align();
+			tableWriter.writeLongs(bucket.codes);
+			tableWriter.writeInts(bucket.counts);
+			tableWriter.align();
+		}
+		return bucket.codes.length;
+	}
+
+	/**
+	 * Closes the writers of the buckets and deletes the temporary files
+	 */
+	@Override
+	public void close() throws IOException {
+		for(int i=0;i<bucketFiles.length;i++) {
+			if(bucketWriters[i]!=null) bucketWriters[i].close();
+			if(bucketFiles[i]!=null) bucketFiles[i].delete();
+		}
+	}
+
+	private static class CountedBucket {
+		private long [] codes;
+		private int [] counts;
+	}
+}
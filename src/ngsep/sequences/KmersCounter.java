@@ -19,16 +19,26 @@
  *******************************************************************************/
 package ngsep.sequences;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.math.Distribution;
 import ngsep.sequences.io.FastaSequencesHandler;
@@ -42,13 +52,26 @@ import ngsep.sequences.io.FastqFileReader;
 public class KmersCounter {
 	
 	public static final int DEFAULT_KMER_SIZE = 15;
+	public static final int DEF_NUM_THREADS = 1;
+	/**
+	 * Number of reads processed by a single task of the counting process
+	 */
+	public static final int READS_BATCH_SIZE = 10000;
 	private Logger log = Logger.getLogger(KmersCounter.class.getName());
 	private ProgressNotifier progressNotifier=null;
 	
-	private KmersMap kmersMap = new ByteArrayKmersMapImpl((byte) DEFAULT_KMER_SIZE);
+	//Created when the first sequence is processed
+	private KmersMap kmersMap = null;
 	private boolean bothStrands = false;
 	private boolean fasta = false;
 	private int kmerSize = DEFAULT_KMER_SIZE;
+	private int numThreads = DEF_NUM_THREADS;
+	private int numBuckets = 0;
+	private String tmpDir = null;
+	private String kmersTableFile = null;
+	
+	//Buckets to store super-k-mers. Not null only while sequences are partitioned
+	private KmerBucketsCounter buckets = null;
 	
 	
 	public Logger getLog() {
@@ -90,17 +113,55 @@ public class KmersCounter {
 	}
 	public void setKmerSize(int kmerSize) {
 		this.kmerSize = kmerSize;
-		if(kmerSize<=15) kmersMap = new ByteArrayKmersMapImpl((byte) kmerSize);
-		else kmersMap = new DefaultKmersMapImpl();
+		this.kmersMap = null;
 	}
 	public void setKmerSize(Integer kmerSize) {
 		this.setKmerSize(kmerSize.intValue());
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+	public void setNumBuckets(int numBuckets) {
+		this.numBuckets = numBuckets;
+	}
+	public void setNumBuckets(String value) {
+		setNumBuckets((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public String getTmpDir() {
+		return tmpDir;
+	}
+	public void setTmpDir(String tmpDir) {
+		this.tmpDir = tmpDir;
+	}
+	
+	public String getKmersTableFile() {
+		return kmersTableFile;
+	}
+	public void setKmersTableFile(String kmersTableFile) {
+		this.kmersTableFile = kmersTableFile;
+	}
+	
 	/**
 	 * @return the hashKmers
 	 */
 	public KmersMap getKmersMap() {
+		if(kmersMap==null) {
+			if(kmerSize<=15) kmersMap = new ByteArrayKmersMapImpl((byte) kmerSize);
+			else if (kmerSize<=DNAShortKmerEncoder.MAX_KMER_SIZE) kmersMap = new LongKmersMapImpl(kmerSize);
+			else kmersMap = new DefaultKmersMapImpl();
+		}
 		return kmersMap;
 	}
 	/**
@@ -118,12 +179,43 @@ public class KmersCounter {
 			files.add(args[k]);
 		}
 		
-		if(files.size()>=1 && "-".equals(files.get(0))) kmersCounter.processFastqFile(System.in); 
-		else kmersCounter.processFiles(files);
+		if(kmersCounter.getNumBuckets()>0) {
+			Distribution kmerSpectrum = kmersCounter.countKmersInBuckets(files);
+			printSpectrum(kmerSpectrum, System.out);
+			return;
+		}
+		processInput(kmersCounter, files);
 		kmersCounter.printResults(System.out);
 		
 	}
 	
+	private static void processInput(KmersCounter kmersCounter, List<String> files) throws IOException {
+		if(files.size()>=1 && "-".equals(files.get(0))) kmersCounter.processFastqFile(System.in); 
+		else kmersCounter.processFiles(files);
+	}
+	
+	/**
+	 * Counts the k-mers of the given files in two passes without keeping all the k-mers in memory.
+	 * The first pass splits the sequences in super-k-mers and saves them in numBuckets temporary files
+	 * according to their minimizers. The second pass counts the k-mers of each bucket independently
+	 * using numThreads threads and saves the k-mers table if a file is provided. The k-mers table of this counter is not modified.
+	 * @param files Names of the files to process. If the first file is "-", fastq reads are loaded from standard input
+	 * @return Distribution Distribution of abundances of the k-mers
+	 * @throws IOException If the files can not be read or the temporary files can not be written
+	 */
+	public Distribution countKmersInBuckets(List<String> files) throws IOException {
+		File tmpDirFile = (tmpDir!=null)?new File(tmpDir):null;
+		log.info("Partitioning k-mers in "+numBuckets+" buckets");
+		try (KmerBucketsCounter bucketsCounter = new KmerBucketsCounter(kmerSize, bothStrands, numBuckets, tmpDirFile, log)) {
+			buckets = bucketsCounter;
+			processInput(this, files);
+			log.info("Counting k-mers in buckets");
+			return bucketsCounter.countBuckets(numThreads, kmersTableFile);
+		} finally {
+			buckets = null;
+		}
+	}
+	
 	/**
 	 * Processes a list of input files as fasta or fastq and updates the kmers table
 	 * @param files List of names of the files to process.
@@ -155,11 +247,7 @@ public class KmersCounter {
 	 */
     public void processFastqFile(String filename) throws IOException { 
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
-			}
+			processReads(reader.iterator());
 		}
 	 }
     
@@ -170,15 +258,72 @@ public class KmersCounter {
      */
 	public void processFastqFile(InputStream fis) throws IOException {
 		try (FastqFileReader reader = new FastqFileReader(fis)) {
-			Iterator<RawRead> it = reader.iterator();
+			processReads(reader.iterator());
+		}
+	}
+	/**
+	 * Counts the k-mers of the given reads. The calling thread loads batches of reads
+	 * and numThreads workers count the k-mers of the batches updating the shared k-mers table
+	 * @param it Iterator over the reads to process
+	 */
+	private void processReads(Iterator<RawRead> it) throws IOException {
+		if(buckets==null) getKmersMap();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<Void>> pendingBatches = new ArrayDeque<>();
+		try {
 			while (it.hasNext()) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
+				final List<RawRead> reads = new ArrayList<>(READS_BATCH_SIZE);
+				while(it.hasNext() && reads.size()<READS_BATCH_SIZE) reads.add(it.next());
+				pendingBatches.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						countReadsKmers(reads);
+						return null;
+					}
+				}));
+				if(pendingBatches.size()>=2*numThreads) waitBatch(pendingBatches.poll());
 			}
+			while(!pendingBatches.isEmpty()) waitBatch(pendingBatches.poll());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	private void waitBatch(Future<Void> batchFuture) throws IOException {
+		try {
+			batchFuture.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for k-mers counting",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error counting k-mers",cause);
 		}
 	}
-	private void countSequenceKmers(RawRead read) {
-    	String sequence = read.getCharacters().toString();
+	private void countReadsKmers(List<RawRead> reads) throws IOException {
+		if(buckets!=null) {
+			List<String> sequences = new ArrayList<>(reads.size());
+			for(RawRead read:reads) sequences.add(read.getCharacters().toString());
+			buckets.addSequences(sequences);
+			return;
+		}
+		for(RawRead read:reads) countSequenceKmersBothStrands(read.getCharacters().toString());
+	}
+	/**
+	 * Counts the k-mers of the given sequence and the k-mers of its reverse complement if k-mers of both strands should be counted
+	 * @param sequence to process
+	 */
+	private void countSequenceKmersBothStrands(String sequence) {
+		KmersMap kmersMap = getKmersMap();
+		if(kmersMap instanceof LongKmersMapImpl) {
+			if(sequence.length() < kmerSize) {
+				log.warning("Sequence "+sequence+" smaller than k-mer size");
+				return;
+			}
+			//Forward and reverse complement k-mers are encoded in a single pass
+			countKmerCodes(sequence, (LongKmersMapImpl)kmersMap, bothStrands);
+			return;
+		}
 		//Kmers Counter Per Sequence
 		//Forward		
 		countSequenceKmers(sequence);
@@ -200,15 +345,13 @@ public class KmersCounter {
 		for(QualifiedSequence seq:sequences){
 			log.info("Processing sequence "+seq.getName());
 			//TODO: Process in chuncks if too big
-			//Forward		
-			String sequence = seq.getCharacters().toString();
-			countSequenceKmers(sequence);
-			//Reverse complement
-			if(isBothStrands()){
-				String reverseSequence = DNAMaskedSequence.getReverseComplement(sequence);
-				countSequenceKmers(reverseSequence);
+			if(buckets!=null) {
+				buckets.addSequences(Collections.singletonList(seq.getCharacters().toString()));
+				log.info("Processed sequence "+seq.getName());
+				continue;
 			}
-			log.info("Processed sequence "+seq.getName()+" total k-mers: "+kmersMap.size());
+			countSequenceKmersBothStrands(seq.getCharacters().toString());
+			log.info("Processed sequence "+seq.getName()+" total k-mers: "+getKmersMap().size());
 		}
 	}
 	
@@ -225,11 +368,34 @@ public class KmersCounter {
 			log.warning("Sequence "+seq+" smaller than k-mer size");
 			return;
 		}
+		KmersMap kmersMap = getKmersMap();
+		if(kmersMap instanceof LongKmersMapImpl) {
+			countKmerCodes(seq, (LongKmersMapImpl)kmersMap, false);
+			return;
+		}
 		//TODO: Create option to process non DNA k-mers
 		CharSequence [] kmers = extractKmers(seq, kmerSize, true);
-		for(CharSequence kmer:kmers) {
-			if(kmer!=null) kmersMap.addOcurrance(kmer);
-		}	
+		//Other tables do not support concurrent updates
+		synchronized (kmersMap) {
+			for(CharSequence kmer:kmers) {
+				if(kmer!=null) kmersMap.addOcurrance(kmer);
+			}
+		}
+	}
+	/**
+	 * Counts the k-mers of the given sequence encoding them as long numbers without creating objects per k-mer.
+	 * @param seq Sequence to extract the k-mers
+	 * @param longKmersMap Table to update. It can be updated concurrently by other threads
+	 * @param reverseComplement Tells if the reverse complement of each k-mer should also be counted
+	 */
+	private void countKmerCodes(CharSequence seq, LongKmersMapImpl longKmersMap, boolean reverseComplement) {
+		DNAShortKmerEncoder encoder = new DNAShortKmerEncoder(kmerSize);
+		int n = seq.length();
+		for(int i=0;i<n;i++) {
+			if(!encoder.addBase(seq.charAt(i))) continue;
+			longKmersMap.addOcurrance(encoder.getForwardCode());
+			if(reverseComplement) longKmersMap.addOcurrance(encoder.getReverseComplementCode());
+		}
 	}
 	/**
 	 * Extracts the k-mers present in the given sequence
@@ -277,9 +443,13 @@ public class KmersCounter {
 		return kmers;
 	}
 	public void printResults (PrintStream out) {
+		KmersMap kmersMap = getKmersMap();
 		log.info("Calculating distribution of abundances from "+kmersMap.size()+" k-mers");
 		Distribution kmerSpectrum = kmersMap.calculateAbundancesDistribution();
+		printSpectrum(kmerSpectrum, out);
+	}
+	private static void printSpectrum (Distribution kmerSpectrum, PrintStream out) {
 		out.println("Kmer_frequency\tNumber_of_distinct_kmers");
 		kmerSpectrum.printDistributionInt(out);
-	}	
+	}
 }
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ngsep.math.Distribution;
+
+/**
+ * Map of counts for DNA k-mers with k up to 31 encoded as long numbers.
+ * Counts are stored in open addressing hash tables of primitive arrays (about 12 bytes per k-mer).
+ * The map is divided in segments selected by the hash of the k-mer. Occurrences can be added concurrently
+ * from different threads. Within a segment, keys are inserted and counts are updated through atomic compare and set
+ * operations. A segment is locked exclusively only while it grows.
+ * @author Jorge Duitama
+ */
+public class LongKmersMapImpl implements KmersMap {
+	private static final int SEGMENT_BITS = 10;
+	private static final int INITIAL_SEGMENT_CAPACITY = 256;
+	private static final double MAX_LOAD = 0.7;
+	private static final DNASequence dummySequence = new DNASequence();
+
+	private int kmerLength;
+	private Segment [] segments = new Segment[1<<SEGMENT_BITS];
+
+	public LongKmersMapImpl (int kmerLength) {
+		if(kmerLength>DNAShortKmerEncoder.MAX_KMER_SIZE) throw new IllegalArgumentException("The kmer length must be less or equal than "+DNAShortKmerEncoder.MAX_KMER_SIZE);
+		this.kmerLength = kmerLength;
+		for(int i=0;i<segments.length;i++) segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+	}
+
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	@Override
+	public int size() {
+		int answer = 0;
+		for(Segment segment:segments) answer+=segment.table.used.get();
+		return answer;
+	}
+
+	@Override
+	public int getCount(CharSequence kmer) {
+		long code = encode(kmer);
+		if(code<0) return 0;
+		return getCount(code);
+	}
+
+	/**
+	 * Gives the count of occurrences of the k-mer with the given code
+	 * @param kmerCode Code of the k-mer calculated with DNAShortKmerEncoder
+	 * @return int number of times the k-mer appears
+	 */
+	public int getCount(long kmerCode) {
+		long hash = hash(kmerCode);
+		return segments[getSegmentIndex(hash)].getCount(kmerCode+1, hash);
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		long code = encode(kmer);
+		if(code<0) throw new IllegalArgumentException("Invalid DNA k-mer "+kmer);
+		addOcurrance(code);
+	}
+
+	/**
+	 * Adds 1 to the count of the k-mer with the given code. This method can be called concurrently from different threads
+	 * @param kmerCode Code of the k-mer calculated with DNAShortKmerEncoder
+	 */
+	public void addOcurrance(long kmerCode) {
+		long hash = hash(kmerCode);
+		segments[getSegmentIndex(hash)].addOccurrence(kmerCode+1, hash);
+	}
+
+	/**
+	 * Filters the k-mers with abundance less than the given value. This method should not be called while occurrences are being added
+	 * @param minAbundance Minimum abundance to keep the k-mer
+	 */
+	@Override
+	public void filterKmers(int minAbundance) {
+		for(Segment segment:segments) segment.filter(minAbundance);
+	}
+
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution kmerSpectrum = new Distribution(1, 200, 1);
+		for(Segment segment:segments) {
+			Table table = segment.table;
+			for(int i=0;i<table.capacity;i++) {
+				if(table.keys.get(i)!=0) kmerSpectrum.processDatapoint(table.counts.get(i));
+			}
+		}
+		return kmerSpectrum;
+	}
+
+	/**
+	 * Extracts the codes of the k-mers in this map. This method should not be called while occurrences are being added
+	 * @return long [] Codes of the k-mers sorted in ascending order
+	 */
+	public long [] getSortedKmerCodes() {
+		long [] answer = new long [size()];
+		int n = 0;
+		for(Segment segment:segments) {
+			Table table = segment.table;
+			for(int i=0;i<table.capacity;i++) {
+				long key = table.keys.get(i);
+				if(key!=0) answer[n++] = key-1;
+			}
+		}
+		Arrays.sort(answer);
+		return answer;
+	}
+
+	private long encode(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		if(kmer instanceof DNAShortKmer) return AbstractLimitedSequence.getHash(kmer, 0, kmerLength, dummySequence);
+		long code = 0;
+		for(int i=0;i<kmerLength;i++) {
+			int baseCode = DNAShortKmerEncoder.getBaseCode(kmer.charAt(i));
+			if(baseCode<0) return -1;
+			code = (code<<2) | baseCode;
+		}
+		return code;
+	}
+
+	/**
+	 * Spreads the bits of the given code. The function is a bijection over long numbers
+	 * @param kmerCode Code to process
+	 * @return long hash of the code
+	 */
+	static long hash(long kmerCode) {
+		//Finalizer of MurmurHash3 to spread the bits of the code
+		long h = kmerCode;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int getSegmentIndex(long hash) {
+		return (int)(hash>>>(64-SEGMENT_BITS));
+	}
+
+	/**
+	 * Open addressing table with linear probing. Keys are codes plus one so that zero represents an empty slot
+	 */
+	private static class Table {
+		private final int capacity;
+		private final int maxUsed;
+		private final AtomicLongArray keys;
+		private final AtomicIntegerArray counts;
+		private final AtomicInteger used = new AtomicInteger();
+
+		Table (int capacity) {
+			this.capacity = capacity;
+			this.maxUsed = (int)(MAX_LOAD*capacity);
+			keys = new AtomicLongArray(capacity);
+			counts = new AtomicIntegerArray(capacity);
+		}
+
+		private int findSlot(long key, long hash) {
+			int mask = capacity-1;
+			int i = (int)hash & mask;
+			while(true) {
+				long k = keys.get(i);
+				if(k==key || k==0) return i;
+				i = (i+1) & mask;
+			}
+		}
+
+		private boolean reserveSlot() {
+			while(true) {
+				int current = used.get();
+				if(current>=maxUsed) return false;
+				if(used.compareAndSet(current, current+1)) return true;
+			}
+		}
+
+		/**
+		 * Adds the given count to the given key
+		 * @return boolean false if the key is new and the table does not have space to store it
+		 */
+		private boolean add(long key, long hash, int count) {
+			int mask = capacity-1;
+			int i = (int)hash & mask;
+			while(true) {
+				long k = keys.get(i);
+				if(k==key) {
+					counts.addAndGet(i, count);
+					return true;
+				}
+				if(k==0) {
+					//Reserve space before claiming the slot
+					if(!reserveSlot()) return false;
+					if(keys.compareAndSet(i, 0, key)) {
+						counts.addAndGet(i, count);
+						return true;
+					}
+					used.decrementAndGet();
+					//Another thread claimed the slot. Check it again
+					continue;
+				}
+				i = (i+1) & mask;
+			}
+		}
+	}
+
+	private static class Segment {
+		private volatile Table table;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		Segment (int capacity) {
+			table = new Table(capacity);
+		}
+
+		int getCount(long key, long hash) {
+			Table t = table;
+			int i = t.findSlot(key, hash);
+			if(t.keys.get(i)==0) return 0;
+			return t.counts.get(i);
+		}
+
+		void addOccurrence(long key, long hash) {
+			while(true) {
+				Table t;
+				boolean added;
+				lock.readLock().lock();
+				try {
+					t = table;
+					added = t.add(key, hash, 1);
+				} finally {
+					lock.readLock().unlock();
+				}
+				if(added) return;
+				grow(t);
+			}
+		}
+
+		private void grow(Table full) {
+			lock.writeLock().lock();
+			try {
+				//Another thread could have replaced the table already
+				if(table!=full) return;
+				table = rehash(full, 2*full.capacity, 0);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void filter(int minAbundance) {
+			lock.writeLock().lock();
+			try {
+				table = rehash(table, table.capacity, minAbundance);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private static Table rehash(Table source, int capacity, int minAbundance) {
+			Table answer = new Table(capacity);
+			for(int i=0;i<source.capacity;i++) {
+				long key = source.keys.get(i);
+				int count = source.counts.get(i);
+				if(key==0 || count<minAbundance) continue;
+				answer.add(key, hash(key-1), count);
+			}
+			return answer;
+		}
+	}
+}
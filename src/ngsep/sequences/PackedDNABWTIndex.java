@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+
+/**
+ * Burrows Wheeler transform of DNA sequences packed with two bits per base. Bases are stored in
+ * blocks of 128 rows. Each block starts with the counts of each base before the block, followed by
+ * the packed bases, so a rank query reads one block and performs at most four popcount operations.
+ * Rows with characters other than A, C, G or T (including the special character) are packed as A
+ * and stored separately as exceptions. This representation is efficient only if exceptions are rare
+ * @author Jorge Duitama
+ */
+class PackedDNABWTIndex implements BWTIndex {
+	/**
+	 * Bases packed in two bits. The code of each base is its index in this string
+	 */
+	public static final String PACKED_BASES = "ACGT";
+	private static final int BASES_PER_WORD = 32;
+	private static final int WORDS_PER_BLOCK = 4;
+	private static final int BASES_PER_BLOCK = BASES_PER_WORD*WORDS_PER_BLOCK;
+	// Two longs with the counts of the four bases before the block followed by the words with packed bases
+	private static final int LONGS_PER_BLOCK = 2 + WORDS_PER_BLOCK;
+	private static final long [] CODE_PATTERNS = {0L, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, -1L};
+	private static final long LOW_BITS = 0x5555555555555555L;
+	private static final byte [] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, (byte)-1);
+		for(int i=0;i<PACKED_BASES.length();i++) CODES[PACKED_BASES.charAt(i)] = (byte)i;
+	}
+
+	private int length;
+	private byte [] alphabet;
+	// Code of each character of the alphabet. -1 for characters stored as exceptions
+	private int [] alphabetCodes;
+	private LongBuffer blocks;
+	// Rows having characters that are not packed
+	private RankedBitVector exceptionRows;
+	// Characters of the exception rows ordered by row
+	private ByteBuffer exceptionChars;
+	// For each character of the alphabet stored as exception, sorted list of rows having the character
+	private IntBuffer [] exceptionRowsByChar;
+
+	/**
+	 * Packs the given transform and calculates the occurrence counts of each block
+	 * @param bwt Burrows Wheeler transform
+	 * @param alphabet Characters of the transform other than the special character, sorted lexicographically
+	 */
+	PackedDNABWTIndex (byte [] bwt, String alphabet) {
+		this.length = bwt.length;
+		setAlphabet(alphabet.getBytes());
+		int numBlocks = length / BASES_PER_BLOCK + 1;
+		long [] blocksArray = new long [numBlocks*LONGS_PER_BLOCK];
+		int [] counts = new int [PACKED_BASES.length()];
+		int numExceptions = countExceptions(bwt);
+		int [] exceptionRowsArray = new int [numExceptions];
+		byte [] exceptionCharsArray = new byte [numExceptions];
+		int e = 0;
+		for(int row=0;row<length;row++) {
+			int blockStart = (row/BASES_PER_BLOCK)*LONGS_PER_BLOCK;
+			int offset = row%BASES_PER_BLOCK;
+			if(offset==0) {
+				blocksArray[blockStart] = (counts[0] & 0xFFFFFFFFL) | ((long)counts[1] << 32);
+				blocksArray[blockStart+1] = (counts[2] & 0xFFFFFFFFL) | ((long)counts[3] << 32);
+			}
+			int code = CODES[bwt[row] & 0xFF];
+			if(code<0) {
+				exceptionRowsArray[e] = row;
+				exceptionCharsArray[e] = bwt[row];
+				e++;
+				code = 0;
+			}
+			counts[code]++;
+			blocksArray[blockStart+2+offset/BASES_PER_WORD] |= ((long)code) << (2*(offset%BASES_PER_WORD));
+		}
+		if(length%BASES_PER_BLOCK==0) {
+			//Header of the last block, needed to answer queries for row equal to length
+			int blockStart = (numBlocks-1)*LONGS_PER_BLOCK;
+			blocksArray[blockStart] = (counts[0] & 0xFFFFFFFFL) | ((long)counts[1] << 32);
+			blocksArray[blockStart+1] = (counts[2] & 0xFFFFFFFFL) | ((long)counts[3] << 32);
+		}
+		blocks = LongBuffer.wrap(blocksArray);
+		exceptionRows = new RankedBitVector(length, exceptionRowsArray);
+		exceptionChars = ByteBuffer.wrap(exceptionCharsArray);
+		exceptionRowsByChar = new IntBuffer[this.alphabet.length];
+		for(int i=0;i<this.alphabet.length;i++) {
+			if(alphabetCodes[i]>=0) continue;
+			int [] rows = new int [numExceptions];
+			int n = 0;
+			for(int j=0;j<numExceptions;j++) {
+				if(exceptionCharsArray[j]==this.alphabet[i]) rows[n++] = exceptionRowsArray[j];
+			}
+			exceptionRowsByChar[i] = IntBuffer.wrap(Arrays.copyOf(rows, n));
+		}
+	}
+
+	private PackedDNABWTIndex () {
+
+	}
+
+	private void setAlphabet (byte [] alphabet) {
+		this.alphabet = alphabet;
+		alphabetCodes = new int [alphabet.length];
+		for(int i=0;i<alphabet.length;i++) alphabetCodes[i] = CODES[alphabet[i] & 0xFF];
+	}
+
+	/**
+	 * Counts the characters of the given transform that can not be packed
+	 * @param bwt Burrows Wheeler transform
+	 * @return int Number of characters other than A, C, G or T
+	 */
+	static int countExceptions (byte [] bwt) {
+		int answer = 0;
+		for(int i=0;i<bwt.length;i++) {
+			if(CODES[bwt[i] & 0xFF]<0) answer++;
+		}
+		return answer;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char getCharacter(int row) {
+		if(exceptionRows.get(row)) return (char)exceptionChars.get(exceptionRows.rank(row));
+		int offset = row%BASES_PER_BLOCK;
+		long word = blocks.get((row/BASES_PER_BLOCK)*LONGS_PER_BLOCK+2+offset/BASES_PER_WORD);
+		int code = (int)(word >>> (2*(offset%BASES_PER_WORD))) & 3;
+		return PACKED_BASES.charAt(code);
+	}
+
+	@Override
+	public int getOccurrences(int charIdx, int row) {
+		int code = alphabetCodes[charIdx];
+		if(code<0) return countExceptionRows(exceptionRowsByChar[charIdx], row);
+		int blockStart = (row/BASES_PER_BLOCK)*LONGS_PER_BLOCK;
+		long header = blocks.get(blockStart+(code>>1));
+		int answer = (int)((code & 1)==0?header:(header>>>32));
+		int offset = row%BASES_PER_BLOCK;
+		int fullWords = offset/BASES_PER_WORD;
+		long pattern = CODE_PATTERNS[code];
+		for(int i=0;i<fullWords;i++) {
+			answer+=Long.bitCount(matches(blocks.get(blockStart+2+i), pattern));
+		}
+		int remainder = offset%BASES_PER_WORD;
+		if(remainder>0) {
+			long m = matches(blocks.get(blockStart+2+fullWords), pattern);
+			answer+=Long.bitCount(m & ((1L << (2*remainder))-1));
+		}
+		//Exceptions are packed as A
+		if(code==0) answer-=exceptionRows.rank(row);
+		return answer;
+	}
+
+	@Override
+	public void getOccurrences(int row, int[] counts) {
+		int blockStart = (row/BASES_PER_BLOCK)*LONGS_PER_BLOCK;
+		long header0 = blocks.get(blockStart);
+		long header1 = blocks.get(blockStart+1);
+		int [] codeCounts = {(int)header0, (int)(header0>>>32), (int)header1, (int)(header1>>>32)};
+		int offset = row%BASES_PER_BLOCK;
+		int fullWords = offset/BASES_PER_WORD;
+		for(int i=0;i<=fullWords && i<WORDS_PER_BLOCK;i++) {
+			long word = blocks.get(blockStart+2+i);
+			long mask = -1L;
+			if(i==fullWords) {
+				int remainder = offset%BASES_PER_WORD;
+				if(remainder==0) break;
+				mask = (1L << (2*remainder))-1;
+			}
+			for(int code=0;code<codeCounts.length;code++) {
+				codeCounts[code]+=Long.bitCount(matches(word, CODE_PATTERNS[code]) & mask);
+			}
+		}
+		//Exceptions are packed as A
+		codeCounts[0]-=exceptionRows.rank(row);
+		for(int i=0;i<alphabet.length;i++) {
+			int code = alphabetCodes[i];
+			if(code<0) counts[i] = countExceptionRows(exceptionRowsByChar[i], row);
+			else counts[i] = codeCounts[code];
+		}
+	}
+
+	/**
+	 * @return long with the low bit of each packed base set if the base has the code of the given pattern
+	 */
+	private static long matches(long word, long pattern) {
+		long x = word ^ pattern;
+		return ~(x | (x >>> 1)) & LOW_BITS;
+	}
+
+	private static int countExceptionRows(IntBuffer rows, int row) {
+		int left = 0;
+		int right = rows.limit();
+		while(left<right) {
+			int middle = (left+right) >>> 1;
+			if(rows.get(middle)<row) left = middle+1;
+			else right = middle;
+		}
+		return left;
+	}
+
+	@Override
+	public int getType() {
+		return TYPE_PACKED_DNA;
+	}
+
+	@Override
+	public void save(BinaryFileWriter writer) throws IOException {
+		writer.writeInt(length);
+		writer.writeInt(alphabet.length);
+		writer.writeBytes(alphabet);
+		writer.align();
+		writer.writeLongs(blocks);
+		writer.align();
+		exceptionRows.save(writer);
+		writer.writeBytes(exceptionChars);
+		writer.align();
+		for(int i=0;i<alphabet.length;i++) {
+			if(exceptionRowsByChar[i]==null) continue;
+			writer.writeInt(exceptionRowsByChar[i].limit());
+			writer.writeInts(exceptionRowsByChar[i]);
+			writer.align();
+		}
+	}
+
+	/**
+	 * Loads a transform saved with the save method mapping its data in memory
+	 * @param reader Positioned at the start of the transform
+	 * @return PackedDNABWTIndex backed by read-only mapped buffers
+	 * @throws IOException If the data can not be read
+	 */
+	static PackedDNABWTIndex load(MappedBinaryFileReader reader) throws IOException {
+		PackedDNABWTIndex answer = new PackedDNABWTIndex();
+		answer.length = reader.readInt();
+		int alphabetLength = reader.readInt();
+		if(answer.length<=0 || alphabetLength<0) throw new IOException("Corrupted BWT at position "+reader.getPosition());
+		answer.setAlphabet(reader.readBytes(alphabetLength));
+		reader.align();
+		int numBlocks = answer.length / BASES_PER_BLOCK + 1;
+		answer.blocks = reader.mapLongs(numBlocks*LONGS_PER_BLOCK);
+		reader.align();
+		answer.exceptionRows = RankedBitVector.load(reader);
+		if(answer.exceptionRows.length()!=answer.length) throw new IOException("Corrupted BWT exceptions at position "+reader.getPosition());
+		answer.exceptionChars = reader.mapBytes(answer.exceptionRows.getNumOnes());
+		reader.align();
+		answer.exceptionRowsByChar = new IntBuffer[alphabetLength];
+		for(int i=0;i<alphabetLength;i++) {
+			if(answer.alphabetCodes[i]>=0) continue;
+			int n = reader.readInt();
+			answer.exceptionRowsByChar[i] = reader.mapInts(n);
+			reader.align();
+		}
+		return answer;
+	}
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+
+/**
+ * Static bit vector supporting constant time rank and logarithmic time select queries.
+ * The number of ones before each block of 512 bits is stored to calculate ranks
+ * with at most eight popcount operations
+ * @author Jorge Duitama
+ */
+public class RankedBitVector {
+	private static final int WORDS_PER_BLOCK = 8;
+
+	private int length;
+	private int numOnes;
+	private LongBuffer words;
+	// Number of ones before the start of each block
+	private IntBuffer blockRanks;
+
+	/**
+	 * Creates a bit vector with ones at the given positions
+	 * @param length Number of bits of the vector
+	 * @param onePositions Positions having a one. They must be sorted and within the range [0,length)
+	 */
+	public RankedBitVector (int length, int [] onePositions) {
+		this.length = length;
+		long [] wordsArray = new long [length/64+1];
+		for(int p:onePositions) {
+			if(p<0 || p>=length) throw new IllegalArgumentException("Position "+p+" out of range. Length: "+length);
+			wordsArray[p>>>6] |= 1L << (p & 63);
+		}
+		int [] ranksArray = new int [(wordsArray.length-1)/WORDS_PER_BLOCK+1];
+		int count = 0;
+		for(int i=0;i<wordsArray.length;i++) {
+			if(i%WORDS_PER_BLOCK==0) ranksArray[i/WORDS_PER_BLOCK] = count;
+			count+=Long.bitCount(wordsArray[i]);
+		}
+		numOnes = count;
+		words = LongBuffer.wrap(wordsArray);
+		blockRanks = IntBuffer.wrap(ranksArray);
+	}
+
+	private RankedBitVector() {
+
+	}
+
+	/**
+	 * @return int Number of bits of this vector
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return int Number of bits set to one
+	 */
+	public int getNumOnes() {
+		return numOnes;
+	}
+
+	/**
+	 * @param i Position to query
+	 * @return boolean true if the bit at the given position is one
+	 */
+	public boolean get(int i) {
+		return (words.get(i>>>6) & (1L << (i & 63)))!=0;
+	}
+
+	/**
+	 * Calculates the number of ones before the given position
+	 * @param i Position to query
+	 * @return int Number of ones in the range [0,i)
+	 */
+	public int rank (int i) {
+		int wordIdx = i>>>6;
+		int block = wordIdx/WORDS_PER_BLOCK;
+		int answer = blockRanks.get(block);
+		for(int j=block*WORDS_PER_BLOCK;j<wordIdx;j++) answer+=Long.bitCount(words.get(j));
+		int offset = i & 63;
+		if(offset>0) answer+=Long.bitCount(words.get(wordIdx) & (-1L >>> (64-offset)));
+		return answer;
+	}
+
+	/**
+	 * Finds the position of the one having the given rank
+	 * @param k Rank of the one to search (0-based)
+	 * @return int Position p such that get(p) is true and rank(p) equals k
+	 */
+	public int select (int k) {
+		if(k<0 || k>=numOnes) throw new IllegalArgumentException("Invalid rank "+k+". Number of ones: "+numOnes);
+		//Find the last block with rank less or equal than k
+		int left = 0;
+		int right = blockRanks.limit()-1;
+		while(left<right) {
+			int middle = (left+right+1) >>> 1;
+			if(blockRanks.get(middle)<=k) left = middle;
+			else right = middle-1;
+		}
+		int remaining = k-blockRanks.get(left);
+		int wordIdx = left*WORDS_PER_BLOCK;
+		long word = words.get(wordIdx);
+		int count = Long.bitCount(word);
+		while(count<=remaining) {
+			remaining-=count;
+			wordIdx++;
+			word = words.get(wordIdx);
+			count = Long.bitCount(word);
+		}
+		for(int j=0;j<remaining;j++) word &= word-1;
+		return 64*wordIdx+Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Saves this vector in the given binary file writer
+	 * @param writer Writer of the binary file
+	 * @throws IOException If the vector can not be written
+	 */
+	public void save (BinaryFileWriter writer) throws IOException {
+		writer.writeInt(length);
+		writer.writeInt(numOnes);
+		writer.writeLongs(words);
+		writer.writeInts(blockRanks);
+		writer.align();
+	}
+
+	/**
+	 * Loads a vector saved with the save method mapping its data in memory
+	 * @param reader Positioned at the start of the vector
+	 * @return RankedBitVector backed by read-only mapped buffers
+	 * @throws IOException If the vector can not be read
+	 */
+	public static RankedBitVector load (MappedBinaryFileReader reader) throws IOException {
+		RankedBitVector answer = new RankedBitVector();
+		answer.length = reader.readInt();
+		answer.numOnes = reader.readInt();
+		if(answer.length<0 || answer.numOnes<0 || answer.numOnes>answer.length) throw new IOException("Corrupted bit vector at position "+reader.getPosition());
+		int numWords = answer.length/64+1;
+		answer.words = reader.mapLongs(numWords);
+		answer.blockRanks = reader.mapInts((numWords-1)/WORDS_PER_BLOCK+1);
+		reader.align();
+		return answer;
+	}
+}
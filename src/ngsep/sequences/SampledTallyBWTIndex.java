@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+
+/**
+ * Burrows Wheeler transform stored as one byte per character. Counts of each character
+ * are saved for one of each tallyDistance rows. Works for any alphabet
+ * @author German Andrade
+ * @author Jorge Duitama
+ */
+class SampledTallyBWTIndex implements BWTIndex {
+	// Burrows Wheeler transform
+	private ByteBuffer bwt;
+	private int length;
+	private byte [] alphabet;
+	// 1 of each tallyDistance is saved
+	private int tallyDistance;
+	// Ranks in the bwt for each character in the alphabet for some of the rows in
+	// the BW matrix. Row i of the tally starts at position i*alphabet.length and
+	// includes the characters up to row i*tallyDistance
+	private IntBuffer tallyIndexes;
+	private int tallyRows;
+
+	/**
+	 * Builds the tally indexes for the given transform
+	 * @param bwt Burrows Wheeler transform
+	 * @param alphabet Characters of the transform other than the special character, sorted lexicographically
+	 * @param tallyDistance Distance between rows having precalculated counts
+	 */
+	SampledTallyBWTIndex (byte [] bwt, String alphabet, int tallyDistance) {
+		this.bwt = ByteBuffer.wrap(bwt);
+		this.length = bwt.length;
+		this.alphabet = alphabet.getBytes();
+		this.tallyDistance = tallyDistance;
+		int [] charIndexes = new int [256];
+		for(int i=0;i<this.alphabet.length;i++) charIndexes[this.alphabet[i] & 0xFF] = i+1;
+		tallyRows = numTallyRows(length, tallyDistance);
+		int alphabetLength = this.alphabet.length;
+		final int[] arr = new int[alphabetLength];
+		int [] tally = new int[tallyRows*alphabetLength];
+		int j = 0;
+		for (int i = 0; i < length; i++) {
+			int indexC = charIndexes[bwt[i] & 0xFF]-1;
+			if (indexC>=0) arr[indexC]++;
+			if (i % tallyDistance == 0) {
+				System.arraycopy(arr, 0, tally, j*alphabetLength, alphabetLength);
+				j++;
+			}
+		}
+		tallyIndexes = IntBuffer.wrap(tally);
+	}
+
+	private SampledTallyBWTIndex () {
+
+	}
+
+	private static int numTallyRows (int length, int tallyDistance) {
+		int tallyRows = length / tallyDistance;
+		if (length % tallyDistance > 0) tallyRows++;
+		return tallyRows;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char getCharacter(int row) {
+		return (char)bwt.get(row);
+	}
+
+	@Override
+	public int getOccurrences(int charIdx, int row) {
+		if(row==0) return 0;
+		//Count up to row-1 included
+		row--;
+		byte c = alphabet[charIdx];
+		int r = 0;
+		int a = row / tallyDistance;
+		int b = a + 1;
+		if (row - a * tallyDistance < b * tallyDistance - row || tallyRows <= b) {
+			// Recalculate from top record
+			r = tallyIndexes.get(a*alphabet.length+charIdx);
+			for (int j = a * tallyDistance + 1; j <= row; j++) {
+				if (bwt.get(j) == c) r++;
+			}
+		} else {
+			// Recalculate from bottom record
+			r = tallyIndexes.get(b*alphabet.length+charIdx);
+			for (int j = b * tallyDistance; j > row; j--) {
+				if (bwt.get(j) == c) r--;
+			}
+		}
+		return r;
+	}
+
+	@Override
+	public void getOccurrences(int row, int[] counts) {
+		for(int i=0;i<alphabet.length;i++) counts[i] = getOccurrences(i, row);
+	}
+
+	/**
+	 * @return int Distance between rows with precalculated counts
+	 */
+	public int getTallyDistance() {
+		return tallyDistance;
+	}
+
+	@Override
+	public int getType() {
+		return TYPE_SAMPLED_TALLY;
+	}
+
+	@Override
+	public void save(BinaryFileWriter writer) throws IOException {
+		writer.writeInt(length);
+		writer.writeInt(tallyDistance);
+		writer.writeInt(alphabet.length);
+		writer.writeBytes(alphabet);
+		writer.align();
+		writer.writeBytes(bwt);
+		writer.align();
+		writer.writeInts(tallyIndexes);
+		writer.align();
+	}
+
+	/**
+	 * Loads a transform saved with the save method mapping its data in memory
+	 * @param reader Positioned at the start of the transform
+	 * @return SampledTallyBWTIndex backed by read-only mapped buffers
+	 * @throws IOException If the data can not be read
+	 */
+	static SampledTallyBWTIndex load(MappedBinaryFileReader reader) throws IOException {
+		SampledTallyBWTIndex answer = new SampledTallyBWTIndex();
+		answer.length = reader.readInt();
+		answer.tallyDistance = reader.readInt();
+		int alphabetLength = reader.readInt();
+		if(answer.length<=0 || answer.tallyDistance<=0 || alphabetLength<0) throw new IOException("Corrupted BWT at position "+reader.getPosition());
+		answer.alphabet = reader.readBytes(alphabetLength);
+		reader.align();
+		answer.bwt = reader.mapBytes(answer.length);
+		reader.align();
+		answer.tallyRows = numTallyRows(answer.length, answer.tallyDistance);
+		answer.tallyIndexes = reader.mapInts(answer.tallyRows*alphabetLength);
+		reader.align();
+		return answer;
+	}
+}
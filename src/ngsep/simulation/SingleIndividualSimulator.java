@@ -354,7 +354,7 @@ public class SingleIndividualSimulator {
 				int last = first+1;
 				if(deletion) last = first + eventLength + 1;
 				
-				if (strs!=null && strs.findSpanningRegions(seqName, first, last).size()>0) continue;
+				if (strs!=null && strs.hasSpanningRegions(seqName, first, last)) continue;
 				List<String> alleles = new ArrayList<>();
 				CharSequence segment = genome.getReference(seqName, first, last);
 				if(segment == null) continue;
@@ -411,8 +411,8 @@ public class SingleIndividualSimulator {
 					}
 					currentFirst+=seq.getLength();
 				}
-				if (strs!=null && strs.findSpanningRegions(seqName, pos).size()>0) continue;
-				if (indels!=null && indels.findSpanningRegions(seqName, pos).size()>0) continue;
+				if (strs!=null && strs.hasSpanningRegions(seqName, pos, pos)) continue;
+				if (indels!=null && indels.hasSpanningRegions(seqName, pos, pos)) continue;
 				char refBase = genome.getReferenceBase(seqName, pos);
 				int refIdx = DNASequence.BASES_STRING.indexOf(refBase);
 				if(refIdx==-1) continue;
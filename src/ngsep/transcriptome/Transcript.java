@@ -53,6 +53,13 @@ public class Transcript implements GenomicRegion {
 	private int codingAbsoluteStart = -1;
 	private int codingAbsoluteEnd = -1;
 	private int length = 0;
+	//Segment limits sorted by genomic position to locate segments through binary search
+	private int [] segmentFirsts = new int[0];
+	private int [] segmentLasts = new int[0];
+	//Maximum last position of the segments up to each index. Supports overlapping segments
+	private int [] segmentMaxLasts = new int[0];
+	//Position relative to the start of the transcript of the first transcribed base of each segment
+	private int [] segmentRelativeStarts = new int[0];
 	
 	/**
 	 * Creates a new transcript with the given information
@@ -127,12 +134,82 @@ public class Transcript implements GenomicRegion {
 			}
 			length+=segment.length();
 		}
+		buildSegmentArrays();
 		if(coding) {
 			codingAbsoluteStart = getAbsolutePosition(codingRelativeStart);
 			codingAbsoluteEnd = getAbsolutePosition(codingRelativeEnd);
 		}
 		//if("PAC:27162177".equals(id)) System.err.println("Coding relative start "+codingRelativeStart+" coding relative end: "+codingRelativeEnd+" total length: "+length);
 	}
+	private void buildSegmentArrays() {
+		int n = transcriptSegments.size();
+		segmentFirsts = new int[n];
+		segmentLasts = new int[n];
+		segmentMaxLasts = new int[n];
+		segmentRelativeStarts = new int[n];
+		int relativeStart = 0;
+		for(int i=0;i<n;i++) {
+			//Segments are visited in the order of transcription
+			int j = negativeStrand?n-1-i:i;
+			TranscriptSegment segment = transcriptSegments.get(j);
+			segmentFirsts[j] = segment.getFirst();
+			segmentLasts[j] = segment.getLast();
+			segmentRelativeStarts[j] = relativeStart;
+			relativeStart+=segment.length();
+		}
+		for(int i=0;i<n;i++) {
+			segmentMaxLasts[i] = (i>0)?Math.max(segmentMaxLasts[i-1], segmentLasts[i]):segmentLasts[i];
+		}
+	}
+	/**
+	 * Finds the first segment in genomic order ending at or after the given position
+	 * @param absolutePosition Position relative to the sequence where the transcript is located
+	 * @return int Index of the segment in genomic order. Number of segments if all segments end before the position
+	 */
+	private int findFirstSegmentEndingAfter(int absolutePosition) {
+		int left = 0;
+		int right = segmentMaxLasts.length;
+		while(left<right) {
+			int middle = (left+right)>>>1;
+			if(segmentMaxLasts[middle]<absolutePosition) left = middle+1;
+			else right = middle;
+		}
+		return left;
+	}
+	/**
+	 * Finds the last segment in genomic order starting at or before the given position
+	 * @param absolutePosition Position relative to the sequence where the transcript is located
+	 * @return int Index of the segment in genomic order. -1 if all segments start after the position
+	 */
+	private int findLastSegmentStartingBefore(int absolutePosition) {
+		int left = 0;
+		int right = segmentFirsts.length;
+		while(left<right) {
+			int middle = (left+right)>>>1;
+			if(segmentFirsts[middle]<=absolutePosition) left = middle+1;
+			else right = middle;
+		}
+		return left-1;
+	}
+	/**
+	 * Finds the segment including the given position relative to the start of the transcript
+	 * @param relativeTranscriptPosition Zero based position relative to the start of the transcript
+	 * @return int Index of the segment in genomic order or -1 if the position is invalid
+	 */
+	private int findSegmentByRelativePosition(int relativeTranscriptPosition) {
+		if(relativeTranscriptPosition<0 || relativeTranscriptPosition>=length) return -1;
+		int n = segmentRelativeStarts.length;
+		//Binary search over segments in the order of transcription
+		int left = 0;
+		int right = n;
+		while(left<right) {
+			int middle = (left+right)>>>1;
+			int j = negativeStrand?n-1-middle:middle;
+			if(segmentRelativeStarts[j]<=relativeTranscriptPosition) left = middle+1;
+			else right = middle;
+		}
+		return negativeStrand?n-left:left-1;
+	}
 	private void updateSegmentIntronsAround() {
 		int n = transcriptSegments.size();
 		for(int i=0;i<n;i++) {
@@ -154,24 +231,15 @@ public class Transcript implements GenomicRegion {
 	 * position does not belong to the transcript
 	 */
 	public int getRelativeTranscriptPosition (int absolutePosition) {
-		int answer = 0;
-		for(TranscriptSegment e:segmentsSortedTranscript) {
-			if(negativeStrand && e.getLast()< absolutePosition) {
-				return -1;
-			} else if (!negativeStrand && e.getFirst()> absolutePosition) {
-				return -1;
-			}
-			if(e.getFirst()<=absolutePosition && e.getLast()>=absolutePosition) {
-				if(negativeStrand) {
-					answer+= (e.getLast()-absolutePosition);
-				} else {
-					answer+= (absolutePosition-e.getFirst());
-				}
-				return answer;
-			}
-			answer+= e.length();
+		int i;
+		if(negativeStrand) {
+			i = findLastSegmentStartingBefore(absolutePosition);
+			if(i<0 || segmentLasts[i]<absolutePosition) return -1;
+			return segmentRelativeStarts[i]+(segmentLasts[i]-absolutePosition);
 		}
-		return -1;
+		i = findFirstSegmentEndingAfter(absolutePosition);
+		if(i==segmentFirsts.length || segmentFirsts[i]>absolutePosition) return -1;
+		return segmentRelativeStarts[i]+(absolutePosition-segmentFirsts[i]);
 	}
 	/**
 	 * Calculates the position relative to the sequence given the position relative to the start of the transcript
@@ -180,18 +248,14 @@ public class Transcript implements GenomicRegion {
 	 * or equal than the transcript length 
 	 */
 	public int getAbsolutePosition(int relativeTranscriptPosition) {
-		for(TranscriptSegment e:segmentsSortedTranscript) {
-			if(relativeTranscriptPosition<e.length()) {
-				if(this.negativeStrand) {
-					return e.getLast() - relativeTranscriptPosition;
-				} else {
-					return e.getFirst() + relativeTranscriptPosition;
-				}
-			} else {
-				relativeTranscriptPosition-=e.length();
-			}
+		int i = findSegmentByRelativePosition(relativeTranscriptPosition);
+		if(i<0) return -1;
+		int offset = relativeTranscriptPosition-segmentRelativeStarts[i];
+		if(this.negativeStrand) {
+			return segmentLasts[i] - offset;
+		} else {
+			return segmentFirsts[i] + offset;
 		}
-		return -1;
 	}
 	/**
 	 * Finds the reference base for the given position
@@ -251,15 +315,9 @@ public class Transcript implements GenomicRegion {
 	 * @return TranscriptSegment spanning the given position or null if the given position is invalid
 	 */
 	public TranscriptSegment getTranscriptSegment (int relativeTranscriptPosition) {
-		if(relativeTranscriptPosition<0) return null;
-		for(TranscriptSegment e:segmentsSortedTranscript) {
-			if(relativeTranscriptPosition<e.length()) {
-				return e;
-			} else {
-				relativeTranscriptPosition-=e.length();
-			}
-		}
-		return null;
+		int i = findSegmentByRelativePosition(relativeTranscriptPosition);
+		if(i<0) return null;
+		return transcriptSegments.get(i);
 	}
 	/**
 	 * Returns the transcript segment spanning the given position 
@@ -271,14 +329,9 @@ public class Transcript implements GenomicRegion {
 		if(first > absolutePosition || last < absolutePosition) {
 			return null;
 		}
-		for(TranscriptSegment e:transcriptSegments) {
-			if(e.getFirst()<=absolutePosition && e.getLast()>=absolutePosition) {
-				return e;
-			} else if (e.getLast() > absolutePosition) {
-				return null;
-			}
-		}
-		return null;
+		int i = findFirstSegmentEndingAfter(absolutePosition);
+		if(i==segmentFirsts.length || segmentFirsts[i]>absolutePosition) return null;
+		return transcriptSegments.get(i);
 	}
 	/**
 	 * Returns a list of transcript segments overlapping the region delimited by the given start and end 
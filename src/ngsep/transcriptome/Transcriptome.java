@@ -31,6 +31,7 @@ import java.util.logging.Logger;
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
+import ngsep.genome.GenomicRegionVisitor;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.QualifiedSequence;
@@ -196,6 +197,13 @@ public class Transcriptome {
 	public List<Transcript> getAllTranscripts () {
 		return sortedTranscripts.asList();
 	}
+	/**
+	 * Sorts the transcripts and builds the indexes to find transcripts spanning a region.
+	 * Call this method after loading the transcriptome to query it from different threads without building indexes concurrently
+	 */
+	public void buildIndexes() {
+		sortedTranscripts.forceSort();
+	}
 	/**
 	 * Calculates the annotations for the given variant based on their alternative alleles
 	 * @param variant Genomic variant to annotate
@@ -207,7 +215,14 @@ public class Transcriptome {
 		int offsetUpstream = parameters.getOffsetUpstream();
 		int offsetDownstream = parameters.getOffsetDownstream();
 		int maxOffset = Math.max(offsetUpstream, offsetDownstream);
-		for(Transcript t:getTranscripts(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset)) {
+		final List<Transcript> transcripts = new ArrayList<>();
+		sortedTranscripts.visitSpanningRegions(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset, new GenomicRegionVisitor<Transcript>() {
+			@Override
+			public boolean visit(Transcript t) {
+				return transcripts.add(t);
+			}
+		});
+		for(Transcript t:transcripts) {
 			//if(variant.getFirst()==1096) System.err.println("Transcript: "+t.getId()+". Coding: "+t.isCoding()+". Reverse: "+t.isNegativeStrand()+" at "+t.getSequenceName()+": "+t.getFirst()+"-"+t.getLast());
 			TranscriptSegment segmentStart = t.getTranscriptSegmentByAbsolutePosition(variant.getFirst());
 			TranscriptSegment segmentEnd = t.getTranscriptSegmentByAbsolutePosition(variant.getLast());
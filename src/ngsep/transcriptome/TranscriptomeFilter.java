@@ -223,10 +223,10 @@ public class TranscriptomeFilter {
 
 	private boolean passFilters(Transcript transcript) {
 		if (regionsToFilter!=null) {
-			if(regionsToFilter.findSpanningRegions(transcript).size()>0) return false;
+			if(regionsToFilter.hasSpanningRegions(transcript)) return false;
 		}
 		if (regionsToSelect!=null) {
-			if(regionsToSelect.findSpanningRegions(transcript).size()==0) return false;
+			if(!regionsToSelect.hasSpanningRegions(transcript)) return false;
 		}
 		if(selectCompleteProteins || minProteinLength>0) {
 			if(!transcript.isCoding()) return false;
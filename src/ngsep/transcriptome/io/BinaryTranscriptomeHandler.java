@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.transcriptome.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ngsep.main.io.BinaryFileWriter;
+import ngsep.main.io.MappedBinaryFileReader;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.transcriptome.Gene;
+import ngsep.transcriptome.Transcript;
+import ngsep.transcriptome.TranscriptSegment;
+import ngsep.transcriptome.Transcriptome;
+
+/**
+ * Saves and loads transcriptomes in a versioned binary format to be used as a cache of the source files.
+ * The file stores the size and the modification time of the source files (usually the gff3 file and the reference genome)
+ * to detect when the cache is outdated. Besides the genes and transcript segments, the file stores the cDNA sequences
+ * of the transcripts packed in four bits per base, so a transcriptome loaded from the cache can be used for functional
+ * annotation without loading the reference genome
+ * @author Jorge Duitama
+ */
+public class BinaryTranscriptomeHandler {
+	/**
+	 * First bytes of a binary file storing a transcriptome
+	 */
+	public static final byte [] FILE_MAGIC = "NGSEPTRC".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Version of the binary format. It should be increased every time the layout of the file changes
+	 */
+	public static final int FORMAT_VERSION = 1;
+	/**
+	 * Suffix added to the name of the gff3 file to build the name of the cache file
+	 */
+	public static final String CACHE_SUFFIX = ".ngsepcache";
+
+	/**
+	 * Loads a transcriptome from the given cache file if it is consistent with the given source files
+	 * @param filename Name of the cache file
+	 * @param sourceFiles Files from which the transcriptome was built
+	 * @return Transcriptome Transcriptome stored in the cache. Null if the cache does not exist or if it is outdated
+	 * @throws IOException If the cache file can not be read or if its format is not supported
+	 */
+	public Transcriptome loadCache (String filename, List<String> sourceFiles) throws IOException {
+		if(!new File(filename).exists()) return null;
+		try (MappedBinaryFileReader reader = new MappedBinaryFileReader(filename)) {
+			if(reader.size()<FILE_MAGIC.length+4) throw new IOException("File "+filename+" is not a valid transcriptome cache file");
+			byte [] magic = reader.readBytes(FILE_MAGIC.length);
+			if(!Arrays.equals(magic, FILE_MAGIC)) throw new IOException("File "+filename+" is not a valid transcriptome cache file");
+			int version = reader.readInt();
+			if(version!=FORMAT_VERSION) return null;
+			int numSources = reader.readInt();
+			if(numSources!=sourceFiles.size()) return null;
+			for(String sourceFile:sourceFiles) {
+				File file = new File(sourceFile);
+				long length = reader.readLong();
+				long lastModified = reader.readLong();
+				if(length!=file.length() || lastModified!=file.lastModified()) return null;
+			}
+			ByteBuffer data = reader.mapBytes(reader.size()-reader.getPosition());
+			try {
+				return loadTranscriptome(data);
+			} catch (RuntimeException e) {
+				//Truncated or corrupted files produce inconsistent lengths or read beyond the end of the data
+				throw new IOException("File "+filename+" is not a valid transcriptome cache file. Error: "+e.getMessage(), e);
+			}
+		}
+	}
+
+	private Transcriptome loadTranscriptome(ByteBuffer data) {
+		QualifiedSequenceList sequenceNames = new QualifiedSequenceList();
+		int numSequences = data.getInt();
+		for(int i=0;i<numSequences;i++) {
+			QualifiedSequence seq = new QualifiedSequence(readString(data));
+			seq.setLength(data.getInt());
+			sequenceNames.add(seq);
+		}
+		Transcriptome answer = new Transcriptome(sequenceNames);
+		int numGenes = data.getInt();
+		Map<String,Gene> genes = new HashMap<>();
+		for(int i=0;i<numGenes;i++) {
+			String id = readString(data);
+			String name = readString(data);
+			String sequenceName = readString(data);
+			int first = data.getInt();
+			int last = data.getInt();
+			boolean negativeStrand = data.get()!=0;
+			Gene gene = new Gene(id, name, sequenceName, first, last, negativeStrand);
+			gene.setOntologyTerms(readStringsList(data));
+			gene.setDatabaseReferences(readStringsList(data));
+			genes.put(id, gene);
+		}
+		int numTranscripts = data.getInt();
+		for(int i=0;i<numTranscripts;i++) {
+			String id = readString(data);
+			String geneId = readString(data);
+			String status = readString(data);
+			String sequenceName = readString(data);
+			int first = data.getInt();
+			int last = data.getInt();
+			boolean negativeStrand = data.get()!=0;
+			Transcript transcript = new Transcript(id, sequenceName, first, last, negativeStrand);
+			transcript.setStatus(status);
+			transcript.setGene(genes.get(geneId));
+			int numSegments = data.getInt();
+			//Each segment takes ten bytes
+			checkLength(10L*numSegments, data);
+			List<TranscriptSegment> segments = new ArrayList<>(numSegments);
+			for(int j=0;j<numSegments;j++) {
+				TranscriptSegment segment = new TranscriptSegment(transcript, data.getInt(), data.getInt());
+				segment.setStatus(data.get());
+				segment.setFirstCodonPositionOffset(data.get());
+				segments.add(segment);
+			}
+			if(numSegments>0) transcript.setTranscriptSegments(segments);
+			transcript.setCDNASequence(readSequence(data));
+			answer.addTranscript(transcript);
+		}
+		answer.buildIndexes();
+		return answer;
+	}
+
+	/**
+	 * Saves the given transcriptome as a cache of the given source files. The cache is written to a temporary file
+	 * that replaces the given file when it is complete, so processes reading the cache never observe a partial file
+	 * @param transcriptome Transcriptome to save
+	 * @param filename Name of the cache file
+	 * @param sourceFiles Files from which the transcriptome was built
+	 * @throws IOException If the file can not be written
+	 */
+	public void saveCache (Transcriptome transcriptome, String filename, List<String> sourceFiles) throws IOException {
+		File file = new File(filename).getAbsoluteFile();
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			try (BinaryFileWriter writer = new BinaryFileWriter(tmpFile.getAbsolutePath())) {
+				writer.writeBytes(FILE_MAGIC);
+				writer.writeInt(FORMAT_VERSION);
+				writer.writeInt(sourceFiles.size());
+				for(String sourceFile:sourceFiles) {
+					File source = new File(sourceFile);
+					writer.writeLong(source.length());
+					writer.writeLong(source.lastModified());
+				}
+				saveTranscriptome(transcriptome, writer);
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	private void saveTranscriptome(Transcriptome transcriptome, BinaryFileWriter writer) throws IOException {
+		QualifiedSequenceList sequenceNames = transcriptome.getSequenceNames();
+		writer.writeInt(sequenceNames.size());
+		for(QualifiedSequence seq:sequenceNames) {
+			writeString(writer, seq.getName());
+			writer.writeInt(seq.getLength());
+		}
+		//Transcripts are saved sorted by position to rebuild the same sorted collection.
+		//Transcripts without gene are skipped because they can not be added to a transcriptome
+		List<Transcript> transcripts = new ArrayList<>();
+		Map<String,Gene> genes = new LinkedHashMap<>();
+		for(Transcript t:transcriptome.getAllTranscripts()) {
+			Gene gene = t.getGene();
+			if(gene==null) continue;
+			transcripts.add(t);
+			genes.put(gene.getId(), gene);
+		}
+		writer.writeInt(genes.size());
+		for(Gene gene:genes.values()) {
+			writeString(writer, gene.getId());
+			writeString(writer, gene.getName());
+			writeString(writer, gene.getSequenceName());
+			writer.writeInt(gene.getFirst());
+			writer.writeInt(gene.getLast());
+			writer.writeBytes(new byte[] {(byte)(gene.isNegativeStrand()?1:0)});
+			writeStringsList(writer, gene.getOntologyTerms());
+			writeStringsList(writer, gene.getDatabaseReferences());
+		}
+		writer.writeInt(transcripts.size());
+		for(Transcript t:transcripts) {
+			writeString(writer, t.getId());
+			writeString(writer, t.getGeneId());
+			writeString(writer, t.getStatus());
+			writeString(writer, t.getSequenceName());
+			writer.writeInt(t.getFirst());
+			writer.writeInt(t.getLast());
+			writer.writeBytes(new byte[] {(byte)(t.isNegativeStrand()?1:0)});
+			List<TranscriptSegment> segments = t.getTranscriptSegments();
+			writer.writeInt(segments.size());
+			for(TranscriptSegment segment:segments) {
+				writer.writeInt(segment.getFirst());
+				writer.writeInt(segment.getLast());
+				writer.writeBytes(new byte[] {segment.getStatus(),segment.getFirstCodonPositionOffset()});
+			}
+			writeSequence(writer, t.getCDNASequence());
+		}
+	}
+
+	/**
+	 * Writes a sequence as its length followed by the indexes of the bases within the alphabet, two bases per byte.
+	 * Null sequences are written as a length of -1
+	 */
+	private static void writeSequence(BinaryFileWriter writer, DNAMaskedSequence sequence) throws IOException {
+		if(sequence==null) {
+			writer.writeInt(-1);
+			return;
+		}
+		int n = sequence.length();
+		writer.writeInt(n);
+		byte [] packed = new byte[(n+1)/2];
+		for(int i=0;i<n;i++) {
+			int index = sequence.getAlphabetIndex(sequence.charAt(i));
+			packed[i/2] |= (i%2==0)?index:(index<<4);
+		}
+		writer.writeBytes(packed);
+	}
+
+	private static DNAMaskedSequence readSequence(ByteBuffer data) {
+		int n = data.getInt();
+		if(n<0) return null;
+		checkLength((n+1L)/2, data);
+		byte [] packed = new byte[(n+1)/2];
+		data.get(packed);
+		DNAMaskedSequence answer = new DNAMaskedSequence();
+		char [] chars = new char[n];
+		for(int i=0;i<n;i++) {
+			int index = (i%2==0)?(packed[i/2] & 0x0F):((packed[i/2]>>4) & 0x0F);
+			chars[i] = answer.getAlphabetCharacter(index);
+		}
+		answer.setSequence(new String(chars));
+		return answer;
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 encoding. Null strings are written as a length of -1
+	 */
+	private static void writeString(BinaryFileWriter writer, String value) throws IOException {
+		if(value==null) writer.writeInt(-1);
+		else writer.writeString(value);
+	}
+
+	private static String readString(ByteBuffer data) {
+		int length = data.getInt();
+		if(length<0) return null;
+		checkLength(length, data);
+		byte [] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private static void writeStringsList(BinaryFileWriter writer, List<String> values) throws IOException {
+		if(values==null) {
+			writer.writeInt(-1);
+			return;
+		}
+		writer.writeInt(values.size());
+		for(String value:values) writeString(writer, value);
+	}
+
+	private static List<String> readStringsList(ByteBuffer data) {
+		int n = data.getInt();
+		if(n<0) return null;
+		//Each string takes at least four bytes
+		checkLength(4L*n, data);
+		List<String> answer = new ArrayList<>(n);
+		for(int i=0;i<n;i++) answer.add(readString(data));
+		return answer;
+	}
+	
+	/**
+	 * Checks that the given number of bytes can be read from the given buffer before allocating memory to read them
+	 */
+	private static void checkLength(long length, ByteBuffer data) {
+		if(length>data.remaining()) throw new IllegalStateException("Expected "+length+" bytes but only "+data.remaining()+" remain");
+	}
+}
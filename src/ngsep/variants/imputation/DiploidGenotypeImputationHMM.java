@@ -20,8 +20,10 @@
 package ngsep.variants.imputation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import ngsep.hmm.RecombinationHMM;
 import ngsep.math.LogMath;
@@ -64,7 +66,7 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	private static List<HaplotypePairHMMState> createHaplotypePairStates(List<HaplotypeClusterHMMState> haploidStates) {
 		List<HaplotypePairHMMState> pairStates = new ArrayList<>();
 		int k = haploidStates.size();
-		double logStart = LogMath.log10(1.0/(k*k));
+		double logStart = Math.log10(1.0/(k*k));
 		for (int i=0;i<haploidStates.size();i++) {
 			HaplotypeClusterHMMState state1 = haploidStates.get(i);
 			for (int j=0;j<haploidStates.size();j++) {
@@ -88,6 +90,11 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		haploidBaseHMM.setSkipTransitionsTraining(skipTransitionsTraining);
 	}
 	
+	public void setNumThreads(int numThreads) {
+		super.setNumThreads(numThreads);
+		haploidBaseHMM.setNumThreads(numThreads);
+	}
+	
 	public void setTrainingData(List<List<? extends Object>> trainingData) {
 		super.setTrainingData(trainingData);
 		haploidBaseHMM.setTrainingData(trainingData);
@@ -102,42 +109,57 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	}
 
 	public void imputeGenotypes (Map<String, List<CalledSNV>> genotypes, int [][][] outClusters) {
-		List<String> sampleIds = new ArrayList<String>();
+		final List<String> sampleIds = new ArrayList<String>();
 		sampleIds.addAll(genotypes.keySet());
 		int n = sampleIds.size();
-		int m = genotypes.values().iterator().next().size();
-		int k = getNumStates();
+		final int m = genotypes.values().iterator().next().size();
+		final int k = getNumStates();
 		
 		if(m!=getSteps()) throw new IllegalArgumentException("Number of variants: "+m+" in the set of genotypes does not coincide with steps of the HMM: "+getSteps());
-		double [][][] sumGenotypeProbs = new double [n][m][3];
-		double [][][] nextGenotypeProbs = new double [n][m][3];
+		final double [][][] sumGenotypeProbs = new double [n][m][3];
+		final double [][][] nextGenotypeProbs = new double [n][m][3];
 		
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumGenotypeProbs[i]);
 		}
+		int numGroups = Math.max(1, Math.min(getNumThreads(), n));
 		for(int h=0;h<startsBaumWelch;h++) {
 			getLog().info("Training and sampling iteration: "+h);
 			train();
 			getLog().info("Model trained");
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs[i]);
-				NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(genotypesSample, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(genotypesSample, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClusters[h][i]);
-				getLog().info("Calculated posteriors for sample: "+sampleId);
-				
+			//Samples are decoded in parallel. Each group of samples has its own buffers
+			final int [][] outClustersStart = outClusters[h];
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for(int g=0;g<numGroups;g++) {
+				final int first = (int)((long)n*g/numGroups);
+				final int end = (int)((long)n*(g+1)/numGroups);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						double [][] nextPosteriorsSample = new double [m][k];
+						int [] nextViterbiPathSample = new int [m];
+						for(int i=first;i<end;i++) {
+							String sampleId = sampleIds.get(i);
+							List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+							calculateGenotypePosteriors(genotypesSample, nextGenotypeProbs[i]);
+							NumberArrays.accumulate(sumGenotypeProbs[i],nextGenotypeProbs[i]);
+							
+							//State posteriors for assignments
+							calculatePosteriors(genotypesSample, nextPosteriorsSample);
+							
+							//Best viterbi path
+							Arrays.fill(nextViterbiPathSample, -1);
+							getViterbiPath(genotypesSample, nextViterbiPathSample);
+							
+							//Conciliate viterbi with posterior
+							assignClusters (sampleId, genotypesSample, nextPosteriorsSample,nextViterbiPathSample,outClustersStart[i]);
+							getLog().info("Calculated posteriors for sample: "+sampleId);
+						}
+						return null;
+					}
+				});
 			}
+			runTasks(tasks);
 		}
 		//Map<String,List<Integer>> assignments = new TreeMap<String, List<Integer>>();
 		for(int i=0;i<n;i++) {
@@ -154,27 +176,27 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 		getLog().info("Trained internal haploid model ");
 		int n = getSteps();
 		int kD = getNumStates();
-		Double [][] logTransitionsStep = new Double [kD][kD];
+		double [][] logTransitionsStep = new double [kD][kD];
 		for(int step=0;step<n-1;step++) {
 			for(int i = 0;i<kD; i++) {
 				HaplotypePairHMMState statePair1 = (HaplotypePairHMMState)getState(i);
 				for(int j = 0;j<kD; j++) {
 					HaplotypePairHMMState statePair2 = (HaplotypePairHMMState)getState(j);
-					Double t1 = haploidBaseHMM.getTransition(statePair1.getIndex1(), statePair2.getIndex1(), step);
-					if(t1==null) {
+					double t1 = haploidBaseHMM.getTransition(statePair1.getIndex1(), statePair2.getIndex1(), step);
+					if(t1==Double.NEGATIVE_INFINITY) {
 						getLog().info("WARN: Zero transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
 					}
 					else if(statePair1.getIndex1()!=statePair2.getIndex1() && t1 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex1()+" and "+statePair2.getIndex1()+" at step: "+step+" value: "+t1);
 					}
-					Double t2 = haploidBaseHMM.getTransition(statePair1.getIndex2(), statePair2.getIndex2(), step);
-					if(t2==null) {
+					double t2 = haploidBaseHMM.getTransition(statePair1.getIndex2(), statePair2.getIndex2(), step);
+					if(t2==Double.NEGATIVE_INFINITY) {
 						getLog().info("WARN: Zero transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
 					}
 					else if(statePair1.getIndex2()!=statePair2.getIndex2() && t2 > -1) {
 						getLog().info("WARN: Abnormally high transition between: "+statePair1.getIndex2()+" and "+statePair2.getIndex2()+" at step: "+step+" value: "+t2);
 					}
-					logTransitionsStep[i][j] = LogMath.logProduct(t1, t2);
+					logTransitionsStep[i][j] = t1+t2;
 				}
 			}
 			//getLog().info("Setting transitions for step: "+step);
@@ -186,24 +208,28 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 	public void calculateGenotypePosteriors(List<CalledSNV> genotypes, double[][] genotypePosteriors) {
 		int m = genotypes.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(genotypes);
-		Double [][] backwardLogs=calculateBackward(genotypes);
+		runForwardBackward(genotypes);
+		double [] forwardLogs = getForwardLogs();
+		double [] backwardLogs = getBackwardLogs();
+		Byte homoRef = CalledSNV.GENOTYPE_HOMOREF;
+		Byte hetero = CalledSNV.GENOTYPE_HETERO;
+		Byte homoAlt = CalledSNV.GENOTYPE_HOMOALT;
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
-			Double log2 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
+			double log2 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOREF, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HETERO, i)));
-				log2 = LogMath.logSum(log2, LogMath.logProduct(fTimesB, getEmission(j, CalledSNV.GENOTYPE_HOMOALT, i)));
+				double fTimesB = forwardLogs[i*k+j]+backwardLogs[i*k+j];
+				log0 = LogMath.logSumExp(log0, fTimesB+getEmission(j, homoRef, i));
+				log1 = LogMath.logSumExp(log1, fTimesB+getEmission(j, hetero, i));
+				log2 = LogMath.logSumExp(log2, fTimesB+getEmission(j, homoAlt, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			logSum = LogMath.logSum(logSum, log2);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
-			double prob2 = LogMath.power10(LogMath.logProduct(log2, -logSum));
+			double logSum = LogMath.logSumExp(log0, log1);
+			logSum = LogMath.logSumExp(logSum, log2);
+			double prob0 = Math.pow(10.0, log0-logSum);
+			double prob1 = Math.pow(10.0, log1-logSum);
+			double prob2 = Math.pow(10.0, log2-logSum);
 			double sum = prob0 + prob1 + prob2;
 			prob0/=sum;
 			prob1/=sum;
@@ -246,10 +272,10 @@ public class DiploidGenotypeImputationHMM extends RecombinationHMM {
 			} else if(idxMaxPos==viterbiPath[i]) {
 				//Phase het variants
 				if(call.isHeterozygous() && !call.isPhased()) {
-					Double lp1 = LogMath.logProduct(hapState1.getEmission(a0, i),hapState2.getEmission(a1, i));
-					Double lp2 = LogMath.logProduct(hapState1.getEmission(a1, i),hapState2.getEmission(a0, i));
-					double p1 = LogMath.power10(lp1);
-					double p2 = LogMath.power10(lp2);
+					double lp1 = hapState1.getEmission(a0, i)+hapState2.getEmission(a1, i);
+					double lp2 = hapState1.getEmission(a1, i)+hapState2.getEmission(a0, i);
+					double p1 = Math.pow(10.0, lp1);
+					double p2 = Math.pow(10.0, lp2);
 					//double pMax = Math.max(p1, p2);
 					call.setPhasingCN2(p2>p1);
 					/*if( pMax < 0.5) {
@@ -20,8 +20,10 @@
 package ngsep.variants.imputation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import ngsep.math.NumberArrays;
 import ngsep.math.PhredScoreHelper;
@@ -66,42 +68,58 @@ public class GenotypeImputationHMM extends HaplotypeClustersHMM {
 	 * @param genotypes Map with one entry per individual. The key is the sample id and the value is a list of genotype calls
 	 */
 	public void imputeGenotypes (Map<String, List<CalledSNV>> genotypes, int [][][] outClusters) {
-		List<String> sampleIds = new ArrayList<String>();
+		final List<String> sampleIds = new ArrayList<String>();
 		sampleIds.addAll(genotypes.keySet());
 		int n = sampleIds.size();
 		
-		int m = genotypes.values().iterator().next().size();
-		int k = getNumStates();
+		final int m = genotypes.values().iterator().next().size();
+		final int k = getNumStates();
 		if(m!=getSteps()) throw new IllegalArgumentException("Number of variants: "+m+" in the set of genotypes does not coincide with steps of the HMM: "+getSteps());
-		double [][][] sumAlleleProbs = new double [n][m][2];
-		double [][][] nextAlleleProbs = new double [n][m][2];
-		double [][] nextPosteriorsSample = new double [m][k];
-		int [] nextViterbiPathSample = new int [m];
+		final double [][][] sumAlleleProbs = new double [n][m][2];
+		final double [][][] nextAlleleProbs = new double [n][m][2];
 		for(int i=0;i<n;i++) {
 			NumberArrays.initializeDoubleMatrix(sumAlleleProbs[i]);
 		}
+		int numGroups = Math.max(1, Math.min(getNumThreads(), n));
 		for(int h=0;h<startsBaumWelch;h++) {
 			NumberArrays.initializeIntMatrix(outClusters[h]);
 			getLog().info("Training and sampling iteration: "+h);
 			train();
-			for(int i=0;i<n;i++) {
-				String sampleId = sampleIds.get(i);
-				List<CalledSNV> genotypesSample = genotypes.get(sampleId);
-				List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
-				
-				//Allele posteriors for genotyping
-				calculateAllelePosteriors(haplotype, nextAlleleProbs[i]);
-				NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs[i]);
-				
-				//State posteriors for assignments
-				calculatePosteriors(haplotype, nextPosteriorsSample);
-				
-				//Best viterbi path
-				getViterbiPath(haplotype, nextViterbiPathSample);
-				
-				//Conciliate viterbi with posterior
-				assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClusters[h][i]);
+			//Samples are decoded in parallel. Each group of samples has its own buffers
+			final int [][] outClustersStart = outClusters[h];
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for(int g=0;g<numGroups;g++) {
+				final int first = (int)((long)n*g/numGroups);
+				final int end = (int)((long)n*(g+1)/numGroups);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						double [][] nextPosteriorsSample = new double [m][k];
+						int [] nextViterbiPathSample = new int [m];
+						for(int i=first;i<end;i++) {
+							String sampleId = sampleIds.get(i);
+							List<CalledSNV> genotypesSample = genotypes.get(sampleId);
+							List<Byte> haplotype = makeHaplotypeWithHomozygous(genotypesSample);
+							
+							//Allele posteriors for genotyping
+							calculateAllelePosteriors(haplotype, nextAlleleProbs[i]);
+							NumberArrays.accumulate(sumAlleleProbs[i],nextAlleleProbs[i]);
+							
+							//State posteriors for assignments
+							calculatePosteriors(haplotype, nextPosteriorsSample);
+							
+							//Best viterbi path
+							Arrays.fill(nextViterbiPathSample, -1);
+							getViterbiPath(haplotype, nextViterbiPathSample);
+							
+							//Conciliate viterbi with posterior
+							assignClusters (sampleId,genotypesSample, nextPosteriorsSample, nextViterbiPathSample, outClustersStart[i]);
+						}
+						return null;
+					}
+				});
 			}
+			runTasks(tasks);
 		}
 		for(int i=0;i<n;i++) {
 			String sampleId = sampleIds.get(i);
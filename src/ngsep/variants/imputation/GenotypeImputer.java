@@ -19,15 +19,23 @@
  *******************************************************************************/
 package ngsep.variants.imputation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.hmm.RecombinationHMM;
@@ -49,6 +57,7 @@ public class GenotypeImputer {
 	public static final double DEF_CMPERKBP = 0.001;
 	public static final int DEF_WINDOW = 5000;
 	public static final int DEF_OVERLAP = 50;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	private Logger log = Logger.getLogger(GenotypeImputer.class.getName());
 	private ProgressNotifier progressNotifier=null;
@@ -57,6 +66,7 @@ public class GenotypeImputer {
 	private boolean skipTransitionsTraining = false;
 	private boolean inbredParents = false;
 	private boolean inbredSamples = false;
+	private int numThreads = DEF_NUM_THREADS;
 	private List<String> parentIds = new ArrayList<String>() ;
 	private int k = DEF_K;
 	private int windowSize = DEF_WINDOW;
@@ -186,6 +196,18 @@ public class GenotypeImputer {
 		this.setInbredSamples(inbredSamples.booleanValue());
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+
 	public boolean isSkipTransitionsTraining() {
 		return skipTransitionsTraining;
 	}
@@ -222,13 +244,23 @@ public class GenotypeImputer {
 
 
 
+	/**
+	 * Imputes the genotypes of the given VCF file. The calling thread loads windows of windowSize SNVs,
+	 * numThreads workers impute the windows independently, and the records are written in the order of the input file.
+	 * At most 2*numThreads windows are kept in memory
+	 * @param filename VCF file with the genotypes to impute
+	 * @throws IOException If the file can not be read
+	 */
 	public void impute(String filename) throws IOException {
 		logParameters(filename);
-		
+		progress = 0;
 		List<VCFRecord> records = new ArrayList<VCFRecord>();
 		List<VCFRecord> lastRecords = new ArrayList<VCFRecord>();
 		VCFFileReader reader = null;
 		VCFFileWriter out = new VCFFileWriter();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<ImputationWindow>> pendingWindows = new ArrayDeque<>();
+		int submittedWindows = 0;
 		try {
 			reader = new VCFFileReader(filename);
 			if(log!=null) reader.setLog(log);
@@ -245,42 +277,52 @@ public class GenotypeImputer {
 				boolean sequenceChange = !var.getSequenceName().equals(lastSeqName); 
 				if(sequenceChange || records.size() == windowSize) {
 					if(lastSeqName!=null) {
-						processRecords(records,samples,lastRecords,out,sequenceChange);
-						for(VCFRecord r:records) out.printVCFRecord(r, outGenotypes);
-						progress++;
-						if(progressNotifier!=null && !progressNotifier.keepRunning(progress)) return;
+						//Windows running concurrently use one thread each
+						pendingWindows.add(submitWindow(pool, records, samples, lastRecords, sequenceChange, 1));
+						submittedWindows++;
+						if(pendingWindows.size()>=2*numThreads && !writeWindow(pendingWindows.poll(), out)) return;
 					}
 					lastSeqName = var.getSequenceName();
 				}
 				records.add(record);
 			}
 			if(lastSeqName!=null) {
-				processRecords(records, samples, lastRecords, out, true);
+				//If the file has only one window, all threads are used to impute it
+				int hmmThreads = (submittedWindows==0)?numThreads:1;
+				pendingWindows.add(submitWindow(pool, records, samples, lastRecords, true, hmmThreads));
+			}
+			while(!pendingWindows.isEmpty()) {
+				if(!writeWindow(pendingWindows.poll(), out)) return;
 			}
 		} finally {
 			if (reader!=null) reader.close();
+			pool.shutdownNow();
 		}
 	}
 	
-	private void processRecords(List<VCFRecord> currentRecords, List<Sample> samples, List<VCFRecord> lastRecords, VCFFileWriter out, boolean sequenceChange) {
-		List<VCFRecord> recordsImpute = calculateRecordsImpute (currentRecords,lastRecords);
-		
-		
-		Map<String, List<CalledSNV>> genotypes = convertToCalledGenotypes(samples, recordsImpute);
-		imputeGenotypes(genotypes);
-		int printStart = 0;
+	/**
+	 * Builds the window including the overlap with the previous window and submits its imputation to the given pool.
+	 * Genotypes to impute are copied in the calling thread, so windows sharing records can be imputed concurrently
+	 * @param pool Pool running the imputation
+	 * @param currentRecords Records of the window. The list is cleared to load the next window
+	 * @param samples Samples of the VCF file
+	 * @param lastRecords Records of the previous window. Updated with the records of this window
+	 * @param sequenceChange Tells if this is the last window of a sequence
+	 * @param hmmThreads Number of threads used by the HMM of this window
+	 * @return Future<ImputationWindow> Window with imputed genotypes
+	 */
+	private Future<ImputationWindow> submitWindow(ExecutorService pool, List<VCFRecord> currentRecords, List<Sample> samples, List<VCFRecord> lastRecords, boolean sequenceChange, final int hmmThreads) {
+		final ImputationWindow window = new ImputationWindow();
+		window.records = calculateRecordsImpute (currentRecords,lastRecords);
+		window.samples = samples;
+		window.genotypes = convertToCalledGenotypes(samples, window.records);
+		window.printStart = 0;
 		if(lastRecords.size()>0) {
-			printStart+=overlap;
+			window.printStart+=overlap;
 		}
-		int printEnd = recordsImpute.size();
+		window.printEnd = window.records.size();
 		if(!sequenceChange) {
-			printEnd-=overlap;
-		}
-		
-		//Print records
-		for(int i = printStart;i<printEnd;i++) {
-			VCFRecord r = recordsImpute.get(i);
-			out.printVCFRecord(r, outGenotypes);
+			window.printEnd-=overlap;
 		}
 		//Update last records
 		lastRecords.clear();
@@ -289,6 +331,78 @@ public class GenotypeImputer {
 		}
 		//Clean records for next window
 		currentRecords.clear();
+		return pool.submit(new Callable<ImputationWindow>() {
+			@Override
+			public ImputationWindow call() {
+				imputeWindow(window, hmmThreads);
+				return window;
+			}
+		});
+	}
+	
+	private void imputeWindow(ImputationWindow window, int hmmThreads) {
+		PrintStream windowAssignments = null;
+		ByteArrayOutputStream assignmentsBytes = null;
+		if(outAssignments!=null) {
+			assignmentsBytes = new ByteArrayOutputStream();
+			windowAssignments = new PrintStream(assignmentsBytes);
+		}
+		if(inbredSamples) imputeGenotypesHMMInbreds(window.genotypes, hmmThreads, windowAssignments);
+		else imputeGenotypesHMMDiploid(window.genotypes, hmmThreads, windowAssignments);
+		if(windowAssignments!=null) {
+			windowAssignments.flush();
+			window.assignments = assignmentsBytes.toString();
+		}
+	}
+	
+	/**
+	 * Waits for the imputation of the given window and prints the records that do not belong to the overlaps
+	 * @param windowFuture Window submitted for imputation
+	 * @param out Writer of the records
+	 * @return boolean false if the process should stop, true otherwise
+	 */
+	private boolean writeWindow(Future<ImputationWindow> windowFuture, VCFFileWriter out) {
+		ImputationWindow window;
+		try {
+			window = windowFuture.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for imputed genotypes",e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error imputing genotypes",cause);
+		}
+		//Print records. Records after the print end are printed by the next window but keep the imputation of this window
+		for(int i = window.printStart;i<window.records.size();i++) {
+			VCFRecord r = window.records.get(i);
+			copyImputedGenotypes(r, i, window.samples, window.genotypes);
+			if(i<window.printEnd) out.printVCFRecord(r, outGenotypes);
+		}
+		if(window.assignments!=null) outAssignments.print(window.assignments);
+		progress++;
+		return progressNotifier==null || progressNotifier.keepRunning(progress);
+	}
+	
+	/**
+	 * Moves the imputed genotypes and phasing of a window to the calls of the given record.
+	 * Calls already decided or phased by a previous window are not modified
+	 * @param record Record to update
+	 * @param idx Index of the record within the window
+	 * @param samples Samples of the VCF file
+	 * @param genotypes Imputed genotypes of the window
+	 */
+	private void copyImputedGenotypes(VCFRecord record, int idx, List<Sample> samples, Map<String, List<CalledSNV>> genotypes) {
+		List<CalledGenomicVariant> calls = record.getCalls();
+		for(int i=0;i<calls.size();i++) {
+			CalledGenomicVariant call = calls.get(i);
+			if(!(call instanceof CalledSNV)) continue;
+			CalledSNV imputed = genotypes.get(samples.get(i).getId()).get(idx);
+			if(call.isUndecided()) {
+				((CalledSNV)call).setGenotype(imputed.getGenotype());
+				call.setGenotypeQuality(imputed.getGenotypeQuality());
+			}
+			if(imputed.isPhased() && !call.isPhased() && call.getCopyNumber()==2) ((CalledSNV)call).setPhasingCN2(imputed.getIndexesPhasedAlleles()[0]==1);
+		}
 	}
 
 	private List<VCFRecord> calculateRecordsImpute(List<VCFRecord> currentRecords, List<VCFRecord> lastRecords) {
@@ -311,15 +425,30 @@ public class GenotypeImputer {
 			List<CalledGenomicVariant> genotypeCalls = record.getCalls();
 			for(int i=0;i<genotypeCalls.size();i++) {
 				String sampleId = samples.get(i).getId();
-				CalledGenomicVariant genotypeCall = genotypeCalls.get(i);
-				CalledSNV csnv;
-				if(genotypeCall instanceof CalledSNV) csnv = (CalledSNV)genotypeCall;
-				else csnv = new CalledSNV(snv, CalledSNV.GENOTYPE_UNDECIDED);
-				genotypes.get(sampleId).add(csnv);
+				genotypes.get(sampleId).add(copyCall(snv, genotypeCalls.get(i)));
 			}
 		}
 		return genotypes;
 	}
+	
+	/**
+	 * Copies the given call. Windows overlapping the same records are imputed concurrently,
+	 * so the imputation only modifies copies and the results are moved to the records when they are printed
+	 * @param snv Variant of the call
+	 * @param call Genotype call to copy
+	 * @return CalledSNV Copy of the given call. Undecided call if the given call is not a CalledSNV
+	 */
+	private CalledSNV copyCall(SNV snv, CalledGenomicVariant call) {
+		if(!(call instanceof CalledSNV)) return new CalledSNV(snv, CalledSNV.GENOTYPE_UNDECIDED);
+		CalledSNV source = (CalledSNV)call;
+		CalledSNV copy = new CalledSNV(snv, source.getGenotype());
+		copy.setSampleId(source.getSampleId());
+		copy.setGenotypeQuality(source.getGenotypeQuality());
+		copy.updateAllelesCopyNumberFromCounts(source.getCopyNumber());
+		if(!source.isUndecided()) copy.setAllelesCopyNumber(source.getAllelesCopyNumber());
+		if(source.isPhased() && source.getCopyNumber()==2) copy.setPhasingCN2(source.getIndexesPhasedAlleles()[0]==1);
+		return copy;
+	}
 
 	private void logParameters(String filename) {
 		log.info("Running imputation for VCF file: "+filename);
@@ -327,6 +456,7 @@ public class GenotypeImputer {
 		if(parentIds!=null) log.info("Number of parents: "+parentIds.size());
 		log.info("Window size: "+windowSize);
 		log.info("Overlap: "+overlap);
+		log.info("Number of threads: "+numThreads);
 	}
 
 	public void imputeGenotypes(Map<String,List<CalledSNV>> genotypes) {
@@ -336,42 +466,52 @@ public class GenotypeImputer {
 	}
 
 	public void imputeGenotypesHMMInbreds(Map<String, List<CalledSNV>> genotypes) {
+		if(progressNotifier!=null) {
+			progress++;
+			if(!progressNotifier.keepRunning(progress)) return;
+		}
+		imputeGenotypesHMMInbreds(genotypes, numThreads, outAssignments);
+	}
+	
+	private void imputeGenotypesHMMInbreds(Map<String, List<CalledSNV>> genotypes, int hmmThreads, PrintStream outAssignments) {
 		GenotypeImputationHMM  hmm = GenotypeImputationHMM.createHMM(genotypes, parentIds, k, inbredParents);
 		hmm.setAvgCMPerKbp(avgCMPerKbp);
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
+		hmm.setNumThreads(hmmThreads);
 		hmm.setLog(log);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
-		if(progressNotifier!=null) {
-			progress++;
-			if(!progressNotifier.keepRunning(progress)) return;
-		}
 		
 		int [][][] outClusters = new int [hmm.getStartsBaumWelch()][genotypes.size()][hmm.getSteps()];
 		hmm.imputeGenotypes(genotypes,outClusters);
 		List<CalledSNV> snvs = genotypes.values().iterator().next();
 		//TODO: Conciliate more than one run of the Baum-Welch
-		if(outAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm);
+		if(outAssignments!=null) printClusters(outAssignments, genotypes.keySet(),snvs,outClusters[0],hmm);
 	}
 	
 	public void imputeGenotypesHMMDiploid(Map<String, List<CalledSNV>> genotypes) {
+		if(progressNotifier!=null) {
+			progress++;
+			if(!progressNotifier.keepRunning(progress)) return;
+		}
+		imputeGenotypesHMMDiploid(genotypes, numThreads, outAssignments);
+	}
+	
+	private void imputeGenotypesHMMDiploid(Map<String, List<CalledSNV>> genotypes, int hmmThreads, PrintStream outAssignments) {
 		DiploidGenotypeImputationHMM  hmm = DiploidGenotypeImputationHMM.createHMM(genotypes, parentIds, k, inbredParents);
 		hmm.setAvgCMPerKbp(avgCMPerKbp);
 		hmm.setSkipTransitionsTraining(skipTransitionsTraining);
+		hmm.setNumThreads(hmmThreads);
 		hmm.setLog(log);
 		hmm.setTrainingData(makeTrainingDataWithHomozygous(genotypes));
 		
-		if(progressNotifier!=null) {
-			progress++;
-			if(!progressNotifier.keepRunning(progress)) return;
-		}
 		int [][][] outClusters = new int [hmm.getStartsBaumWelch()][genotypes.size()][hmm.getSteps()];
 		hmm.imputeGenotypes(genotypes,outClusters);
 		List<CalledSNV> snvs = genotypes.values().iterator().next();
 		//TODO: Conciliate more than one run of the Baum-Welch
-		if(outAssignments!=null) printClusters(genotypes.keySet(),snvs,outClusters[0],hmm);
+		if(outAssignments!=null) printClusters(outAssignments, genotypes.keySet(),snvs,outClusters[0],hmm);
 	}
 	
-	private void printClusters(Set<String>sampleIds, List<CalledSNV> snvs, int [][] outClusters,RecombinationHMM hmm) {
+	private void printClusters(PrintStream outAssignments, Set<String>sampleIds, List<CalledSNV> snvs, int [][] outClusters,RecombinationHMM hmm) {
 		int m = hmm.getSteps();
 		outAssignments.print("Chr\tPos");
 		for(String sampleId:sampleIds) outAssignments.print("\t"+sampleId);
@@ -400,4 +540,18 @@ public class GenotypeImputer {
 		return haplotypes;
 	}
 	
+	/**
+	 * Window of records imputed independently of the other windows
+	 */
+	private static class ImputationWindow {
+		//Records to impute including the overlaps with the neighbor windows
+		private List<VCFRecord> records;
+		private List<Sample> samples;
+		private Map<String, List<CalledSNV>> genotypes;
+		//Range of records to print
+		private int printStart;
+		private int printEnd;
+		//Cluster assignments if they are requested
+		private String assignments;
+	}
 }
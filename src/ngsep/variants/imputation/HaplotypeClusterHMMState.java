@@ -34,12 +34,12 @@ import ngsep.variants.CalledSNV;
 public class HaplotypeClusterHMMState implements HMMState {
 	private String id = null;
 	private byte [] haplotype = new byte [0]; //-1 for undecided, 0 for allele zero, 1 for allele 1
-	private Double [] allele0Logs = new Double [0];
-	private Double [] allele1Logs = new Double [0];
-	private Double logStart=null;
+	private double [] allele0Logs = new double [0];
+	private double [] allele1Logs = new double [0];
+	private double logStart=Double.NEGATIVE_INFINITY;
 	
-	public static final Double LOGPROB_UNEXPECTED = Math.log10(0.01);
-	public static final Double LOGPROB_EXPECTED = Math.log10(0.99);
+	public static final double LOGPROB_UNEXPECTED = Math.log10(0.01);
+	public static final double LOGPROB_EXPECTED = Math.log10(0.99);
 	
 	public HaplotypeClusterHMMState(int haplotypeLength) {
 		initArrays(haplotypeLength);
@@ -48,8 +48,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 	private void initArrays(int m) {
 		if(haplotype.length!=m) {
 			haplotype = new byte [m];
-			allele0Logs = new Double [m];
-			allele1Logs = new Double [m];
+			allele0Logs = new double [m];
+			allele1Logs = new double [m];
 		}
 		Arrays.fill(haplotype, (byte)-1);
 		setRandomEmissions(true);
@@ -64,8 +64,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 			//TODO: Improve handling
 			if(successProb > 0.999) successProb = 0.999;
 			byte g = call.getGenotype();
-			Double logError = LogMath.log10(1.0-successProb);
-			Double logNoError = LogMath.log10(successProb);
+			double logError = Math.log10(1.0-successProb);
+			double logNoError = Math.log10(successProb);
 			if(g==CalledSNV.GENOTYPE_HOMOREF) {
 				haplotype[i] = 0;
 				allele0Logs [i] = logNoError;
@@ -93,8 +93,8 @@ public class HaplotypeClusterHMMState implements HMMState {
 			if(successProb > 0.999) successProb = 0.999;
 			byte [] idsPhasedAlleles = call.getIndexesPhasedAlleles();
 			byte phasedAllele = idsPhasedAlleles[hapId];
-			Double logError = LogMath.log10(1.0-successProb);
-			Double logNoError = LogMath.log10(successProb);
+			double logError = Math.log10(1.0-successProb);
+			double logNoError = Math.log10(successProb);
 			if(phasedAllele == 0) {
 				haplotype[i] = 0;
 				allele0Logs [i] = logNoError;
@@ -121,19 +121,19 @@ public class HaplotypeClusterHMMState implements HMMState {
 		for(int i=0;i<haplotype.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
 				double d = r.nextDouble()*0.8 + 0.1;
-				allele0Logs [i] = LogMath.log10(1.0-d);
-				allele1Logs [i] = LogMath.log10(d);
+				allele0Logs [i] = Math.log10(1.0-d);
+				allele1Logs [i] = Math.log10(d);
 			}
 			
 		}
 	}
 	@Override
-	public Double getLogStart() {
+	public double getLogStart() {
 		return logStart;
 	}
 	
 	@Override
-	public void setLogStart(Double logStart) {
+	public void setLogStart(double logStart) {
 		this.logStart = logStart;
 	}
 	/**
@@ -142,33 +142,33 @@ public class HaplotypeClusterHMMState implements HMMState {
 	 * @param updateKnownSites True if probabilities should be updated for sites in which the
 	 * haplotype was provided as an input
 	 */
-	public void setEmissionLogProbs(Double [][] logProbs, boolean updateKnownSites) {
+	public void setEmissionLogProbs(double [][] logProbs, boolean updateKnownSites) {
 		for(int i=0;i<logProbs.length;i++) {
 			if(updateKnownSites || haplotype[i]==-1) {
-				Double sum = LogMath.logSum(logProbs[i][0], logProbs[i][1]);
-				if(sum!=null) {
-					//sum == null implies that the expected counts for both allele are equal to zero, 
+				double sum = LogMath.logSumExp(logProbs[i][0], logProbs[i][1]);
+				if(sum!=Double.NEGATIVE_INFINITY) {
+					//A zero sum implies that the expected counts for both allele are equal to zero, 
 					//so the genotype information can not be used to reestimate emissions
-					allele0Logs[i] = LogMath.logProduct(logProbs[i][0], -sum);
-					allele1Logs[i] = LogMath.logProduct(logProbs[i][1], -sum);
+					allele0Logs[i] = logProbs[i][0]-sum;
+					allele1Logs[i] = logProbs[i][1]-sum;
 				}
 			}
 		}
 	}
 
 	@Override
-	public Double getEmission(Object value, int step) {
-		if(value == null) return null;
+	public double getEmission(Object value, int step) {
+		if(value == null) return Double.NEGATIVE_INFINITY;
 		byte b = (byte) value;
 		//TODO: take into account genotype quality
 		//System.out.println("Allele: "+b+" allele 0 log: "+allele0Logs[step]+" allele 1 log: "+allele1Logs[step]);
-		Double answer = null;
+		double answer = Double.NEGATIVE_INFINITY;
 		if(b==0) answer = allele0Logs[step];
 		else if(b==1) answer = allele1Logs[step];
-		if(answer == null) {
+		if(answer == Double.NEGATIVE_INFINITY) {
 			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
 		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
+			answer += HaplotypeClusterHMMState.LOGPROB_EXPECTED;
 		}
 		return answer;
 	}
@@ -13,7 +13,8 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 	private boolean updateEmissionKnownSites = false;
 	
 	//Local arrays to save reallocation over many runs
-	private Double [][][] logEmissions = new Double [0][0][0];
+	//Expected counts of each allele for each state and step. One matrix per group of training sequences
+	private double [][][][] logEmissions = new double [0][0][0][0];
 	
 	
 	public HaplotypeClustersHMM(List<? extends HaplotypeClusterHMMState> states, int numMarkers) {
@@ -40,33 +41,44 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 	}
 
 	@Override
-	protected void initEmissionsBaumWelch() {
+	protected void initEmissionsBaumWelch(int numGroups) {
 		int k = getNumStates();
 		int m = getSteps();
-		if(logEmissions.length!=k || logEmissions[0].length!=m) {
-			getLog().info("Creating array for emissions of dimensions "+k+" x "+m+" x 2");
-			logEmissions = new Double [k][m][2];
+		if(logEmissions.length!=numGroups || logEmissions[0].length!=k || logEmissions[0][0].length!=m) {
+			getLog().info("Creating array for emissions of dimensions "+numGroups+" x "+k+" x "+m+" x 2");
+			logEmissions = new double [numGroups][k][m][2];
 		}
-		for(int j=0;j<logEmissions.length;j++) {
-			for(int i=0;i<logEmissions[j].length;i++) {
-				logEmissions[j][i][0] = logEmissions[j][i][1] = null;
+		for(int g=0;g<logEmissions.length;g++) {
+			for(int j=0;j<logEmissions[g].length;j++) {
+				for(int i=0;i<logEmissions[g][j].length;i++) {
+					logEmissions[g][j][i][0] = logEmissions[g][j][i][1] = Double.NEGATIVE_INFINITY;
+				}
 			}
 		}
 	}
 
 	@Override
-	protected void accumulateEmissionBaumWelch(int step, int stateIndex, Object datum, Double logPosterior) {
+	protected void accumulateEmissionBaumWelch(int group, int step, int stateIndex, Object datum, double logPosterior) {
 		if(datum == null || !(datum instanceof Byte)) return;
 		byte allele = (Byte)datum;
 		if(allele != CalledGenomicVariant.ALLELE_REFERENCE && allele!=CalledGenomicVariant.ALLELE_ALTERNATIVE) return;
-		logEmissions[stateIndex][step][allele] = LogMath.logSum(logEmissions[stateIndex][step][allele], logPosterior);
+		double [] counts = logEmissions[group][stateIndex][step];
+		counts[allele] = LogMath.logSumExp(counts[allele], logPosterior);
 	}
 
 	@Override
 	protected void updateEmissionsBaumWelch(int stateIndex) {
 		HaplotypeClusterHMMState state = (HaplotypeClusterHMMState)getState(stateIndex);
-		//System.out.println("Emissions state "+stateIndex+": "+logEmissions[stateIndex][0][0]+" "+logEmissions[stateIndex][0][1]);
-		state.setEmissionLogProbs(logEmissions[stateIndex], updateEmissionKnownSites);
+		double [][] totalCounts = logEmissions[0][stateIndex];
+		for(int g=1;g<logEmissions.length;g++) {
+			double [][] groupCounts = logEmissions[g][stateIndex];
+			for(int i=0;i<totalCounts.length;i++) {
+				totalCounts[i][0] = LogMath.logSumExp(totalCounts[i][0], groupCounts[i][0]);
+				totalCounts[i][1] = LogMath.logSumExp(totalCounts[i][1], groupCounts[i][1]);
+			}
+		}
+		//System.out.println("Emissions state "+stateIndex+": "+totalCounts[0][0]+" "+totalCounts[0][1]);
+		state.setEmissionLogProbs(totalCounts, updateEmissionKnownSites);
 	}
 
 	public void calculateAllelePosteriors(List<Byte> haplotype, double[][] allelePosteriors) {
@@ -74,22 +86,21 @@ public class HaplotypeClustersHMM extends RecombinationHMM {
 		Byte b1 = 1;
 		int m = haplotype.size();
 		int k = getNumStates();
-		Double [][] forwardLogs=calculateForward(haplotype);
-		Double [][] backwardLogs=calculateBackward(haplotype);
-		//calculateForward(haplotype, forwardLogs);
-		//calculateBackward(haplotype, backwardLogs);
+		runForwardBackward(haplotype);
+		double [] forwardLogs = getForwardLogs();
+		double [] backwardLogs = getBackwardLogs();
 		for(int i=0;i<m;i++) {
-			Double log0 = null;
-			Double log1 = null;
+			double log0 = Double.NEGATIVE_INFINITY;
+			double log1 = Double.NEGATIVE_INFINITY;
 			for(int j=0;j<k;j++) {
-				Double fTimesB = LogMath.logProduct(forwardLogs[i][j], backwardLogs[i][j]);
-				log0 = LogMath.logSum(log0, LogMath.logProduct(fTimesB, getEmission(j, b0, i)));
-				log1 = LogMath.logSum(log1, LogMath.logProduct(fTimesB, getEmission(j, b1, i)));
+				double fTimesB = forwardLogs[i*k+j]+backwardLogs[i*k+j];
+				log0 = LogMath.logSumExp(log0, fTimesB+getEmission(j, b0, i));
+				log1 = LogMath.logSumExp(log1, fTimesB+getEmission(j, b1, i));
 			}
 			//Normalize and raise to calculate final probabilities of genotypes
-			Double logSum = LogMath.logSum(log0, log1);
-			double prob0 = LogMath.power10(LogMath.logProduct(log0, -logSum));
-			double prob1 = LogMath.power10(LogMath.logProduct(log1, -logSum));
+			double logSum = LogMath.logSumExp(log0, log1);
+			double prob0 = Math.pow(10.0, log0-logSum);
+			double prob1 = Math.pow(10.0, log1-logSum);
 			double sum = prob0 + prob1;
 			prob0/=sum;
 			prob1/=sum;
@@ -29,7 +29,7 @@ public class HaplotypePairHMMState implements HMMState {
 	private int index2;
 	private HaplotypeClusterHMMState state1;
 	private HaplotypeClusterHMMState state2;
-	private Double logStart=null;
+	private double logStart=Double.NEGATIVE_INFINITY;
 	
 	public HaplotypePairHMMState(int index1, HaplotypeClusterHMMState state1, int index2, HaplotypeClusterHMMState state2) {
 		super();
@@ -40,25 +40,25 @@ public class HaplotypePairHMMState implements HMMState {
 	}
 
 	@Override
-	public Double getEmission(Object value, int step) {
+	public double getEmission(Object value, int step) {
 		Byte genotype = getGenotype (value);
-		Double answer = null;
+		double answer = Double.NEGATIVE_INFINITY;
 		if(genotype!=null) {
 			byte a0 = 0;
 			byte a1 = 1;
-			if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a0, step));
-			else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a1, step));
+			if(genotype==CalledSNV.GENOTYPE_HOMOREF) answer = state1.getEmission(a0, step)+state2.getEmission(a0, step);
+			else if(genotype==CalledSNV.GENOTYPE_HOMOALT) answer = state1.getEmission(a1, step)+state2.getEmission(a1, step);
 			else if(genotype==CalledSNV.GENOTYPE_HETERO) {
-				double p1 = LogMath.logProduct(state1.getEmission(a0, step), state2.getEmission(a1, step));
-				double p2 = LogMath.logProduct(state1.getEmission(a1, step), state2.getEmission(a0, step));
-				answer = LogMath.logSum(p1, p2);
+				double p1 = state1.getEmission(a0, step)+state2.getEmission(a1, step);
+				double p2 = state1.getEmission(a1, step)+state2.getEmission(a0, step);
+				answer = LogMath.logSumExp(p1, p2);
 			}
 		}
 		
-		if(answer == null) {
+		if(answer == Double.NEGATIVE_INFINITY) {
 			answer = HaplotypeClusterHMMState.LOGPROB_UNEXPECTED;
 		} else {
-			answer = LogMath.logProduct(answer, HaplotypeClusterHMMState.LOGPROB_EXPECTED);
+			answer += HaplotypeClusterHMMState.LOGPROB_EXPECTED;
 		}
 		return answer;
 	}
@@ -75,12 +75,12 @@ public class HaplotypePairHMMState implements HMMState {
 	}
 
 	@Override
-	public Double getLogStart() {
+	public double getLogStart() {
 		return logStart;
 	}
 
 	@Override
-	public void setLogStart(Double logStart) {
+	public void setLogStart(double logStart) {
 		this.logStart = logStart;
 
 	}
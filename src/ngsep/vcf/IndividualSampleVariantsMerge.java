@@ -19,29 +19,38 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
-import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.GenomicRegionPositionComparator;
-import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.GenomicRegionSpanComparator;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
-import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.SimpleSequenceListLoader;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantImpl;
 import ngsep.variants.SNV;
 
+/**
+ * Merges the variants called in individual samples into one catalog of variants.
+ * Input files are read simultaneously and merged by genomic position. Only variants overlapping
+ * the variant being merged are kept in memory
+ * @author Jorge Duitama
+ */
 public class IndividualSampleVariantsMerge {
 	
 	private ProgressNotifier progressNotifier=null;
@@ -61,9 +70,7 @@ public class IndividualSampleVariantsMerge {
 		}
 		SimpleSequenceListLoader seqNameHandler = new SimpleSequenceListLoader();
 		QualifiedSequenceList sequenceNames = seqNameHandler.loadSequences(sequenceNamesFile);
-		
-		GenomicRegionSortedCollection<GenomicVariant> variants = merger.mergeVariants(files,sequenceNames);
-		merger.printVariants(outFile, variants);
+		merger.mergeVariants(files, sequenceNames, outFile);
 	}
 
 	public ProgressNotifier getProgressNotifier() {
@@ -82,105 +89,106 @@ public class IndividualSampleVariantsMerge {
 		this.log = log;
 	}
 
-	public GenomicRegionSortedCollection<GenomicVariant> mergeVariants(List<String> files, QualifiedSequenceList sequenceNames) throws IOException {
-		log.info("Loading and merging variants");
-		GenomicRegionComparator comparator = new GenomicRegionComparator(sequenceNames);
-		GenomicRegionSortedCollection<GenomicVariant> variants = new GenomicRegionSortedCollection<GenomicVariant>(sequenceNames);
-		List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample = new ArrayList<GenomicRegionSortedCollection<GenomicVariant>>();
-		int n=0;
-		for(String f:files) {
-			log.info("Merging variants from file: "+f); 
-			List <GenomicVariant> sampleVariants = VCFFileReader.loadVariants(f,true);
-			log.info("Loaded "+sampleVariants.size()+" variants");
-			consolidatedPerSample.add(mergeVariants (variants,sampleVariants,comparator));
-			log.info("Merged variants from file: "+f+". Total variants: "+variants.size());
-			n++;
-			if (progressNotifier!=null) {
-				if (!progressNotifier.keepRunning(n)) return new GenomicRegionSortedCollection<GenomicVariant>();
-			}
+	/**
+	 * Merges the variants in the given files and writes the merged catalog to the given file.
+	 * The output file is deleted if the process is cancelled
+	 * @param files VCF files to merge. Each file must be sorted by position following the order of the given sequence names
+	 * @param sequenceNames Names of the sequences in the reference genome
+	 * @param outFilename Name of the output VCF file
+	 * @return boolean true if the process finished, false if it was cancelled
+	 * @throws IOException If a file can not be read or if the variants within a file are not sorted
+	 */
+	public boolean mergeVariants(List<String> files, QualifiedSequenceList sequenceNames, String outFilename) throws IOException {
+		boolean finished;
+		try (PrintStream out = new PrintStream(outFilename)) {
+			finished = mergeVariants(files, sequenceNames, out);
 		}
-		log.info("Merging variants in the same location");
-		variants = mergeOverlappingVariants(variants,consolidatedPerSample);
-		log.info("Variants after last merging: "+variants.size());
-		return variants;
+		if(!finished) {
+			log.info("Process cancelled. Deleting partial output file: "+outFilename);
+			new File(outFilename).delete();
+		}
+		return finished;
 	}
-	
-	private GenomicRegionSortedCollection<GenomicVariant> mergeVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List <GenomicVariant> sampleVariants, GenomicRegionComparator comparator ) throws IOException {
-		List<GenomicVariant> answerList = new ArrayList<GenomicVariant>();
-		List<GenomicVariant> variantsList = variants.asList();
-		int i=0;
-		int j=0;
-		while(j<sampleVariants.size()) {
-			GenomicVariant c2 = sampleVariants.get(j);
-			if(i<variantsList.size()) {
-				GenomicVariant c1 = variantsList.get(i);
-				int cmp = comparator.compare(c1, c2);
-				if(cmp<0) {
-					i++;
-				} else if (cmp==0) {
-					boolean add = true;
-					for(int k=i;k<variantsList.size();k++) {
-						GenomicVariant c3 = variantsList.get(k);
-						int cmp2 = comparator.compare(c3, c2);
-						if(cmp2==0 && c3.isCompatible(c2)) {
-							add = false;
-							if(c3.getVariantQS()<c2.getVariantQS()) c3.setVariantQS(c2.getVariantQS());
-							answerList.add(c3);
-							break;
-						} else if (cmp2!=0) {
-							break;
-						}
-					}
-					if(add) {
-						variants.add(c2);
-						answerList.add(c2);
+
+	/**
+	 * Merges the variants in the given files and writes the merged catalog to the given stream.
+	 * Variants of all files are visited in genomic order using a heap with the next variant of each file.
+	 * Clusters of overlapping variants are merged and written as soon as the next variant does not overlap the cluster.
+	 * The progress notifier receives the number of files completely merged. It is also checked every 1000 variants
+	 * @param files VCF files to merge. Each file must be sorted by position following the order of the given sequence names
+	 * @param sequenceNames Names of the sequences in the reference genome
+	 * @param out Stream to write the merged variants
+	 * @return boolean true if the process finished, false if it was cancelled. Output is incomplete if the process was cancelled
+	 * @throws IOException If a file can not be read or if the variants within a file are not sorted
+	 */
+	public boolean mergeVariants(List<String> files, QualifiedSequenceList sequenceNames, PrintStream out) throws IOException {
+		log.info("Merging variants from "+files.size()+" files");
+		VCFFileWriter writer = new VCFFileWriter();
+		VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+		List<VariantsFileCursor> cursors = new ArrayList<VariantsFileCursor>();
+		PriorityQueue<VariantsFileCursor> nextVariants = new PriorityQueue<VariantsFileCursor>(Math.max(1, files.size()), new VariantsFileCursorComparator());
+		int n = 0;
+		int nOut = 0;
+		int finishedFiles = 0;
+		try {
+			for(int i=0;i<files.size();i++) {
+				VariantsFileCursor cursor = new VariantsFileCursor(i, files.get(i), sequenceNames);
+				cursors.add(cursor);
+				if(cursor.advance()) nextVariants.add(cursor);
+				else finishedFiles++;
+			}
+			writer.printHeader(header,out);
+			VariantsCluster cluster = new VariantsCluster();
+			while(!nextVariants.isEmpty()) {
+				VariantsFileCursor cursor = nextVariants.poll();
+				GenomicVariant variant = cursor.getVariant();
+				if(!cluster.isEmpty() && (cluster.sequenceIndex!=cursor.getSequenceIndex() || !GenomicRegionSpanComparator.getInstance().span(variant, cluster.first, cluster.last))) {
+					nOut+=printVariants(mergeCluster(cluster), writer, header, out);
+					cluster.clear();
+				}
+				cluster.add(cursor.getSampleIndex(), cursor.getSequenceIndex(), variant);
+				boolean fileFinished = !cursor.advance();
+				if(fileFinished) {
+					log.info("Merged variants from file: "+files.get(cursor.getSampleIndex()));
+					finishedFiles++;
+				} else nextVariants.add(cursor);
+				n++;
+				if (progressNotifier!=null && (fileFinished || n%1000==0)) {
+					if (!progressNotifier.keepRunning(finishedFiles)) {
+						out.flush();
+						return false;
 					}
-					i++;
-					j++;
-				} else {
-					variants.add(c2);
-					answerList.add(c2);
-					j++;
 				}
-			} else {
-				variants.add(c2);
-				answerList.add(c2);
-				j++;
 			}
+			if(!cluster.isEmpty()) nOut+=printVariants(mergeCluster(cluster), writer, header, out);
+		} finally {
+			for(VariantsFileCursor cursor:cursors) cursor.close();
 		}
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(variants.getSequenceNames());
-		answer.addAll(answerList);
-		return answer;
+		out.flush();
+		log.info("Merged "+n+" variants from "+files.size()+" files. Total variants: "+nOut);
+		return true;
 	}
-
-	private GenomicRegionSortedCollection<GenomicVariant> mergeOverlappingVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
-		QualifiedSequenceList names = variants.getSequenceNames();
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(names);
-		for(QualifiedSequence seq:names) {
-			GenomicRegionSortedCollection<GenomicVariant> seqVariants = variants.getSequenceRegions(seq.getName());
-			List<GenomicVariant> overlappingVariants = new ArrayList<GenomicVariant>();
-			int first = -1;
-			int last = -1;
-			for(GenomicVariant variant:seqVariants) {
-				//System.out.println("Next Variant "+variant.getSequenceName()+":"+variant.getFirst()+" "+variant.getReference()+" "+variant.getAlleles()[1]);
-				if(overlappingVariants.size() > 0 && !GenomicRegionSpanComparator.getInstance().span(variant, first, last)) {
-					answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
-					overlappingVariants.clear();
-				}
-				overlappingVariants.add(variant);
-				if(overlappingVariants.size()==1) {
-					first = variant.getFirst();
-					last = variant.getLast();
-				} else if(last<variant.getLast()) last =variant.getLast();
-			}
-			if(overlappingVariants.size() > 0) {
-				answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
-			}
+	
+	private List<GenomicVariant> mergeCluster(VariantsCluster cluster) {
+		List<GenomicVariant> variants = cluster.variants;
+		if(variants.size()<=1) return variants;
+		//Variants within each file are sorted by start but not necessarily by end
+		Collections.sort(variants,GenomicRegionPositionComparator.getInstance());
+		List<List<GenomicVariant>> consolidatedPerSample = new ArrayList<List<GenomicVariant>>(cluster.variantsPerSample.values());
+		for(List<GenomicVariant> sampleVariants:consolidatedPerSample) Collections.sort(sampleVariants,GenomicRegionPositionComparator.getInstance());
+		return mergeOverlappingVariants(variants, cluster.first, cluster.last, consolidatedPerSample);
+	}
+	
+	private int printVariants(List<GenomicVariant> variants, VCFFileWriter writer, VCFFileHeader header, PrintStream out) {
+		for(GenomicVariant variant:variants) {
+			VCFRecord record = new VCFRecord(variant, VCFRecord.DEF_FORMAT_ARRAY_NONE, new ArrayList<>(), header);
+			writer.printVCFRecord(record, out);
 		}
-		return answer;
+		return variants.size();
 	}
+	
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample ) {
+	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, List<List<GenomicVariant>> consolidatedPerSample ) {
 		if(overlappingVariants.size()<=1) return overlappingVariants;
 		log.info("Merging "+overlappingVariants.size()+" overlapping variants at "+overlappingVariants.get(0).getSequenceName()+": "+first+"-"+last);
 		List<GenomicVariant> answer = new ArrayList<GenomicVariant>();
@@ -254,7 +262,7 @@ public class IndividualSampleVariantsMerge {
 	}
 	
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
+	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, List<List<GenomicVariant>> consolidatedPerSample) {
 		log.info("Creating multiallelic indel");
 		String reference = buildReferenceFromVariants (overlappingVariants,first);
 		String seqName = overlappingVariants.get(0).getSequenceName();
@@ -266,15 +274,15 @@ public class IndividualSampleVariantsMerge {
 			type = GenomicVariantImpl.mergeType(type, var.getType());
 		}
 		//Create one mutated allele per sample assuming that all alternative alleles appear at the same haplotype
-		for(GenomicRegionSortedCollection<GenomicVariant> varsSample:consolidatedPerSample) {
-			GenomicRegionSortedCollection<GenomicVariant> sampleVarsRegion = varsSample.findSpanningRegions(seqName, first, last);
+		for(List<GenomicVariant> sampleVarsRegion:consolidatedPerSample) {
+			//All variants of the sample within the cluster span the region of the cluster
 			int nVarsReg = sampleVarsRegion.size(); 
 			//log.info("Creating allele from "+sampleVarsRegion.size()+" sample variants");
 			if(nVarsReg>1 ) {
 				String allele = makeAlternativeAllele(reference, first, sampleVarsRegion);
 				if(allele!=null) sortedAlleles.add(allele);
 			} else if (nVarsReg==1) {
-				GenomicVariant varSample = sampleVarsRegion.asList().get(0);
+				GenomicVariant varSample = sampleVarsRegion.get(0);
 				String [] varAlleles = varSample.getAlleles();
 				for(int i=1;i<varAlleles.length;i++) {
 					String allele = makeAlternativeAllele(reference, first, varAlleles[i], varSample.getFirst(),varSample.getLast());
@@ -310,7 +318,7 @@ public class IndividualSampleVariantsMerge {
 		return answer.toString();
 	}
 
-	private String makeAlternativeAllele(String reference, int first, GenomicRegionSortedCollection<GenomicVariant> variants) {
+	private String makeAlternativeAllele(String reference, int first, List<GenomicVariant> variants) {
 		if(variants==null || variants.size()==0) return null;
 		StringBuilder answer = new StringBuilder();
 		int next = first;
@@ -351,23 +359,133 @@ public class IndividualSampleVariantsMerge {
 		return refAllele.toString();
 	}
 	
-	public void printVariants(String outFile, GenomicRegionSortedCollection<GenomicVariant> variants) throws IOException {
-		VCFFileWriter writer = new VCFFileWriter();
-		PrintStream out = null;
-		try {
-			out = new PrintStream(outFile);
-			VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
-			writer.printHeader(header,out);
-			for(GenomicVariant variant:variants) {
-				VCFRecord record = new VCFRecord(variant, VCFRecord.DEF_FORMAT_ARRAY_NONE, new ArrayList<>(), header);
-				writer.printVCFRecord(record, out);
+	/**
+	 * Variants overlapping the variant being merged. Keeps the distinct variants
+	 * and the variants of each sample replaced by the equivalent distinct variants
+	 */
+	private static class VariantsCluster {
+		private int sequenceIndex = -1;
+		private int first = -1;
+		private int last = -1;
+		private List<GenomicVariant> variants = new ArrayList<GenomicVariant>();
+		private Map<Integer,List<GenomicVariant>> variantsPerSample = new TreeMap<Integer, List<GenomicVariant>>();
+		
+		public boolean isEmpty() {
+			return variants.isEmpty();
+		}
+		
+		public void add(int sampleIndex, int sequenceIndex, GenomicVariant variant) {
+			if(variants.isEmpty()) {
+				this.sequenceIndex = sequenceIndex;
+				first = variant.getFirst();
+				last = variant.getLast();
+			} else if(last<variant.getLast()) last = variant.getLast();
+			//Variants are added sorted by start. Equivalent variants are located at the end of the list
+			GenomicVariant distinct = null;
+			for(int i=variants.size()-1;i>=0;i--) {
+				GenomicVariant v = variants.get(i);
+				if(v.getFirst()!=variant.getFirst()) break;
+				if(v.getLast()==variant.getLast() && v.isCompatible(variant)) {
+					distinct = v;
+					break;
+				}
 			}
-		} finally {
-			if(out!=null) {
-				out.flush();
-				out.close();
-			}	
+			if(distinct==null) {
+				distinct = variant;
+				variants.add(variant);
+			} else if(distinct.getVariantQS()<variant.getVariantQS()) {
+				distinct.setVariantQS(variant.getVariantQS());
+			}
+			List<GenomicVariant> sampleVariants = variantsPerSample.get(sampleIndex);
+			if(sampleVariants==null) {
+				sampleVariants = new ArrayList<GenomicVariant>();
+				variantsPerSample.put(sampleIndex, sampleVariants);
+			}
+			sampleVariants.add(distinct);
+		}
+		
+		public void clear() {
+			variants = new ArrayList<GenomicVariant>();
+			variantsPerSample.clear();
+		}
+	}
+	
+	/**
+	 * Iterates over the non reference variants of one file and keeps the next variant to merge
+	 */
+	private static class VariantsFileCursor {
+		private int sampleIndex;
+		private String filename;
+		private QualifiedSequenceList sequenceNames;
+		private VCFFileReader reader;
+		private Iterator<VCFRecord> it;
+		private GenomicVariant variant;
+		private int sequenceIndex = -1;
+		
+		public VariantsFileCursor(int sampleIndex, String filename, QualifiedSequenceList sequenceNames) throws IOException {
+			this.sampleIndex = sampleIndex;
+			this.filename = filename;
+			this.sequenceNames = sequenceNames;
+			reader = new VCFFileReader(filename);
+			reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			it = reader.iterator();
+		}
+		
+		public int getSampleIndex() {
+			return sampleIndex;
+		}
+		
+		public GenomicVariant getVariant() {
+			return variant;
+		}
+		
+		public int getSequenceIndex() {
+			return sequenceIndex;
+		}
+		
+		/**
+		 * Moves to the next variant of the file skipping reference sites of gVCF files
+		 * @return boolean true if a new variant was found, false if the file does not have more variants
+		 * @throws IOException If the variants of the file are not sorted
+		 */
+		public boolean advance() throws IOException {
+			while(it.hasNext()) {
+				GenomicVariant next = it.next().getVariant();
+				if(next.getAlleles().length<2) continue;
+				int nextSequenceIndex = sequenceNames.indexOf(next.getSequenceName());
+				if(nextSequenceIndex<0) {
+					try {
+						nextSequenceIndex = sequenceNames.indexOf(sequenceNames.addOrLookupName(next.getSequenceName()).getName());
+					} catch (RuntimeException e) {
+						throw new IOException("Sequence "+next.getSequenceName()+" of variant at position "+next.getFirst()+" in file "+filename+" not found in the sequence names",e);
+					}
+				}
+				if(variant!=null && (nextSequenceIndex<sequenceIndex || (nextSequenceIndex==sequenceIndex && next.getFirst()<variant.getFirst()))) {
+					throw new IOException("Variants in file "+filename+" are not sorted. Variant at "+next.getSequenceName()+":"+next.getFirst()+" found after variant at "+variant.getSequenceName()+":"+variant.getFirst());
+				}
+				variant = next;
+				sequenceIndex = nextSequenceIndex;
+				return true;
+			}
+			variant = null;
+			return false;
+		}
+		
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Sorts file cursors by the position of the next variant. Ties are broken by the order of the files
+	 */
+	private static class VariantsFileCursorComparator implements Comparator<VariantsFileCursor> {
+		@Override
+		public int compare(VariantsFileCursor c1, VariantsFileCursor c2) {
+			if(c1.getSequenceIndex()!=c2.getSequenceIndex()) return c1.getSequenceIndex()-c2.getSequenceIndex();
+			int cmp = GenomicRegionPositionComparator.getInstance().compare(c1.getVariant(), c2.getVariant());
+			if(cmp!=0) return cmp;
+			return c1.getSampleIndex()-c2.getSampleIndex();
 		}
 	}
-
 }
\ No newline at end of file
@@ -59,6 +59,11 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	public static final int LOAD_MODE_QUALITY = 1;
 	public static final int LOAD_MODE_COPY_NUMBER = 2;
 	public static final int LOAD_MODE_MINIMAL = 3;
+	/**
+	 * Keeps the sample columns as text and decodes genotype fields only when they are requested
+	 * through the VCFGenotypeColumns of each record
+	 */
+	public static final int LOAD_MODE_COLUMNS = 4;
 	
 	
 	
@@ -150,6 +155,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	
 	private VCFRecord loadVCFRecord (String line) {
+		if(loadMode==LOAD_MODE_COLUMNS) return loadVCFRecordColumns(line);
 		String [] items = ParseUtils.parseString(line,'\t');
 		if(items.length<8) {
 			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
@@ -189,6 +195,76 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return new VCFRecord(variant, filters, infoFields, formatLoad, calls, header);
 	}
 	
+	/**
+	 * Loads a record keeping the sample columns as text
+	 * @param line to load
+	 * @return VCFRecord Record with VCFGenotypeColumns. Null if the record can not be loaded
+	 */
+	private VCFRecord loadVCFRecordColumns (String line) {
+		//Split only the first nine columns
+		String [] items = new String[10];
+		int numItems = 0;
+		int start = 0;
+		while(numItems<9) {
+			int end = line.indexOf('\t', start);
+			if(end<0) break;
+			items[numItems++] = line.substring(start, end);
+			start = end+1;
+		}
+		items[numItems++] = line.substring(start);
+		if(numItems<8) {
+			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
+			return null;
+		}
+		GenomicVariant variant = loadGenomicVariant(items);
+		if(variant == null) return null;
+		List<String> filters = loadFilters(items[6]);
+		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
+		List<Sample> samples = header.getSamples();
+		if(numItems==8) {
+			if (samples.size()>0) {
+				log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
+				return null;
+			}
+			return new VCFRecord(variant, filters, infoFields, new int [0], new ArrayList<CalledGenomicVariant>(), header);
+		}
+		String samplesText = numItems==10?items[9]:"";
+		int numSamples = 0;
+		if(numItems==10) {
+			numSamples = 1;
+			for(int i=0;i<samplesText.length();i++) {
+				if(samplesText.charAt(i)=='\t') numSamples++;
+			}
+		}
+		if(numSamples!=samples.size()) {
+			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
+			return null;
+		}
+		int [] formatLoad = makeLoadFormat (loadInputFormat(items[8]),false);
+		VCFRecord record = new VCFRecord(variant, filters, infoFields, formatLoad, null, header);
+		record.setGenotypeColumns(new VCFGenotypeColumns(this, variant, items[8], samplesText, numSamples));
+		return record;
+	}
+	
+	/**
+	 * Builds the calls of the samples from the given text
+	 * @param variant Variant of the record
+	 * @param formatStr FORMAT column of the record
+	 * @param samplesText Sample columns separated by tabs
+	 * @return List<CalledGenomicVariant> Calls of the samples
+	 */
+	List<CalledGenomicVariant> loadCalls(GenomicVariant variant, String formatStr, String samplesText) {
+		int[] formatInput = loadInputFormat(formatStr);
+		List<Sample> samples = header.getSamples();
+		String [] sampleItems = ParseUtils.parseString(samplesText, '\t');
+		List<CalledGenomicVariant> calls = new ArrayList<CalledGenomicVariant>(sampleItems.length);
+		for(int i=0;i<sampleItems.length && i<samples.size();i++) {
+			String [] itemsSample = ParseUtils.parseString(sampleItems[i], ':');
+			calls.add(loadCalledVariant(variant,formatInput,itemsSample,samples.get(i)));
+		}
+		return calls;
+	}
+	
 	private GenomicVariant loadGenomicVariant(String[] items) {
 		QualifiedSequence seq;
 		try {
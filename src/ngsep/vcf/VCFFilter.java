@@ -515,9 +515,9 @@ public class VCFFilter {
     	//System.out.println("Passed MAF");
     	if (oh < minOH || oh> maxOH) return false;
     	//System.out.println("Passed OH");
-    	if (regionsToFilter!=null && regionsToFilter.findSpanningRegions(var).size()>0) return false;
+    	if (regionsToFilter!=null && regionsToFilter.hasSpanningRegions(var)) return false;
     	//System.out.println("Passed regions to filter");
-    	if (regionsToSelect!=null && regionsToSelect.findSpanningRegions(var).size()==0) return false;
+    	if (regionsToSelect!=null && !regionsToSelect.hasSpanningRegions(var)) return false;
     	//System.out.println("Passed regions to select");
     	if (filterGCContent(var)) return false;
     	//System.out.println("Passed GCContent");
@@ -21,9 +21,18 @@ package ngsep.vcf;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.ReferenceGenome;
@@ -33,6 +42,7 @@ import ngsep.transcriptome.Transcriptome;
 import ngsep.transcriptome.VariantAnnotationParameters;
 import ngsep.transcriptome.VariantFunctionalAnnotation;
 import ngsep.transcriptome.VariantFunctionalAnnotationType;
+import ngsep.transcriptome.io.BinaryTranscriptomeHandler;
 import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantAnnotation;
@@ -43,9 +53,13 @@ import ngsep.variants.GenomicVariantAnnotation;
  *
  */
 public class VCFFunctionalAnnotator {
+	public static final int DEF_NUM_THREADS = 1;
+	private static final int RECORDS_BATCH_SIZE = 1000;
 	private Logger log = Logger.getLogger(VCFFunctionalAnnotator.class.getName());
 	private Transcriptome transcriptome;
 	private VariantAnnotationParameters parameters = new VariantAnnotationParameters();
+	private int numThreads = DEF_NUM_THREADS;
+	private boolean noCache = false;
 	
 	private ProgressNotifier progressNotifier=null;
 	
@@ -56,7 +70,8 @@ public class VCFFunctionalAnnotator {
 		String transcriptomeMap = args[i++];
 		String sequenceFasta = args[i++]; 
 		
-		annotator.loadMap(transcriptomeMap, new ReferenceGenome(sequenceFasta));
+		if(annotator.noCache) annotator.loadMap(transcriptomeMap, new ReferenceGenome(sequenceFasta));
+		else annotator.loadMapUsingCache(transcriptomeMap, sequenceFasta);
 		annotator.annotate(variantsFile, System.out);
 	}	
 	public int getOffsetUpstream() {
@@ -154,6 +169,31 @@ public class VCFFunctionalAnnotator {
 		this.setSpliceRegionExonOffset(spliceRegionExonOffset.intValue());
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be a positive number");
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		setNumThreads(numThreads.intValue());
+	}
+	
+	public boolean isNoCache() {
+		return noCache;
+	}
+
+	public void setNoCache(boolean noCache) {
+		this.noCache = noCache;
+	}
+	
+	public void setNoCache(Boolean noCache) {
+		setNoCache(noCache.booleanValue());
+	}
+	
 	public Logger getLog() {
 		return log;
 	}
@@ -183,19 +223,69 @@ public class VCFFunctionalAnnotator {
 		transcriptome = handler.loadMap(transcriptomeMap);
 		transcriptome.fillSequenceTranscripts(genome, log);
 	}
+	/**
+	 * Loads the transcriptome from the binary cache of the given gff3 file if the cache is consistent with the gff3 file
+	 * and with the reference genome. In that case, neither the gff3 file nor the reference genome are loaded.
+	 * Otherwise, the transcriptome is loaded from the gff3 file and the reference genome and the cache is saved
+	 * @param transcriptomeMap gff3 file with the gene annotations
+	 * @param referenceFile Fasta file with the reference genome
+	 * @throws IOException If the gff3 file or the reference genome can not be loaded
+	 */
+	public void loadMapUsingCache(String transcriptomeMap, String referenceFile) throws IOException {
+		String cacheFile = transcriptomeMap+BinaryTranscriptomeHandler.CACHE_SUFFIX;
+		List<String> sourceFiles = Arrays.asList(transcriptomeMap, referenceFile);
+		BinaryTranscriptomeHandler cacheHandler = new BinaryTranscriptomeHandler();
+		transcriptome = null;
+		try {
+			transcriptome = cacheHandler.loadCache(cacheFile, sourceFiles);
+		} catch (IOException e) {
+			log.warning("Can not load transcriptome cache file "+cacheFile+". Error: "+e.getMessage());
+		}
+		if(transcriptome!=null) {
+			log.info("Loaded transcriptome from cache file "+cacheFile);
+			return;
+		}
+		loadMap(transcriptomeMap, new ReferenceGenome(referenceFile));
+		try {
+			cacheHandler.saveCache(transcriptome, cacheFile, sourceFiles);
+			log.info("Saved transcriptome cache file "+cacheFile);
+		} catch (IOException e) {
+			log.warning("Can not save transcriptome cache file "+cacheFile+". Error: "+e.getMessage());
+		}
+	}
+	/**
+	 * Annotates the variants in the given file. Records are read and written by the calling thread.
+	 * Batches of records are annotated by a pool of numThreads threads and written in the order of the input file
+	 * @param variantsFile VCF file with the variants to annotate
+	 * @param out Stream to write the annotated records
+	 * @throws IOException If the input file can not be read
+	 */
 	public void annotate(String variantsFile,PrintStream out) throws IOException {
+		//Build the indexes of the transcripts before annotating to make queries read only
+		transcriptome.buildIndexes();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
 		try (VCFFileReader in = new VCFFileReader(variantsFile)){
 			VCFFileWriter writer = new VCFFileWriter(); 
 			in.setLog(log);
 			writer.printHeader(in.getHeader(),out);
 			Iterator<VCFRecord> it = in.iterator();
+			Deque<Future<List<VCFRecord>>> pendingBatches = new ArrayDeque<>();
 			int n=0;
 			while (it.hasNext()) {
-				VCFRecord record = it.next();
-				if(record.getVariant().getAlleles().length>=2) annotate(record);
-				writer.printVCFRecord(record, out);
-				n++;
-				if (progressNotifier!=null && n%1000==0) {
+				final List<VCFRecord> batch = new ArrayList<>(RECORDS_BATCH_SIZE);
+				while(it.hasNext() && batch.size()<RECORDS_BATCH_SIZE) batch.add(it.next());
+				pendingBatches.add(pool.submit(new Callable<List<VCFRecord>>() {
+					@Override
+					public List<VCFRecord> call() {
+						for(VCFRecord record:batch) {
+							if(record.getVariant().getAlleles().length>=2) annotate(record);
+						}
+						return batch;
+					}
+				}));
+				if(pendingBatches.size()<2*numThreads) continue;
+				n+=writeBatch(pendingBatches.poll(), writer, out);
+				if (progressNotifier!=null) {
 					int progress = n/1000;
 					if (!progressNotifier.keepRunning(progress)) {
 						out.flush();
@@ -203,9 +293,29 @@ public class VCFFunctionalAnnotator {
 					}
 				}
 			}
+			while(!pendingBatches.isEmpty()) {
+				writeBatch(pendingBatches.poll(), writer, out);
+			}
+		} finally {
+			pool.shutdownNow();
 		}
 		out.flush();
 	}
+	
+	private int writeBatch(Future<List<VCFRecord>> future, VCFFileWriter writer, PrintStream out) {
+		List<VCFRecord> batch;
+		try {
+			batch = future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for annotated variants", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Error annotating variants",cause);
+		}
+		for(VCFRecord record:batch) writer.printVCFRecord(record, out);
+		return batch.size();
+	}
 
 	public void annotate(VCFRecord record) {
 		GenomicVariant v = record.getVariant();
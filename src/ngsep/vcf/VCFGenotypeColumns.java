@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+
+/**
+ * Genotype information of a VCF record kept as the raw text of the sample columns.
+ * Fields are decoded on demand into primitive arrays with one entry per sample.
+ * Calls are built only if they are explicitly requested
+ * @author Jorge Duitama
+ */
+public class VCFGenotypeColumns {
+	private VCFFileReader reader;
+	private GenomicVariant variant;
+	private String format;
+	//Sample columns separated by tabs
+	private String samplesText;
+	private int numSamples;
+
+	//Decoded data
+	private int [] formatFields;
+	private byte [] genotypes;
+	private short [] genotypeQualities;
+	private int [] readDepths;
+
+	/**
+	 * Creates the columns of a record loaded by the given reader
+	 * @param reader Reader used to decode the full calls if they are requested
+	 * @param variant Variant of the record
+	 * @param format FORMAT column of the record
+	 * @param samplesText Text of the sample columns separated by tabs
+	 * @param numSamples Number of samples
+	 */
+	VCFGenotypeColumns(VCFFileReader reader, GenomicVariant variant, String format, String samplesText, int numSamples) {
+		this.reader = reader;
+		this.variant = variant;
+		this.format = format;
+		this.samplesText = samplesText;
+		this.numSamples = numSamples;
+	}
+
+	/**
+	 * @return int number of samples
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * @return String FORMAT column of the record
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Decodes the GT field of each sample. Missing alleles are ignored and invalid genotypes are treated as undecided.
+	 * Copy number variants encoding the number of copies in the GT field should be processed through the calls
+	 * @return byte[] Genotype of each sample encoded with the constants CalledGenomicVariant.GENOTYPE_*
+	 */
+	public byte[] getGenotypes() {
+		if(genotypes!=null) return genotypes;
+		byte [] answer = new byte[numSamples];
+		Arrays.fill(answer, CalledGenomicVariant.GENOTYPE_UNDECIDED);
+		int [] starts = findFieldStarts(VCFRecord.FORMAT_IDX_GT);
+		int numAlleles = variant.getAlleles().length;
+		for(int i=0;i<numSamples;i++) {
+			if(starts[i]>=0) answer[i] = decodeGenotype(starts[i], numAlleles);
+		}
+		genotypes = answer;
+		return genotypes;
+	}
+
+	/**
+	 * Decodes the GQ field of each sample. Real numbers are truncated
+	 * @return short[] Genotype quality of each sample. Zero if the field is missing
+	 */
+	public short[] getGenotypeQualities() {
+		if(genotypeQualities!=null) return genotypeQualities;
+		short [] answer = new short[numSamples];
+		int [] starts = findFieldStarts(VCFRecord.FORMAT_IDX_GQ);
+		for(int i=0;i<numSamples;i++) {
+			if(starts[i]>=0) answer[i] = (short)decodeInteger(starts[i]);
+		}
+		genotypeQualities = answer;
+		return genotypeQualities;
+	}
+
+	/**
+	 * Decodes the DP field of each sample
+	 * @return int[] Read depth of each sample. Zero if the field is missing
+	 */
+	public int[] getReadDepths() {
+		if(readDepths!=null) return readDepths;
+		int [] answer = new int[numSamples];
+		int [] starts = findFieldStarts(VCFRecord.FORMAT_IDX_DP);
+		for(int i=0;i<numSamples;i++) {
+			if(starts[i]>=0) answer[i] = decodeInteger(starts[i]);
+		}
+		readDepths = answer;
+		return readDepths;
+	}
+
+	/**
+	 * Builds the genotype calls of all samples
+	 * @return List<CalledGenomicVariant> Calls with all the information of the sample columns
+	 */
+	List<CalledGenomicVariant> decodeCalls() {
+		return reader.loadCalls(variant, format, samplesText);
+	}
+
+	private int[] getFormatFields() {
+		if(formatFields==null) {
+			String [] items = format.split(":");
+			formatFields = new int [items.length];
+			for(int i=0;i<items.length;i++) {
+				Integer idx = VCFRecord.KNOWN_FORMAT_FIELDS_MAP.get(items[i]);
+				formatFields[i] = idx!=null?idx:-1;
+			}
+		}
+		return formatFields;
+	}
+
+	/**
+	 * Finds the start of the given field for each sample
+	 * @param knownFieldIdx Index of the field in VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY
+	 * @return int[] Position in the samples text where the field starts for each sample.
+	 * -1 for samples where the field is not available
+	 */
+	private int[] findFieldStarts(int knownFieldIdx) {
+		int [] answer = new int [numSamples];
+		Arrays.fill(answer, -1);
+		int [] fields = getFormatFields();
+		int fieldPos = -1;
+		for(int i=0;i<fields.length;i++) {
+			if(fields[i]==knownFieldIdx) {
+				fieldPos = i;
+				break;
+			}
+		}
+		if(fieldPos<0) return answer;
+		int n = samplesText.length();
+		int sample = 0;
+		int field = 0;
+		if(fieldPos==0) answer[0] = 0;
+		for(int i=0;i<n && sample<numSamples;i++) {
+			char c = samplesText.charAt(i);
+			if(c=='\t') {
+				sample++;
+				field = 0;
+				if(fieldPos==0 && sample<numSamples) answer[sample] = i+1;
+			} else if (c==':') {
+				field++;
+				if(field==fieldPos) answer[sample] = i+1;
+			}
+		}
+		return answer;
+	}
+
+	private boolean isFieldEnd(int pos) {
+		if(pos>=samplesText.length()) return true;
+		char c = samplesText.charAt(pos);
+		return c==':' || c=='\t';
+	}
+
+	private byte decodeGenotype(int start, int numAlleles) {
+		int firstAllele = -1;
+		boolean heterozygous = false;
+		int i = start;
+		while(!isFieldEnd(i)) {
+			char c = samplesText.charAt(i);
+			if(c=='/' || c=='|') {
+				i++;
+				continue;
+			}
+			if(c=='.') {
+				//Missing allele
+				i++;
+				continue;
+			}
+			int allele = 0;
+			for(;!isFieldEnd(i);i++) {
+				c = samplesText.charAt(i);
+				if(c=='/' || c=='|') break;
+				if(c<'0' || c>'9') return CalledGenomicVariant.GENOTYPE_UNDECIDED;
+				allele = 10*allele+(c-'0');
+				if(allele>=numAlleles) return CalledGenomicVariant.GENOTYPE_UNDECIDED;
+			}
+			if(firstAllele<0) firstAllele = allele;
+			else if (allele!=firstAllele) heterozygous = true;
+		}
+		if(firstAllele<0) return CalledGenomicVariant.GENOTYPE_UNDECIDED;
+		if(heterozygous) return CalledGenomicVariant.GENOTYPE_HETERO;
+		if(firstAllele==0) return CalledGenomicVariant.GENOTYPE_HOMOREF;
+		return CalledGenomicVariant.GENOTYPE_HOMOALT;
+	}
+
+	private int decodeInteger(int start) {
+		int answer = 0;
+		boolean negative = false;
+		int i = start;
+		if(!isFieldEnd(i) && samplesText.charAt(i)=='-') {
+			negative = true;
+			i++;
+		}
+		for(;!isFieldEnd(i);i++) {
+			char c = samplesText.charAt(i);
+			if(c<'0' || c>'9') break;
+			answer = 10*answer+(c-'0');
+		}
+		return negative?-answer:answer;
+	}
+}
@@ -107,7 +107,7 @@ public class VCFLDCalculator {
 		if(log!=null)in.setLog(log);
 		
 		List<VCFRecord> recordsInMemory = new LinkedList<>();
-		in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+		in.setLoadMode(VCFFileReader.LOAD_MODE_COLUMNS);
 		//TODO: Implement modes
 		Iterator<VCFRecord> it = in.iterator();
 		String lastSeqName = null;
@@ -158,9 +158,9 @@ public class VCFLDCalculator {
 		
 	}
 	public LDStatistics calculateLDStatistics(VCFRecord record1, VCFRecord record2) {
-		List<CalledGenomicVariant> calls1= record1.getCalls();
-		List<CalledGenomicVariant> calls2= record2.getCalls();
-		int n = calls1.size();
+		byte [] genotypes1 = record1.getGenotypes();
+		byte [] genotypes2 = record2.getGenotypes();
+		int n = genotypes1.length;
 		//Frequency of alleles together
 		double n00=0;
 		//Individual frequencies of allele zero in shared sites
@@ -169,16 +169,16 @@ public class VCFLDCalculator {
 		
 		int shared = 0;
 		for(int i=0;i<n;i++) {
-			CalledGenomicVariant call1 = calls1.get(i);
-			CalledGenomicVariant call2 = calls2.get(i);
-			if(call1.isUndecided() || call1.isHeterozygous()) continue;
-			if(call2.isUndecided() || call2.isHeterozygous()) continue;
+			byte g1 = genotypes1[i];
+			byte g2 = genotypes2[i];
+			if(g1==CalledGenomicVariant.GENOTYPE_UNDECIDED || g1==CalledGenomicVariant.GENOTYPE_HETERO) continue;
+			if(g2==CalledGenomicVariant.GENOTYPE_UNDECIDED || g2==CalledGenomicVariant.GENOTYPE_HETERO) continue;
 			shared++;
-			if(call1.isHomozygousReference()) {
+			if(g1==CalledGenomicVariant.GENOTYPE_HOMOREF) {
 				n01++;
-				if(call2.isHomozygousReference()) n00++;
+				if(g2==CalledGenomicVariant.GENOTYPE_HOMOREF) n00++;
 			}
-			if(call2.isHomozygousReference()) n02++;
+			if(g2==CalledGenomicVariant.GENOTYPE_HOMOREF) n02++;
 		}
 		if(shared == 0) return new LDStatistics(0, 0, 0, shared);
 		double p00 = n00/shared;
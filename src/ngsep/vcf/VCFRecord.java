@@ -164,6 +164,8 @@ public class VCFRecord implements GenomicRegion {
 	private Set<String> filters = new TreeSet<String>();
 	private Map<String,GenomicVariantAnnotation> infoFields = new LinkedHashMap<String, GenomicVariantAnnotation>();
 	private List<CalledGenomicVariant> calls;
+	//Raw genotype information of records loaded in columns mode. Calls are decoded from these columns on demand
+	private VCFGenotypeColumns genotypeColumns;
 	private int [] fieldsFormat;
 	private VCFFileHeader header;
 	public VCFRecord(GenomicVariant variant, List<String> filters,List<GenomicVariantAnnotation> infoFields, int [] format, List<CalledGenomicVariant> calls, VCFFileHeader header) {
@@ -231,8 +233,34 @@ public class VCFRecord implements GenomicRegion {
 		return infoFields.get(key);
 	}
 	public List<CalledGenomicVariant> getCalls() {
+		if(calls==null && genotypeColumns!=null) calls = genotypeColumns.decodeCalls();
 		return calls;
 	}
+	/**
+	 * @return VCFGenotypeColumns Raw genotype information if the record was loaded with VCFFileReader.LOAD_MODE_COLUMNS. Null otherwise
+	 */
+	public VCFGenotypeColumns getGenotypeColumns() {
+		return genotypeColumns;
+	}
+	void setGenotypeColumns(VCFGenotypeColumns genotypeColumns) {
+		this.genotypeColumns = genotypeColumns;
+	}
+	/**
+	 * Returns the genotypes of the samples. If the record was loaded in columns mode, only the GT field is decoded
+	 * @return byte[] Genotype of each sample encoded with the constants CalledGenomicVariant.GENOTYPE_*
+	 */
+	public byte [] getGenotypes() {
+		if(genotypeColumns!=null) return genotypeColumns.getGenotypes();
+		byte [] answer = new byte [calls.size()];
+		for(int i=0;i<answer.length;i++) {
+			CalledGenomicVariant call = calls.get(i);
+			if(call.isUndecided()) answer[i] = CalledGenomicVariant.GENOTYPE_UNDECIDED;
+			else if(call.isHeterozygous()) answer[i] = CalledGenomicVariant.GENOTYPE_HETERO;
+			else if(call.isHomozygousReference()) answer[i] = CalledGenomicVariant.GENOTYPE_HOMOREF;
+			else answer[i] = CalledGenomicVariant.GENOTYPE_HOMOALT;
+		}
+		return answer;
+	}
 	public void addFilter(String filter) {
 		filters.add(filter);
 	}
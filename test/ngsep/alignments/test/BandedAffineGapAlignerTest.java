@@ -0,0 +1,57 @@
+package ngsep.alignments.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.alignments.AlignmentResult;
+import ngsep.alignments.BandedAffineGapAligner;
+
+public class BandedAffineGapAlignerTest extends TestCase {
+	
+	public void testLargeIndels() {
+		Random r = new Random(13);
+		BandedAffineGapAligner aligner = new BandedAffineGapAligner(1, 7, 1, 4, 8);
+		for(int i=0;i<200;i++) {
+			String subject = makeRandomSequence(r, 300);
+			//Indels much longer than the band
+			int indelStart = 50+r.nextInt(100);
+			int indelLength = 20+r.nextInt(60);
+			String query;
+			if(i%2==0) query = subject.substring(20, indelStart)+subject.substring(indelStart+indelLength, 280);
+			else query = subject.substring(20, indelStart)+makeRandomSequence(r, indelLength)+subject.substring(indelStart, 200);
+			byte [] q = BandedAffineGapAligner.encode(query);
+			byte [] s = BandedAffineGapAligner.encode(subject);
+			AlignmentResult full = aligner.align(q, s, -q.length, s.length, true);
+			AlignmentResult banded = aligner.alignQueryToSubject(q, s);
+			assertNotNull(banded);
+			assertEquals(full.getScore(), banded.getScore());
+			
+			String subjectSegment = subject.substring(20, 280);
+			byte [] sg = BandedAffineGapAligner.encode(subjectSegment);
+			AlignmentResult fullGlobal = aligner.align(q, sg, -q.length, sg.length, false);
+			AlignmentResult bandedGlobal = aligner.alignGlobal(q, sg);
+			assertNotNull(bandedGlobal);
+			assertEquals(fullGlobal.getScore(), bandedGlobal.getScore());
+		}
+	}
+	
+	public void testGlobalAlignment() {
+		BandedAffineGapAligner aligner = new BandedAffineGapAligner(2, 20, 1, 8, 2);
+		String s1 = "ACGTACGTTTGACCATGACCGATTACAGGATTACA";
+		String s2 = "ACGTACGTTTGACCATTTTTTTTTTTTTTTTTTTTGACCGATTACAGGATTACA";
+		String [] aligned = aligner.getAlignment(s1, s2);
+		assertEquals(aligned[0].length(), aligned[1].length());
+		assertEquals(s1, aligned[0].replace("-", ""));
+		assertEquals(s2, aligned[1].replace("-", ""));
+		//The gap should not be split
+		String gap = aligned[0].replaceAll("[^-]", "");
+		assertEquals(s2.length()-s1.length(), gap.length());
+		assertTrue(aligned[0].contains(gap));
+	}
+	
+	private String makeRandomSequence(Random r, int length) {
+		char [] answer = new char[length];
+		for(int i=0;i<length;i++) answer[i] = "ACGT".charAt(r.nextInt(4));
+		return new String(answer);
+	}
+}
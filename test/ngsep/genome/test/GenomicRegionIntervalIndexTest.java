@@ -0,0 +1,171 @@
+package ngsep.genome.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
+import ngsep.genome.GenomicRegionIntervalIndex;
+import ngsep.genome.GenomicRegionPositionComparator;
+import ngsep.genome.GenomicRegionSortedCollection;
+import ngsep.genome.GenomicRegionVisitor;
+
+public class GenomicRegionIntervalIndexTest extends TestCase {
+	private static final String SEQ_NAME = "chr1";
+	
+	public void testSpanningRegionsRandom() {
+		Random r = new Random(23);
+		//Sizes around powers of two test the incomplete subtrees of the implicit tree
+		int [] sizes = {0,1,2,3,7,8,9,15,16,17,63,64,65,500};
+		for(int n:sizes) {
+			List<GenomicRegion> regions = makeRandomRegions(r, n, 5000);
+			GenomicRegionIntervalIndex<GenomicRegion> index = new GenomicRegionIntervalIndex<>(regions);
+			assertEquals(n, index.size());
+			for(int i=0;i<200;i++) {
+				int first = r.nextInt(6000);
+				int last = first+r.nextInt(i%2==0?10:500);
+				List<GenomicRegion> expected = findSpanningRegionsBruteForce(regions, first, last);
+				final List<GenomicRegion> found = new ArrayList<>();
+				boolean completed = index.visitSpanningRegions(first, last, new GenomicRegionVisitor<GenomicRegion>() {
+					@Override
+					public boolean visit(GenomicRegion region) {
+						found.add(region);
+						return true;
+					}
+				});
+				assertTrue(completed);
+				//Regions should be visited in the order of the index
+				assertEquals(expected, found);
+				assertEquals(expected.size()>0, index.hasSpanningRegions(first, last));
+			}
+		}
+	}
+	
+	public void testStopVisit() {
+		List<GenomicRegion> regions = new ArrayList<>();
+		for(int i=1;i<=10;i++) regions.add(new GenomicRegionImpl(SEQ_NAME, i, 100));
+		GenomicRegionIntervalIndex<GenomicRegion> index = new GenomicRegionIntervalIndex<>(regions);
+		final List<GenomicRegion> found = new ArrayList<>();
+		boolean completed = index.visitSpanningRegions(50, 60, new GenomicRegionVisitor<GenomicRegion>() {
+			@Override
+			public boolean visit(GenomicRegion region) {
+				found.add(region);
+				return found.size()<3;
+			}
+		});
+		assertFalse(completed);
+		assertEquals(3, found.size());
+		assertEquals(regions.subList(0, 3), found);
+	}
+	
+	public void testUnsortedRegions() {
+		List<GenomicRegion> regions = new ArrayList<>();
+		regions.add(new GenomicRegionImpl(SEQ_NAME, 100, 200));
+		regions.add(new GenomicRegionImpl(SEQ_NAME, 50, 80));
+		try {
+			new GenomicRegionIntervalIndex<>(regions);
+			fail("Unsorted regions should not be indexed");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+	
+	public void testSortedCollectionRemovals() {
+		Random r = new Random(5);
+		String [] seqNames = {"chr1","chr2","chr3"};
+		for(int i=0;i<50;i++) {
+			GenomicRegionSortedCollection<GenomicRegion> collection = new GenomicRegionSortedCollection<>();
+			List<GenomicRegion> regions = new ArrayList<>();
+			for(int j=0;j<200;j++) {
+				int first = 1+r.nextInt(10000);
+				GenomicRegion region = new GenomicRegionImpl(seqNames[r.nextInt(seqNames.length)], first, first+r.nextInt(j%2==0?50:3000));
+				collection.add(region);
+				regions.add(region);
+			}
+			for(int j=0;j<30;j++) {
+				int operation = r.nextInt(3);
+				if(operation == 0 && regions.size()>0) {
+					assertTrue(collection.remove(regions.remove(r.nextInt(regions.size()))));
+				} else if (operation == 1) {
+					int n = r.nextInt(5);
+					List<GenomicRegion> sortedRegions = collection.asList();
+					for(int k=0;k<n && k<sortedRegions.size();k++) regions.remove(sortedRegions.get(k));
+					collection.removeFirst(n);
+				}
+				assertEquals(regions.size(), collection.size());
+				String seqName = seqNames[r.nextInt(seqNames.length)];
+				int first = 1+r.nextInt(12000);
+				int last = first+r.nextInt(200);
+				int expected = 0;
+				for(GenomicRegion region:regions) {
+					if(region.getSequenceName().equals(seqName) && region.getFirst()<=last && region.getLast()>=first) expected++;
+				}
+				assertEquals(expected, collection.findSpanningRegions(seqName, first, last).size());
+				assertEquals(expected>0, collection.hasSpanningRegions(seqName, first, last));
+			}
+		}
+	}
+	
+	public void testConcurrentQueries() throws Exception {
+		Random r = new Random(17);
+		String [] seqNames = {"chr1","chr2","chr3","chr4"};
+		final List<GenomicRegion> regions = new ArrayList<>();
+		for(int i=0;i<20000;i++) {
+			int first = 1+r.nextInt(100000);
+			regions.add(new GenomicRegionImpl(seqNames[r.nextInt(seqNames.length)], first, first+r.nextInt(i%10==0?3000:100)));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			for(int i=0;i<10;i++) {
+				//Queries build the indexes of a modified collection from different threads
+				final GenomicRegionSortedCollection<GenomicRegion> collection = new GenomicRegionSortedCollection<>(regions);
+				List<Future<Boolean>> results = new ArrayList<>();
+				for(int j=0;j<8;j++) {
+					final Random rq = new Random(j);
+					results.add(pool.submit(() -> {
+						for(int k=0;k<200;k++) {
+							String seqName = seqNames[rq.nextInt(seqNames.length)];
+							int first = 1+rq.nextInt(100000);
+							int last = first+rq.nextInt(500);
+							int expected = 0;
+							for(GenomicRegion region:regions) {
+								if(region.getSequenceName().equals(seqName) && region.getFirst()<=last && region.getLast()>=first) expected++;
+							}
+							if(expected!=collection.findSpanningRegions(seqName, first, last).size()) return false;
+						}
+						return true;
+					}));
+				}
+				for(Future<Boolean> result:results) assertTrue(result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private List<GenomicRegion> makeRandomRegions(Random r, int n, int maxFirst) {
+		List<GenomicRegion> regions = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			int first = 1+r.nextInt(maxFirst);
+			//Mix of short and long regions
+			int length = (i%10==0)?r.nextInt(2000):r.nextInt(50);
+			regions.add(new GenomicRegionImpl(SEQ_NAME, first, first+length));
+		}
+		Collections.sort(regions, GenomicRegionPositionComparator.getInstance());
+		return regions;
+	}
+	
+	private List<GenomicRegion> findSpanningRegionsBruteForce(List<GenomicRegion> regions, int first, int last) {
+		List<GenomicRegion> answer = new ArrayList<>();
+		for(GenomicRegion region:regions) {
+			if(region.getFirst()<=last && region.getLast()>=first) answer.add(region);
+		}
+		return answer;
+	}
+}
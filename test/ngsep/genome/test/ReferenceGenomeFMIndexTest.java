@@ -0,0 +1,149 @@
+package ngsep.genome.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.alignments.ReadAlignment;
+import ngsep.genome.ReferenceGenome;
+import ngsep.genome.ReferenceGenomeFMIndex;
+import ngsep.genome.ReferenceGenomeSMEM;
+import ngsep.sequences.QualifiedSequence;
+
+public class ReferenceGenomeFMIndexTest extends TestCase {
+	
+	public void testSaveLoad() throws IOException {
+		Random r = new Random(11);
+		List<String> sequences = new ArrayList<>();
+		sequences.add(makeRandomSequence(r, 20000, false));
+		//Short sequence with a repeat to obtain multiple hits
+		String unit = makeRandomSequence(r, 300, false);
+		sequences.add(unit+makeRandomSequence(r, 1000, false)+unit);
+		//Sequences with N use the general BWT instead of the packed DNA BWT
+		sequences.add(makeRandomSequence(r, 5000, true));
+		File fastaFile = File.createTempFile("fmIndexTest", ".fa");
+		File indexFile = File.createTempFile("fmIndexTest", ".fmindex");
+		try {
+			try (PrintStream out = new PrintStream(fastaFile)) {
+				for(int i=0;i<sequences.size();i++) {
+					out.println(">seq"+i);
+					out.println(sequences.get(i));
+				}
+			}
+			ReferenceGenome genome = new ReferenceGenome(fastaFile.getAbsolutePath());
+			ReferenceGenomeFMIndex index = new ReferenceGenomeFMIndex(genome);
+			index.save(indexFile.getAbsolutePath());
+			ReferenceGenomeFMIndex loaded = ReferenceGenomeFMIndex.loadFromBinaries(indexFile.getAbsolutePath());
+			
+			assertEquals(sequences.size(), loaded.getSequencesMetadata().size());
+			for(int i=0;i<sequences.size();i++) {
+				String seqName = "seq"+i;
+				String sequence = sequences.get(i);
+				QualifiedSequence seq = loaded.getSequencesMetadata().get(i);
+				assertEquals(seqName, seq.getName());
+				assertEquals(sequence.length(), seq.getLength());
+				assertEquals(sequence.length(), loaded.getReferenceLength(seqName));
+				assertEquals(sequence, loaded.getSequence(seqName, 1, sequence.length()).toString());
+				assertEquals(sequence.substring(99, 200), loaded.getSequence(seqName, 100, 200).toString());
+			}
+			for(int i=0;i<300;i++) {
+				String sequence = sequences.get(r.nextInt(sequences.size()));
+				int start = r.nextInt(sequence.length()-30);
+				String query = sequence.substring(start, start+8+r.nextInt(20));
+				if(query.indexOf('N')>=0) continue;
+				List<String> expected = searchBruteForce(sequences, query);
+				assertEquals(expected, toSortedStrings(index.search(query)));
+				assertEquals(expected, toSortedStrings(loaded.search(query)));
+				String mismatchQuery = makeRandomSequence(r, 40, false);
+				assertEquals(smemsToSortedStrings(index.findSMEMs(mismatchQuery, 10, 100)), smemsToSortedStrings(loaded.findSMEMs(mismatchQuery, 10, 100)));
+			}
+		} finally {
+			fastaFile.delete();
+			indexFile.delete();
+		}
+	}
+	
+	public void testSMEMsNotAlignedToSegments() throws IOException {
+		Random r = new Random(3);
+		String sequence = makeRandomSequence(r, 10000, false);
+		File fastaFile = File.createTempFile("fmIndexTest", ".fa");
+		try {
+			try (PrintStream out = new PrintStream(fastaFile)) {
+				out.println(">seq0");
+				out.println(sequence);
+			}
+			ReferenceGenomeFMIndex index = new ReferenceGenomeFMIndex(new ReferenceGenome(fastaFile.getAbsolutePath()));
+			int minLength = 20;
+			for(int i=0;i<50;i++) {
+				//Match of length between minLength and 2*minLength-1 not including any segment starting at a multiple of minLength
+				int matchLength = minLength+r.nextInt(minLength-2);
+				int queryStart = 1+r.nextInt(2*minLength-matchLength-1);
+				int start = r.nextInt(sequence.length()-matchLength);
+				String query = makeRandomSequence(r, queryStart, false)+sequence.substring(start, start+matchLength)+makeRandomSequence(r, 2*minLength, false);
+				boolean found = false;
+				for(ReferenceGenomeSMEM smem:index.findSMEMs(query, minLength, 100)) {
+					boolean spansMatch = smem.getQueryStart()<=queryStart && smem.getQueryStart()+smem.length()>=queryStart+matchLength;
+					if(spansMatch && smem.getFirst()==start+1-(queryStart-smem.getQueryStart())) found = true;
+				}
+				assertTrue("Match at "+queryStart+" of length "+matchLength+" not found in query "+query, found);
+			}
+		} finally {
+			fastaFile.delete();
+		}
+	}
+	
+	public void testInvalidFile() throws IOException {
+		File indexFile = File.createTempFile("fmIndexTest", ".fmindex");
+		try {
+			try (PrintStream out = new PrintStream(indexFile)) {
+				out.println("This is not an FM-index");
+			}
+			ReferenceGenomeFMIndex.loadFromBinaries(indexFile.getAbsolutePath());
+			fail("Invalid index file should not be loaded");
+		} catch (IOException e) {
+			//Expected
+		} finally {
+			indexFile.delete();
+		}
+	}
+	
+	private String makeRandomSequence(Random r, int length, boolean withN) {
+		StringBuilder answer = new StringBuilder(length);
+		for(int i=0;i<length;i++) {
+			if(withN && r.nextInt(100)==0) answer.append('N');
+			else answer.append("ACGT".charAt(r.nextInt(4)));
+		}
+		return answer.toString();
+	}
+	
+	private List<String> searchBruteForce(List<String> sequences, String query) {
+		List<String> answer = new ArrayList<>();
+		for(int i=0;i<sequences.size();i++) {
+			String sequence = sequences.get(i);
+			for(int j=sequence.indexOf(query);j>=0;j=sequence.indexOf(query, j+1)) {
+				answer.add("seq"+i+":"+(j+1)+"-"+(j+query.length()));
+			}
+		}
+		Collections.sort(answer);
+		return answer;
+	}
+	
+	private List<String> toSortedStrings(List<ReadAlignment> alignments) {
+		List<String> answer = new ArrayList<>();
+		for(ReadAlignment aln:alignments) answer.add(aln.getSequenceName()+":"+aln.getFirst()+"-"+aln.getLast());
+		Collections.sort(answer);
+		return answer;
+	}
+	
+	private List<String> smemsToSortedStrings(List<ReferenceGenomeSMEM> smems) {
+		List<String> answer = new ArrayList<>();
+		for(ReferenceGenomeSMEM smem:smems) answer.add(smem.getSequenceName()+":"+smem.getFirst()+"-"+smem.getLast()+":"+smem.getQueryStart());
+		Collections.sort(answer);
+		return answer;
+	}
+}
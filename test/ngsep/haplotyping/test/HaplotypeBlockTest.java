@@ -0,0 +1,113 @@
+package ngsep.haplotyping.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.haplotyping.HaplotypeBlock;
+import ngsep.haplotyping.HaplotypeFragment;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.CalledSNV;
+import ngsep.variants.SNV;
+
+public class HaplotypeBlockTest extends TestCase {
+	
+	public void testFragmentScores() {
+		Random r = new Random(29);
+		for(int t=0;t<20;t++) {
+			int numVariants = 1+r.nextInt(400);
+			List<RawFragment> fragments = new ArrayList<>();
+			for(int i=0;i<60;i++) {
+				int first = r.nextInt(numVariants);
+				//Lengths around multiples of 64 test the borders of the packed words
+				int length = 1+r.nextInt(Math.min(numVariants-first, i%3==0?200:70));
+				fragments.add(new RawFragment(first, makeRandomCalls(r, length)));
+			}
+			//The block sorts fragments by first column with a stable sort
+			Collections.sort(fragments, new Comparator<RawFragment>() {
+				@Override
+				public int compare(RawFragment f1, RawFragment f2) {
+					return f1.first-f2.first;
+				}
+			});
+			HaplotypeBlock block = new HaplotypeBlock(makeCalls(numVariants));
+			for(RawFragment fragment:fragments) block.addFragment(fragment.first, fragment.calls.clone());
+			assertEquals(fragments.size(), block.getNumFragments());
+			byte [] haplotype = makeRandomCalls(r, numVariants);
+			HaplotypeFragment packedHaplotype = new HaplotypeFragment(0, haplotype);
+			for(int i=0;i<fragments.size();i++) {
+				RawFragment f1 = fragments.get(i);
+				assertEquals(f1.first, block.getFirstColumn(i));
+				assertEquals(f1.first+f1.calls.length-1, block.getLastColumn(i));
+				assertEquals(f1.countCalls(), block.getFragmentCalls(i));
+				for(int j=0;j<numVariants;j++) assertEquals(f1.getCall(j), block.getAllele(i, j));
+				assertEquals(scoreNaive(haplotype, new RawFragment(0, haplotype), f1, true), block.getHamming2(haplotype, i));
+				assertEquals(scoreNaive(haplotype, new RawFragment(0, haplotype), f1, true), block.getHamming2(packedHaplotype, i));
+				for(int k=0;k<fragments.size();k++) {
+					RawFragment f2 = fragments.get(k);
+					assertEquals(scoreNaive(haplotype, f1, f2, false), block.getHammingDistance(i, k));
+					assertEquals(scoreNaive(haplotype, f1, f2, true), block.getHamming2(i, k));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Column by column score. Different calls add one. Equal calls subtract one if type2 is true
+	 */
+	private int scoreNaive(byte [] haplotype, RawFragment f1, RawFragment f2, boolean type2) {
+		int score = 0;
+		for(int j=0;j<haplotype.length;j++) {
+			byte allele1 = f1.getCall(j);
+			byte allele2 = f2.getCall(j);
+			if(allele1 == CalledGenomicVariant.ALLELE_UNDECIDED || allele2 == CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+			if(allele1!=allele2) score++;
+			else if (type2) score--;
+		}
+		return score;
+	}
+	
+	private byte [] makeRandomCalls(Random r, int length) {
+		byte [] calls = new byte [length];
+		for(int i=0;i<length;i++) {
+			int x = r.nextInt(5);
+			if(x==0) calls[i] = CalledGenomicVariant.ALLELE_UNDECIDED;
+			else if (x<3) calls[i] = CalledGenomicVariant.ALLELE_REFERENCE;
+			else calls[i] = CalledGenomicVariant.ALLELE_ALTERNATIVE;
+		}
+		return calls;
+	}
+	
+	private List<CalledGenomicVariant> makeCalls(int numVariants) {
+		List<CalledGenomicVariant> calls = new ArrayList<>();
+		for(int i=0;i<numVariants;i++) {
+			calls.add(new CalledSNV(new SNV("chr1", 100+10*i, 'A', 'C'), CalledGenomicVariant.GENOTYPE_HETERO));
+		}
+		return calls;
+	}
+	
+	private static class RawFragment {
+		private int first;
+		private byte [] calls;
+		
+		public RawFragment(int first, byte [] calls) {
+			this.first = first;
+			this.calls = calls;
+		}
+		
+		public byte getCall(int column) {
+			int i = column - first;
+			if(i<0 || i>=calls.length) return CalledGenomicVariant.ALLELE_UNDECIDED;
+			return calls[i];
+		}
+		
+		public int countCalls() {
+			int count = 0;
+			for(byte call:calls) if(call!=CalledGenomicVariant.ALLELE_UNDECIDED) count++;
+			return count;
+		}
+	}
+}
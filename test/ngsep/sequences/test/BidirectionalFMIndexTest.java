@@ -0,0 +1,85 @@
+package ngsep.sequences.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.BidirectionalFMIndex;
+import ngsep.sequences.BidirectionalFMInterval;
+
+public class BidirectionalFMIndexTest extends TestCase {
+	
+	public void testFindSMEMs() {
+		Random r = new Random(7);
+		StringBuilder text = new StringBuilder(makeRandomSequence(r, 5000));
+		//Repeats with a few differences to obtain SMEMs with multiple occurrences
+		for(int i=0;i<20;i++) {
+			int start = r.nextInt(4000);
+			text.append(mutate(r, text.substring(start, start+200), 3));
+		}
+		String sequence = text.toString();
+		BidirectionalFMIndex index = new BidirectionalFMIndex(sequence);
+		assertEquals(sequence.length(), index.getSequenceLength());
+		for(int i=0;i<200;i++) {
+			int start = r.nextInt(sequence.length()-150);
+			String query = mutate(r, sequence.substring(start, start+150), r.nextInt(8));
+			int minLength = 1+r.nextInt(20);
+			List<int[]> expected = findSMEMsBruteForce(sequence, query, minLength);
+			List<BidirectionalFMInterval> smems = index.findSMEMs(query, minLength);
+			assertEquals("Query: "+query, expected.size(), smems.size());
+			for(int j=0;j<smems.size();j++) {
+				BidirectionalFMInterval smem = smems.get(j);
+				int [] match = expected.get(j);
+				assertEquals(match[0], smem.getQueryStart());
+				assertEquals(match[1], smem.getQueryEnd());
+				assertEquals(match[2], smem.getSize());
+				String matchSeq = query.substring(match[0], match[1]);
+				int [] positions = index.locate(smem, smem.getSize());
+				assertEquals(smem.getSize(), positions.length);
+				for(int pos:positions) assertEquals(matchSeq, sequence.substring(pos, pos+matchSeq.length()));
+				assertEquals(Math.min(2, smem.getSize()), index.locate(smem, 2).length);
+			}
+		}
+	}
+	
+	/**
+	 * A SMEM starting at i ends at the end e(i) of the longest match starting at i. It is not contained
+	 * in another match if e(i-1) is smaller than e(i)
+	 * @return List<int[]> Start, end and number of occurrences of the SMEMs sorted by start
+	 */
+	private List<int[]> findSMEMsBruteForce(String sequence, String query, int minLength) {
+		int n = query.length();
+		int [] ends = new int [n];
+		for(int i=0;i<n;i++) {
+			int end = i;
+			while(end<n && sequence.contains(query.substring(i, end+1))) end++;
+			ends[i] = end;
+		}
+		List<int[]> answer = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			if(ends[i]-i<minLength) continue;
+			if(i>0 && ends[i-1]>=ends[i]) continue;
+			answer.add(new int [] {i, ends[i], countOccurrences(sequence, query.substring(i, ends[i]))});
+		}
+		return answer;
+	}
+	
+	private int countOccurrences(String sequence, String query) {
+		int count = 0;
+		for(int j=sequence.indexOf(query);j>=0;j=sequence.indexOf(query, j+1)) count++;
+		return count;
+	}
+	
+	private String makeRandomSequence(Random r, int length) {
+		char [] answer = new char[length];
+		for(int i=0;i<length;i++) answer[i] = "ACGT".charAt(r.nextInt(4));
+		return new String(answer);
+	}
+	
+	private String mutate(Random r, String sequence, int numMutations) {
+		char [] answer = sequence.toCharArray();
+		for(int i=0;i<numMutations;i++) answer[r.nextInt(answer.length)] = "ACGT".charAt(r.nextInt(4));
+		return new String(answer);
+	}
+}
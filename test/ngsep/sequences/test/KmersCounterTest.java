@@ -0,0 +1,215 @@
+package ngsep.sequences.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.main.io.MappedBinaryFileReader;
+import ngsep.math.Distribution;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.DNAShortKmer;
+import ngsep.sequences.DNAShortKmerEncoder;
+import ngsep.sequences.DefaultKmersMapImpl;
+import ngsep.sequences.KmersCounter;
+import ngsep.sequences.KmersMap;
+import ngsep.sequences.LongKmersMapImpl;
+
+public class KmersCounterTest extends TestCase {
+	private static final int [] KMER_SIZES = {16,21,31};
+	
+	public void testLongKmersCounts() throws IOException {
+		Random r = new Random(13);
+		String [] reads = makeRandomReads(r, 3000);
+		String fastq = makeFastq(reads);
+		for(int k:KMER_SIZES) {
+			for(int strands=0;strands<2;strands++) {
+				boolean bothStrands = strands==1;
+				Map<String,Integer> expected = countKmersBruteForce(reads, k, bothStrands);
+				//Table built as the counter did before codes were counted in the long k-mers table. Keys are DNAShortKmer objects
+				KmersMap previousMap = new DefaultKmersMapImpl();
+				for(String read:reads) {
+					addKmers(previousMap, read, k);
+					if(bothStrands) addKmers(previousMap, DNAMaskedSequence.getReverseComplement(read), k);
+				}
+				assertEquals(expected.size(), previousMap.size());
+				for(int numThreads=1;numThreads<=3;numThreads+=2) {
+					KmersCounter counter = new KmersCounter();
+					counter.setKmerSize(k);
+					counter.setBothStrands(bothStrands);
+					counter.setNumThreads(numThreads);
+					counter.processFastqFile(new ByteArrayInputStream(fastq.getBytes()));
+					KmersMap kmersMap = counter.getKmersMap();
+					assertTrue(kmersMap instanceof LongKmersMapImpl);
+					assertEquals(expected.size(), kmersMap.size());
+					for(Map.Entry<String,Integer> entry:expected.entrySet()) {
+						assertEquals("K-mer: "+entry.getKey(), entry.getValue().intValue(), kmersMap.getCount(entry.getKey()));
+						assertEquals(previousMap.getCount(new DNAShortKmer(entry.getKey())), kmersMap.getCount(entry.getKey()));
+					}
+					assertDistributionsEquals(previousMap.calculateAbundancesDistribution(), kmersMap.calculateAbundancesDistribution());
+				}
+			}
+		}
+	}
+	
+	public void testBucketsCounts() throws IOException {
+		Random r = new Random(19);
+		String [] reads = makeRandomReads(r, 3000);
+		File fastqFile = File.createTempFile("kmersTest", ".fq");
+		File fastaFile = File.createTempFile("kmersTest", ".fa");
+		File tableFile = File.createTempFile("kmersTest", ".bin");
+		try {
+			try (PrintStream out = new PrintStream(fastqFile)) {
+				out.print(makeFastq(reads));
+			}
+			try (PrintStream out = new PrintStream(fastaFile)) {
+				for(int i=0;i<reads.length;i++) out.println(">seq"+i+"\n"+reads[i]);
+			}
+			//Small k-mers are counted in memory in a different table
+			int [] kmerSizes = {9,16,21,31};
+			for(int k:kmerSizes) {
+				for(int strands=0;strands<2;strands++) {
+					boolean bothStrands = strands==1;
+					Map<String,Integer> expected = countKmersBruteForce(reads, k, bothStrands);
+					KmersCounter memoryCounter = new KmersCounter();
+					memoryCounter.setKmerSize(k);
+					memoryCounter.setBothStrands(bothStrands);
+					memoryCounter.processFastqFile(fastqFile.getAbsolutePath());
+					assertEquals(expected.size(), memoryCounter.getKmersMap().size());
+					//The in memory table of small k-mers has a shorter spectrum, so the expected spectrum is built from the brute force counts
+					Distribution expectedSpectrum = new Distribution(1, 200, 1);
+					for(int count:expected.values()) expectedSpectrum.processDatapoint(count);
+					for(int numBuckets=1;numBuckets<=7;numBuckets+=3) {
+						for(int numThreads=1;numThreads<=3;numThreads+=2) {
+							boolean fasta = numBuckets==4;
+							KmersCounter counter = new KmersCounter();
+							counter.setKmerSize(k);
+							counter.setBothStrands(bothStrands);
+							counter.setNumBuckets(numBuckets);
+							counter.setNumThreads(numThreads);
+							counter.setFasta(fasta);
+							counter.setKmersTableFile(tableFile.getAbsolutePath());
+							File input = fasta?fastaFile:fastqFile;
+							Distribution spectrum = counter.countKmersInBuckets(Collections.singletonList(input.getAbsolutePath()));
+							assertDistributionsEquals(expectedSpectrum, spectrum);
+							assertKmersTable(tableFile, k, numBuckets, expected);
+						}
+					}
+				}
+			}
+		} finally {
+			fastqFile.delete();
+			fastaFile.delete();
+			tableFile.delete();
+		}
+	}
+	
+	private void assertKmersTable(File tableFile, int k, int numBuckets, Map<String,Integer> expected) throws IOException {
+		Map<Long,Integer> expectedCodes = new HashMap<>();
+		DNAShortKmerEncoder encoder = new DNAShortKmerEncoder(k);
+		for(Map.Entry<String,Integer> entry:expected.entrySet()) {
+			encoder.reset();
+			String kmer = entry.getKey();
+			for(int i=0;i<kmer.length();i++) encoder.addBase(kmer.charAt(i));
+			expectedCodes.put(encoder.getForwardCode(), entry.getValue());
+		}
+		try (MappedBinaryFileReader reader = new MappedBinaryFileReader(tableFile.getAbsolutePath())) {
+			assertEquals(k, reader.readInt());
+			assertEquals(numBuckets, reader.readInt());
+			assertEquals(expectedCodes.size(), reader.readLong());
+			int total = 0;
+			for(int i=0;i<numBuckets;i++) {
+				int n = reader.readInt();
+				reader.align();
+				LongBuffer codes = reader.mapLongs(n);
+				IntBuffer counts = reader.mapInts(n);
+				reader.align();
+				for(int j=0;j<n;j++) {
+					long code = codes.get(j);
+					if(j>0) assertTrue(codes.get(j-1)<code);
+					Integer count = expectedCodes.remove(code);
+					assertNotNull(count);
+					assertEquals(count.intValue(), counts.get(j));
+				}
+				total+=n;
+			}
+			assertEquals(0, expectedCodes.size());
+			assertEquals(reader.size(), reader.getPosition());
+			assertTrue(total>0);
+		}
+	}
+	
+	private void addKmers(KmersMap map, String sequence, int k) {
+		for(CharSequence kmer:KmersCounter.extractKmers(sequence, k, true)) {
+			if(kmer!=null) map.addOcurrance(kmer);
+		}
+	}
+	
+	private void assertDistributionsEquals(Distribution expected, Distribution actual) {
+		assertEquals(expected.getCount(), actual.getCount());
+		assertTrue(Arrays.equals(expected.getDistribution(), actual.getDistribution()));
+	}
+	
+	private Map<String,Integer> countKmersBruteForce(String [] sequences, int k, boolean bothStrands) {
+		Map<String,Integer> counts = new HashMap<>();
+		for(String sequence:sequences) {
+			String upper = sequence.toUpperCase();
+			for(int i=0;i+k<=upper.length();i++) {
+				String kmer = upper.substring(i, i+k);
+				if(kmer.indexOf('N')>=0) continue;
+				addCount(counts, kmer);
+				if(bothStrands) addCount(counts, reverseComplement(kmer));
+			}
+		}
+		return counts;
+	}
+	
+	private void addCount(Map<String,Integer> counts, String kmer) {
+		Integer count = counts.get(kmer);
+		counts.put(kmer, count==null?1:count+1);
+	}
+	
+	private String reverseComplement(String kmer) {
+		StringBuilder answer = new StringBuilder();
+		for(int i=kmer.length()-1;i>=0;i--) answer.append("TGCA".charAt("ACGT".indexOf(kmer.charAt(i))));
+		return answer.toString();
+	}
+	
+	/**
+	 * Reads sampled from a short genome to obtain repeated k-mers. Some reads have lower case bases and Ns
+	 */
+	private String [] makeRandomReads(Random r, int numReads) {
+		char [] genome = new char [5000];
+		for(int i=0;i<genome.length;i++) genome[i] = "ACGT".charAt(r.nextInt(4));
+		String [] reads = new String [numReads];
+		for(int i=0;i<numReads;i++) {
+			int length = 40+r.nextInt(110);
+			int start = r.nextInt(genome.length-length);
+			char [] read = Arrays.copyOfRange(genome, start, start+length);
+			if(i%10==0) read[r.nextInt(length)] = 'N';
+			if(i%7==0) {
+				for(int j=0;j<length/3;j++) read[j] = Character.toLowerCase(read[j]);
+			}
+			reads[i] = new String(read);
+		}
+		return reads;
+	}
+	
+	private String makeFastq(String [] reads) {
+		StringBuilder fastq = new StringBuilder();
+		for(int i=0;i<reads.length;i++) {
+			fastq.append("@read"+i+"\n"+reads[i]+"\n+\n");
+			for(int j=0;j<reads[i].length();j++) fastq.append('I');
+			fastq.append("\n");
+		}
+		return fastq.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package ngsep.vcf.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.vcf.IndividualSampleVariantsMerge;
+
+public class IndividualSampleVariantsMergeTest extends TestCase {
+	private static final String HEADER = "##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS\n";
+	//Samples with SNVs at the same position, overlapping indels, a reference site and variants in two sequences
+	private static final String [] SAMPLES = {
+		"chr1\t100\t.\tA\tG\t40\t.\t.\tGT\t1/1\n"+
+		"chr1\t200\t.\tACG\tA\t30\t.\t.\tGT\t0/1\n"+
+		"chr1\t300\t.\tT\t.\t.\t.\t.\tGT\t0/0\n"+
+		"chr2\t50\t.\tC\tT\t20\t.\t.\tGT\t0/1\n",
+		"chr1\t100\t.\tA\tT\t50\t.\t.\tGT\t0/1\n"+
+		"chr1\t201\t.\tC\tG\t35\t.\t.\tGT\t1/1\n"+
+		"chr1\t400\t.\tG\tGTT\t25\t.\t.\tGT\t0/1\n"+
+		"chr2\t50\t.\tC\tT\t60\t.\t.\tGT\t1/1\n",
+		"chr1\t100\t.\tA\tG\t45\t.\t.\tGT\t0/1\n"+
+		"chr1\t200\t.\tACG\tA\t55\t.\t.\tGT\t1/1\n"+
+		"chr1\t402\t.\tA\tC\t10\t.\t.\tGT\t0/1\n"+
+		"chr2\t10\t.\tG\tA\t15\t.\t.\tGT\t0/1\n"
+	};
+	private static final String [] EXPECTED = {
+		"chr1\t100\t.\tA\tG,T\t50\t.\t.",
+		"chr1\t200\t.\tACG\tA,AGG\t55\t.\tTYPE=INDEL",
+		"chr1\t201\t.\tC\tG\t35\t.\t.",
+		"chr1\t400\t.\tG\tGTT\t25\t.\t.",
+		"chr1\t402\t.\tA\tC\t10\t.\t.",
+		"chr2\t10\t.\tG\tA\t15\t.\t.",
+		"chr2\t50\t.\tC\tT\t60\t.\t."
+	};
+
+	public void testMergeVariants() throws IOException {
+		List<File> files = writeSamples(SAMPLES);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			IndividualSampleVariantsMerge merger = makeMerger();
+			final List<Integer> progress = new ArrayList<>();
+			merger.setProgressNotifier((p)->progress.add(p));
+			try (PrintStream out = new PrintStream(bytes)) {
+				assertTrue(merger.mergeVariants(getPaths(files), makeSequenceNames(), out));
+			}
+			List<String> records = new ArrayList<>();
+			for(String line:bytes.toString().split("\n")) {
+				if(!line.startsWith("#")) records.add(line);
+			}
+			assertEquals(EXPECTED.length, records.size());
+			for(int i=0;i<EXPECTED.length;i++) assertEquals(EXPECTED[i], records.get(i));
+			//Progress is reported once per merged file
+			assertEquals(files.size(), progress.size());
+			for(int i=0;i<progress.size();i++) assertEquals(i+1, progress.get(i).intValue());
+		} finally {
+			for(File file:files) file.delete();
+		}
+	}
+
+	public void testCancelDeletesOutput() throws IOException {
+		List<File> files = writeSamples(SAMPLES);
+		File outFile = File.createTempFile("mergeTest", ".vcf");
+		try {
+			IndividualSampleVariantsMerge merger = makeMerger();
+			merger.setProgressNotifier((p)->p<1);
+			assertFalse(merger.mergeVariants(getPaths(files), makeSequenceNames(), outFile.getAbsolutePath()));
+			assertFalse(outFile.exists());
+		} finally {
+			for(File file:files) file.delete();
+			outFile.delete();
+		}
+	}
+
+	public void testUnsortedFile() throws IOException {
+		String unsorted = "chr1\t300\t.\tA\tG\t40\t.\t.\tGT\t1/1\n"+"chr1\t100\t.\tC\tT\t40\t.\t.\tGT\t1/1\n";
+		List<File> files = writeSamples(new String[] {SAMPLES[0], unsorted});
+		try (PrintStream out = new PrintStream(new ByteArrayOutputStream())) {
+			makeMerger().mergeVariants(getPaths(files), makeSequenceNames(), out);
+			fail("Unsorted files should not be merged");
+		} catch (IOException e) {
+			//Expected
+		} finally {
+			for(File file:files) file.delete();
+		}
+	}
+
+	private IndividualSampleVariantsMerge makeMerger() {
+		IndividualSampleVariantsMerge merger = new IndividualSampleVariantsMerge();
+		Logger log = Logger.getAnonymousLogger();
+		log.setLevel(Level.OFF);
+		merger.setLog(log);
+		return merger;
+	}
+
+	private QualifiedSequenceList makeSequenceNames() {
+		QualifiedSequenceList sequenceNames = new QualifiedSequenceList();
+		sequenceNames.add(new QualifiedSequence("chr1"));
+		sequenceNames.add(new QualifiedSequence("chr2"));
+		return sequenceNames;
+	}
+
+	private List<File> writeSamples(String [] samples) throws IOException {
+		List<File> files = new ArrayList<>();
+		for(String sample:samples) {
+			File file = File.createTempFile("mergeTest", ".vcf");
+			files.add(file);
+			try (PrintStream out = new PrintStream(file)) {
+				out.print(HEADER);
+				out.print(sample);
+			}
+		}
+		return files;
+	}
+
+	private List<String> getPaths(List<File> files) {
+		List<String> paths = new ArrayList<>();
+		for(File file:files) paths.add(file.getAbsolutePath());
+		return paths;
+	}
+}
@@ -0,0 +1,117 @@
+package ngsep.vcf.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.vcf.VCFFileReader;
+import ngsep.vcf.VCFGenotypeColumns;
+import ngsep.vcf.VCFRecord;
+
+public class VCFGenotypeColumnsTest extends TestCase {
+	private static final String [] FORMATS = {"GT:GQ:DP","GT:DP:GQ","GT","GT:GQ","DP:GT","GT:AD:DP:GQ","GT:GQ:DP:BSDP"};
+	private static final String [] GENOTYPES_BIALLELIC = {"0/0","0/1","1/1","0|1","1|0","1|1","./.","0","1","."};
+	private static final String [] GENOTYPES_MULTIALLELIC = {"0/2","2/2","1/2","2|1","0/0","./.","2"};
+	
+	public void testColumnsMatchCalls() throws IOException {
+		Random r = new Random(11);
+		int numSamples = 7;
+		String vcf = makeRandomVCF(r, 300, numSamples);
+		List<VCFRecord> eagerRecords = loadRecords(vcf, VCFFileReader.LOAD_MODE_CALLINFO);
+		List<VCFRecord> columnsRecords = loadRecords(vcf, VCFFileReader.LOAD_MODE_COLUMNS);
+		assertEquals(300, eagerRecords.size());
+		assertEquals(eagerRecords.size(), columnsRecords.size());
+		for(int i=0;i<eagerRecords.size();i++) {
+			VCFRecord eager = eagerRecords.get(i);
+			VCFRecord lazy = columnsRecords.get(i);
+			assertNull(eager.getGenotypeColumns());
+			VCFGenotypeColumns columns = lazy.getGenotypeColumns();
+			assertNotNull(columns);
+			assertEquals(numSamples, columns.getNumSamples());
+			assertEquals(eager.getFirst(), lazy.getFirst());
+			List<CalledGenomicVariant> calls = eager.getCalls();
+			byte [] genotypes = lazy.getGenotypes();
+			short [] qualities = columns.getGenotypeQualities();
+			int [] depths = columns.getReadDepths();
+			for(int j=0;j<numSamples;j++) {
+				CalledGenomicVariant call = calls.get(j);
+				String message = "Record "+i+" sample "+j+" format "+columns.getFormat();
+				assertEquals(message, expectedGenotype(call), genotypes[j]);
+				assertEquals(message, call.getGenotypeQuality(), qualities[j]);
+				assertEquals(message, call.getTotalReadDepth(), depths[j]);
+			}
+			//Genotypes of eager records are calculated from the calls
+			assertTrue(Arrays.equals(genotypes, eager.getGenotypes()));
+			//Calls requested from columns are decoded with all the information of the sample columns
+			List<CalledGenomicVariant> lazyCalls = lazy.getCalls();
+			assertEquals(calls.size(), lazyCalls.size());
+			for(int j=0;j<numSamples;j++) {
+				CalledGenomicVariant call = calls.get(j);
+				CalledGenomicVariant lazyCall = lazyCalls.get(j);
+				assertEquals(call.getSampleId(), lazyCall.getSampleId());
+				assertEquals(expectedGenotype(call), expectedGenotype(lazyCall));
+				assertEquals(call.getGenotypeQuality(), lazyCall.getGenotypeQuality());
+				assertEquals(call.getTotalReadDepth(), lazyCall.getTotalReadDepth());
+				assertEquals(call.isPhased(), lazyCall.isPhased());
+			}
+			assertSame(lazyCalls, lazy.getCalls());
+		}
+	}
+	
+	private byte expectedGenotype(CalledGenomicVariant call) {
+		if(call.isUndecided()) return CalledGenomicVariant.GENOTYPE_UNDECIDED;
+		if(call.isHeterozygous()) return CalledGenomicVariant.GENOTYPE_HETERO;
+		if(call.isHomozygousReference()) return CalledGenomicVariant.GENOTYPE_HOMOREF;
+		return CalledGenomicVariant.GENOTYPE_HOMOALT;
+	}
+	
+	private List<VCFRecord> loadRecords(String vcf, int loadMode) throws IOException {
+		List<VCFRecord> records = new ArrayList<>();
+		try (VCFFileReader reader = new VCFFileReader(new ByteArrayInputStream(vcf.getBytes()))) {
+			reader.setLoadMode(loadMode);
+			Iterator<VCFRecord> it = reader.iterator();
+			while(it.hasNext()) records.add(it.next());
+		}
+		return records;
+	}
+	
+	private String makeRandomVCF(Random r, int numRecords, int numSamples) {
+		StringBuilder vcf = new StringBuilder();
+		vcf.append("##fileformat=VCFv4.2\n");
+		vcf.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+		for(int j=0;j<numSamples;j++) vcf.append("\tS"+j);
+		vcf.append("\n");
+		for(int i=0;i<numRecords;i++) {
+			boolean multiallelic = i%5==0;
+			String format = FORMATS[r.nextInt(FORMATS.length)];
+			vcf.append("chr1\t"+(100+10*i)+"\t.\tA\t"+(multiallelic?"C,G":"T")+"\t"+r.nextInt(100)+"\tPASS\t.\t"+format);
+			String [] fields = format.split(":");
+			for(int j=0;j<numSamples;j++) {
+				vcf.append("\t");
+				for(int k=0;k<fields.length;k++) {
+					if(k>0) vcf.append(":");
+					String field = fields[k];
+					if("GT".equals(field)) {
+						String [] genotypes = GENOTYPES_BIALLELIC;
+						if(multiallelic && r.nextBoolean()) genotypes = GENOTYPES_MULTIALLELIC;
+						vcf.append(genotypes[r.nextInt(genotypes.length)]);
+					} else if ("AD".equals(field)) {
+						vcf.append(r.nextInt(20)+","+r.nextInt(20)+(multiallelic?","+r.nextInt(20):""));
+					} else if ("BSDP".equals(field)) {
+						vcf.append(r.nextInt(20)+","+r.nextInt(20)+","+r.nextInt(20)+","+r.nextInt(20));
+					} else {
+						vcf.append(r.nextInt(100));
+					}
+				}
+			}
+			vcf.append("\n");
+		}
+		return vcf.toString();
+	}
+}